@@ -0,0 +1,829 @@
+// Author: Sean Pesce
+//
+// Offline throughput and latency benchmarks for AwsIotRecon actions. An in-process MQTT broker
+// (LocalMqttBroker) and REST API/credentials provider stub (LocalRestStub) are started with throwaway
+// certificates (BenchmarkCerts), and each action is run against them as a separate process, exactly
+// as a user would run it (with this JVM's class path):
+//
+//   mqtt-dump, mqtt-topic-field-harvest, mqtt-payload-harvest:
+//     The broker injects messages tagged with a sequence number. Latency is measured from injection to
+//     the matching line of the action's output, with messages paced at --latency-rate; throughput is
+//     measured for a burst of --messages messages.
+//   mqtt-script:
+//     A script of --messages PUB instructions (QoS 1, so each waits for its PUBACK). Throughput and
+//     the time between consecutive publishes (latency) are measured at the broker.
+//   mqtt-data-exfil:
+//     --exfil-topics test topics. Latency is from the broker receiving each test message to the action
+//     confirming it.
+//   get-device-shadow, list-named-shadows, list-retained-mqtt-messages:
+//     Wall-clock time of --rest-invocations invocations (one request each, including JVM startup).
+//   iam-credentials:
+//     One invocation with --messages role aliases. Throughput and the time between consecutive
+//     requests (latency) are measured at the stub.
+//
+// Each scenario is run --warmup times (discarded) and then --runs times; the median throughput and
+// the latency percentiles over all runs are reported. Results can be appended to a JSON lines file
+// ("--results") and compared against an earlier run with the same parameters ("--baseline"); the exit
+// status is 1 if any scenario regressed by more than --tolerance percent, or 2 if any scenario failed.
+//
+// Example:
+//   java -cp aws-iot-recon-<version>.jar:target/test-classes com.seanpesce.bench.Benchmark --results bench.jsonl --baseline bench-baseline.jsonl
+//
+// These sources aren't part of the application jar; they're compiled (into target/test-classes) only by
+// the "bench" Maven profile.
+
+package com.seanpesce.bench;
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.net.ssl.SSLContext;
+import javax.validation.constraints.NotNull;
+
+import com.seanpesce.aws.iot.AwsIotConstants;
+import com.seanpesce.aws.iot.AwsIotRecon;
+import com.seanpesce.aws.iot.ConnectionTimings;
+import com.seanpesce.json.JsonEncoder;
+import com.seanpesce.json.JsonPathExtractor;
+
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+
+
+public class Benchmark {
+
+    public static final List<String> SCENARIOS = Collections.unmodifiableList(Arrays.asList(new String[]{
+        AwsIotConstants.ACTION_MQTT_DUMP,
+        AwsIotConstants.ACTION_MQTT_TOPIC_FIELD_HARVEST,
+        AwsIotConstants.ACTION_MQTT_PAYLOAD_HARVEST,
+        AwsIotConstants.ACTION_MQTT_SCRIPT,
+        AwsIotConstants.ACTION_MQTT_DATA_EXFIL,
+        AwsIotConstants.ACTION_GET_SHADOW,
+        AwsIotConstants.ACTION_LIST_NAMED_SHADOWS,
+        AwsIotConstants.ACTION_LIST_RETAINED_MQTT_MESSAGES,
+        AwsIotConstants.ACTION_IAM_CREDS
+    }));
+
+    public static final String DUMP_TOPIC = "bench/dump/telemetry";
+    public static final String PAYLOAD_HARVEST_TOPIC = "bench/harvest/telemetry";
+    public static final String SCRIPT_TOPIC = "bench/script";
+    public static final String EXFIL_TOPIC_PREFIX = "bench/exfil/";
+    public static final String THING_NAME = "bench-thing";
+
+    // Latency changes smaller than this are ignored in baseline comparisons (timer and scheduling noise)
+    public static final double LATENCY_SLACK_MS = 1.0;
+    // Lines of a failed action's stderr to show
+    public static final int STDERR_TAIL_LINES = 20;
+
+    // Messages are tagged "bench-<sequence number>" (in the payload or topic)
+    protected static final Pattern SEQUENCE_PATTERN = Pattern.compile("bench-(\\d+)");
+    protected static final Pattern CONNECT_TIME_PATTERN = Pattern.compile("^\\[INFO\\] Connected in (\\d+)ms");
+
+
+    // Measurements from one run of a scenario
+    protected static class RunResult {
+        protected long count = 0;
+        protected double seconds = 0;
+        protected final ArrayList<Double> latenciesMs = new ArrayList<Double>();
+        protected Double connectMs = null;
+        protected double wallMs = 0;
+
+        protected double throughput() {
+            return this.seconds > 0 ? this.count / this.seconds : 0;
+        }
+    }
+
+
+    // Receives the lines an action writes to stdout, with their arrival time (System.nanoTime())
+    protected static interface LineHandler {
+        public void line(String line, long nanos);
+    }
+
+
+    // An AwsIotRecon action running in a child process
+    protected class ActionProcess implements AutoCloseable {
+        protected final Process proc;
+        protected final long startNanos;
+        protected final ArrayDeque<String> stderrTail = new ArrayDeque<String>();
+        protected volatile Double connectMs = null;
+        protected final Thread stdoutReader;
+
+        protected ActionProcess(List<String> actionArgs, final LineHandler handler) throws IOException {
+            ArrayList<String> command = new ArrayList<String>();
+            command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+            command.addAll(jvmArgs);
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(AwsIotRecon.class.getName());
+            command.addAll(actionArgs);
+            this.startNanos = System.nanoTime();
+            this.proc = new ProcessBuilder(command).directory(workDir).start();
+            this.proc.getOutputStream().close();
+            this.stdoutReader = this.startReader(this.proc.getInputStream(), "bench-stdout", (String line, long nanos) -> {
+                if (handler != null) {
+                    handler.line(line, nanos);
+                }
+            });
+            this.startReader(this.proc.getErrorStream(), "bench-stderr", (String line, long nanos) -> {
+                Matcher m = CONNECT_TIME_PATTERN.matcher(line);
+                if (m.find()) {
+                    this.connectMs = Double.parseDouble(m.group(1));
+                }
+                synchronized (this.stderrTail) {
+                    this.stderrTail.add(line);
+                    if (this.stderrTail.size() > STDERR_TAIL_LINES) {
+                        this.stderrTail.remove();
+                    }
+                }
+            });
+        }
+
+        protected Thread startReader(final InputStream stream, String name, final LineHandler handler) {
+            Thread t = new Thread(() -> {
+                try (BufferedReader in = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        handler.line(line, System.nanoTime());
+                    }
+                } catch (IOException ex) {
+                    // Process ended
+                }
+            }, name);
+            t.setDaemon(true);
+            t.start();
+            return t;
+        }
+
+        // Waits for the process to exit (and its output to be consumed). Returns the wall-clock time in
+        // ms, or -1 on timeout.
+        protected double waitForExit(long timeoutMs) throws InterruptedException {
+            if (!this.proc.waitFor(timeoutMs, TimeUnit.MILLISECONDS)) {
+                return -1;
+            }
+            double wallMs = (System.nanoTime() - this.startNanos) / 1e6;
+            this.stdoutReader.join(5000);
+            return wallMs;
+        }
+
+        protected boolean isAlive() {
+            return this.proc.isAlive();
+        }
+
+        protected String getStderrTail() {
+            synchronized (this.stderrTail) {
+                return String.join("\n", this.stderrTail);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (this.proc.isAlive()) {
+                // Allows shutdown hooks to run
+                this.proc.destroy();
+                try {
+                    if (!this.proc.waitFor(5, TimeUnit.SECONDS)) {
+                        this.proc.destroyForcibly();
+                        this.proc.waitFor(5, TimeUnit.SECONDS);
+                    }
+                } catch (InterruptedException ex) {
+                    this.proc.destroyForcibly();
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+
+    // Counts tagged events (e.g., received messages) and records when each one happened
+    protected static class SequenceTracker {
+        protected final long[] times;
+        protected int count = 0;
+
+        protected SequenceTracker(int size) {
+            this.times = new long[size];
+        }
+
+        // Records the first occurrence of each sequence number found in the text
+        protected void record(String text, long nanos) {
+            Matcher m = SEQUENCE_PATTERN.matcher(text);
+            if (!m.find()) {
+                return;
+            }
+            int seq;
+            try {
+                seq = Integer.parseInt(m.group(1));
+            } catch (NumberFormatException ex) {
+                return;
+            }
+            synchronized (this) {
+                if (seq < this.times.length && this.times[seq] == 0) {
+                    this.times[seq] = nanos;
+                    this.count++;
+                    this.notifyAll();
+                }
+            }
+        }
+
+        // Waits until at least count events have been recorded. Returns false on timeout or if the
+        // process exited.
+        protected synchronized boolean await(int count, long timeoutMs, ActionProcess proc) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            while (this.count < count) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0 || (proc != null && !proc.isAlive())) {
+                    return false;
+                }
+                this.wait(Math.min(remaining, 500));
+            }
+            return true;
+        }
+
+        protected synchronized long get(int seq) {
+            return this.times[seq];
+        }
+    }
+
+
+    protected final CommandLine cmd;
+    protected final int messages;
+    protected final int latencyMessages;
+    protected final int latencyRate;
+    protected final int payloadSize;
+    protected final int exfilTopics;
+    protected final int restInvocations;
+    protected final int runs;
+    protected final int warmup;
+    protected final int qos;
+    protected final boolean mtls;
+    protected final long timeoutMs;
+    protected final double tolerance;
+    protected final List<String> jvmArgs;
+
+    protected File workDir = null;
+    protected BenchmarkCerts certs = null;
+    protected LocalMqttBroker broker = null;
+    protected LocalRestStub restStub = null;
+    protected int runCounter = 0;
+
+
+    public Benchmark(@NotNull CommandLine cmd) throws org.apache.commons.cli.ParseException {
+        this.cmd = cmd;
+        this.messages = getInt(cmd, "messages", 20000);
+        this.latencyMessages = getInt(cmd, "latency-messages", 500);
+        this.latencyRate = Math.max(1, getInt(cmd, "latency-rate", 500));
+        this.payloadSize = getInt(cmd, "payload-size", 256);
+        this.exfilTopics = getInt(cmd, "exfil-topics", 20);
+        this.restInvocations = getInt(cmd, "rest-invocations", 5);
+        this.runs = Math.max(1, getInt(cmd, "runs", 3));
+        this.warmup = getInt(cmd, "warmup", 1);
+        this.qos = getInt(cmd, "qos", 0);
+        this.mtls = !cmd.hasOption("no-mtls");
+        this.timeoutMs = getInt(cmd, "timeout", 120) * 1000L;
+        this.tolerance = getInt(cmd, "tolerance", 25) / 100.0;
+        this.jvmArgs = cmd.hasOption("jvm-args") ? Arrays.asList(cmd.getOptionValue("jvm-args").trim().split("\\s+")) : new ArrayList<String>();
+        if (this.qos < 0 || this.qos > 1) {
+            throw new org.apache.commons.cli.ParseException("QoS must be 0 or 1");
+        }
+    }
+
+
+    public static void main(String[] args) throws IOException, GeneralSecurityException, InterruptedException {
+        Options opts = new Options();
+        opts.addOption(new Option("h", "help", false, "Print usage and exit"));
+        opts.addOption(Option.builder(null).longOpt("scenarios").argName("list").hasArg(true).required(false).desc("Comma-separated scenarios to run (default: all). Options: " + SCENARIOS).type(String.class).build());
+        opts.addOption(Option.builder(null).longOpt("messages").argName("count").hasArg(true).required(false).desc("Messages per throughput burst, PUB instructions per script, and role aliases per credentials request run (default: 20000)").type(Number.class).build());
+        opts.addOption(Option.builder(null).longOpt("latency-messages").argName("count").hasArg(true).required(false).desc("Paced messages per latency measurement (default: 500)").type(Number.class).build());
+        opts.addOption(Option.builder(null).longOpt("latency-rate").argName("rate").hasArg(true).required(false).desc("Messages per second during latency measurement (default: 500)").type(Number.class).build());
+        opts.addOption(Option.builder(null).longOpt("payload-size").argName("bytes").hasArg(true).required(false).desc("Approximate size of injected and published payloads (default: 256)").type(Number.class).build());
+        opts.addOption(Option.builder(null).longOpt("qos").argName("qos").hasArg(true).required(false).desc("QoS of injected messages, 0 or 1 (default: 0)").type(Number.class).build());
+        opts.addOption(Option.builder(null).longOpt("exfil-topics").argName("count").hasArg(true).required(false).desc("Topics tested per data exfiltration run (default: 20)").type(Number.class).build());
+        opts.addOption(Option.builder(null).longOpt("rest-invocations").argName("count").hasArg(true).required(false).desc("Invocations per run of single-request REST API actions (default: 5)").type(Number.class).build());
+        opts.addOption(Option.builder(null).longOpt("runs").argName("count").hasArg(true).required(false).desc("Measured runs per scenario (default: 3)").type(Number.class).build());
+        opts.addOption(Option.builder(null).longOpt("warmup").argName("count").hasArg(true).required(false).desc("Discarded warm-up runs per scenario (default: 1)").type(Number.class).build());
+        opts.addOption(Option.builder(null).longOpt("timeout").argName("seconds").hasArg(true).required(false).desc("Timeout for each run (default: 120)").type(Number.class).build());
+        opts.addOption(new Option(null, "no-mtls", false, "Don't require client certificates; MQTT actions authenticate with a (dummy) custom authorizer instead"));
+        opts.addOption(Option.builder(null).longOpt("jvm-args").argName("args").hasArg(true).required(false).desc("Space-separated JVM arguments for the benchmarked processes (e.g., \"-XX:SharedArchiveFile=aws-iot-recon.jsa\")").type(String.class).build());
+        opts.addOption(Option.builder(null).longOpt("results").argName("file").hasArg(true).required(false).desc("Append results to a file (one JSON object per scenario per line)").type(String.class).build());
+        opts.addOption(Option.builder(null).longOpt("baseline").argName("file").hasArg(true).required(false).desc("Compare results against the last results for each scenario in a file written with \"--results\"").type(String.class).build());
+        opts.addOption(Option.builder(null).longOpt("tolerance").argName("percent").hasArg(true).required(false).desc("Throughput decrease or latency increase that counts as a regression (default: 25)").type(Number.class).build());
+
+        HelpFormatter helpFmt = new HelpFormatter();
+        helpFmt.setWidth(120);
+        final String usage = "java -cp <jar>:<bench classes> " + Benchmark.class.getName() + " [options]";
+        if (Arrays.stream(args).anyMatch(arg -> arg.equals("--help") || arg.equals("-h"))) {
+            helpFmt.printHelp(usage, opts);
+            System.exit(0);
+        }
+        Benchmark bench = null;
+        List<String> scenarios = SCENARIOS;
+        try {
+            CommandLine cmd = new BasicParser().parse(opts, args);
+            bench = new Benchmark(cmd);
+            if (cmd.hasOption("scenarios")) {
+                scenarios = Arrays.asList(cmd.getOptionValue("scenarios").split(","));
+                for (String s : scenarios) {
+                    if (!SCENARIOS.contains(s)) {
+                        throw new org.apache.commons.cli.ParseException("Invalid scenario: \"" + s + "\"");
+                    }
+                }
+            }
+        } catch (org.apache.commons.cli.ParseException ex) {
+            System.err.println("[ERROR] " + ex.getMessage() + "\n");
+            helpFmt.printHelp(usage, opts);
+            System.exit(154);
+        }
+        System.exit(bench.run(scenarios));
+    }
+
+
+    // Returns the exit status (0: OK; 1: regression; 2: failure)
+    public int run(@NotNull List<String> scenarios) throws IOException, GeneralSecurityException, InterruptedException {
+        this.workDir = Files.createTempDirectory("aws-iot-recon-bench").toFile();
+        try {
+            System.err.println("[INFO] Generating benchmark certificates in " + this.workDir);
+            this.certs = BenchmarkCerts.generate(this.workDir);
+            SSLContext serverContext = this.certs.getServerContext();
+            this.broker = new LocalMqttBroker(serverContext, this.mtls);
+            this.restStub = new LocalRestStub(serverContext, this.mtls);
+            System.err.println("[INFO] Local MQTT broker on port " + this.broker.getPort() + "; REST API stub on port " + this.restStub.getPort() + (this.mtls ? " (mTLS)" : " (TLS)"));
+
+            ArrayList<LinkedHashMap<String, Object>> results = new ArrayList<LinkedHashMap<String, Object>>();
+            boolean failed = false;
+            for (String scenario : scenarios) {
+                LinkedHashMap<String, Object> result = this.runScenario(scenario);
+                if (result == null) {
+                    failed = true;
+                } else {
+                    results.add(result);
+                }
+            }
+
+            if (this.cmd.hasOption("results")) {
+                try (Writer out = new OutputStreamWriter(new FileOutputStream(this.cmd.getOptionValue("results"), true), StandardCharsets.UTF_8)) {
+                    for (LinkedHashMap<String, Object> result : results) {
+                        out.write(JsonEncoder.encode(result) + "\n");
+                    }
+                }
+            }
+            boolean regressed = this.cmd.hasOption("baseline") && this.compareToBaseline(results, this.cmd.getOptionValue("baseline"));
+            return failed ? 2 : (regressed ? 1 : 0);
+
+        } finally {
+            if (this.broker != null) {
+                this.broker.close();
+            }
+            if (this.restStub != null) {
+                this.restStub.close();
+            }
+            deleteRecursively(this.workDir);
+        }
+    }
+
+
+    // Returns the aggregated result, or null if the scenario failed
+    protected LinkedHashMap<String, Object> runScenario(String scenario) throws IOException, InterruptedException {
+        ArrayList<RunResult> measured = new ArrayList<RunResult>();
+        for (int i = 0; i < this.warmup + this.runs; i++) {
+            boolean isWarmup = i < this.warmup;
+            System.err.println("[INFO] " + scenario + ": " + (isWarmup ? "warm-up run " + (i + 1) + "/" + this.warmup : "run " + (i - this.warmup + 1) + "/" + this.runs));
+            RunResult r;
+            try {
+                r = this.runOnce(scenario);
+            } catch (IOException ex) {
+                System.err.println("[ERROR] " + scenario + " failed: " + ex.getMessage());
+                return null;
+            }
+            if (!isWarmup) {
+                measured.add(r);
+            }
+        }
+
+        double[] throughputs = new double[measured.size()];
+        ArrayList<Double> latencies = new ArrayList<Double>();
+        ArrayList<Double> connects = new ArrayList<Double>();
+        double[] walls = new double[measured.size()];
+        long count = 0;
+        for (int i = 0; i < measured.size(); i++) {
+            RunResult r = measured.get(i);
+            throughputs[i] = r.throughput();
+            walls[i] = r.wallMs;
+            latencies.addAll(r.latenciesMs);
+            if (r.connectMs != null) {
+                connects.add(r.connectMs);
+            }
+            count = r.count;
+        }
+        Arrays.sort(throughputs);
+        Arrays.sort(walls);
+        double[] sortedLatencies = toSortedArray(latencies);
+        double[] sortedConnects = toSortedArray(connects);
+
+        LinkedHashMap<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put("time", System.currentTimeMillis());
+        result.put("scenario", scenario);
+        result.put("runs", measured.size());
+        result.put("count", count);
+        result.put("payloadSize", this.payloadSize);
+        result.put("qos", this.qos);
+        result.put("mtls", this.mtls);
+        result.put("throughput", round(ConnectionTimings.percentile(throughputs, 50)));
+        if (sortedLatencies.length > 0) {
+            result.put("latencyP50", round(ConnectionTimings.percentile(sortedLatencies, 50)));
+            result.put("latencyP99", round(ConnectionTimings.percentile(sortedLatencies, 99)));
+        }
+        if (sortedConnects.length > 0) {
+            result.put("connectMs", round(ConnectionTimings.percentile(sortedConnects, 50)));
+        }
+        result.put("wallMs", round(ConnectionTimings.percentile(walls, 50)));
+        result.put("java", System.getProperty("java.version"));
+
+        String unit = scenario.startsWith("mqtt-") ? "msg/s" : "req/s";
+        System.out.println("[Benchmark] " + scenario + ": " + result.get("throughput") + " " + unit
+                           + (sortedLatencies.length > 0 ? "; latency p50=" + result.get("latencyP50") + "ms p99=" + result.get("latencyP99") + "ms (n=" + sortedLatencies.length + ")" : "")
+                           + (sortedConnects.length > 0 ? "; connect=" + result.get("connectMs") + "ms" : "")
+                           + "; wall=" + result.get("wallMs") + "ms (median of " + measured.size() + " run" + (measured.size() == 1 ? "" : "s") + ")");
+        return result;
+    }
+
+
+    protected RunResult runOnce(String scenario) throws IOException, InterruptedException {
+        if (scenario.equals(AwsIotConstants.ACTION_MQTT_DUMP)) {
+            return this.runReceiveScenario(scenario, DUMP_TOPIC, "bench/dump/#", false);
+        } else if (scenario.equals(AwsIotConstants.ACTION_MQTT_TOPIC_FIELD_HARVEST)) {
+            return this.runReceiveScenario(scenario, null, "$aws/things/+/jobs/get", true);
+        } else if (scenario.equals(AwsIotConstants.ACTION_MQTT_PAYLOAD_HARVEST)) {
+            return this.runReceiveScenario(scenario, PAYLOAD_HARVEST_TOPIC, "bench/harvest/#", false);
+        } else if (scenario.equals(AwsIotConstants.ACTION_MQTT_SCRIPT)) {
+            return this.runScriptScenario();
+        } else if (scenario.equals(AwsIotConstants.ACTION_MQTT_DATA_EXFIL)) {
+            return this.runExfilScenario();
+        } else if (scenario.equals(AwsIotConstants.ACTION_IAM_CREDS)) {
+            return this.runCredentialsScenario();
+        }
+        return this.runRestScenario(scenario);
+    }
+
+
+    // Injects tagged messages and matches them to the action's output lines. If tagTopic is true, the
+    // sequence number is in the topic ("$aws/things/bench-<n>/jobs/get"); otherwise it's in the payload.
+    protected RunResult runReceiveScenario(String action, String topic, String filter, boolean tagTopic) throws IOException, InterruptedException {
+        final int total = this.latencyMessages + this.messages;
+        final SequenceTracker received = new SequenceTracker(total);
+        long[] sent = new long[total];
+        long subscriptions = this.broker.getSubscribeCount();
+        RunResult result = new RunResult();
+        ArrayList<String> args = this.mqttArgs(action);
+        args.addAll(Arrays.asList("-T", filter));
+        try (ActionProcess proc = new ActionProcess(args, received::record)) {
+            if (!this.broker.awaitSubscriptions(subscriptions + 1, this.timeoutMs)) {
+                throw new IOException("Timed out waiting for subscription" + this.describeFailure(proc));
+            }
+
+            // Paced messages for latency
+            long intervalNanos = 1000000000L / this.latencyRate;
+            long start = System.nanoTime();
+            for (int i = 0; i < this.latencyMessages; i++) {
+                long delay = start + i * intervalNanos - System.nanoTime();
+                if (delay > 0) {
+                    LockSupport.parkNanos(delay);
+                }
+                sent[i] = System.nanoTime();
+                this.broker.publish(tagTopic ? "$aws/things/bench-" + i + "/jobs/get" : topic, this.buildPayload(i), this.qos);
+            }
+            if (!received.await(this.latencyMessages, this.timeoutMs, proc)) {
+                throw new IOException("Received " + received.count + "/" + this.latencyMessages + " paced messages" + this.describeFailure(proc));
+            }
+
+            // Burst for throughput
+            long burstStart = System.nanoTime();
+            for (int i = this.latencyMessages; i < total; i++) {
+                sent[i] = System.nanoTime();
+                this.broker.publish(tagTopic ? "$aws/things/bench-" + i + "/jobs/get" : topic, this.buildPayload(i), this.qos);
+            }
+            if (!received.await(total, this.timeoutMs, proc)) {
+                throw new IOException("Received " + received.count + "/" + total + " messages" + this.describeFailure(proc));
+            }
+            long burstEnd = burstStart;
+            for (int i = this.latencyMessages; i < total; i++) {
+                burstEnd = Math.max(burstEnd, received.get(i));
+            }
+            for (int i = 0; i < this.latencyMessages; i++) {
+                result.latenciesMs.add((received.get(i) - sent[i]) / 1e6);
+            }
+            result.count = this.messages;
+            result.seconds = (burstEnd - burstStart) / 1e9;
+            result.wallMs = (System.nanoTime() - proc.startNanos) / 1e6;
+            result.connectMs = proc.connectMs;
+        }
+        return result;
+    }
+
+
+    protected RunResult runScriptScenario() throws IOException, InterruptedException {
+        File script = new File(this.workDir, "bench.mqtt");
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(script), StandardCharsets.UTF_8)) {
+            for (int i = 0; i < this.messages; i++) {
+                out.write("PUB\t" + SCRIPT_TOPIC + "\t" + new String(this.buildPayload(i), StandardCharsets.UTF_8) + "\n");
+            }
+        }
+        final SequenceTracker published = new SequenceTracker(this.messages);
+        this.broker.setPublishListener((String clientId, String topic, byte[] payload, long nanos) -> {
+            if (topic.equals(SCRIPT_TOPIC)) {
+                published.record(new String(payload, 0, Math.min(payload.length, 64), StandardCharsets.UTF_8), nanos);
+            }
+        });
+        RunResult result = new RunResult();
+        ArrayList<String> args = this.mqttArgs(AwsIotConstants.ACTION_MQTT_SCRIPT);
+        args.addAll(Arrays.asList("-f", script.getPath()));
+        try (ActionProcess proc = new ActionProcess(args, null)) {
+            if (!published.await(this.messages, this.timeoutMs, proc)) {
+                throw new IOException("Broker received " + published.count + "/" + this.messages + " published messages" + this.describeFailure(proc));
+            }
+            for (int i = 1; i < this.messages; i++) {
+                result.latenciesMs.add((published.get(i) - published.get(i - 1)) / 1e6);
+            }
+            result.count = this.messages - 1;
+            result.seconds = (published.get(this.messages - 1) - published.get(0)) / 1e9;
+            result.wallMs = (System.nanoTime() - proc.startNanos) / 1e6;
+            result.connectMs = proc.connectMs;
+        } finally {
+            this.broker.setPublishListener(null);
+        }
+        return result;
+    }
+
+
+    protected RunResult runExfilScenario() throws IOException, InterruptedException {
+        File topics = new File(this.workDir, "exfil-topics.txt");
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < this.exfilTopics; i++) {
+            sb.append(i > 0 ? "\n" : "").append(EXFIL_TOPIC_PREFIX).append("bench-").append(i);
+        }
+        Files.write(topics.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+        final SequenceTracker published = new SequenceTracker(this.exfilTopics);
+        final SequenceTracker confirmed = new SequenceTracker(this.exfilTopics);
+        this.broker.setPublishListener((String clientId, String topic, byte[] payload, long nanos) -> {
+            if (topic.startsWith(EXFIL_TOPIC_PREFIX)) {
+                published.record(topic, nanos);
+            }
+        });
+        RunResult result = new RunResult();
+        ArrayList<String> args = this.mqttArgs(AwsIotConstants.ACTION_MQTT_DATA_EXFIL);
+        args.addAll(Arrays.asList("-T", topics.getPath()));
+        try (ActionProcess proc = new ActionProcess(args, (String line, long nanos) -> {
+            if (line.contains("[Data exfiltration] Confirmed")) {
+                confirmed.record(line, nanos);
+            }
+        })) {
+            if (!confirmed.await(this.exfilTopics, this.timeoutMs, proc)) {
+                throw new IOException("Confirmed " + confirmed.count + "/" + this.exfilTopics + " exfiltration topics" + this.describeFailure(proc));
+            }
+            long first = Long.MAX_VALUE;
+            long last = 0;
+            for (int i = 0; i < this.exfilTopics; i++) {
+                result.latenciesMs.add((confirmed.get(i) - published.get(i)) / 1e6);
+                first = Math.min(first, published.get(i));
+                last = Math.max(last, confirmed.get(i));
+            }
+            result.count = this.exfilTopics;
+            result.seconds = (last - first) / 1e9;
+            result.connectMs = proc.connectMs;
+            // The action waits a fixed 3 seconds after testing the last topic
+            double wallMs = proc.waitForExit(this.timeoutMs);
+            result.wallMs = wallMs >= 0 ? wallMs : (System.nanoTime() - proc.startNanos) / 1e6;
+        } finally {
+            this.broker.setPublishListener(null);
+        }
+        return result;
+    }
+
+
+    protected RunResult runRestScenario(String action) throws IOException, InterruptedException {
+        RunResult result = new RunResult();
+        double totalMs = 0;
+        for (int i = 0; i < this.restInvocations; i++) {
+            final int[] lines = { 0 };
+            ArrayList<String> args = this.restArgs(action);
+            args.addAll(Arrays.asList("-t", THING_NAME));
+            try (ActionProcess proc = new ActionProcess(args, (String line, long nanos) -> {
+                if (!line.isEmpty()) {
+                    synchronized (lines) {
+                        lines[0]++;
+                    }
+                }
+            })) {
+                double wallMs = proc.waitForExit(this.timeoutMs);
+                synchronized (lines) {
+                    if (wallMs < 0 || proc.proc.exitValue() != 0 || lines[0] == 0) {
+                        throw new IOException((wallMs < 0 ? "Timed out" : "No output") + this.describeFailure(proc));
+                    }
+                }
+                result.latenciesMs.add(wallMs);
+                totalMs += wallMs;
+            }
+        }
+        result.count = this.restInvocations;
+        result.seconds = totalMs / 1000;
+        result.wallMs = totalMs / this.restInvocations;
+        return result;
+    }
+
+
+    protected RunResult runCredentialsScenario() throws IOException, InterruptedException {
+        File roles = new File(this.workDir, "role-aliases.txt");
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < this.messages; i++) {
+            sb.append(i > 0 ? "\n" : "").append("bench-role-").append(i);
+        }
+        Files.write(roles.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+        final int[] credentials = { 0 };
+        this.restStub.resetRequestTimes();
+        RunResult result = new RunResult();
+        ArrayList<String> args = this.restArgs(AwsIotConstants.ACTION_IAM_CREDS);
+        args.addAll(Arrays.asList("-R", roles.getPath(), "-t", THING_NAME));
+        try (ActionProcess proc = new ActionProcess(args, (String line, long nanos) -> {
+            if (line.contains("accessKeyId")) {
+                synchronized (credentials) {
+                    credentials[0]++;
+                }
+            }
+        })) {
+            double wallMs = proc.waitForExit(this.timeoutMs);
+            synchronized (credentials) {
+                if (wallMs < 0 || credentials[0] != this.messages) {
+                    throw new IOException((wallMs < 0 ? "Timed out" : "Received " + credentials[0] + "/" + this.messages + " credentials") + this.describeFailure(proc));
+                }
+            }
+            List<Long> times = this.restStub.getRequestTimes();
+            Collections.sort(times);
+            for (int i = 1; i < times.size(); i++) {
+                result.latenciesMs.add((times.get(i) - times.get(i - 1)) / 1e6);
+            }
+            result.count = times.size() - 1;
+            result.seconds = times.size() > 1 ? (times.get(times.size() - 1) - times.get(0)) / 1e9 : 0;
+            result.wallMs = wallMs;
+        }
+        return result;
+    }
+
+
+    protected ArrayList<String> mqttArgs(String action) {
+        ArrayList<String> args = new ArrayList<String>(Arrays.asList(
+            "-a", action,
+            "-H", "localhost",
+            "-P", "" + this.broker.getPort(),
+            "-A", this.certs.caCertPem.getPath(),
+            "-C", "bench-client-" + (this.runCounter++)
+        ));
+        if (this.mtls) {
+            args.addAll(Arrays.asList("-c", this.certs.clientCertPem.getPath(), "-k", this.certs.clientKeyPem.getPath()));
+        } else {
+            args.addAll(Arrays.asList("--custom-auth-name", "bench-authorizer"));
+        }
+        return args;
+    }
+
+
+    protected ArrayList<String> restArgs(String action) {
+        return new ArrayList<String>(Arrays.asList(
+            "-a", action,
+            "-H", "localhost",
+            "--rest-port", "" + this.restStub.getPort(),
+            "-A", this.certs.caCertPem.getPath(),
+            "-c", this.certs.clientCertPem.getPath(),
+            "-k", this.certs.clientKeyPem.getPath()
+        ));
+    }
+
+
+    // Deterministic JSON payload of about --payload-size bytes, tagged with the sequence number
+    protected byte[] buildPayload(int seq) {
+        StringBuilder sb = new StringBuilder(this.payloadSize + 64);
+        sb.append("{\"serialNumber\":\"bench-").append(seq).append("\",\"seq\":").append(seq).append(",\"data\":\"");
+        for (int i = sb.length() + 2; i < this.payloadSize; i++) {
+            sb.append((char)('a' + (seq + i) % 26));
+        }
+        sb.append("\"}");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+
+    protected String describeFailure(ActionProcess proc) {
+        String tail = proc.getStderrTail();
+        return (proc.isAlive() ? "" : " (action exited with status " + proc.proc.exitValue() + ")") + (tail.isEmpty() ? "" : "; action stderr:\n" + tail);
+    }
+
+
+    // Prints regressions relative to the last baseline result for each scenario. Returns true if any
+    // scenario regressed.
+    protected boolean compareToBaseline(List<LinkedHashMap<String, Object>> results, String baselinePath) throws IOException {
+        JsonPathExtractor extractor = new JsonPathExtractor(Arrays.asList("scenario", "throughput", "latencyP50"));
+        LinkedHashMap<String, Map<String, List<String>>> baseline = new LinkedHashMap<String, Map<String, List<String>>>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(baselinePath), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                Map<String, List<String>> values = extractor.extractAll(line.getBytes(StandardCharsets.UTF_8));
+                if (values != null && values.containsKey("scenario")) {
+                    baseline.put(values.get("scenario").get(0), values);
+                }
+            }
+        } catch (FileNotFoundException ex) {
+            System.err.println("[INFO] No baseline results found at " + baselinePath);
+            return false;
+        }
+
+        boolean regressed = false;
+        for (LinkedHashMap<String, Object> result : results) {
+            String scenario = (String)result.get("scenario");
+            Map<String, List<String>> base = baseline.get(scenario);
+            if (base == null) {
+                System.err.println("[INFO] No baseline for " + scenario);
+                continue;
+            }
+            ArrayList<String> problems = new ArrayList<String>();
+            double throughput = (Double)result.get("throughput");
+            if (base.containsKey("throughput")) {
+                double baseThroughput = Double.parseDouble(base.get("throughput").get(0));
+                if (throughput < baseThroughput * (1 - this.tolerance)) {
+                    problems.add("throughput " + throughput + " vs. " + baseThroughput + " (" + formatChange(throughput, baseThroughput) + ")");
+                }
+            }
+            if (base.containsKey("latencyP50") && result.containsKey("latencyP50")) {
+                double latency = (Double)result.get("latencyP50");
+                double baseLatency = Double.parseDouble(base.get("latencyP50").get(0));
+                if (latency > baseLatency * (1 + this.tolerance) && latency - baseLatency > LATENCY_SLACK_MS) {
+                    problems.add("p50 latency " + latency + "ms vs. " + baseLatency + "ms (" + formatChange(latency, baseLatency) + ")");
+                }
+            }
+            if (problems.isEmpty()) {
+                System.err.println("[INFO] " + scenario + " is within " + Math.round(this.tolerance * 100) + "% of the baseline");
+            } else {
+                System.err.println("[WARNING] Performance regression in " + scenario + ": " + String.join("; ", problems));
+                regressed = true;
+            }
+        }
+        return regressed;
+    }
+
+
+    protected static String formatChange(double value, double base) {
+        long pct = base == 0 ? 0 : Math.round((value - base) / base * 100);
+        return (pct >= 0 ? "+" : "") + pct + "%";
+    }
+
+
+    protected static int getInt(CommandLine cmd, String opt, int defaultValue) throws org.apache.commons.cli.ParseException {
+        return cmd.hasOption(opt) ? ((Number)cmd.getParsedOptionValue(opt)).intValue() : defaultValue;
+    }
+
+
+    protected static double round(double value) {
+        return Math.round(value * 1000) / 1000.0;
+    }
+
+
+    protected static double[] toSortedArray(List<Double> values) {
+        double[] arr = new double[values.size()];
+        for (int i = 0; i < arr.length; i++) {
+            arr[i] = values.get(i);
+        }
+        Arrays.sort(arr);
+        return arr;
+    }
+
+
+    protected static void deleteRecursively(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        f.delete();
+    }
+}
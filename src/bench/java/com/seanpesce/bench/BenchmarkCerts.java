@@ -0,0 +1,144 @@
+// Author: Sean Pesce
+//
+// Throwaway PKI for the local broker and REST stub (see Benchmark): a CA, a server certificate for
+// localhost/127.0.0.1, and a client (device) certificate, all generated with the JDK's keytool so no
+// other tools are needed. The client certificate and key are also written as PEM files, for use with
+// "-c"/"-k", and the CA certificate for "-A".
+
+package com.seanpesce.bench;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import javax.validation.constraints.NotNull;
+
+
+public class BenchmarkCerts {
+
+    public static final String PASSWORD = "aws-iot-recon-bench";
+    public static final String KEY_ALGORITHM = "RSA";
+    public static final int KEY_SIZE = 2048;
+    public static final int VALIDITY_DAYS = 2;
+
+
+    public final File dir;
+    public final File caCertPem;
+    public final File clientCertPem;
+    public final File clientKeyPem;
+    public final File serverKeyStore;
+
+
+    protected BenchmarkCerts(File dir) {
+        this.dir = dir;
+        this.caCertPem = new File(dir, "ca.pem");
+        this.clientCertPem = new File(dir, "client.pem");
+        this.clientKeyPem = new File(dir, "client.key");
+        this.serverKeyStore = new File(dir, "server.p12");
+    }
+
+
+    // Generates the certificates and keys in dir (which must exist)
+    public static BenchmarkCerts generate(@NotNull File dir) throws IOException, GeneralSecurityException {
+        BenchmarkCerts certs = new BenchmarkCerts(dir);
+        File caKeyStore = new File(dir, "ca.p12");
+        File clientKeyStore = new File(dir, "client.p12");
+        keytool("-genkeypair", "-keystore", caKeyStore.getPath(), "-alias", "ca", "-dname", "CN=AWS IoT Recon Benchmark CA", "-ext", "bc:c");
+        keytool("-exportcert", "-keystore", caKeyStore.getPath(), "-alias", "ca", "-rfc", "-file", certs.caCertPem.getPath());
+        certs.issue(caKeyStore, certs.serverKeyStore, "server", "CN=localhost", "san=dns:localhost,ip:127.0.0.1");
+        certs.issue(caKeyStore, clientKeyStore, "client", "CN=aws-iot-recon-bench", null);
+
+        KeyStore ks = loadKeyStore(clientKeyStore);
+        Certificate[] chain = ks.getCertificateChain("client");
+        Files.write(certs.clientCertPem.toPath(), toPem("CERTIFICATE", chain[0].getEncoded()).getBytes(StandardCharsets.US_ASCII));
+        Files.write(certs.clientKeyPem.toPath(), toPem("PRIVATE KEY", ks.getKey("client", PASSWORD.toCharArray()).getEncoded()).getBytes(StandardCharsets.US_ASCII));
+        return certs;
+    }
+
+
+    // Server-side TLS context (server certificate; trusts the benchmark CA for client certificates)
+    public SSLContext getServerContext() throws IOException, GeneralSecurityException {
+        KeyStore ks = loadKeyStore(this.serverKeyStore);
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(ks, PASSWORD.toCharArray());
+        KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        trustStore.load(null, null);
+        trustStore.setCertificateEntry("ca", ks.getCertificate("ca"));
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(trustStore);
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+        return ctx;
+    }
+
+
+    // Generates a key pair in keyStore and replaces its self-signed certificate with one issued by the CA
+    protected void issue(File caKeyStore, File keyStore, String alias, String dname, String ext) throws IOException {
+        File csr = new File(this.dir, alias + ".csr");
+        File crt = new File(this.dir, alias + ".crt");
+        keytool("-genkeypair", "-keystore", keyStore.getPath(), "-alias", alias, "-dname", dname);
+        keytool("-certreq", "-keystore", keyStore.getPath(), "-alias", alias, "-file", csr.getPath());
+        if (ext == null) {
+            keytool("-gencert", "-keystore", caKeyStore.getPath(), "-alias", "ca", "-infile", csr.getPath(), "-outfile", crt.getPath(), "-rfc");
+        } else {
+            keytool("-gencert", "-keystore", caKeyStore.getPath(), "-alias", "ca", "-infile", csr.getPath(), "-outfile", crt.getPath(), "-rfc", "-ext", ext);
+        }
+        keytool("-importcert", "-keystore", keyStore.getPath(), "-alias", "ca", "-file", this.caCertPem.getPath(), "-noprompt");
+        keytool("-importcert", "-keystore", keyStore.getPath(), "-alias", alias, "-file", crt.getPath());
+    }
+
+
+    protected static void keytool(String command, String... args) throws IOException {
+        List<String> cmd = new ArrayList<String>();
+        cmd.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool");
+        cmd.add(command);
+        cmd.addAll(Arrays.asList(args));
+        cmd.addAll(Arrays.asList("-storetype", "PKCS12", "-storepass", PASSWORD));
+        if (command.equals("-genkeypair")) {
+            cmd.addAll(Arrays.asList("-keyalg", KEY_ALGORITHM, "-keysize", "" + KEY_SIZE, "-keypass", PASSWORD, "-validity", "" + VALIDITY_DAYS));
+        } else if (command.equals("-gencert")) {
+            cmd.addAll(Arrays.asList("-validity", "" + VALIDITY_DAYS));
+        }
+        Process proc = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (InputStream in = proc.getInputStream()) {
+            in.transferTo(output);
+        }
+        try {
+            if (proc.waitFor() != 0) {
+                throw new IOException("keytool " + command + " failed: " + new String(output.toByteArray(), StandardCharsets.UTF_8).trim());
+            }
+        } catch (InterruptedException ex) {
+            proc.destroy();
+            throw new IOException("keytool " + command + " was interrupted");
+        }
+    }
+
+
+    protected static KeyStore loadKeyStore(File path) throws IOException, GeneralSecurityException {
+        KeyStore ks = KeyStore.getInstance("PKCS12");
+        try (InputStream in = new FileInputStream(path)) {
+            ks.load(in, PASSWORD.toCharArray());
+        }
+        return ks;
+    }
+
+
+    protected static String toPem(String type, byte[] der) {
+        return "-----BEGIN " + type + "-----\n" + Base64.getMimeEncoder(64, new byte[]{ '\n' }).encodeToString(der) + "\n-----END " + type + "-----\n";
+    }
+}
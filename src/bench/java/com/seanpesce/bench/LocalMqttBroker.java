@@ -0,0 +1,444 @@
+// Author: Sean Pesce
+//
+// Minimal in-process MQTT 3.1.1 broker over TLS (optionally requiring a client certificate), for
+// benchmarking MQTT actions without an AWS endpoint (see Benchmark).
+//
+// Supported: CONNECT (any client ID/credentials are accepted), SUBSCRIBE/UNSUBSCRIBE with wildcards,
+// PUBLISH at QoS 0 and 1 (QoS 2 is downgraded to 1), PINGREQ, and DISCONNECT. Sessions aren't
+// persisted and retained messages aren't stored. Messages published by clients are routed to
+// matching subscribers, and can also be injected with publish().
+//
+// Each connection has a reader thread and a writer thread; the writer flushes only when it runs out
+// of queued packets, so bursts are coalesced into fewer TLS records.
+//
+// References:
+//   https://docs.oasis-open.org/mqtt/mqtt/v3.1.1/os/mqtt-v3.1.1-os.html
+
+package com.seanpesce.bench;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.validation.constraints.NotNull;
+
+import com.seanpesce.mqtt.TopicMatcher;
+
+
+public class LocalMqttBroker implements AutoCloseable {
+
+    public static final int TYPE_CONNECT = 1;
+    public static final int TYPE_CONNACK = 2;
+    public static final int TYPE_PUBLISH = 3;
+    public static final int TYPE_PUBACK = 4;
+    public static final int TYPE_SUBSCRIBE = 8;
+    public static final int TYPE_SUBACK = 9;
+    public static final int TYPE_UNSUBSCRIBE = 10;
+    public static final int TYPE_UNSUBACK = 11;
+    public static final int TYPE_PINGREQ = 12;
+    public static final int TYPE_PINGRESP = 13;
+    public static final int TYPE_DISCONNECT = 14;
+
+    // Largest accepted packet (remaining length)
+    public static final int MAX_PACKET_SIZE = 1 << 20;
+    // Lowest port tried when the ephemeral port is too high (see bindServerSocket())
+    public static final int MIN_PORT = 10000;
+    public static final int BIND_ATTEMPTS = 32;
+
+
+    // Receives messages published by clients (called on the publishing connection's reader thread,
+    // before the message is routed)
+    public static interface PublishListener {
+        public void published(String clientId, String topic, byte[] payload, long receivedNanos);
+    }
+
+
+    protected final SSLServerSocket serverSocket;
+    protected final CopyOnWriteArrayList<Connection> connections = new CopyOnWriteArrayList<Connection>();
+    protected final AtomicInteger connectionCounter = new AtomicInteger();
+    protected volatile PublishListener publishListener = null;
+    protected volatile boolean closed = false;
+
+    protected final AtomicLong connectCount = new AtomicLong();
+    protected final AtomicLong subscribeCount = new AtomicLong();
+    protected final AtomicLong publishedCount = new AtomicLong();  // By clients
+    protected final AtomicLong deliveredCount = new AtomicLong();  // To subscribers
+
+
+    // Listens on an ephemeral loopback port. If requireClientCert is true, clients must present a
+    // certificate trusted by sslContext.
+    public LocalMqttBroker(@NotNull SSLContext sslContext, boolean requireClientCert) throws IOException {
+        this.serverSocket = bindServerSocket(sslContext);
+        this.serverSocket.setNeedClientAuth(requireClientCert);
+        Thread acceptThread = new Thread(this::acceptLoop, "bench-broker-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+
+    // Binds to an ephemeral loopback port below 32768 (the device SDK's connection builder takes the
+    // port number as a short, so higher ports can't be used with "-P")
+    protected static SSLServerSocket bindServerSocket(SSLContext sslContext) throws IOException {
+        SSLServerSocket sock = (SSLServerSocket)sslContext.getServerSocketFactory().createServerSocket(0, 128, InetAddress.getLoopbackAddress());
+        Random rand = new Random();
+        for (int attempt = 0; sock.getLocalPort() > Short.MAX_VALUE; attempt++) {
+            sock.close();
+            try {
+                sock = (SSLServerSocket)sslContext.getServerSocketFactory().createServerSocket(MIN_PORT + rand.nextInt(Short.MAX_VALUE - MIN_PORT + 1), 128, InetAddress.getLoopbackAddress());
+            } catch (BindException ex) {
+                if (attempt >= BIND_ATTEMPTS) {
+                    throw ex;
+                }
+                sock = (SSLServerSocket)sslContext.getServerSocketFactory().createServerSocket(0, 128, InetAddress.getLoopbackAddress());
+            }
+        }
+        return sock;
+    }
+
+
+    public int getPort() {
+        return this.serverSocket.getLocalPort();
+    }
+
+    public void setPublishListener(PublishListener listener) {
+        this.publishListener = listener;
+    }
+
+    public long getConnectCount() {
+        return this.connectCount.get();
+    }
+
+    public long getSubscribeCount() {
+        return this.subscribeCount.get();
+    }
+
+    public long getPublishedCount() {
+        return this.publishedCount.get();
+    }
+
+    public long getDeliveredCount() {
+        return this.deliveredCount.get();
+    }
+
+
+    // Waits until at least count topic filters have been subscribed to (in total, since the broker
+    // started). Returns false on timeout.
+    public boolean awaitSubscriptions(long count, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (this.subscribeCount) {
+            while (this.subscribeCount.get() < count) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                this.subscribeCount.wait(remaining);
+            }
+        }
+        return true;
+    }
+
+
+    // Routes a message to all matching subscribers. Returns the number of subscribers it was sent to.
+    public int publish(@NotNull String topic, @NotNull byte[] payload, int qos) {
+        byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        int delivered = 0;
+        for (Connection c : this.connections) {
+            int subQos = c.matchQos(topic);
+            if (subQos >= 0) {
+                c.sendPublish(topicBytes, payload, Math.min(qos, subQos));
+                delivered++;
+            }
+        }
+        this.deliveredCount.addAndGet(delivered);
+        return delivered;
+    }
+
+
+    @Override
+    public void close() {
+        this.closed = true;
+        try {
+            this.serverSocket.close();
+        } catch (IOException ex) {
+            // Ignore
+        }
+        for (Connection c : this.connections) {
+            c.close();
+        }
+    }
+
+
+    protected void acceptLoop() {
+        while (!this.closed) {
+            Socket sock;
+            try {
+                sock = this.serverSocket.accept();
+                // The writer already coalesces bursts; don't let Nagle's algorithm hold back the rest
+                sock.setTcpNoDelay(true);
+            } catch (IOException ex) {
+                if (!this.closed) {
+                    System.err.println("[WARNING] Local MQTT broker failed to accept connection: " + ex.getMessage());
+                }
+                continue;
+            }
+            Connection c = new Connection(sock, this.connectionCounter.incrementAndGet());
+            this.connections.add(c);
+            c.start();
+        }
+    }
+
+
+    protected class Connection {
+        protected final Socket socket;
+        protected final int id;
+        protected final LinkedBlockingQueue<byte[]> outbound = new LinkedBlockingQueue<byte[]>();
+        // Topic filter -> granted QoS
+        protected final LinkedHashMap<String, Integer> subscriptions = new LinkedHashMap<String, Integer>();
+        protected volatile TopicMatcher[] matchersByQos = new TopicMatcher[0];
+        protected String clientId = null;
+        protected int nextPacketId = 1;
+        protected volatile boolean open = true;
+
+        protected Connection(Socket socket, int id) {
+            this.socket = socket;
+            this.id = id;
+        }
+
+        protected void start() {
+            Thread reader = new Thread(this::readLoop, "bench-broker-" + this.id);
+            reader.setDaemon(true);
+            reader.start();
+            Thread writer = new Thread(this::writeLoop, "bench-broker-" + this.id + "-writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        // Returns the highest QoS granted for a filter matching the topic, or -1 if none match
+        protected int matchQos(String topic) {
+            TopicMatcher[] matchers = this.matchersByQos;
+            for (int qos = matchers.length - 1; qos >= 0; qos--) {
+                if (matchers[qos] != null && matchers[qos].matches(topic)) {
+                    return qos;
+                }
+            }
+            return -1;
+        }
+
+        protected synchronized void sendPublish(byte[] topic, byte[] payload, int qos) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream(topic.length + payload.length + 4);
+            writeShort(body, topic.length);
+            body.write(topic, 0, topic.length);
+            if (qos > 0) {
+                writeShort(body, this.nextPacketId);
+                this.nextPacketId = this.nextPacketId == 0xFFFF ? 1 : this.nextPacketId + 1;
+            }
+            body.write(payload, 0, payload.length);
+            this.send((TYPE_PUBLISH << 4) | (qos << 1), body.toByteArray());
+        }
+
+        protected void send(int header, byte[] body) {
+            if (!this.open) {
+                return;
+            }
+            ByteArrayOutputStream packet = new ByteArrayOutputStream(body.length + 5);
+            packet.write(header);
+            int len = body.length;
+            do {
+                int b = len & 0x7F;
+                len >>>= 7;
+                packet.write(len > 0 ? b | 0x80 : b);
+            } while (len > 0);
+            packet.write(body, 0, body.length);
+            this.outbound.add(packet.toByteArray());
+        }
+
+        protected void writeLoop() {
+            try (OutputStream out = new BufferedOutputStream(this.socket.getOutputStream(), 64 * 1024)) {
+                while (this.open) {
+                    byte[] packet = this.outbound.take();
+                    do {
+                        out.write(packet);
+                    } while ((packet = this.outbound.poll()) != null);
+                    out.flush();
+                }
+            } catch (IOException | InterruptedException ex) {
+                // Connection closed
+            } finally {
+                this.close();
+            }
+        }
+
+        protected void readLoop() {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(this.socket.getInputStream(), 64 * 1024))) {
+                while (this.open) {
+                    int header = in.read();
+                    if (header < 0) {
+                        break;
+                    }
+                    int len = 0;
+                    for (int shift = 0; ; shift += 7) {
+                        int b = in.readUnsignedByte();
+                        len |= (b & 0x7F) << shift;
+                        if ((b & 0x80) == 0) {
+                            break;
+                        } else if (shift >= 21) {
+                            throw new IOException("Malformed remaining length");
+                        }
+                    }
+                    if (len > MAX_PACKET_SIZE) {
+                        throw new IOException("Packet too large (" + len + " bytes)");
+                    }
+                    byte[] body = new byte[len];
+                    in.readFully(body);
+                    if (!this.handle(header, body)) {
+                        break;
+                    }
+                }
+            } catch (EOFException | SocketException ex) {
+                // Connection closed
+            } catch (IOException ex) {
+                if (this.open && !closed) {
+                    System.err.println("[WARNING] Local MQTT broker connection " + this.id + " failed: " + ex.getMessage());
+                }
+            } finally {
+                this.close();
+            }
+        }
+
+        // Returns false if the connection should be closed
+        protected boolean handle(int header, byte[] body) throws IOException {
+            int type = header >>> 4;
+            if (this.clientId == null && type != TYPE_CONNECT) {
+                throw new IOException("Expected CONNECT, received packet type " + type);
+            }
+            switch (type) {
+                case TYPE_CONNECT: {
+                    // Protocol name, level, flags, keep-alive, then the client ID
+                    int pos = 2 + readShort(body, 0) + 1 + 1 + 2;
+                    this.clientId = new String(body, pos + 2, readShort(body, pos), StandardCharsets.UTF_8);
+                    connectCount.incrementAndGet();
+                    this.send(TYPE_CONNACK << 4, new byte[]{ 0, 0 });
+                    return true;
+                }
+                case TYPE_PUBLISH: {
+                    long now = System.nanoTime();
+                    int qos = Math.min(1, (header >>> 1) & 0x03);
+                    int topicLen = readShort(body, 0);
+                    String topic = new String(body, 2, topicLen, StandardCharsets.UTF_8);
+                    int pos = 2 + topicLen;
+                    if (qos > 0) {
+                        this.send(TYPE_PUBACK << 4, new byte[]{ body[pos], body[pos + 1] });
+                        pos += 2;
+                    }
+                    byte[] payload = new byte[body.length - pos];
+                    System.arraycopy(body, pos, payload, 0, payload.length);
+                    publishedCount.incrementAndGet();
+                    PublishListener listener = publishListener;
+                    if (listener != null) {
+                        listener.published(this.clientId, topic, payload, now);
+                    }
+                    publish(topic, payload, qos);
+                    return true;
+                }
+                case TYPE_SUBSCRIBE:
+                case TYPE_UNSUBSCRIBE: {
+                    boolean subscribe = type == TYPE_SUBSCRIBE;
+                    ByteArrayOutputStream ack = new ByteArrayOutputStream();
+                    ack.write(body, 0, 2);
+                    int count = 0;
+                    for (int pos = 2; pos < body.length; ) {
+                        int filterLen = readShort(body, pos);
+                        String filter = new String(body, pos + 2, filterLen, StandardCharsets.UTF_8);
+                        pos += 2 + filterLen;
+                        synchronized (this.subscriptions) {
+                            if (subscribe) {
+                                int qos = Math.min(1, body[pos++] & 0x03);
+                                this.subscriptions.put(filter, qos);
+                                ack.write(qos);
+                            } else {
+                                this.subscriptions.remove(filter);
+                            }
+                        }
+                        count++;
+                    }
+                    this.rebuildMatchers();
+                    this.send((subscribe ? TYPE_SUBACK : TYPE_UNSUBACK) << 4, subscribe ? ack.toByteArray() : new byte[]{ body[0], body[1] });
+                    if (subscribe) {
+                        synchronized (subscribeCount) {
+                            subscribeCount.addAndGet(count);
+                            subscribeCount.notifyAll();
+                        }
+                    }
+                    return true;
+                }
+                case TYPE_PUBACK:
+                    return true;
+                case TYPE_PINGREQ:
+                    this.send(TYPE_PINGRESP << 4, new byte[0]);
+                    return true;
+                case TYPE_DISCONNECT:
+                    return false;
+                default:
+                    throw new IOException("Unsupported packet type " + type);
+            }
+        }
+
+        protected void rebuildMatchers() {
+            TopicMatcher[] matchers = new TopicMatcher[2];
+            synchronized (this.subscriptions) {
+                for (Map.Entry<String, Integer> e : this.subscriptions.entrySet()) {
+                    int qos = e.getValue();
+                    if (matchers[qos] == null) {
+                        matchers[qos] = new TopicMatcher();
+                    }
+                    matchers[qos].add(e.getKey());
+                }
+            }
+            this.matchersByQos = matchers;
+        }
+
+        protected void close() {
+            if (!this.open) {
+                return;
+            }
+            this.open = false;
+            connections.remove(this);
+            // Wake up the writer
+            this.outbound.add(new byte[0]);
+            try {
+                this.socket.close();
+            } catch (IOException ex) {
+                // Ignore
+            }
+        }
+    }
+
+
+    protected static int readShort(byte[] buf, int pos) {
+        return ((buf[pos] & 0xFF) << 8) | (buf[pos + 1] & 0xFF);
+    }
+
+
+    protected static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 8);
+        out.write(value);
+    }
+}
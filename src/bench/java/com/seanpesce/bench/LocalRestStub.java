@@ -0,0 +1,177 @@
+// Author: Sean Pesce
+//
+// In-process HTTPS stub for the AWS IoT REST API (device shadows, named shadows, and retained
+// messages) and the IoT credentials provider, for benchmarking REST actions without an AWS endpoint
+// (see Benchmark). Responses have the same shape as the real services' (with fixed contents), and
+// the arrival time of every request is recorded.
+//
+// References:
+//   https://docs.aws.amazon.com/iot/latest/developerguide/device-shadow-rest-api.html
+//   https://docs.aws.amazon.com/iot/latest/apireference/API_iotdata_ListRetainedMessages.html
+//   https://docs.aws.amazon.com/iot/latest/developerguide/authorizing-direct-aws.html
+
+package com.seanpesce.bench;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.validation.constraints.NotNull;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsParameters;
+import com.sun.net.httpserver.HttpsServer;
+
+import com.seanpesce.json.JsonEncoder;
+
+
+public class LocalRestStub implements AutoCloseable {
+
+    public static final int NAMED_SHADOW_COUNT = 8;
+    public static final int RETAINED_TOPIC_COUNT = 32;
+
+
+    protected final HttpsServer server;
+    protected final ExecutorService executor;
+    // Arrival times (System.nanoTime()) of all requests
+    protected final ArrayList<Long> requestTimes = new ArrayList<Long>();
+
+
+    // Listens on an ephemeral loopback port. If requireClientCert is true, clients must present a
+    // certificate trusted by sslContext.
+    public LocalRestStub(@NotNull SSLContext sslContext, final boolean requireClientCert) throws IOException {
+        // The server writes response headers and body separately; without TCP_NODELAY, every response
+        // on a kept-alive connection is delayed by Nagle's algorithm and the client's delayed ACK
+        // (read once, when the first server is created)
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        this.server = HttpsServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 128);
+        this.server.setHttpsConfigurator(new HttpsConfigurator(sslContext) {
+            @Override
+            public void configure(HttpsParameters params) {
+                SSLParameters sslParams = this.getSSLContext().getDefaultSSLParameters();
+                sslParams.setNeedClientAuth(requireClientCert);
+                params.setSSLParameters(sslParams);
+            }
+        });
+        this.server.createContext("/", this::handle);
+        this.executor = Executors.newFixedThreadPool(4, (Runnable r) -> {
+            Thread t = new Thread(r, "bench-rest-stub");
+            t.setDaemon(true);
+            return t;
+        });
+        this.server.setExecutor(this.executor);
+        this.server.start();
+    }
+
+
+    public int getPort() {
+        return this.server.getAddress().getPort();
+    }
+
+
+    public synchronized List<Long> getRequestTimes() {
+        return new ArrayList<Long>(this.requestTimes);
+    }
+
+
+    public synchronized void resetRequestTimes() {
+        this.requestTimes.clear();
+    }
+
+
+    @Override
+    public void close() {
+        this.server.stop(0);
+        this.executor.shutdownNow();
+    }
+
+
+    protected void handle(HttpExchange exchange) throws IOException {
+        long now = System.nanoTime();
+        synchronized (this) {
+            this.requestTimes.add(now);
+        }
+        try (InputStream in = exchange.getRequestBody()) {
+            while (in.read() >= 0) {
+                // Discard
+            }
+        }
+        String path = exchange.getRequestURI().getPath();
+        String[] parts = path.split("/");
+        int status = 200;
+        LinkedHashMap<String, Object> body = new LinkedHashMap<String, Object>();
+        long timestamp = System.currentTimeMillis() / 1000;
+
+        if (!exchange.getRequestMethod().equals("GET")) {
+            status = 405;
+            body.put("message", "Method not allowed");
+
+        } else if (parts.length == 4 && parts[1].equals("things") && parts[3].equals("shadow")) {
+            // /things/<thingName>/shadow
+            LinkedHashMap<String, Object> reported = new LinkedHashMap<String, Object>();
+            reported.put("serialNumber", "SN-" + parts[2]);
+            reported.put("firmwareVersion", "1.0.0");
+            LinkedHashMap<String, Object> state = new LinkedHashMap<String, Object>();
+            state.put("reported", reported);
+            body.put("state", state);
+            body.put("version", 1);
+            body.put("timestamp", timestamp);
+
+        } else if (parts.length == 6 && path.startsWith("/api/things/shadow/ListNamedShadowsForThing/")) {
+            ArrayList<String> names = new ArrayList<String>();
+            for (int i = 0; i < NAMED_SHADOW_COUNT; i++) {
+                names.add("shadow" + i);
+            }
+            body.put("results", names);
+            body.put("timestamp", timestamp);
+
+        } else if (path.equals("/retainedMessage")) {
+            ArrayList<Object> topics = new ArrayList<Object>();
+            for (int i = 0; i < RETAINED_TOPIC_COUNT; i++) {
+                LinkedHashMap<String, Object> t = new LinkedHashMap<String, Object>();
+                t.put("topic", "bench/retained/" + i);
+                t.put("payloadSize", 64);
+                t.put("qos", 1);
+                t.put("lastModifiedTime", timestamp * 1000);
+                topics.add(t);
+            }
+            body.put("retainedTopics", topics);
+
+        } else if (parts.length == 4 && parts[1].equals("role-aliases") && parts[3].equals("credentials")) {
+            if (exchange.getRequestHeaders().getFirst("x-amzn-iot-thingname") == null) {
+                status = 400;
+                body.put("message", "Missing thing name");
+            } else {
+                LinkedHashMap<String, Object> creds = new LinkedHashMap<String, Object>();
+                creds.put("accessKeyId", "ASIABENCH" + Math.abs(parts[2].hashCode()));
+                creds.put("secretAccessKey", "bench-secret-" + parts[2]);
+                creds.put("sessionToken", "bench-token-" + parts[2]);
+                creds.put("expiration", Instant.ofEpochSecond(timestamp + 3600).toString());
+                body.put("credentials", creds);
+            }
+
+        } else {
+            status = 404;
+            body.put("message", "Not found: " + path);
+        }
+
+        byte[] data = JsonEncoder.encode(body).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, data.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(data);
+        }
+    }
+}
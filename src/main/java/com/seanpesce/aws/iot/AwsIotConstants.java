@@ -18,33 +18,141 @@ public class AwsIotConstants {
 
     public static final String ACTION_MQTT_DUMP = "mqtt-dump";
     public static final String ACTION_MQTT_TOPIC_FIELD_HARVEST = "mqtt-topic-field-harvest";
+    public static final String ACTION_MQTT_PAYLOAD_HARVEST = "mqtt-payload-harvest";
     public static final String ACTION_IAM_CREDS = "iam-credentials";
     public static final String ACTION_MQTT_SCRIPT = "mqtt-script";
     public static final String ACTION_MQTT_DATA_EXFIL = "mqtt-data-exfil";
+    public static final String ACTION_MQTT_TOPIC_AUTH_MAP = "mqtt-topic-auth-map";
+    public static final String ACTION_CLIENT_ID_PROBE = "client-id-probe";
+    public static final String ACTION_MQTT_STREAM_DOWNLOAD = "mqtt-stream-download";
     public static final String ACTION_GET_SHADOW = "get-device-shadow";
     public static final String ACTION_LIST_NAMED_SHADOWS = "list-named-shadows";
     public static final String ACTION_GET_JOBS = "get-jobs";
     public static final String ACTION_LIST_RETAINED_MQTT_MESSAGES = "list-retained-mqtt-messages";
+    public static final String ACTION_CAPTURE_DECODE = "capture-decode";
+    public static final String ACTION_CAPTURE_QUERY = "capture-query";
+    public static final String ACTION_CAPTURE_ANALYZE = "capture-analyze";
+    public static final String ACTION_POLL = "poll";
     public static final List<String> CLI_ACTIONS = Collections.unmodifiableList(Arrays.asList(new String[]{
         ACTION_MQTT_DUMP,
         ACTION_MQTT_TOPIC_FIELD_HARVEST,
+        ACTION_MQTT_PAYLOAD_HARVEST,
         ACTION_IAM_CREDS, ACTION_MQTT_SCRIPT,
         ACTION_MQTT_DATA_EXFIL,
+        ACTION_MQTT_TOPIC_AUTH_MAP,
+        ACTION_CLIENT_ID_PROBE,
+        ACTION_MQTT_STREAM_DOWNLOAD,
         ACTION_GET_SHADOW,
         ACTION_LIST_NAMED_SHADOWS,
         ACTION_GET_JOBS,
-        ACTION_LIST_RETAINED_MQTT_MESSAGES
+        ACTION_LIST_RETAINED_MQTT_MESSAGES,
+        ACTION_CAPTURE_DECODE,
+        ACTION_CAPTURE_QUERY,
+        ACTION_CAPTURE_ANALYZE,
+        ACTION_POLL
+    }));
+    // Actions that work on local files and don't connect to AWS
+    public static final List<String> OFFLINE_ACTIONS = Collections.unmodifiableList(Arrays.asList(new String[]{
+        ACTION_CAPTURE_DECODE,
+        ACTION_CAPTURE_QUERY,
+        ACTION_CAPTURE_ANALYZE
     }));
     public static final String CLI_AUTH_ARG = "(Auth option) ";
+
+    // Actions that can be scheduled with the poll action (see "--poll")
+    public static final List<String> POLL_ACTIONS = Collections.unmodifiableList(Arrays.asList(new String[]{
+        ACTION_GET_SHADOW,
+        ACTION_LIST_RETAINED_MQTT_MESSAGES,
+        ACTION_GET_JOBS
+    }));
+    // Response fields that change on every request (or only along with other fields), so they aren't
+    // compared between polls
+    public static final List<String> POLL_IGNORED_PATHS = Collections.unmodifiableList(Arrays.asList(new String[]{
+        "timestamp",
+        "clientToken",
+        "metadata",
+        "execution.approximateSecondsBeforeTimedOut"
+    }));
+
+    // Message handlers that can be attached to topic filters with "--route"
+    public static final String ROUTE_DUMP = "dump";
+    public static final String ROUTE_TOPIC_FIELD_HARVEST = "topic-harvest";
+    public static final String ROUTE_PAYLOAD_HARVEST = "payload-harvest";
+    public static final List<String> ROUTE_HANDLERS = Collections.unmodifiableList(Arrays.asList(new String[]{
+        ROUTE_DUMP,
+        ROUTE_TOPIC_FIELD_HARVEST,
+        ROUTE_PAYLOAD_HARVEST
+    }));
+    
+    // Output record types (see "--output-format")
+    public static final String RECORD_MQTT_MESSAGE = "mqtt_message";
+    public static final String RECORD_TOPIC_FIELDS = "topic_fields";
+    public static final String RECORD_PAYLOAD_FIELDS = "payload_fields";
+    public static final String RECORD_IAM_CREDENTIALS = "iam_credentials";
+    public static final String RECORD_DEVICE_SHADOW = "device_shadow";
+    public static final String RECORD_NAMED_SHADOW = "named_shadow";
+    public static final String RECORD_RETAINED_MESSAGE = "retained_message";
+    public static final String RECORD_DATA_EXFIL = "data_exfil";
+    public static final String RECORD_TOPIC_AUTH = "topic_auth";
+    public static final String RECORD_CLIENT_ID_PROBE = "client_id_probe";
+    public static final String RECORD_STREAM_DOWNLOAD = "stream_download";
+    public static final String RECORD_MQTT_UNCHANGED = "mqtt_unchanged";
+    public static final String RECORD_TOPIC_STATS = "topic_stats";
+    public static final String RECORD_CHANGE = "change";
+
+    // Placeholders for topic templates (see "--topic-templates")
+    public static final String TOPIC_TEMPLATE_THING_NAME = "{thingName}";
+    public static final String TOPIC_TEMPLATE_CLIENT_ID = "{clientId}";
     
     public static final short AWS_IOT_REST_API_PORT = 8443;
     public static final String MQTT_ALL_TOPICS = "#";
     public static final String MQTT_RESERVED_TOPIC_PREFIX = "$aws";
     public static final String MQTT_PING_TOPIC = "mqtt_ping";
+    // AWS IoT Core quota: subscriptions per connection
+    public static final int MQTT_MAX_SUBSCRIPTIONS = 50;
+
+    // Default JSON key paths and keywords for harvesting data from MQTT message payloads
+    public static final String[] DEFAULT_PAYLOAD_HARVEST_KEYS = {
+        "**.serial",
+        "**.serialNumber",
+        "**.sn",
+        "**.thingName",
+        "**.clientId",
+        "**.deviceId",
+        "**.mac",
+        "**.macAddress",
+        "**.ip",
+        "**.ipAddress",
+        "**.host",
+        "**.hostname",
+        "**.endpoint",
+        "**.url",
+        "**.username",
+        "**.password",
+        "**.token",
+        "**.accessToken",
+        "**.apiKey",
+        "**.secret",
+    };
+    public static final String[] DEFAULT_PAYLOAD_HARVEST_KEYWORDS = {
+        "password",
+        "passwd",
+        "secret",
+        "token",
+        "apikey",
+        "api_key",
+        "authorization",
+        "BEGIN ",
+        "amazonaws.com",
+        ".internal",
+        ".local",
+        "://",
+    };
 
     // Used by the test implementation in the initial "device connection kit." These might be left
     // over from initial setup.
-    // @TODO: Make some tests involving these topics/client IDs?
+    // (SETUP_TEST_SDK_CLIENT_IDS is the default candidate list for the client ID probe action)
+    // @TODO: Make some tests involving these topics?
     public static final String[] SETUP_TEST_SDK_MQTT_TOPICS = {
         "sdk/test/java",
         "sdk/test/python",
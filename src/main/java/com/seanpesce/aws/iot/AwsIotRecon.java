@@ -13,29 +13,70 @@
 package com.seanpesce.aws.iot;
 
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystems;
+import java.security.GeneralSecurityException;
 import java.security.cert.CertificateException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.regex.Matcher;
 
 import com.seanpesce.aws.iot.AwsIotConstants;
+import com.seanpesce.capture.CaptureAnalyzer;
+import com.seanpesce.capture.CaptureIndex;
+import com.seanpesce.capture.CaptureIndexWriter;
+import com.seanpesce.capture.CaptureReader;
+import com.seanpesce.capture.CaptureWriter;
+import com.seanpesce.capture.TopicSummary;
 import com.seanpesce.http.MtlsHttpClient;
+import com.seanpesce.json.JsonFlattener;
+import com.seanpesce.json.JsonPathExtractor;
+import com.seanpesce.mqtt.MessageRouter;
 import com.seanpesce.mqtt.MqttScript;
+import com.seanpesce.mqtt.MqttStreamDownloader;
+import com.seanpesce.mqtt.OfflinePublishQueue;
+import com.seanpesce.mqtt.PayloadDeduplicator;
+import com.seanpesce.mqtt.PayloadHarvester;
+import com.seanpesce.mqtt.RequestCorrelator;
+import com.seanpesce.mqtt.StripedDispatcher;
+import com.seanpesce.mqtt.SubscriptionOptimizer;
+import com.seanpesce.mqtt.TopicAuthMapper;
+import com.seanpesce.mqtt.TopicMatcher;
+import com.seanpesce.mqtt.TopicSampler;
+import com.seanpesce.mqtt.TopicTree;
+import com.seanpesce.output.RecordWriter;
 import com.seanpesce.regex.PatternWithNamedGroups;
 import com.seanpesce.Util;
 
@@ -58,18 +99,7 @@ import software.amazon.awssdk.crt.mqtt.MqttMessage;
 import software.amazon.awssdk.crt.mqtt.QualityOfService;
 import software.amazon.awssdk.crt.mqtt5.Mqtt5Client;
 import software.amazon.awssdk.iot.AwsIotMqttConnectionBuilder;
-import software.amazon.awssdk.regions.Region;
 // import software.amazon.awssdk.services.iotdataplane.IotDataPlaneClient;
-import software.amazon.awssdk.services.cognitoidentity.CognitoIdentityClient;
-import software.amazon.awssdk.services.cognitoidentity.model.GetCredentialsForIdentityRequest;
-import software.amazon.awssdk.services.cognitoidentity.model.GetCredentialsForIdentityResponse;
-import software.amazon.awssdk.services.cognitoidentity.model.GetIdRequest;
-import software.amazon.awssdk.services.cognitoidentity.model.GetIdResponse;
-import software.amazon.awssdk.services.cognitoidentityprovider.CognitoIdentityProviderClient;
-import software.amazon.awssdk.services.cognitoidentityprovider.model.AuthenticationResultType;
-import software.amazon.awssdk.services.cognitoidentityprovider.model.AuthFlowType;
-import software.amazon.awssdk.services.cognitoidentityprovider.model.InitiateAuthRequest;
-import software.amazon.awssdk.services.cognitoidentityprovider.model.InitiateAuthResponse;
 
 
 public class AwsIotRecon {
@@ -77,9 +107,31 @@ public class AwsIotRecon {
     // MQTT topics to subscribe to (if empty, defaults to "#" - all topics)
     public static ArrayList<String> topicSubcriptions = new ArrayList<String>();
 
+    // Filters messages received via optimized wildcard subscriptions back down to the requested topics
+    // (null if subscriptions were not optimized)
+    public static TopicMatcher requestedTopicMatcher = null;
+
+    // Limits for correlated MQTT requests (jobs, shadows)
+    public static int requestWindow = 32;
+    // Response subscriptions held by things being processed (see forEachThingCorrelated()), shared by all actions
+    // on the connection so they stay within the per-connection subscription quota
+    public static final Semaphore thingSubscriptionPermits = new Semaphore(AwsIotConstants.MQTT_MAX_SUBSCRIPTIONS, true);
+    public static long requestTimeoutMs = 5000;
+
+    // Message handler routes ({handler name, topic filter}) for sharing one subscription between analyses
+    public static ArrayList<String[]> messageRoutes = new ArrayList<String[]>();
+
+    // Actions scheduled by the poll action (action -> interval in seconds)
+    public static LinkedHashMap<String, Long> pollIntervals = new LinkedHashMap<String, Long>();
+
     // Regular expressions with named capture groups for harvesting fields from MQTT topics
     public static ArrayList<PatternWithNamedGroups> topicsRegex = new ArrayList<PatternWithNamedGroups>(Arrays.asList(AwsIotConstants.RESERVED_TOPICS_REGEX));
 
+    // JSON key paths and keywords for harvesting data from MQTT message payloads
+    public static ArrayList<String> payloadHarvestKeys = new ArrayList<String>(Arrays.asList(AwsIotConstants.DEFAULT_PAYLOAD_HARVEST_KEYS));
+    public static ArrayList<String> payloadHarvestKeywords = new ArrayList<String>(Arrays.asList(AwsIotConstants.DEFAULT_PAYLOAD_HARVEST_KEYWORDS));
+    public static PayloadHarvester payloadHarvester = null;
+
     public static String jarName = AwsIotRecon.class.getSimpleName() + ".jar";
     
     // Run-time resources
@@ -87,27 +139,159 @@ public class AwsIotRecon {
     public static String clientId = null;
     public static MqttClientConnection clientConnection = null;
     public static Mqtt5Client mqtt5ClientConnection = null;
-    public static ClientTlsContext tlsContext = null;  // For assuming IAM roles
+    public static ClientTlsContext tlsContext = null;  // For assuming IAM roles (Windows certificate store)
+    // For REST API and credentials provider requests (each shares key material and TLS sessions across requests).
+    // Clients that verify the server certificate and clients that don't are kept separately.
+    public static MtlsHttpClient httpClient = null;
+    public static MtlsHttpClient insecureHttpClient = null;
+    public static final JsonPathExtractor iamCredentialsExtractor = new JsonPathExtractor(Arrays.asList("credentials.accessKeyId", "credentials.secretAccessKey", "credentials.sessionToken"));
+    public static final JsonPathExtractor pendingJobIdExtractor = new JsonPathExtractor(Arrays.asList("inProgressJobs.jobId", "queuedJobs.jobId"));
+    public static final JsonPathExtractor errorCodeExtractor = new JsonPathExtractor(Arrays.asList("code"));
+    public static AwsIotMqttConnectionBuilder connectionBuilder = null;  // Kept open for building additional connections (client ID probing)
+    public static RefreshingCredentialsProvider refreshingCredentials = null;  // For renewing temporary (Cognito) WebSocket credentials
+    // Connection latency breakdown (null if not requested)
+    public static ConnectionTimings connectionTimings = null;
+
+    // Active MQTT subscriptions (topic -> message handler), re-established if a connection resumes without a session
+    public static final LinkedHashMap<String, Consumer<MqttMessage>> activeSubscriptions = new LinkedHashMap<String, Consumer<MqttMessage>>();
+    // Outbound messages published while the connection is interrupted (null if offline buffering is disabled)
+    public static OfflinePublishQueue offlineQueue = null;
+    // Runs message handlers off of the SDK event-loop thread (null if handlers run inline)
+    public static StripedDispatcher messageDispatcher = null;
+    // Structured output for action results (null to print results to stdout as text)
+    public static RecordWriter recordWriter = null;
+    // Index of observed topic levels (null if disabled)
+    public static TopicTree topicTree = null;
+    // Handles re-subscription and queue flushing after reconnects (SDK callbacks must not block). Created
+    // on the first reconnect; see getConnectionResumeExecutor()
+    protected static ExecutorService connectionResumeExecutor = null;
+
+    // Shutdown phases, run in this order by a single shutdown hook (the JVM runs separate shutdown hooks
+    // concurrently and in no particular order); see addShutdownStep()
+    public static final int SHUTDOWN_PHASE_DRAIN = 0;    // Finish handling messages that were already received
+    public static final int SHUTDOWN_PHASE_SUMMARY = 1;  // Emit final summaries/records
+    public static final int SHUTDOWN_PHASE_CLOSE = 2;    // Close capture files, snapshots, etc.
+    public static final int SHUTDOWN_PHASE_OUTPUT = 3;   // Close the structured output writer
+    protected static final TreeMap<Integer, ArrayList<Runnable>> shutdownSteps = new TreeMap<Integer, ArrayList<Runnable>>();
+
+    // Connection interruption metrics
+    public static volatile boolean connectionInterrupted = false;
+    public static volatile long connectionInterruptCount = 0;
+    // Held while deciding whether to queue a publication and while taking messages from the offline queue
+    public static final Object publishLock = new Object();
+    public static volatile long connectionInterruptedTime = 0;
+    public static long reconnectCount = 0;
+    public static long totalDowntimeMs = 0;
 
     
     public static final MqttClientConnectionEvents connectionCallbacks = new MqttClientConnectionEvents() {
         @Override  // software.amazon.awssdk.crt.mqtt.MqttClientConnectionEvents
         public void onConnectionInterrupted(int errorCode) {
+            connectionInterruptedTime = System.currentTimeMillis();
+            synchronized (publishLock) {
+                connectionInterrupted = true;
+                connectionInterruptCount++;
+            }
             System.err.println("[WARNING] Connection interrupted: (" + errorCode + ") " + CRT.awsErrorName(errorCode) + ": " + CRT.awsErrorString(errorCode));
+            if (offlineQueue != null) {
+                System.err.println("[INFO] Buffering outbound MQTT messages until the connection resumes");
+            }
         }
 
         @Override  // software.amazon.awssdk.crt.mqtt.MqttClientConnectionEvents
         public void onConnectionResumed(boolean sessionPresent) {
-            System.err.println("[INFO] Connection resumed (" + (sessionPresent ? "existing" : "new") + " session)");
+            long downtime = connectionInterruptedTime > 0 ? System.currentTimeMillis() - connectionInterruptedTime : 0;
+            synchronized (connectionCallbacks) {
+                reconnectCount++;
+                totalDowntimeMs += downtime;
+            }
+            System.err.println("[INFO] Connection resumed (" + (sessionPresent ? "existing" : "new") + " session) after " + downtime + "ms (reconnects: " + reconnectCount + "; total downtime: " + totalDowntimeMs + "ms)");
+            final long interruptCount = connectionInterruptCount;
+            getConnectionResumeExecutor().submit(() -> {
+                if (!sessionPresent) {
+                    resubscribeAll();
+                }
+                // Publications keep going to the offline queue until it's empty; if the connection drops again
+                // mid-flush, the rest of the queue is left for the next resume
+                Runnable onEmpty = () -> {
+                    if (connectionInterruptCount == interruptCount) {
+                        connectionInterrupted = false;
+                    }
+                };
+                if (offlineQueue == null) {
+                    synchronized (publishLock) {
+                        onEmpty.run();
+                    }
+                    return;
+                }
+                long flushed = offlineQueue.drain(msg -> clientConnection.publish(msg), publishLock, () -> connectionInterruptCount != interruptCount, onEmpty);
+                if (flushed > 0) {
+                    System.err.println("[INFO] Flushed " + flushed + " buffered MQTT message" + (flushed == 1 ? "" : "s") + " (total queued: " + offlineQueue.getTotalQueued() + "; flushed: " + offlineQueue.getTotalFlushed() + "; dropped: " + offlineQueue.getTotalDropped() + ")");
+                }
+            });
         }
     };
 
 
+    public static synchronized ExecutorService getConnectionResumeExecutor() {
+        if (connectionResumeExecutor == null) {
+            connectionResumeExecutor = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "mqtt-connection-resume");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return connectionResumeExecutor;
+    }
+
+
+    // Adds a step to the ordered shutdown sequence. Steps run in phase order, and in the order they were added
+    // within a phase; a step that throws doesn't prevent the remaining steps from running.
+    public static void addShutdownStep(int phase, Runnable step) {
+        synchronized (shutdownSteps) {
+            if (shutdownSteps.isEmpty()) {
+                Runtime.getRuntime().addShutdownHook(new Thread(AwsIotRecon::runShutdownSteps, "shutdown-steps"));
+            }
+            ArrayList<Runnable> steps = shutdownSteps.get(phase);
+            if (steps == null) {
+                steps = new ArrayList<Runnable>();
+                shutdownSteps.put(phase, steps);
+            }
+            steps.add(step);
+        }
+    }
+
+
+    protected static void runShutdownSteps() {
+        ArrayList<Runnable> steps = new ArrayList<Runnable>();
+        synchronized (shutdownSteps) {
+            for (ArrayList<Runnable> phaseSteps : shutdownSteps.values()) {
+                steps.addAll(phaseSteps);
+            }
+        }
+        for (Runnable step : steps) {
+            try {
+                step.run();
+            } catch (RuntimeException ex) {
+                System.err.println("[ERROR] Shutdown step failed: " + ex.toString());
+            }
+        }
+    }
+
+
     public static final Consumer<MqttMessage> genericMqttMsgConsumer = new Consumer<MqttMessage>() {
         @Override
         public void accept(MqttMessage message) {
-            String msg = "\n[MQTT Message] " + message.getTopic() + "\t" + new String(message.getPayload(), StandardCharsets.UTF_8);
-            System.out.println(msg);
+            String payload = new String(message.getPayload(), StandardCharsets.UTF_8);
+            String msg = "\n[MQTT Message] " + message.getTopic() + "\t" + payload;
+            LinkedHashMap<String, Object> fields = null;
+            if (recordWriter != null) {
+                fields = new LinkedHashMap<String, Object>();
+                fields.put("qos", message.getQos().getValue());
+                fields.put("retain", message.getRetain());
+                fields.put("payload", payload);
+            }
+            emitRecord(AwsIotConstants.RECORD_MQTT_MESSAGE, message.getTopic(), msg, fields);
         }
     };
 
@@ -118,17 +302,48 @@ public class AwsIotRecon {
             Map<String, String> m = extractFieldsFromTopic(message.getTopic());
             if (m != null) {
                 String msg = "[MQTT Topic Field Harvester] " + message.getTopic() + "\t" + m;
-                System.out.println(msg);
+                emitRecord(AwsIotConstants.RECORD_TOPIC_FIELDS, message.getTopic(), msg, m);
+            }
+        }
+    };
+
+
+    public static final Consumer<MqttMessage> payloadFieldHarvester = new Consumer<MqttMessage>() {
+        @Override
+        public void accept(MqttMessage message) {
+            Map<String, List<String>> m = payloadHarvester.harvest(message.getPayload());
+            if (m != null) {
+                String msg = "[MQTT Payload Harvester] " + message.getTopic() + "\t" + m;
+                emitRecord(AwsIotConstants.RECORD_PAYLOAD_FIELDS, message.getTopic(), msg, m);
             }
         }
     };
     
 
 
+    // Emits an action result: printed to stdout as-is, or written as a structured record if an output
+    // format/file was specified
+    public static void emitRecord(String type, String subject, String text, Map<String, ?> fields) {
+        if (recordWriter == null) {
+            System.out.println(text);
+        } else {
+            recordWriter.write(type, subject, text, fields);
+        }
+    }
+
+
     public static void main(String[] args) throws CertificateException, IOException, KeyStoreException, NoSuchAlgorithmException, org.apache.commons.cli.ParseException, InterruptedException, ExecutionException {
 
         cmd = parseCommandLineArguments(args);
+        initRecordWriter(cmd);
+        long setupStart = System.nanoTime();
+        if ((cmd.hasOption("connect-timing") || cmd.hasOption("connect-timing-log")) && cmd.hasOption("H")) {
+            connectionTimings = new ConnectionTimings(cmd.getOptionValue("H"));
+        }
         buildConnection(cmd);
+        if (connectionTimings != null) {
+            connectionTimings.record(ConnectionTimings.PHASE_SETUP, setupStart);
+        }
 
         String action = cmd.getOptionValue("a");
         if (action.equals(AwsIotConstants.ACTION_MQTT_DUMP)) {
@@ -139,6 +354,10 @@ public class AwsIotRecon {
             mqttConnect();
             beginMqttTopicFieldHarvesting();
 
+        } else if (action.equals(AwsIotConstants.ACTION_MQTT_PAYLOAD_HARVEST)) {
+            mqttConnect();
+            beginMqttPayloadHarvesting();
+
         } else if (action.equals(AwsIotConstants.ACTION_IAM_CREDS)) {
             getIamCredentialsFromDeviceX509(cmd.hasOption("R") ? Util.getTextFileDataFromOptionalPath(cmd.getOptionValue("R")).split("\n") : new String[] {"admin"}, cmd.hasOption("t") ? cmd.getOptionValue("t") : clientId);
 
@@ -149,10 +368,31 @@ public class AwsIotRecon {
         } else if (action.equals(AwsIotConstants.ACTION_MQTT_DATA_EXFIL)) {
             mqttConnect();
             testDataExfilChannel();
+
+        } else if (action.equals(AwsIotConstants.ACTION_MQTT_TOPIC_AUTH_MAP)) {
+            mqttConnect();
+            mapTopicAuthorization();
+
+        } else if (action.equals(AwsIotConstants.ACTION_CLIENT_ID_PROBE)) {
+            probeClientIds();
+
+        } else if (action.equals(AwsIotConstants.ACTION_MQTT_STREAM_DOWNLOAD)) {
+            mqttConnect();
+            downloadMqttStream(cmd.hasOption("t") ? cmd.getOptionValue("t") : clientId, cmd.getOptionValue("stream-id"));
         
         } else if (action.equals(AwsIotConstants.ACTION_GET_JOBS)) {
             mqttConnect();
-            getPendingJobs();
+            getPendingJobs(genericMqttMsgConsumer);
+
+        } else if (action.equals(AwsIotConstants.ACTION_GET_SHADOW) && cmd.hasOption("shadow-over-mqtt")) {
+            mqttConnect();
+            ArrayList<String> shadowNames = new ArrayList<String>();
+            if (cmd.hasOption("s")) {
+                shadowNames.addAll(readNonEmptyLines(cmd.getOptionValue("s")));
+            } else {
+                shadowNames.add(null);
+            }
+            getDeviceShadowsOverMqtt(shadowNames, genericMqttMsgConsumer);
 
         } else if (action.equals(AwsIotConstants.ACTION_GET_SHADOW)) {
             getDeviceShadow(cmd.hasOption("t") ? cmd.getOptionValue("t") : clientId, cmd.hasOption("s") ? cmd.getOptionValue("s") : null);
@@ -162,6 +402,21 @@ public class AwsIotRecon {
 
         } else if (action.equals(AwsIotConstants.ACTION_LIST_RETAINED_MQTT_MESSAGES)) {
             getRetainedMqttMessages();
+
+        } else if (action.equals(AwsIotConstants.ACTION_CAPTURE_DECODE)) {
+            decodeCapture(cmd.getOptionValue("capture"));
+
+        } else if (action.equals(AwsIotConstants.ACTION_CAPTURE_QUERY)) {
+            queryCapture(cmd.getOptionValue("capture"));
+
+        } else if (action.equals(AwsIotConstants.ACTION_CAPTURE_ANALYZE)) {
+            analyzeCapture(cmd.getOptionValue("capture"));
+
+        } else if (action.equals(AwsIotConstants.ACTION_POLL)) {
+            if (pollNeedsMqtt()) {
+                mqttConnect();
+            }
+            runPollSchedules();
         }
 
         // System.exit(0);
@@ -181,7 +436,7 @@ public class AwsIotRecon {
         Options opts = new Options();
         Option optHelp = new Option("h", "help", false, "Print usage and exit");
         opts.addOption(optHelp);
-        Option optAwsHost = Option.builder("H").longOpt("host").argName("host").hasArg(true).required(true).desc("(Required) AWS IoT instance hostname").type(String.class).build();
+        Option optAwsHost = Option.builder("H").longOpt("host").argName("host").hasArg(true).required(false).desc("(Required, except for " + String.join("/", AwsIotConstants.OFFLINE_ACTIONS) + ") AWS IoT instance hostname").type(String.class).build();
         opts.addOption(optAwsHost);
         Option optOperation = Option.builder("a").longOpt("action").argName("action").hasArg(true).required(true).desc("(Required) The enumeration task to carry out. Options: " + AwsIotConstants.CLI_ACTIONS).type(String.class).build();
         opts.addOption(optOperation);
@@ -211,18 +466,46 @@ public class AwsIotRecon {
         opts.addOption(optClientId);
         Option optPortNum = Option.builder("P").longOpt("port").argName("port").hasArg(true).required(false).desc("AWS server port number (1-65535)").type(Number.class).build();
         opts.addOption(optPortNum);
+        Option optRestPortNum = Option.builder(null).longOpt("rest-port").argName("port").hasArg(true).required(false).desc("Port number (1-65535) for the REST API and credentials provider, replacing their standard ports (8443 and 443, respectively)").type(Number.class).build();
+        opts.addOption(optRestPortNum);
         Option optTopicRegex = Option.builder("X").longOpt("topic-regex").argName("regex").hasArg(true).required(false).desc("Regular expression(s) with named capture groups for harvesting metadata from MQTT topics. This argument can be a file path or regex string data. To provide multiple regexes, separate each expression with a newline character. For more information on Java regular expressions with named capture groups, see here: https://docs.oracle.com/en/java/javase/17/docs/api/java.base/java/util/regex/Pattern.html#special").type(String.class).build();
         opts.addOption(optTopicRegex);
+        Option optPayloadKeys = Option.builder(null).longOpt("payload-keys").argName("paths").hasArg(true).required(false).desc("JSON key paths to extract from MQTT message payloads (file path or string data; one path per line). Path segments are separated by \".\"; \"*\" matches any key and \"**\" matches any number of keys (e.g., \"**.serialNumber\"). Replaces the default key list").type(String.class).build();
+        opts.addOption(optPayloadKeys);
+        Option optPayloadKeywords = Option.builder(null).longOpt("payload-keywords").argName("keywords").hasArg(true).required(false).desc("Case-insensitive keywords to search for in MQTT message payloads (file path or string data; one keyword per line). Replaces the default keyword list").type(String.class).build();
+        opts.addOption(optPayloadKeywords);
         Option optNoVerifyTls = new Option("U", "unsafe-tls", false, "Disable TLS certificate validation when possible");  // @TODO: Disable TLS validation for MQTT too?
         opts.addOption(optNoVerifyTls);
         Option optRoleAlias = Option.builder("R").longOpt("role-alias").argName("role").hasArg(true).required(false).desc("IAM role alias to obtain credentials for. Accepts a single alias string, or a path to a file containing a list of aliases.").type(String.class).build();
         opts.addOption(optRoleAlias);
         Option optSubToTopics = Option.builder("T").longOpt("topics").argName("topics").hasArg(true).required(false).desc("MQTT topics to subscribe to (file path or string data). To provide multiple topics, separate each topic with a newline character").type(String.class).build();
         opts.addOption(optSubToTopics);
+        Option optOptimizeSubs = Option.builder(null).longOpt("optimize-subscriptions").argName("count").hasArg(true).required(false).desc("Replace the topics specified with \"-T\" with at most this many covering wildcard subscriptions. Messages on topics that were not requested are discarded client-side").type(Number.class).build();
+        opts.addOption(optOptimizeSubs);
+        Option optSubWildcardDepth = Option.builder(null).longOpt("subscription-wildcard-depth").argName("levels").hasArg(true).required(false).desc("Over-subscription limit for \"--optimize-subscriptions\": generated wildcards must keep at least this many literal leading topic levels (e.g., with 2, \"a/b/+\" may be generated but \"a/+/c\" and \"a/#\" may not). Default: 0 (no limit)").type(Number.class).build();
+        opts.addOption(optSubWildcardDepth);
+        Option optRoute = Option.builder(null).longOpt("route").argName("handler:filter").hasArg(true).required(false).desc("Send messages matching an MQTT topic filter to a specific handler, so several analyses can share the subscriptions of the " + AwsIotConstants.ACTION_MQTT_DUMP + " and harvest actions (e.g., \"" + AwsIotConstants.ROUTE_PAYLOAD_HARVEST + ":dt/+/telemetry\"). Can be specified multiple times, or as a file path/string data with one route per line. Handlers: " + AwsIotConstants.ROUTE_HANDLERS).type(String.class).build();
+        opts.addOption(optRoute);
+        Option optTopicTemplates = Option.builder(null).longOpt("topic-templates").argName("templates").hasArg(true).required(false).desc("Candidate MQTT topic templates for " + AwsIotConstants.ACTION_MQTT_TOPIC_AUTH_MAP + " (file path or string data; one template per line). \"" + AwsIotConstants.TOPIC_TEMPLATE_THING_NAME + "\" is replaced with each thing name and \"" + AwsIotConstants.TOPIC_TEMPLATE_CLIENT_ID + "\" with the client ID").type(String.class).build();
+        opts.addOption(optTopicTemplates);
+        Option optThingNames = Option.builder(null).longOpt("thing-names").argName("names").hasArg(true).required(false).desc("Additional thing names (e.g., harvested with " + AwsIotConstants.ACTION_MQTT_TOPIC_FIELD_HARVEST + ") for " + AwsIotConstants.ACTION_GET_JOBS + ", " + AwsIotConstants.ACTION_GET_SHADOW + " (over MQTT, or when polled with " + AwsIotConstants.ACTION_POLL + "), and for filling topic templates (file path or string data; one name per line)").type(String.class).build();
+        opts.addOption(optThingNames);
+        Option optRequestWindow = Option.builder(null).longOpt("request-window").argName("count").hasArg(true).required(false).desc("Maximum number of in-flight MQTT requests (and things being processed) for " + AwsIotConstants.ACTION_GET_JOBS + " and " + AwsIotConstants.ACTION_GET_SHADOW + " over MQTT, or outstanding blocks for " + AwsIotConstants.ACTION_MQTT_STREAM_DOWNLOAD + " (default: 32). Things are also limited so that their response subscriptions stay within the " + AwsIotConstants.MQTT_MAX_SUBSCRIPTIONS + "-subscription quota per connection").type(Number.class).build();
+        opts.addOption(optRequestWindow);
+        Option optRequestTimeout = Option.builder(null).longOpt("request-timeout").argName("ms").hasArg(true).required(false).desc("Timeout for each " + AwsIotConstants.ACTION_GET_JOBS + ", " + AwsIotConstants.ACTION_GET_SHADOW + ", and " + AwsIotConstants.ACTION_MQTT_STREAM_DOWNLOAD + " MQTT request (default: 5000)").type(Number.class).build();
+        opts.addOption(optRequestTimeout);
+        Option optAuthMapWindow = Option.builder(null).longOpt("auth-map-window").argName("count").hasArg(true).required(false).desc("Maximum number of in-flight subscribe/publish operations for " + AwsIotConstants.ACTION_MQTT_TOPIC_AUTH_MAP + " (default: 16)").type(Number.class).build();
+        opts.addOption(optAuthMapWindow);
+        Option optAuthMapTimeout = Option.builder(null).longOpt("auth-map-timeout").argName("ms").hasArg(true).required(false).desc("Timeout for each " + AwsIotConstants.ACTION_MQTT_TOPIC_AUTH_MAP + " operation, and for receiving echoed messages (default: 5000)").type(Number.class).build();
+        opts.addOption(optAuthMapTimeout);
         Option optThingName = Option.builder("t").longOpt("thing-name").argName("name").hasArg(true).required(false).desc("Unique \"thingName\" (device ID). If this argument is not provided, client ID will be used").type(String.class).build();
         opts.addOption(optThingName);
-        Option optShadowName = Option.builder("s").longOpt("shadow-name").argName("name").hasArg(true).required(false).desc("Shadow name (required for fetching named shadows with " + AwsIotConstants.ACTION_GET_SHADOW + ")").type(String.class).build();
+        Option optShadowName = Option.builder("s").longOpt("shadow-name").argName("name").hasArg(true).required(false).desc("Shadow name (required for fetching named shadows with " + AwsIotConstants.ACTION_GET_SHADOW + "). With \"--shadow-over-mqtt\", this can also be a file path or string data with one shadow name per line").type(String.class).build();
         opts.addOption(optShadowName);
+        Option optShadowOverMqtt = new Option(null, "shadow-over-mqtt", false, "Get device shadows with " + AwsIotConstants.ACTION_GET_SHADOW + " over the MQTT connection instead of the REST API. Supports any authentication method, multiple thing names (\"--thing-names\"), and multiple shadow names (\"-s\")");
+        opts.addOption(optShadowOverMqtt);
+        Option optPoll = Option.builder(null).longOpt("poll").argName("action:seconds").hasArg(true).required(false).desc("Action to run repeatedly with the " + AwsIotConstants.ACTION_POLL + " action, and its interval (e.g., \"" + AwsIotConstants.ACTION_GET_JOBS + ":60\"). Only changes (added/removed/modified fields) since the previous run are emitted. REST API requests use the \"--rest-port\" port, while \"-P\" applies to actions polled over MQTT. Can be specified multiple times, or as a file path/string data with one action per line. Actions: " + AwsIotConstants.POLL_ACTIONS).type(String.class).build();
+        opts.addOption(optPoll);
         Option optCustomAuthUser = Option.builder(null).longOpt("custom-auth-user").argName("user").hasArg(true).required(false).desc(AwsIotConstants.CLI_AUTH_ARG + "Custom authorizer username").type(String.class).build();
         opts.addOption(optCustomAuthUser);
         Option optCustomAuthName = Option.builder(null).longOpt("custom-auth-name").argName("name").hasArg(true).required(false).desc(AwsIotConstants.CLI_AUTH_ARG + "Custom authorizer name").type(String.class).build();
@@ -235,8 +518,84 @@ public class AwsIotRecon {
         opts.addOption(optCustomAuthTokKey);
         Option optCustomAuthTokVal = Option.builder(null).longOpt("custom-auth-tok-val").argName("value").hasArg(true).required(false).desc(AwsIotConstants.CLI_AUTH_ARG + "Custom authorizer token value").type(String.class).build();
         opts.addOption(optCustomAuthTokVal);
+        Option optClientIds = Option.builder(null).longOpt("client-ids").argName("ids").hasArg(true).required(false).desc("Candidate client IDs for " + AwsIotConstants.ACTION_CLIENT_ID_PROBE + " (file path or string data; one ID per line). Defaults to common SDK sample client IDs and the thing name. WARNING: Connecting with the client ID of a live device disconnects that device").type(String.class).build();
+        opts.addOption(optClientIds);
+        Option optProbeConcurrency = Option.builder(null).longOpt("probe-concurrency").argName("count").hasArg(true).required(false).desc("Maximum number of parallel connection attempts for " + AwsIotConstants.ACTION_CLIENT_ID_PROBE + " (default: 8)").type(Number.class).build();
+        opts.addOption(optProbeConcurrency);
+        Option optProbeTimeout = Option.builder(null).longOpt("probe-timeout").argName("ms").hasArg(true).required(false).desc("Timeout for each " + AwsIotConstants.ACTION_CLIENT_ID_PROBE + " connection attempt (default: 10000)").type(Number.class).build();
+        opts.addOption(optProbeTimeout);
+        Option optStreamId = Option.builder(null).longOpt("stream-id").argName("id").hasArg(true).required(false).desc("MQTT-based file delivery stream ID (required for " + AwsIotConstants.ACTION_MQTT_STREAM_DOWNLOAD + ")").type(String.class).build();
+        opts.addOption(optStreamId);
+        Option optStreamFileId = Option.builder(null).longOpt("stream-file-id").argName("id").hasArg(true).required(false).desc("ID of the stream file to download (default: all files in the stream)").type(Number.class).build();
+        opts.addOption(optStreamFileId);
+        Option optStreamBlockSize = Option.builder(null).longOpt("stream-block-size").argName("bytes").hasArg(true).required(false).desc("Stream block size (" + MqttStreamDownloader.MIN_BLOCK_SIZE + "-" + MqttStreamDownloader.MAX_BLOCK_SIZE + "; default: 65536). Outstanding blocks are limited by \"--request-window\"").type(Number.class).build();
+        opts.addOption(optStreamBlockSize);
+        Option optStreamOutput = Option.builder(null).longOpt("stream-output").argName("dir").hasArg(true).required(false).desc("Output directory for downloaded stream files (default: current directory). Files are named <streamId>_<fileId>.bin").type(String.class).build();
+        opts.addOption(optStreamOutput);
+        Option optOutputFormat = Option.builder(null).longOpt("output-format").argName("format").hasArg(true).required(false).desc("Format for action results: " + RecordWriter.FORMATS + " (default: " + RecordWriter.FORMAT_TEXT + ")").type(String.class).build();
+        opts.addOption(optOutputFormat);
+        Option optOutputFile = Option.builder(null).longOpt("output-file").argName("file").hasArg(true).required(false).desc("Write action results to the specified file instead of stdout").type(String.class).build();
+        opts.addOption(optOutputFile);
+        Option optOutputCompress = new Option(null, "output-compress", false, "Gzip-compress the output file");
+        opts.addOption(optOutputCompress);
+        Option optOutputRotateSize = Option.builder(null).longOpt("output-rotate-size").argName("MB").hasArg(true).required(false).desc("Start a new output file once the current one reaches this size").type(Number.class).build();
+        opts.addOption(optOutputRotateSize);
+        Option optOutputRotateInterval = Option.builder(null).longOpt("output-rotate-interval").argName("seconds").hasArg(true).required(false).desc("Start a new output file at this interval").type(Number.class).build();
+        opts.addOption(optOutputRotateInterval);
+        Option optOutputFlushInterval = Option.builder(null).longOpt("output-flush-interval").argName("ms").hasArg(true).required(false).desc("Interval for writing buffered output records (default: 1000)").type(Number.class).build();
+        opts.addOption(optOutputFlushInterval);
         Option optMqttScript = Option.builder("f").longOpt("script").argName("file").hasArg(true).required(false).desc("MQTT script file (required for " + AwsIotConstants.ACTION_MQTT_SCRIPT + " action)").type(String.class).build();
         opts.addOption(optMqttScript);
+        Option optOfflineQueueSize = Option.builder(null).longOpt("offline-queue-size").argName("count").hasArg(true).required(false).desc("Maximum number of outbound MQTT messages to hold in memory while the connection is interrupted (default: 1000; 0 disables offline buffering)").type(Number.class).build();
+        opts.addOption(optOfflineQueueSize);
+        Option optOfflineQueueFile = Option.builder(null).longOpt("offline-queue-file").argName("file").hasArg(true).required(false).desc("Spool file for outbound MQTT messages that exceed the in-memory offline queue").type(String.class).build();
+        opts.addOption(optOfflineQueueFile);
+        Option optOfflineQueueFileSize = Option.builder(null).longOpt("offline-queue-file-size").argName("MB").hasArg(true).required(false).desc("Maximum size of the offline queue spool file; messages that don't fit are dropped (default: " + (OfflinePublishQueue.DEFAULT_MAX_SPOOL_BYTES / (1024 * 1024)) + "; 0 for unlimited)").type(Number.class).build();
+        opts.addOption(optOfflineQueueFileSize);
+        Option optDispatchLanes = Option.builder(null).longOpt("dispatch-lanes").argName("count").hasArg(true).required(false).desc("Process received MQTT messages on the specified number of worker lanes instead of the connection thread. Messages on the same topic are always processed in order. Use 0 for one lane per CPU core").type(Number.class).build();
+        opts.addOption(optDispatchLanes);
+        Option optDispatchStats = Option.builder(null).longOpt("dispatch-stats").argName("seconds").hasArg(true).required(false).desc("Interval for printing per-lane message queue depths to stderr (requires \"--dispatch-lanes\")").type(Number.class).build();
+        opts.addOption(optDispatchStats);
+        Option optOverloadPolicy = Option.builder(null).longOpt("overload-policy").argName("policy").hasArg(true).required(false).desc("What to do when received MQTT messages arrive faster than they can be processed: " + String.join(", ", StripedDispatcher.POLICIES) + " (implies \"--dispatch-lanes\"; default lane capacity: 10000)").type(String.class).build();
+        opts.addOption(optOverloadPolicy);
+        Option optDispatchQueueSize = Option.builder(null).longOpt("dispatch-queue-size").argName("count").hasArg(true).required(false).desc("Maximum number of messages queued per dispatch lane (default: unlimited, or 10000 with \"--overload-policy\")").type(Number.class).build();
+        opts.addOption(optDispatchQueueSize);
+        Option optOverloadSampleRate = Option.builder(null).longOpt("overload-sample-rate").argName("n").hasArg(true).required(false).desc("With the \"" + StripedDispatcher.POLICY_SAMPLE + "\" overload policy, keep 1 of every n messages while a lane is overloaded (default: 10)").type(Number.class).build();
+        opts.addOption(optOverloadSampleRate);
+        Option optSampleRate = Option.builder(null).longOpt("sample-rate").argName("count").hasArg(true).required(false).desc("Print at most this many messages per topic per sampling interval in the " + AwsIotConstants.ACTION_MQTT_DUMP + " action; a summary of suppressed messages is printed to stderr").type(Number.class).build();
+        opts.addOption(optSampleRate);
+        Option optSampleInterval = Option.builder(null).longOpt("sample-interval").argName("seconds").hasArg(true).required(false).desc("Sampling interval for \"--sample-rate\" (default: 1)").type(Number.class).build();
+        opts.addOption(optSampleInterval);
+        Option optSampleMaxTopics = Option.builder(null).longOpt("sample-max-topics").argName("count").hasArg(true).required(false).desc("Maximum number of topics tracked for \"--sample-rate\" before the least recently seen topics are forgotten (default: 100000)").type(Number.class).build();
+        opts.addOption(optSampleMaxTopics);
+        Option optDedup = new Option(null, "dedup", false, "Only print MQTT messages whose payload differs from the previous payload on the same topic in the " + AwsIotConstants.ACTION_MQTT_DUMP + " action; the number of unchanged messages per topic is printed periodically");
+        opts.addOption(optDedup);
+        Option optDedupMaxTopics = Option.builder(null).longOpt("dedup-max-topics").argName("count").hasArg(true).required(false).desc("Maximum number of topics tracked by \"--dedup\" before the least recently seen topics are forgotten (default: 65536)").type(Number.class).build();
+        opts.addOption(optDedupMaxTopics);
+        Option optDedupSummaryInterval = Option.builder(null).longOpt("dedup-summary-interval").argName("seconds").hasArg(true).required(false).desc("Interval for printing unchanged message counts with \"--dedup\" (default: 60)").type(Number.class).build();
+        opts.addOption(optDedupSummaryInterval);
+        Option optCapture = Option.builder(null).longOpt("capture").argName("file").hasArg(true).required(false).desc("Append all messages received in the " + AwsIotConstants.ACTION_MQTT_DUMP + " action to a compact binary capture file (payloads are stored as deltas against the previous payload on the same topic), or the capture file to read for " + String.join("/", AwsIotConstants.OFFLINE_ACTIONS) + ". A time/topic index is written alongside the capture (<file>" + CaptureIndexWriter.FILE_SUFFIX + ")").type(String.class).build();
+        opts.addOption(optCapture);
+        Option optCaptureKeyframeInterval = Option.builder(null).longOpt("capture-keyframe-interval").argName("count").hasArg(true).required(false).desc("Maximum number of delta-encoded messages per topic between full payloads in a capture file (default: " + CaptureWriter.DEFAULT_KEYFRAME_INTERVAL + ")").type(Number.class).build();
+        opts.addOption(optCaptureKeyframeInterval);
+        Option optCaptureFrom = Option.builder(null).longOpt("capture-from").argName("epoch ms").hasArg(true).required(false).desc("Start of the time range for " + AwsIotConstants.ACTION_CAPTURE_QUERY + " (inclusive; default: beginning of capture). Topic filters are specified with \"-T\" (default: #)").type(Number.class).build();
+        opts.addOption(optCaptureFrom);
+        Option optCaptureTo = Option.builder(null).longOpt("capture-to").argName("epoch ms").hasArg(true).required(false).desc("End of the time range for " + AwsIotConstants.ACTION_CAPTURE_QUERY + " (inclusive; default: end of capture)").type(Number.class).build();
+        opts.addOption(optCaptureTo);
+        Option optAnalyzeThreads = Option.builder(null).longOpt("analyze-threads").argName("count").hasArg(true).required(false).desc("Number of threads for " + AwsIotConstants.ACTION_CAPTURE_ANALYZE + ", which runs topic statistics, topic field harvesting (\"-X\"), and payload harvesting/keyword scans over a capture file (optionally limited to the \"-T\" topic filters). Use 0 for one thread per CPU core (default)").type(Number.class).build();
+        opts.addOption(optAnalyzeThreads);
+        Option optConnectTiming = new Option(null, "connect-timing", false, "Report how long each phase of connecting took (setup, DNS, TCP, TLS, CONNACK, and SUBACKs). The network phases are measured by probing the endpoint just before connecting");
+        opts.addOption(optConnectTiming);
+        Option optConnectTimingLog = Option.builder(null).longOpt("connect-timing-log").argName("file").hasArg(true).required(false).desc("Append the connection timing of each run to a log file (JSON lines) and report percentiles per endpoint across all logged runs (implies \"--connect-timing\")").type(String.class).build();
+        opts.addOption(optConnectTimingLog);
+        Option optTopicTree = Option.builder(null).longOpt("topic-tree").argName("file").hasArg(true).required(false).desc("Maintain an index of observed MQTT topic levels (with message/byte counts and last-seen times) and write snapshots of it to the specified file").type(String.class).build();
+        opts.addOption(optTopicTree);
+        Option optTopicTreeInterval = Option.builder(null).longOpt("topic-tree-interval").argName("seconds").hasArg(true).required(false).desc("Interval between topic tree snapshots (default: 60). A final snapshot is always written on exit").type(Number.class).build();
+        opts.addOption(optTopicTreeInterval);
+        Option optTopicTreeMaxNodes = Option.builder(null).longOpt("topic-tree-max-nodes").argName("count").hasArg(true).required(false).desc("Maximum number of topic tree nodes before high-cardinality levels are collapsed into \"+\" (default: 100000)").type(Number.class).build();
+        opts.addOption(optTopicTreeMaxNodes);
+        Option optTopicTreeMaxChildren = Option.builder(null).longOpt("topic-tree-max-children").argName("count").hasArg(true).required(false).desc("Maximum number of distinct values for a single topic level before it is collapsed into \"+\" (default: 1000)").type(Number.class).build();
+        opts.addOption(optTopicTreeMaxChildren);
         Option optAwsRegion = Option.builder("r").longOpt("region").argName("region").hasArg(true).required(false).desc("AWS instance region (e.g., \"us-west-2\") - only required when using MQTT-over-WebSocket").type(String.class).build();
         opts.addOption(optAwsRegion);
 
@@ -248,17 +607,22 @@ public class AwsIotRecon {
         Option optAwsSessionToken = Option.builder(null).longOpt("aws-session-token").argName("token").hasArg(true).required(false).desc(AwsIotConstants.CLI_AUTH_ARG + "AWS session token (for WebSocket auth)").type(String.class).build();
         opts.addOption(optAwsSessionToken);
 
-        // @TODO: Implement Cognito authentication flows
         // AWS Cognito options
-        // https://docs.aws.amazon.com/AWSJavaSDK/latest/javadoc/com/amazonaws/services/cognitoidp/model/AuthFlowType.html
-        // Option optCognitoAuthFlow = Option.builder(null).longOpt("cognito-auth-flow").argName("flow-type").hasArg(true).required(false).desc(AwsIotConstants.CLI_AUTH_ARG + "AWS Cognito auth flow type (for Signature v4 auth)").type(String.class).build();
-        // opts.addOption(optCognitoAuthFlow);
-        // Option optCognitoClientId = Option.builder(null).longOpt("cognito-client-id").argName("id").hasArg(true).required(false).desc(AwsIotConstants.CLI_AUTH_ARG + "AWS Cognito client ID (for Signature v4 auth)").type(String.class).build();
-        // opts.addOption(optCognitoClientId);
-        // Option optCognitoUserPoolId = Option.builder(null).longOpt("cognito-user-pool-id").argName("id").hasArg(true).required(false).desc(AwsIotConstants.CLI_AUTH_ARG + "AWS Cognito user pool ID (for Signature v4 auth)").type(String.class).build();
-        // opts.addOption(optCognitoUserPoolId);
-        // Option optCognitoIdentityPoolId = Option.builder(null).longOpt("cognito-identity-pool-id").argName("id").hasArg(true).required(false).desc(AwsIotConstants.CLI_AUTH_ARG + "AWS Cognito identity pool ID (for Signature v4 auth)").type(String.class).build();
-        // opts.addOption(optCognitoIdentityPoolId);
+        // https://docs.aws.amazon.com/cognito/latest/developerguide/authentication-flow.html
+        Option optCognitoIdentityPoolId = Option.builder(null).longOpt("cognito-identity-pool-id").argName("id").hasArg(true).required(false).desc(AwsIotConstants.CLI_AUTH_ARG + "AWS Cognito identity pool ID (for WebSocket auth). Without a user pool, unauthenticated (guest) credentials are used. Credentials are renewed in the background before they expire").type(String.class).build();
+        opts.addOption(optCognitoIdentityPoolId);
+        Option optCognitoUserPoolId = Option.builder(null).longOpt("cognito-user-pool-id").argName("id").hasArg(true).required(false).desc(AwsIotConstants.CLI_AUTH_ARG + "AWS Cognito user pool ID (for WebSocket auth; the user is specified with \"-u\" and \"-p\")").type(String.class).build();
+        opts.addOption(optCognitoUserPoolId);
+        Option optCognitoClientId = Option.builder(null).longOpt("cognito-client-id").argName("id").hasArg(true).required(false).desc(AwsIotConstants.CLI_AUTH_ARG + "AWS Cognito user pool app client ID (for WebSocket auth)").type(String.class).build();
+        opts.addOption(optCognitoClientId);
+        Option optCognitoClientSecret = Option.builder(null).longOpt("cognito-client-secret").argName("secret").hasArg(true).required(false).desc(AwsIotConstants.CLI_AUTH_ARG + "AWS Cognito user pool app client secret, if the app client has one").type(String.class).build();
+        opts.addOption(optCognitoClientSecret);
+        Option optCognitoAuthFlow = Option.builder(null).longOpt("cognito-auth-flow").argName("flow-type").hasArg(true).required(false).desc(AwsIotConstants.CLI_AUTH_ARG + "AWS Cognito user pool auth flow: " + String.join(", ", CognitoCredentialsSource.AUTH_FLOWS) + " (default: " + CognitoCredentialsSource.AUTH_FLOWS[0] + "). For " + CognitoCredentialsSource.AUTH_FLOWS[1] + ", specify the refresh token with \"-u\"").type(String.class).build();
+        opts.addOption(optCognitoAuthFlow);
+        Option optCognitoEndpoint = Option.builder(null).longOpt("cognito-endpoint").argName("url").hasArg(true).required(false).desc("Override the AWS Cognito service endpoint URL (e.g., for a local test server)").type(String.class).build();
+        opts.addOption(optCognitoEndpoint);
+        Option optCredentialRefreshMargin = Option.builder(null).longOpt("credential-refresh-margin").argName("seconds").hasArg(true).required(false).desc("How long before temporary (Cognito) credentials expire to renew them (default: " + RefreshingCredentialsProvider.DEFAULT_REFRESH_MARGIN_MS / 1000 + ")").type(Number.class).build();
+        opts.addOption(optCredentialRefreshMargin);
 
         // @TODO: Add support for these:
         //        Connection options:
@@ -315,6 +679,9 @@ public class AwsIotRecon {
             if (!AwsIotConstants.CLI_ACTIONS.contains(action)) {
                 throw new org.apache.commons.cli.ParseException("Invalid action: \"" + action + "\"");
             }
+            if (!cmd.hasOption("H") && !AwsIotConstants.OFFLINE_ACTIONS.contains(action)) {
+                throw new org.apache.commons.cli.ParseException("Missing required option: H");
+            }
         } catch (org.apache.commons.cli.ParseException ex) {
             System.err.println("[ERROR] " + ex.getMessage() + "\n");
             helpFmt.printHelp(usagePrefix, "\n", opts, "\n\n"+AwsIotConstants.PROJECT_TITLE);
@@ -343,10 +710,134 @@ public class AwsIotRecon {
             System.err.println("[INFO] Added " + topicRegexStrs.length + " custom MQTT topic regular expression" + (topicRegexStrs.length == 1 ? "" : "s"));
         }
 
+        // Add any message handler routes
+        if (cmd.hasOption("route")) {
+            for (String routeArg : cmd.getOptionValues("route")) {
+                for (String route : readNonEmptyLines(routeArg)) {
+                    int sep = route.indexOf(":");
+                    String handlerName = sep < 0 ? route : route.substring(0, sep).trim();
+                    if (sep < 0 || !AwsIotConstants.ROUTE_HANDLERS.contains(handlerName)) {
+                        System.err.println("[ERROR] Invalid message route: \"" + route + "\" (expected format: <handler>:<topic filter>; handlers: " + AwsIotConstants.ROUTE_HANDLERS + ")");
+                        System.exit(154);
+                    }
+                    messageRoutes.add(new String[]{ handlerName, route.substring(sep + 1).trim() });
+                }
+            }
+            System.err.println("[INFO] Added " + messageRoutes.size() + " message route" + (messageRoutes.size() == 1 ? "" : "s"));
+        }
+
+        // Add any scheduled actions for polling
+        if (cmd.hasOption("poll")) {
+            for (String pollArg : cmd.getOptionValues("poll")) {
+                for (String poll : readNonEmptyLines(pollArg)) {
+                    int sep = poll.lastIndexOf(":");
+                    String pollAction = sep < 0 ? poll : poll.substring(0, sep).trim();
+                    long intervalSec = -1;
+                    try {
+                        intervalSec = sep < 0 ? -1 : Long.parseLong(poll.substring(sep + 1).trim());
+                    } catch (NumberFormatException ex) {
+                        // Handled below
+                    }
+                    if (!AwsIotConstants.POLL_ACTIONS.contains(pollAction) || intervalSec < 1) {
+                        System.err.println("[ERROR] Invalid poll schedule: \"" + poll + "\" (expected format: <action>:<seconds>; actions: " + AwsIotConstants.POLL_ACTIONS + ")");
+                        System.exit(154);
+                    }
+                    pollIntervals.put(pollAction, intervalSec);
+                }
+            }
+        }
+
+        // Correlated MQTT request limits
+        try {
+            if (cmd.hasOption("request-window")) {
+                requestWindow = Math.max(1, ((Number)cmd.getParsedOptionValue("request-window")).intValue());
+            }
+            if (cmd.hasOption("request-timeout")) {
+                requestTimeoutMs = Math.max(1, ((Number)cmd.getParsedOptionValue("request-timeout")).longValue());
+            }
+        } catch (org.apache.commons.cli.ParseException ex) {
+            System.err.println("[ERROR] " + ex.getMessage());
+            System.exit(154);
+        }
+
+        // Replace default payload harvesting key paths/keywords
+        if (cmd.hasOption("payload-keys")) {
+            payloadHarvestKeys = readNonEmptyLines(cmd.getOptionValue("payload-keys"));
+            System.err.println("[INFO] Using " + payloadHarvestKeys.size() + " custom payload key path" + (payloadHarvestKeys.size() == 1 ? "" : "s"));
+        }
+        if (cmd.hasOption("payload-keywords")) {
+            payloadHarvestKeywords = readNonEmptyLines(cmd.getOptionValue("payload-keywords"));
+            System.err.println("[INFO] Using " + payloadHarvestKeywords.size() + " custom payload keyword" + (payloadHarvestKeywords.size() == 1 ? "" : "s"));
+        }
+
         return cmd;
     }
 
 
+    // Reads a newline-separated list from a file path or string data, ignoring empty lines
+    public static ArrayList<String> readNonEmptyLines(String pathOrData) throws IOException {
+        ArrayList<String> lines = new ArrayList<String>();
+        for (String line : Util.getTextFileDataFromOptionalPath(pathOrData).split("\n")) {
+            line = line.trim();
+            if (!line.isEmpty()) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+
+
+    // Sets up structured/compressed output for action results (if requested)
+    public static void initRecordWriter(CommandLine cmd) throws IOException, org.apache.commons.cli.ParseException {
+        if (cmd.hasOption("output-format") || cmd.hasOption("output-file")) {
+            String format = cmd.hasOption("output-format") ? cmd.getOptionValue("output-format") : RecordWriter.FORMAT_TEXT;
+            if (!RecordWriter.FORMATS.contains(format)) {
+                System.err.println("[ERROR] Unsupported output format: " + format + " (supported formats: " + RecordWriter.FORMATS + ")");
+                System.exit(1);
+            }
+            long rotateBytes = cmd.hasOption("output-rotate-size") ? ((Number)cmd.getParsedOptionValue("output-rotate-size")).longValue() * 1024 * 1024 : 0;
+            long rotateIntervalMs = cmd.hasOption("output-rotate-interval") ? ((Number)cmd.getParsedOptionValue("output-rotate-interval")).longValue() * 1000 : 0;
+            long flushIntervalMs = cmd.hasOption("output-flush-interval") ? ((Number)cmd.getParsedOptionValue("output-flush-interval")).longValue() : 1000;
+            recordWriter = new RecordWriter(format, cmd.getOptionValue("output-file"), cmd.hasOption("output-compress"), rotateBytes, rotateIntervalMs, flushIntervalMs);
+            // Closed last, after everything that can still emit records has finished
+            addShutdownStep(SHUTDOWN_PHASE_OUTPUT, () -> {
+                try {
+                    recordWriter.close();
+                    System.err.println("[INFO] Wrote " + recordWriter.getRecordCount() + " output record" + (recordWriter.getRecordCount() == 1 ? "" : "s") + (cmd.hasOption("output-file") ? " to " + cmd.getOptionValue("output-file") : ""));
+                } catch (IOException ex) {
+                    System.err.println("[ERROR] Failed to write output records: " + ex.getMessage());
+                }
+            });
+        }
+    }
+
+
+    // REST API actions use mTLS over JSSE (MtlsHttpClient), so they don't need the CRT native library or an
+    // MQTT connection. IAM credentials are also requested this way, unless the key is in a Windows
+    // certificate store (which only the CRT can use).
+    public static boolean isRestApiAction(String action) {
+        return (action.equals(AwsIotConstants.ACTION_GET_SHADOW) && !cmd.hasOption("shadow-over-mqtt"))
+                || action.equals(AwsIotConstants.ACTION_LIST_NAMED_SHADOWS)
+                || action.equals(AwsIotConstants.ACTION_LIST_RETAINED_MQTT_MESSAGES)
+                || (action.equals(AwsIotConstants.ACTION_IAM_CREDS) && !cmd.hasOption("windows-cert-store"))
+                || (action.equals(AwsIotConstants.ACTION_POLL) && !pollNeedsMqtt());
+    }
+
+
+    // The poll action connects to MQTT for jobs and (with "--shadow-over-mqtt") device shadows
+    public static boolean pollNeedsMqtt() {
+        return pollIntervals.containsKey(AwsIotConstants.ACTION_GET_JOBS)
+                || (pollIntervals.containsKey(AwsIotConstants.ACTION_GET_SHADOW) && cmd.hasOption("shadow-over-mqtt"));
+    }
+
+
+    // ...and uses the REST API for everything else
+    public static boolean pollNeedsRestApi() {
+        return pollIntervals.containsKey(AwsIotConstants.ACTION_LIST_RETAINED_MQTT_MESSAGES)
+                || (pollIntervals.containsKey(AwsIotConstants.ACTION_GET_SHADOW) && !cmd.hasOption("shadow-over-mqtt"));
+    }
+
 
     public static void buildConnection(CommandLine cmd) throws CertificateException, FileNotFoundException, IOException, KeyStoreException, NoSuchAlgorithmException, org.apache.commons.cli.ParseException {
         // Determine how to initialize the connection builder
@@ -355,6 +846,14 @@ public class AwsIotRecon {
 
         String action = cmd.getOptionValue("a");
 
+        if (AwsIotConstants.OFFLINE_ACTIONS.contains(action)) {
+            if (!cmd.hasOption("capture")) {
+                System.err.println("[ERROR] \"" + action + "\" action requires a capture file (\"--capture\")");
+                System.exit(3);
+            }
+            return;
+        }
+
         // Check for arguments required for specific actions
         if (action.equals(AwsIotConstants.ACTION_MQTT_DUMP)) {
             // Nothing required except auth data
@@ -362,6 +861,9 @@ public class AwsIotRecon {
         } else if (action.equals(AwsIotConstants.ACTION_MQTT_TOPIC_FIELD_HARVEST)) {
             // Nothing required except auth data
 
+        } else if (action.equals(AwsIotConstants.ACTION_MQTT_PAYLOAD_HARVEST)) {
+            // Nothing required except auth data
+
         } else if (action.equals(AwsIotConstants.ACTION_IAM_CREDS)) {
             if (!cmd.hasOption("R")) {
                 throw new IllegalArgumentException("Operation " + action + " requires role(s) to be specified with \"-R\"");
@@ -375,30 +877,38 @@ public class AwsIotRecon {
 
         } else if (action.equals(AwsIotConstants.ACTION_MQTT_DATA_EXFIL)) {
             // Nothing required except auth data
+
+        } else if (action.equals(AwsIotConstants.ACTION_MQTT_STREAM_DOWNLOAD)) {
+            if (!cmd.hasOption("stream-id")) {
+                System.err.println("[ERROR] \"" + action + "\" action requires a stream ID (\"--stream-id\")");
+                System.exit(3);
+            }
+
+        } else if (action.equals(AwsIotConstants.ACTION_MQTT_TOPIC_AUTH_MAP)) {
+            if (!(cmd.hasOption("T") || cmd.hasOption("topic-templates"))) {
+                System.err.println("[ERROR] \"" + action + "\" action requires candidate topics (\"-T\") and/or topic templates (\"--topic-templates\")");
+                System.exit(3);
+            }
         
         } else if (action.equals(AwsIotConstants.ACTION_GET_JOBS)) {
-            if (!(cmd.hasOption("t") || cmd.hasOption("C"))) {
-                System.err.println("[ERROR] \"" + action + "\" action requires thing name (\"-t\") or client ID (\"-C\")");
+            if (!(cmd.hasOption("t") || cmd.hasOption("thing-names") || cmd.hasOption("C"))) {
+                System.err.println("[ERROR] \"" + action + "\" action requires thing name(s) (\"-t\" or \"--thing-names\") or client ID (\"-C\")");
                 System.exit(3);
             }
 
-        } else if (action.equals(AwsIotConstants.ACTION_GET_SHADOW)) {
-            // @TODO: Improve implementation to support this action in more ways
-            if (!(cmd.hasOption("c") && cmd.hasOption("k") && cmd.hasOption("A"))) {
-                System.err.println("[ERROR] \"" + action + "\" action currently requires file paths for client certificate (\"-c\"), client private key (\"-k\"), and certificate authority (\"-A\")");
+        } else if (action.equals(AwsIotConstants.ACTION_GET_SHADOW) && cmd.hasOption("shadow-over-mqtt")) {
+            if (!(cmd.hasOption("t") || cmd.hasOption("thing-names") || cmd.hasOption("C"))) {
+                System.err.println("[ERROR] \"" + action + "\" action requires thing name(s) (\"-t\" or \"--thing-names\") or client ID (\"-C\")");
                 System.exit(3);
             }
+
+        } else if (action.equals(AwsIotConstants.ACTION_GET_SHADOW)) {
             if (!(cmd.hasOption("t") || cmd.hasOption("C"))) {
                 System.err.println("[ERROR] \"" + action + "\" action requires thing name (\"-t\") or client ID (\"-C\")");
                 System.exit(3);
             }
 
         } else if (action.equals(AwsIotConstants.ACTION_LIST_NAMED_SHADOWS)) {
-            // @TODO: Improve implementation to support this action in more ways
-            if (!(cmd.hasOption("c") && cmd.hasOption("k") && cmd.hasOption("A"))) {
-                System.err.println("[ERROR] \"" + action + "\" action currently requires file paths for client certificate (\"-c\"), client private key (\"-k\"), and certificate authority (\"-A\")");
-                System.exit(3);
-            }
             if (!(cmd.hasOption("t") || cmd.hasOption("C"))) {
                 System.err.println("[ERROR] \"" + action + "\" action requires thing name (\"-t\") or client ID (\"-C\")");
                 System.exit(3);
@@ -406,17 +916,39 @@ public class AwsIotRecon {
 
 
         } else if (action.equals(AwsIotConstants.ACTION_LIST_RETAINED_MQTT_MESSAGES)) {
-            // @TODO: Improve implementation to support this action in more ways
-            if (!(cmd.hasOption("c") && cmd.hasOption("k") && cmd.hasOption("A"))) {
-                System.err.println("[ERROR] \"" + action + "\" action currently requires file paths for client certificate (\"-c\"), client private key (\"-k\"), and certificate authority (\"-A\")");
+            // Nothing required except auth data
+
+        } else if (action.equals(AwsIotConstants.ACTION_POLL)) {
+            if (pollIntervals.isEmpty()) {
+                System.err.println("[ERROR] \"" + action + "\" action requires at least one scheduled action (\"--poll\")");
+                System.exit(3);
+            }
+            if ((pollIntervals.containsKey(AwsIotConstants.ACTION_GET_JOBS) || pollIntervals.containsKey(AwsIotConstants.ACTION_GET_SHADOW))
+                    && !(cmd.hasOption("t") || cmd.hasOption("thing-names") || cmd.hasOption("C"))) {
+                System.err.println("[ERROR] Polling " + AwsIotConstants.ACTION_GET_JOBS + "/" + AwsIotConstants.ACTION_GET_SHADOW + " requires thing name(s) (\"-t\" or \"--thing-names\") or client ID (\"-C\")");
+                System.exit(3);
+            }
+            if (pollNeedsMqtt() && pollNeedsRestApi() && !((cmd.hasOption("c") && cmd.hasOption("k")) || cmd.hasOption("K"))) {
+                System.err.println("[ERROR] Polling REST API actions requires an X.509 client certificate (\"-c\") and private key (\"-k\"), or a keystore (\"-K\")");
                 System.exit(3);
             }
 
         }
 
+        if (isRestApiAction(action)) {
+            // Skip loading CRT and building the MQTT connection
+            if (!(cmd.hasOption("c") && cmd.hasOption("k")) && !cmd.hasOption("K")) {
+                System.err.println("[ERROR] \"" + action + "\" action requires an X.509 client certificate (\"-c\") and private key (\"-k\"), or a keystore (\"-K\")");
+                System.exit(3);
+            }
+            clientId = cmd.hasOption("C") ? cmd.getOptionValue("C") : "DEVICE_" + System.currentTimeMillis();
+            return;
+        }
+
         // Determine authentication mechanism
         boolean customAuth = false;
         boolean sigV4Auth  = false;
+        boolean cognitoAuth = false;
         
         if (cmd.hasOption("c") && cmd.hasOption("k")) {
             // mTLS using specified client certificate and private key
@@ -484,72 +1016,30 @@ public class AwsIotRecon {
                 System.err.println("[ERROR] MQTT over WebSocket requires region (\"-r\")");
                 System.exit(1);
             }
-            // @TODO: Implement Cognito authentication flows
-            // if (cmd.hasOption("u") && cmd.hasOption("p")
-            //      && cmd.hasOption("cognito-auth-flow") && cmd.hasOption("cognito-client-id")
-            //      && cmd.hasOption("cognito-identity-pool-id") && cmd.hasOption("cognito-user-pool-id")) {
-            //     sigV4Auth = true;
-            //     Region region = Region.of(cmd.getOptionValue("r"));
-            //     String userPoolId = cmd.getOptionValue("cognito-user-pool-id");
-            //     CognitoIdentityProviderClient cognitoClient = CognitoIdentityProviderClient.builder().region(region).build();
-            //     AuthFlowType authFlow = AuthFlowType.valueOf(cmd.getOptionValue("cognito-auth-flow"));
-            //     Map<String, String> authParams = new HashMap<>();
-            //
-            //     // authParams.put("DEVICE_KEY", "abcdevicekey");  // @TODO: Do we even need this field? (I don't think so)
-            //
-            //     switch (authFlow) {
-            //         case USER_SRP_AUTH:
-            //             authParams.put("USERNAME", cmd.getOptionValue("u"));
-            //             // authParams.put("SECRET_HASH", cmd.getOptionValue("p"));  // @TODO
-            //             // @TODO: Add and use this class to generate a secure SRP_A value:
-            //             // https://github.com/aws/aws-sdk-java/issues/1403#issuecomment-352073758
-            //             authParams.put("SRP_A", "553CD35F53991F47A7E868542861E2FB02A5DAA4FB01D038668D0B68823B4445CACBCD8671A596F1E2CE2ED6CD8DA72909876930B225FE1D84E7D441CCFE99987DAC13ADD0D2EB36E6840E31916C186F8C36C2FDA559BACE8CE9AAC8284AF3EC82CBC951B4156AD8CCF608BA805EF86D0164D58699D646607A760193A62F548EB77D0935C65555B33B488BE7F35756ACD4206767E4F356924AC98113BC4639754D6C3778C68B4E7FC86F2D4F4942FB0731557B19AF13286B1269C1B7E08331BAEC071E1FFA1E928C45406DCE74A0CBD0061220955C2CB36DE20F885AC4394E523A19EA34568D54FC4BFC6E1631F3C9631268AF7221C9E1BD7DBC095298A930A1F6ACDC4A6A4B22484400AF6603DD70DEB746F38BD00640962D42A52345D787E1E3BB4A07D9D7E5BAA9C0681D2A661851909FA4B9702164CD0DE1F5EFCA4A6FACF902F9C26214BF1416299FAAF8A2A83A1DCF57B31230FEA9CA8663AF7FA8FB2A4E7B0A963BD380DEB2753E1B2E18785185EB84B01AACDC9EA777FFFFC176A2F2");
-            //             break;
-            //         case USER_PASSWORD_AUTH:
-            //             authParams.put("USERNAME", cmd.getOptionValue("u"));
-            //             authParams.put("PASSWORD", cmd.getOptionValue("p"));
-            //             break;
-            //         case REFRESH_TOKEN_AUTH:
-            //         case REFRESH_TOKEN:
-            //             authParams.put("REFRESH_TOKEN", cmd.getOptionValue("u"));
-            //             // authParams.put("SECRET_HASH", cmd.getOptionValue("p"));  // @TODO
-            //             break;
-            //         case CUSTOM_AUTH:
-            //             authParams.put("USERNAME", cmd.getOptionValue("u"));
-            //             // authParams.put("SECRET_HASH", cmd.getOptionValue("p"));  // @TODO
-            //             break;
-            //         default:
-            //             System.err.println("[ERROR] Unsupported auth flow type: " + cmd.getOptionValue("cognito-auth-flow"));
-            //             System.exit(1);
-            //             break;
-            //     }
-            //     InitiateAuthRequest authRequest = InitiateAuthRequest.builder()
-            //                                         .authFlow(authFlow)
-            //                                         .clientId(cmd.getOptionValue("cognito-client-id"))
-            //                                         .authParameters(authParams)
-            //                                         .build();
-            //     InitiateAuthResponse authResponse = cognitoClient.initiateAuth(authRequest);
-            //     AuthenticationResultType authenticationResult = authResponse.authenticationResult();
-            //     CognitoIdentityClient cognitoIdentityClient = CognitoIdentityClient.builder().region(region).build();
-            //     GetIdRequest getIdRequest = GetIdRequest.builder()
-            //                                 .identityPoolId(cmd.getOptionValue("cognito-identity-pool-id"))
-            //                                 .logins(Map.of("cognito-idp." + region.id() + ".amazonaws.com/" + userPoolId, authenticationResult.idToken()))
-            //                                 .build();
-            //     GetIdResponse getIdResponse = cognitoIdentityClient.getId(getIdRequest);
-            //     String identityId = getIdResponse.identityId();
-            //     GetCredentialsForIdentityRequest getCredsForIdReq = GetCredentialsForIdentityRequest.builder()
-            //                                                          .identityId(identityId)
-            //                                                          .logins(Map.of("cognito-idp." + region.id() + ".amazonaws.com/" + userPoolId, authenticationResult.idToken()))
-            //                                                          .build();
-            //     GetCredentialsForIdentityResponse getCredsForIdResp = cognitoIdentityClient.getCredentialsForIdentity(getCredsForIdReq);
-            //     StaticCredentialsProvider staticCredsProvider = new StaticCredentialsProvider.StaticCredentialsProviderBuilder()
-            //                                                         .withAccessKeyId​(getCredsForIdResp.credentials().accessKeyId().getBytes())
-            //                                                         .withSecretAccessKey​(getCredsForIdResp.credentials().secretKey().getBytes())
-            //                                                         .withSessionToken​(getCredsForIdResp.credentials().sessionToken().getBytes())
-            //                                                         .build();
-            //     connBuilder = connBuilder.withWebsocketCredentialsProvider(staticCredsProvider);
-            //
-            /*} else*/ if (cmd.hasOption("aws-access-key-id") && cmd.hasOption("aws-secret-key")
+            if (cmd.hasOption("cognito-identity-pool-id")) {
+                sigV4Auth = true;
+                cognitoAuth = true;
+                CognitoCredentialsSource cognitoSource = null;
+                try {
+                    URI endpoint = cmd.hasOption("cognito-endpoint") ? new URI(cmd.getOptionValue("cognito-endpoint")) : null;
+                    if (cmd.hasOption("cognito-user-pool-id")) {
+                        cognitoSource = new CognitoCredentialsSource(cmd.getOptionValue("r"), cmd.getOptionValue("cognito-identity-pool-id"),
+                                                                     cmd.getOptionValue("cognito-user-pool-id"), cmd.getOptionValue("cognito-client-id"),
+                                                                     cmd.getOptionValue("cognito-client-secret"), cmd.getOptionValue("cognito-auth-flow"),
+                                                                     cmd.getOptionValue("u"), cmd.getOptionValue("p"), endpoint);
+                    } else {
+                        cognitoSource = new CognitoCredentialsSource(cmd.getOptionValue("r"), cmd.getOptionValue("cognito-identity-pool-id"), endpoint);
+                    }
+                    long refreshMarginMs = cmd.hasOption("credential-refresh-margin") ? ((Number)cmd.getParsedOptionValue("credential-refresh-margin")).longValue() * 1000 : RefreshingCredentialsProvider.DEFAULT_REFRESH_MARGIN_MS;
+                    refreshingCredentials = new RefreshingCredentialsProvider("Cognito", cognitoSource, refreshMarginMs);
+                    refreshingCredentials.start();
+                } catch (Exception ex) {
+                    System.err.println("[ERROR] Failed to obtain AWS credentials from Cognito: " + ex.getMessage());
+                    System.exit(1);
+                }
+                connBuilder = connBuilder.withWebsocketCredentialsProvider(refreshingCredentials.getCredentialsProvider());
+
+            } else if (cmd.hasOption("aws-access-key-id") && cmd.hasOption("aws-secret-key")
                         && cmd.hasOption("aws-session-token")) {
                 sigV4Auth = true;
                 StaticCredentialsProvider staticCredsProvider = new StaticCredentialsProvider.StaticCredentialsProviderBuilder()
@@ -605,10 +1095,11 @@ public class AwsIotRecon {
             connBuilder = connBuilder.withCertificateAuthority(certAuthority);
             tlsCtxOpts = tlsCtxOpts.withCertificateAuthority(certAuthority);
         }
-        if (cmd.hasOption("u")) {
+        // With Cognito, the username/password are for the user pool (not the MQTT connection)
+        if (cmd.hasOption("u") && !cognitoAuth) {
             connBuilder = connBuilder.withUsername(cmd.getOptionValue("u"));
         }
-        if (cmd.hasOption("p")) {
+        if (cmd.hasOption("p") && !cognitoAuth) {
             connBuilder = connBuilder.withPassword(cmd.getOptionValue("p"));
         }
         int portNum = -1;
@@ -632,22 +1123,116 @@ public class AwsIotRecon {
             // @TODO
             throw new UnsupportedOperationException("MQTT5 connections not supported yet");
             //mqtt5ClientConnection = connBuilder.toAwsIotMqtt5ClientBuilder().build();
-        } else {
+        } else if (!(action.equals(AwsIotConstants.ACTION_IAM_CREDS) || action.equals(AwsIotConstants.ACTION_CLIENT_ID_PROBE))) {
+            // (IAM credential requests only need the TLS context, and client ID probing builds its own connections)
             clientConnection = connBuilder.build();
         }
-        connBuilder.close();
+        if (action.equals(AwsIotConstants.ACTION_CLIENT_ID_PROBE)) {
+            // Connections built from the same builder share its TLS context
+            connectionBuilder = connBuilder;
+        } else {
+            connBuilder.close();
+        }
+        if (clientConnection == null) {
+            // The remaining subsystems only apply to the main MQTT connection
+            return;
+        }
+
+        // Outbound message buffering for connection interruptions
+        int offlineQueueSize = 1000;
+        if (cmd.hasOption("offline-queue-size")) {
+            offlineQueueSize = ((Number)cmd.getParsedOptionValue("offline-queue-size")).intValue();
+        }
+        if (offlineQueueSize > 0 || cmd.hasOption("offline-queue-file")) {
+            long maxSpoolBytes = cmd.hasOption("offline-queue-file-size") ? ((Number)cmd.getParsedOptionValue("offline-queue-file-size")).longValue() * 1024 * 1024 : OfflinePublishQueue.DEFAULT_MAX_SPOOL_BYTES;
+            offlineQueue = new OfflinePublishQueue(offlineQueueSize, cmd.getOptionValue("offline-queue-file"), maxSpoolBytes);
+            addShutdownStep(SHUTDOWN_PHASE_CLOSE, () -> {
+                int unsent = offlineQueue.size();
+                if (unsent > 0) {
+                    System.err.println("[WARNING] Discarding " + unsent + " buffered MQTT message" + (unsent == 1 ? "" : "s") + " that were never flushed");
+                }
+                offlineQueue.close();
+            });
+        }
+
+        // Topic namespace index
+        if (cmd.hasOption("topic-tree")) {
+            final String treePath = cmd.getOptionValue("topic-tree");
+            int maxNodes = cmd.hasOption("topic-tree-max-nodes") ? ((Number)cmd.getParsedOptionValue("topic-tree-max-nodes")).intValue() : 100000;
+            int maxChildren = cmd.hasOption("topic-tree-max-children") ? ((Number)cmd.getParsedOptionValue("topic-tree-max-children")).intValue() : 1000;
+            long intervalSecs = cmd.hasOption("topic-tree-interval") ? ((Number)cmd.getParsedOptionValue("topic-tree-interval")).longValue() : 60;
+            topicTree = new TopicTree(maxNodes, maxChildren);
+            if (intervalSecs > 0) {
+                topicTree.startSnapshotTimer(treePath, intervalSecs * 1000);
+            }
+            addShutdownStep(SHUTDOWN_PHASE_CLOSE, () -> {
+                try {
+                    topicTree.snapshot(treePath);
+                    System.err.println("[INFO] Wrote topic tree snapshot (" + topicTree.getNodeCount() + " nodes) to " + treePath);
+                } catch (IOException ex) {
+                    System.err.println("[ERROR] Failed to write topic tree snapshot to " + treePath + ": " + ex.getMessage());
+                }
+            });
+        }
+
+        // Multi-threaded message handling
+        if (cmd.hasOption("dispatch-lanes") || cmd.hasOption("overload-policy") || cmd.hasOption("dispatch-queue-size")) {
+            int laneCount = cmd.hasOption("dispatch-lanes") ? ((Number)cmd.getParsedOptionValue("dispatch-lanes")).intValue() : 0;
+            String policy = cmd.hasOption("overload-policy") ? cmd.getOptionValue("overload-policy") : StripedDispatcher.POLICY_BLOCK;
+            if (!StripedDispatcher.POLICIES.contains(policy)) {
+                System.err.println("[ERROR] Unsupported overload policy: " + policy + " (supported policies: " + StripedDispatcher.POLICIES + ")");
+                System.exit(1);
+            }
+            int laneCapacity = cmd.hasOption("dispatch-queue-size") ? ((Number)cmd.getParsedOptionValue("dispatch-queue-size")).intValue() : (cmd.hasOption("overload-policy") ? 10000 : 0);
+            int sampleRate = cmd.hasOption("overload-sample-rate") ? ((Number)cmd.getParsedOptionValue("overload-sample-rate")).intValue() : 10;
+            messageDispatcher = new StripedDispatcher(laneCount, laneCapacity, policy, sampleRate);
+            System.err.println("[INFO] Dispatching MQTT messages across " + messageDispatcher.getLaneCount() + " lane" + (messageDispatcher.getLaneCount() == 1 ? "" : "s") + (messageDispatcher.usesVirtualThreads() ? " (virtual threads)" : "")
+                               + (laneCapacity > 0 ? " with up to " + laneCapacity + " queued messages per lane (overload policy: " + policy + ")" : ""));
+            // Messages still queued at exit are handled before summaries are emitted and outputs are closed
+            addShutdownStep(SHUTDOWN_PHASE_DRAIN, () -> {
+                try {
+                    if (!messageDispatcher.drain(StripedDispatcher.DEFAULT_DRAIN_TIMEOUT_MS)) {
+                        System.err.println("[WARNING] Timed out after " + StripedDispatcher.DEFAULT_DRAIN_TIMEOUT_MS + "ms waiting for queued MQTT messages to be handled (" + messageDispatcher + ")");
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            if (cmd.hasOption("dispatch-stats")) {
+                final long intervalMs = ((Number)cmd.getParsedOptionValue("dispatch-stats")).longValue() * 1000;
+                Thread statsThread = new Thread(() -> {
+                    while (true) {
+                        Util.sleep(intervalMs);
+                        System.err.println("[INFO] Message dispatch: " + messageDispatcher);
+                    }
+                }, "mqtt-dispatch-stats");
+                statsThread.setDaemon(true);
+                statsThread.start();
+            }
+        }
     }
 
 
     public static void mqttConnect() {
+        if (connectionTimings != null) {
+            probeConnectionPhases();
+        }
         System.err.println("[INFO] Connecting to " + cmd.getOptionValue("H"));
         if (mqtt5ClientConnection != null) {
             mqtt5ClientConnection.start();
         } else {
+            long connectStart = System.currentTimeMillis();
+            long connectStartNanos = System.nanoTime();
             CompletableFuture<Boolean> isCleanConnFuture = clientConnection.connect();
             try {
                 Boolean isCleanSession = isCleanConnFuture.get();
                 // System.err.println("[INFO] Clean session? " + isCleanSession.toString());
+                if (connectionTimings != null) {
+                    connectionTimings.recordConnect(connectStartNanos);
+                }
+                long now = System.currentTimeMillis();
+                // Time to first connect (including JVM startup) is the number to compare when tuning startup
+                System.err.println("[INFO] Connected in " + (now - connectStart) + "ms (" + (now - ManagementFactory.getRuntimeMXBean().getStartTime()) + "ms after JVM start)");
             } catch (ExecutionException | InterruptedException e) {
                 System.err.println("[ERROR] Exception connecting: " + e.toString());
                 System.exit(2);
@@ -657,6 +1242,155 @@ public class AwsIotRecon {
 
 
 
+    // Measures the network phases of connecting to the endpoint (see ConnectionTimings) before the SDK
+    // connects, and reports the breakdown (including SUBACKs) when the program exits
+    public static void probeConnectionPhases() {
+        int port = 8883;
+        try {
+            if (cmd.hasOption("P")) {
+                port = ((Number)cmd.getParsedOptionValue("P")).intValue();
+            } else if (cmd.hasOption("w") || cmd.hasOption("custom-auth-name")) {
+                port = 443;
+            }
+        } catch (org.apache.commons.cli.ParseException ex) {
+            // Already validated in buildConnection()
+        }
+        connectionTimings.probeNetwork(cmd.getOptionValue("H"), port, 10000);
+        addShutdownStep(SHUTDOWN_PHASE_SUMMARY, () -> {
+            reportConnectionTimings();
+        });
+    }
+
+
+    public static void reportConnectionTimings() {
+        System.err.println("[INFO] Connection timing for " + connectionTimings.getEndpoint() + ": " + connectionTimings.format());
+        if (!cmd.hasOption("connect-timing-log")) {
+            return;
+        }
+        String logPath = cmd.getOptionValue("connect-timing-log");
+        try {
+            connectionTimings.appendTo(logPath);
+            for (Map.Entry<String, LinkedHashMap<String, double[]>> endpoint : ConnectionTimings.aggregate(logPath).entrySet()) {
+                ArrayList<String> phases = new ArrayList<String>();
+                int runs = 0;
+                for (Map.Entry<String, double[]> phase : endpoint.getValue().entrySet()) {
+                    phases.add(ConnectionTimings.formatAggregate(phase.getKey(), phase.getValue()));
+                    if (!phase.getKey().equals(ConnectionTimings.PHASE_SUBACK)) {
+                        runs = Math.max(runs, phase.getValue().length);
+                    }
+                }
+                System.err.println("[INFO] Connection timing for " + endpoint.getKey() + " over " + runs + " run" + (runs == 1 ? "" : "s") + ": " + String.join("; ", phases));
+            }
+        } catch (IOException ex) {
+            System.err.println("[ERROR] Failed to update connection timing log: " + ex.getMessage());
+        }
+    }
+
+
+    // Subscribes to the specified topic and tracks the subscription so it can be restored after a reconnect
+    public static CompletableFuture<Integer> mqttSubscribe(final String topic, Consumer<MqttMessage> handler) {
+        if (topicTree != null) {
+            final Consumer<MqttMessage> innerHandler = handler;
+            // With optimized subscriptions, topics that weren't requested aren't recorded (see filterRequestedTopics())
+            final TopicMatcher requested = requestedTopicMatcher;
+            handler = (MqttMessage message) -> {
+                if (requested == null || requested.matches(message.getTopic())) {
+                    topicTree.record(message.getTopic(), message.getPayload().length, System.currentTimeMillis());
+                }
+                innerHandler.accept(message);
+            };
+        }
+        if (messageDispatcher != null) {
+            handler = messageDispatcher.wrap(handler);
+        }
+        synchronized (activeSubscriptions) {
+            activeSubscriptions.put(topic, handler);
+        }
+        final long subscribeStart = System.nanoTime();
+        CompletableFuture<Integer> subscription = clientConnection.subscribe(topic, QualityOfService.AT_LEAST_ONCE, handler);
+        if (connectionTimings != null) {
+            subscription.thenRun(() -> connectionTimings.recordSuback(subscribeStart));
+        }
+        final Consumer<MqttMessage> trackedHandler = handler;
+        subscription.exceptionally((Throwable throwable) -> {
+            System.err.println("[ERROR] Failed to subscribe to " + topic + ": " + throwable.toString());
+            untrackSubscription(topic, trackedHandler);
+            return -1;
+        });
+        return subscription;
+    }
+
+
+    public static CompletableFuture<Integer> mqttUnsubscribe(String topic) {
+        synchronized (activeSubscriptions) {
+            activeSubscriptions.remove(topic);
+        }
+        return clientConnection.unsubscribe(topic);
+    }
+
+
+    // Publishes the message, or holds it in the offline queue if the connection is currently interrupted.
+    // Messages that are queued return an already-completed future; they are flushed in order once the
+    // connection resumes.
+    public static CompletableFuture<Integer> mqttPublish(MqttMessage message) {
+        if (offlineQueue != null) {
+            synchronized (publishLock) {
+                // Still set while a flush is in progress, so new messages can't overtake the queued ones
+                if (connectionInterrupted) {
+                    if (!offlineQueue.offer(message)) {
+                        System.err.println("[WARNING] Offline MQTT queue is full; dropped message for topic: " + message.getTopic());
+                    }
+                    return CompletableFuture.completedFuture(0);
+                }
+            }
+        }
+        return clientConnection.publish(message);
+    }
+
+
+    // Stops restoring the subscription after reconnects, unless the topic has since been subscribed again with a new handler
+    protected static void untrackSubscription(String topic, Consumer<MqttMessage> handler) {
+        synchronized (activeSubscriptions) {
+            activeSubscriptions.remove(topic, handler);
+        }
+    }
+
+
+    // Re-establishes all tracked subscriptions (e.g., after resuming a connection without an existing session).
+    // All subscriptions are requested at once; any that are rejected are no longer tracked.
+    public static void resubscribeAll() {
+        Map<String, Consumer<MqttMessage>> subs = null;
+        synchronized (activeSubscriptions) {
+            subs = new LinkedHashMap<String, Consumer<MqttMessage>>(activeSubscriptions);
+        }
+        if (subs.isEmpty()) {
+            return;
+        }
+        System.err.println("[INFO] Restoring " + subs.size() + " MQTT subscription" + (subs.size() == 1 ? "" : "s"));
+        ArrayList<CompletableFuture<Integer>> pending = new ArrayList<CompletableFuture<Integer>>();
+        final AtomicInteger failed = new AtomicInteger(0);
+        for (Map.Entry<String, Consumer<MqttMessage>> sub : subs.entrySet()) {
+            final String topic = sub.getKey();
+            final Consumer<MqttMessage> handler = sub.getValue();
+            pending.add(clientConnection.subscribe(topic, QualityOfService.AT_LEAST_ONCE, handler).exceptionally((Throwable throwable) -> {
+                System.err.println("[ERROR] Failed to restore subscription for " + topic + ": " + throwable.toString());
+                untrackSubscription(topic, handler);
+                failed.incrementAndGet();
+                return -1;
+            }));
+        }
+        try {
+            CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).get();
+        } catch (ExecutionException | InterruptedException ex) {
+            System.err.println("[ERROR] Failed to restore subscriptions: " + ex.toString());
+        }
+        if (failed.get() > 0) {
+            System.err.println("[WARNING] " + failed.get() + " of " + subs.size() + " MQTT subscription" + (subs.size() == 1 ? "" : "s") + " could not be restored");
+        }
+    }
+
+
+
     // Extracts known data fields from MQTT topic strings. Note that this method is NOT meant for extracting data from MQTT message payloads.
     public static Map<String, String> extractFieldsFromTopic(String topic) {
         if (topic.equals(AwsIotConstants.MQTT_PING_TOPIC)) {
@@ -688,12 +1422,24 @@ public class AwsIotRecon {
 
 
 
-    // Returns the list of user-specified MQTT topics, or a wildcard topic representing all topics ("#")
-    public static List<String> buildMqttTopicList() {
+    // Returns the list of user-specified MQTT topics, or a wildcard topic representing all topics ("#").
+    // If subscription optimization is enabled, the user-specified topics are replaced with a smaller
+    // covering set of wildcard filters (see filterRequestedTopics()).
+    public static List<String> buildMqttTopicList() throws org.apache.commons.cli.ParseException {
         ArrayList<String> topics = new ArrayList<String>();
         if (topicSubcriptions.isEmpty()) {
             // Use wildcard to subscribe to all topics
             topics.add(AwsIotConstants.MQTT_ALL_TOPICS);
+        } else if (cmd.hasOption("optimize-subscriptions")) {
+            int maxSubs = ((Number)cmd.getParsedOptionValue("optimize-subscriptions")).intValue();
+            int minLiteralLevels = 0;
+            if (cmd.hasOption("subscription-wildcard-depth")) {
+                minLiteralLevels = ((Number)cmd.getParsedOptionValue("subscription-wildcard-depth")).intValue();
+            }
+            List<String> optimized = SubscriptionOptimizer.optimize(topicSubcriptions, maxSubs, minLiteralLevels);
+            System.err.println("[INFO] Optimized " + topicSubcriptions.size() + " requested topic" + (topicSubcriptions.size() == 1 ? "" : "s") + " into " + optimized.size() + " subscription" + (optimized.size() == 1 ? "" : "s") + (optimized.size() > maxSubs ? " (could not reach target of " + maxSubs + ")" : ""));
+            requestedTopicMatcher = new TopicMatcher(topicSubcriptions);
+            topics.addAll(optimized);
         } else {
             // Subscribe to user-specified topics only
             topics.addAll(topicSubcriptions);
@@ -702,18 +1448,162 @@ public class AwsIotRecon {
     }
 
 
+    // Returns the handler to use for subscriptions made by the dump/harvest actions. If message routes were
+    // specified, messages are dispatched to the routed handlers instead of the action's default handler.
+    public static Consumer<MqttMessage> buildMessageHandler(Consumer<MqttMessage> defaultHandler) {
+        return filterRequestedTopics(buildRoutedMessageHandler(defaultHandler));
+    }
+
+
+    // Same as buildMessageHandler(), but without the requested-topic filter (for callers that add their own
+    // handler wrappers and apply filterRequestedTopics() outside of them)
+    public static Consumer<MqttMessage> buildRoutedMessageHandler(Consumer<MqttMessage> defaultHandler) {
+        if (messageRoutes.isEmpty()) {
+            return defaultHandler;
+        }
+        MessageRouter router = new MessageRouter();
+        for (String[] route : messageRoutes) {
+            Consumer<MqttMessage> handler = null;
+            if (route[0].equals(AwsIotConstants.ROUTE_DUMP)) {
+                handler = genericMqttMsgConsumer;
+            } else if (route[0].equals(AwsIotConstants.ROUTE_TOPIC_FIELD_HARVEST)) {
+                handler = topicFieldHarvester;
+            } else if (route[0].equals(AwsIotConstants.ROUTE_PAYLOAD_HARVEST)) {
+                if (payloadHarvester == null) {
+                    payloadHarvester = new PayloadHarvester(payloadHarvestKeys, payloadHarvestKeywords);
+                }
+                handler = payloadFieldHarvester;
+            }
+            System.err.println("[INFO] Routing messages matching \"" + route[1] + "\" to " + route[0]);
+            router.addRoute(route[1], handler);
+        }
+        return router;
+    }
+
+
+    // Wraps a message handler so that it only receives messages on topics that were explicitly requested
+    // (only needed when subscriptions were optimized into broader wildcard filters)
+    public static Consumer<MqttMessage> filterRequestedTopics(final Consumer<MqttMessage> handler) {
+        final TopicMatcher matcher = requestedTopicMatcher;
+        if (matcher == null) {
+            return handler;
+        }
+        return (MqttMessage message) -> {
+            if (matcher.matches(message.getTopic())) {
+                handler.accept(message);
+            }
+        };
+    }
+
+
 
     // Dump all MQTT messages received via subscribed MQTT topics. Runs forever (or until cancelled by the user with Ctrl+C)
-    public static void beginMqttDump() throws InterruptedException, ExecutionException {
+    public static void beginMqttDump() throws InterruptedException, ExecutionException, org.apache.commons.cli.ParseException {
         final List<String> topics = buildMqttTopicList();
-        
+        // Capture, sampling, and deduplication only see requested topics (see filterRequestedTopics() below)
+        Consumer<MqttMessage> messageHandler = buildRoutedMessageHandler(genericMqttMsgConsumer);
+
+        if (cmd.hasOption("sample-rate")) {
+            // Per-topic rate limiting, so a few chatty topics don't drown out everything else
+            int rate = ((Number)cmd.getParsedOptionValue("sample-rate")).intValue();
+            long intervalMs = cmd.hasOption("sample-interval") ? ((Number)cmd.getParsedOptionValue("sample-interval")).longValue() * 1000 : 1000;
+            int maxTopics = cmd.hasOption("sample-max-topics") ? ((Number)cmd.getParsedOptionValue("sample-max-topics")).intValue() : 100000;
+            final TopicSampler sampler = new TopicSampler(rate, intervalMs, maxTopics);
+            messageHandler = sampler.wrap(messageHandler);
+            System.err.println("[INFO] Sampling at most " + rate + " message" + (rate == 1 ? "" : "s") + " per topic every " + intervalMs + "ms");
+            final long summaryIntervalMs = Math.max(intervalMs, 10000);
+            Thread summaryThread = new Thread(() -> {
+                while (true) {
+                    Util.sleep(summaryIntervalMs);
+                    String summary = sampler.drainSummary(5);
+                    if (summary != null) {
+                        System.err.println("[INFO] " + summary);
+                    }
+                }
+            }, "mqtt-sample-summary");
+            summaryThread.setDaemon(true);
+            summaryThread.start();
+            addShutdownStep(SHUTDOWN_PHASE_SUMMARY, () -> {
+                String summary = sampler.drainSummary(5);
+                if (summary != null) {
+                    System.err.println("[INFO] " + summary);
+                }
+                System.err.println("[INFO] Sampling passed " + sampler.getPassedCount() + " and suppressed " + sampler.getSuppressedCount() + " message" + (sampler.getSuppressedCount() == 1 ? "" : "s") + " in total");
+            });
+        }
+
+        if (cmd.hasOption("dedup")) {
+            // Runs before sampling, so repeated payloads don't use up a topic's sampling budget
+            int maxTopics = cmd.hasOption("dedup-max-topics") ? ((Number)cmd.getParsedOptionValue("dedup-max-topics")).intValue() : 65536;
+            final long summaryIntervalMs = cmd.hasOption("dedup-summary-interval") ? ((Number)cmd.getParsedOptionValue("dedup-summary-interval")).longValue() * 1000 : 60000;
+            final PayloadDeduplicator dedup = new PayloadDeduplicator(maxTopics);
+            messageHandler = dedup.wrap(messageHandler);
+            System.err.println("[INFO] Suppressing unchanged MQTT payloads (tracking up to " + dedup.getCapacity() + " topics)");
+            Thread summaryThread = new Thread(() -> {
+                while (true) {
+                    Util.sleep(summaryIntervalMs);
+                    emitUnchangedSummary(dedup);
+                }
+            }, "mqtt-dedup-summary");
+            summaryThread.setDaemon(true);
+            summaryThread.start();
+            // Final summary after queued messages have been handled, and before the output writer is closed
+            addShutdownStep(SHUTDOWN_PHASE_SUMMARY, () -> {
+                emitUnchangedSummary(dedup);
+                System.err.println("[INFO] Deduplication passed " + dedup.getPassedCount() + " and suppressed " + dedup.getSuppressedCount() + " unchanged message" + (dedup.getSuppressedCount() == 1 ? "" : "s") + " in total");
+            });
+        }
+
+        if (cmd.hasOption("capture")) {
+            // Records every message on a requested topic (before deduplication/sampling)
+            int keyframeInterval = cmd.hasOption("capture-keyframe-interval") ? ((Number)cmd.getParsedOptionValue("capture-keyframe-interval")).intValue() : CaptureWriter.DEFAULT_KEYFRAME_INTERVAL;
+            final CaptureWriter capture;
+            try {
+                capture = new CaptureWriter(cmd.getOptionValue("capture"), keyframeInterval, true);
+            } catch (IOException ex) {
+                System.err.println("[ERROR] Failed to open capture file: " + ex.getMessage());
+                System.exit(1);
+                return;
+            }
+            final Consumer<MqttMessage> innerHandler = messageHandler;
+            messageHandler = (MqttMessage message) -> {
+                try {
+                    capture.write(message, System.currentTimeMillis());
+                } catch (IOException ex) {
+                    System.err.println("[ERROR] Failed to write to capture file: " + ex.getMessage());
+                }
+                innerHandler.accept(message);
+            };
+            System.err.println("[INFO] Capturing MQTT messages to " + capture.getFile().getPath());
+            Thread flushThread = new Thread(() -> {
+                while (true) {
+                    Util.sleep(1000);
+                    try {
+                        capture.flush();
+                    } catch (IOException ex) {
+                        System.err.println("[ERROR] Failed to write to capture file: " + ex.getMessage());
+                    }
+                }
+            }, "capture-flush");
+            flushThread.setDaemon(true);
+            flushThread.start();
+            addShutdownStep(SHUTDOWN_PHASE_CLOSE, () -> {
+                try {
+                    capture.close();
+                } catch (IOException ex) {
+                    System.err.println("[ERROR] Failed to write to capture file: " + ex.getMessage());
+                }
+                System.err.println("[INFO] Captured " + capture.getMessageCount() + " message" + (capture.getMessageCount() == 1 ? "" : "s") + " (" + capture.getPayloadBytes() + " payload bytes stored in " + capture.getFileBytes() + " bytes; " + capture.getKeyframeCount() + " keyframe" + (capture.getKeyframeCount() == 1 ? "" : "s") + ")");
+            });
+        }
+
+        // Messages on topics that only match an optimized (broader) subscription stop here, so they aren't
+        // captured, sampled, or deduplicated
+        messageHandler = filterRequestedTopics(messageHandler);
+
         for (final String topic : topics) {
             System.err.println("[INFO] Subscribing to topic for MQTT dump (\"" + topic + "\")");
-            CompletableFuture<Integer> subscription = clientConnection.subscribe(topic, QualityOfService.AT_LEAST_ONCE, genericMqttMsgConsumer);
-            subscription.exceptionally((Throwable throwable) -> {
-                System.err.println("[ERROR] Failed to process message for " + topic + ": " + throwable.toString());
-                return -1;
-            });
+            CompletableFuture<Integer> subscription = mqttSubscribe(topic, messageHandler);
             subscription.get();
         }
 
@@ -721,19 +1611,26 @@ public class AwsIotRecon {
     }
 
 
+    // Reports the unchanged messages suppressed per topic since the last summary
+    public static void emitUnchangedSummary(PayloadDeduplicator dedup) {
+        for (Map.Entry<String, Long> entry : dedup.drainUnchanged().entrySet()) {
+            LinkedHashMap<String, Object> fields = new LinkedHashMap<String, Object>();
+            fields.put("count", entry.getValue());
+            emitRecord(AwsIotConstants.RECORD_MQTT_UNCHANGED, entry.getKey(), "[MQTT Unchanged] " + entry.getKey() + "\t\u00d7" + entry.getValue(), fields);
+        }
+    }
+
+
 
     // Extract known data fields from subscribed MQTT topics. Runs forever (or until cancelled by the user with Ctrl+C).
     // Note that this only extracts data from the topic itself, and ignores MQTT message payloads.
-    public static void beginMqttTopicFieldHarvesting() throws InterruptedException, ExecutionException {
+    public static void beginMqttTopicFieldHarvesting() throws InterruptedException, ExecutionException, org.apache.commons.cli.ParseException {
         final List<String> topics = buildMqttTopicList();
+        final Consumer<MqttMessage> messageHandler = buildMessageHandler(topicFieldHarvester);
 
         for (final String topic : topics) {
             System.err.println("[INFO] Subscribing to topic for topic field harvesting (\"" + topic + "\")");
-            CompletableFuture<Integer> subscription = clientConnection.subscribe(topic, QualityOfService.AT_LEAST_ONCE, topicFieldHarvester);
-            subscription.exceptionally((Throwable throwable) -> {
-                System.err.println("[ERROR] Failed to process message for " + topic + ": " + throwable.toString());
-                return -1;
-            });
+            CompletableFuture<Integer> subscription = mqttSubscribe(topic, messageHandler);
             subscription.get();
         }
         
@@ -741,6 +1638,23 @@ public class AwsIotRecon {
     }
 
 
+    // Extract JSON fields and keyword hits from the payloads of messages received via subscribed MQTT topics.
+    // Runs forever (or until cancelled by the user with Ctrl+C).
+    public static void beginMqttPayloadHarvesting() throws InterruptedException, ExecutionException, org.apache.commons.cli.ParseException {
+        final List<String> topics = buildMqttTopicList();
+        payloadHarvester = new PayloadHarvester(payloadHarvestKeys, payloadHarvestKeywords);
+        final Consumer<MqttMessage> messageHandler = buildMessageHandler(payloadFieldHarvester);
+
+        for (final String topic : topics) {
+            System.err.println("[INFO] Subscribing to topic for payload harvesting (\"" + topic + "\")");
+            CompletableFuture<Integer> subscription = mqttSubscribe(topic, messageHandler);
+            subscription.get();
+        }
+
+        Util.sleepForever();
+    }
+
+
     // Test whether the AWS IoT service can be used for data exfiltration via arbitrary topics
     public static void testDataExfilChannel() throws InterruptedException, ExecutionException {
         final String timestamp = "" + System.currentTimeMillis();
@@ -759,7 +1673,10 @@ public class AwsIotRecon {
                 final String payloadStr = new String(message.getPayload(), StandardCharsets.UTF_8).trim();
                 String msg = null;
                 if (payloadStr.equals(timestamp)) {
-                    System.out.println("\n[Data exfiltration] Confirmed data exfiltration channel via topic: " + message.getTopic());
+                    LinkedHashMap<String, Object> fields = new LinkedHashMap<String, Object>();
+                    fields.put("topic", message.getTopic());
+                    fields.put("confirmed", true);
+                    emitRecord(AwsIotConstants.RECORD_DATA_EXFIL, message.getTopic(), "\n[Data exfiltration] Confirmed data exfiltration channel via topic: " + message.getTopic(), fields);
                 } else {
                     System.err.println("[WARNING] Unknown data received via data exfiltration channel (topic: " + message.getTopic() + "): " + payloadStr);
                 }
@@ -769,16 +1686,12 @@ public class AwsIotRecon {
         // Subscribe to the data exfiltration topic(s)
         for (final String topic : topics) {
             System.err.println("[INFO] Testing data exfiltration via arbitrary topics (using topic: \"" + topic + "\")");
-            CompletableFuture<Integer> subscription = clientConnection.subscribe(topic, QualityOfService.AT_LEAST_ONCE, dataExfilConsumer);
-            subscription.exceptionally((Throwable throwable) -> {
-                System.err.println("[ERROR] Failed to process message for " + topic + ": " + throwable.toString());
-                return -1;
-            });
+            CompletableFuture<Integer> subscription = mqttSubscribe(topic, dataExfilConsumer);
             subscription.get();
 
             // Publish data to the data exfiltration topic
             MqttMessage msg = new MqttMessage(topic, timestamp.getBytes(StandardCharsets.UTF_8), QualityOfService.AT_LEAST_ONCE);
-            CompletableFuture<Integer> publication = clientConnection.publish(msg);
+            CompletableFuture<Integer> publication = mqttPublish(msg);
             publication.get();
         }
 
@@ -791,12 +1704,108 @@ public class AwsIotRecon {
         
         // Unsubscribe from the data exfiltration topic(s)
         for (final String topic : topics) {
-            CompletableFuture<Integer> unsub = clientConnection.unsubscribe(topic);
+            CompletableFuture<Integer> unsub = mqttUnsubscribe(topic);
             unsub.get();
         }
     }
 
 
+    // Maps subscribe/publish permissions for candidate topics ("-T") and topic templates filled in with thing
+    // names/client ID, and prints a permission matrix
+    public static void mapTopicAuthorization() throws IOException, InterruptedException, org.apache.commons.cli.ParseException {
+        LinkedHashSet<String> topics = new LinkedHashSet<String>(topicSubcriptions);
+        if (cmd.hasOption("topic-templates")) {
+            List<String> thingNames = buildThingNameList();
+            for (String template : readNonEmptyLines(cmd.getOptionValue("topic-templates"))) {
+                template = template.replace(AwsIotConstants.TOPIC_TEMPLATE_CLIENT_ID, clientId);
+                if (!template.contains(AwsIotConstants.TOPIC_TEMPLATE_THING_NAME)) {
+                    topics.add(template);
+                    continue;
+                }
+                for (String thingName : thingNames) {
+                    topics.add(template.replace(AwsIotConstants.TOPIC_TEMPLATE_THING_NAME, thingName));
+                }
+            }
+        }
+        topics.remove("");
+
+        int window = cmd.hasOption("auth-map-window") ? ((Number)cmd.getParsedOptionValue("auth-map-window")).intValue() : 16;
+        long timeoutMs = cmd.hasOption("auth-map-timeout") ? ((Number)cmd.getParsedOptionValue("auth-map-timeout")).longValue() : 5000;
+        TopicAuthMapper mapper = new TopicAuthMapper(
+            AwsIotRecon::mqttSubscribe,
+            AwsIotRecon::mqttUnsubscribe,
+            // Probes bypass the offline queue; a queued publish would look like a successful one
+            (MqttMessage msg) -> clientConnection.publish(msg),
+            // Changes as soon as the connection drops (not just once it resumes)
+            () -> connectionInterruptCount,
+            () -> connectionInterrupted,
+            window, AwsIotConstants.MQTT_MAX_SUBSCRIPTIONS, timeoutMs
+        );
+        long startTime = System.currentTimeMillis();
+        List<TopicAuthMapper.Result> results = mapper.map(new ArrayList<String>(topics));
+
+        int subAllowed = 0;
+        int pubAllowed = 0;
+        for (TopicAuthMapper.Result r : results) {
+            LinkedHashMap<String, Object> fields = new LinkedHashMap<String, Object>();
+            fields.put("subscribe", String.valueOf(r.subscribe));
+            fields.put("publish", String.valueOf(r.publish));
+            fields.put("echo", String.valueOf(r.echo));
+            emitRecord(AwsIotConstants.RECORD_TOPIC_AUTH, r.topic, "[Topic auth map] " + r, fields);
+            subAllowed += r.subscribe == TopicAuthMapper.ALLOWED ? 1 : 0;
+            pubAllowed += r.publish == TopicAuthMapper.ALLOWED ? 1 : 0;
+        }
+        System.err.println("[INFO] Mapped " + results.size() + " topic" + (results.size() == 1 ? "" : "s") + " in " + (System.currentTimeMillis() - startTime) + "ms (subscribe allowed: " + subAllowed + "; publish allowed: " + pubAllowed + ")");
+    }
+
+
+    // Attempts to connect with each candidate client ID and prints the result and connect latency for each
+    public static void probeClientIds() throws IOException, InterruptedException, org.apache.commons.cli.ParseException {
+        LinkedHashSet<String> clientIds = new LinkedHashSet<String>();
+        if (cmd.hasOption("client-ids")) {
+            clientIds.addAll(readNonEmptyLines(cmd.getOptionValue("client-ids")));
+        } else {
+            clientIds.addAll(Arrays.asList(AwsIotConstants.SETUP_TEST_SDK_CLIENT_IDS));
+            if (cmd.hasOption("t")) {
+                clientIds.add(cmd.getOptionValue("t"));
+            }
+        }
+        int concurrency = cmd.hasOption("probe-concurrency") ? ((Number)cmd.getParsedOptionValue("probe-concurrency")).intValue() : 8;
+        long timeoutMs = cmd.hasOption("probe-timeout") ? ((Number)cmd.getParsedOptionValue("probe-timeout")).longValue() : 10000;
+        System.err.println("[INFO] Probing " + clientIds.size() + " client ID" + (clientIds.size() == 1 ? "" : "s") + " (up to " + concurrency + " at a time)");
+
+        // Probe connections don't use the shared interruption/resume handlers
+        connectionBuilder.withConnectionEventCallbacks(new MqttClientConnectionEvents() {
+            @Override
+            public void onConnectionInterrupted(int errorCode) {
+            }
+
+            @Override
+            public void onConnectionResumed(boolean sessionPresent) {
+            }
+        });
+        ClientIdProber prober = new ClientIdProber((String id) -> {
+            // The builder isn't thread-safe, but building is cheap compared to connecting
+            synchronized (connectionBuilder) {
+                return connectionBuilder.withClientId(id).build();
+            }
+        }, concurrency, timeoutMs);
+
+        long startTime = System.currentTimeMillis();
+        int accepted = 0;
+        for (ClientIdProber.Result r : prober.probe(new ArrayList<String>(clientIds))) {
+            LinkedHashMap<String, Object> fields = new LinkedHashMap<String, Object>();
+            fields.put("status", r.status);
+            fields.put("latencyMs", r.latencyMs);
+            fields.put("error", r.error);
+            emitRecord(AwsIotConstants.RECORD_CLIENT_ID_PROBE, r.clientId, "[Client ID probe] " + r, fields);
+            accepted += r.status.equals(ClientIdProber.ACCEPTED) ? 1 : 0;
+        }
+        System.err.println("[INFO] Probed " + clientIds.size() + " client ID" + (clientIds.size() == 1 ? "" : "s") + " in " + (System.currentTimeMillis() - startTime) + "ms (accepted: " + accepted + ")");
+        connectionBuilder.close();
+    }
+
+
     // Attempts to obtain IAM credentials for the specified role using the client mTLS key pair from an IoT "Thing" (device)
     //
     // Note that the iot:CredentialProvider is a different host/endpoint than the base IoT endpoint; it should have the format:
@@ -817,39 +1826,132 @@ public class AwsIotRecon {
         ArrayList<Credentials> discoveredCreds = new ArrayList<Credentials>();
 
         for (String roleAlias : roleAliases) {
-            // // mTLS HTTP client method:
-            // String url = "https://" + endpoint + "/role-aliases/" + roleAlias + "/credentials";
-            // String data = MtlsHttpClient.mtlsHttpGet(url, cmd.getOptionValue("c"), cmd.getOptionValue("k"), cmd.getOptionValue("A"), true);
-            // // Need to add header "x-amzn-iot-thingname: " + thingName
-            // System.out.println(data);
-            // return null;
-
             Credentials credentials = null;
-            X509CredentialsProvider.X509CredentialsProviderBuilder x509CredsBuilder = new X509CredentialsProvider.X509CredentialsProviderBuilder();
-            x509CredsBuilder = x509CredsBuilder.withTlsContext(tlsContext);
-            x509CredsBuilder = x509CredsBuilder.withEndpoint​(endpoint);
-            x509CredsBuilder = x509CredsBuilder.withRoleAlias(roleAlias);
-            x509CredsBuilder = x509CredsBuilder.withThingName(thingName);
-            X509CredentialsProvider credsProvider = x509CredsBuilder.build();
-            CompletableFuture<Credentials> credsFuture = credsProvider.getCredentials();
             try {
-                credentials = credsFuture.get();
-                String credsStr = "{\"credentials\":{\"accessKeyId\":\"" + new String(credentials.getAccessKeyId(), StandardCharsets.UTF_8) + "\"";
-                credsStr += ",\"secretAccessKey\":\"" + new String(credentials.getSecretAccessKey(), StandardCharsets.UTF_8) + "\"";
-                credsStr += ",\"sessionToken\":\"" + new String(credentials.getSessionToken(), StandardCharsets.UTF_8) + "\"}}";
-                System.out.println(credsStr);
-                discoveredCreds.add(credentials);
-            } catch (ExecutionException | InterruptedException  ex) {
+                if (isRestApiAction(AwsIotConstants.ACTION_IAM_CREDS)) {
+                    // Requests for all role aliases share the HTTP client's TLS sessions
+                    credentials = requestIamCredentials(endpoint, roleAlias, thingName);
+                } else {
+                    X509CredentialsProvider.X509CredentialsProviderBuilder x509CredsBuilder = new X509CredentialsProvider.X509CredentialsProviderBuilder();
+                    x509CredsBuilder = x509CredsBuilder.withTlsContext(tlsContext);
+                    x509CredsBuilder = x509CredsBuilder.withEndpoint​(endpoint);
+                    x509CredsBuilder = x509CredsBuilder.withRoleAlias(roleAlias);
+                    x509CredsBuilder = x509CredsBuilder.withThingName(thingName);
+                    X509CredentialsProvider credsProvider = x509CredsBuilder.build();
+                    try {
+                        credentials = credsProvider.getCredentials().get();
+                    } finally {
+                        credsProvider.close();
+                    }
+                }
+            } catch (ExecutionException | InterruptedException | IOException ex) {
                 System.err.println("[ERROR] Failed to obtain credentials from X509 (role=\"" + roleAlias + "\"; thingName=\"" + thingName + "\"): " + ex.getMessage());
+                continue;
             }
-            
-            credsProvider.close();
+
+            String credsStr = "{\"credentials\":{\"accessKeyId\":\"" + new String(credentials.getAccessKeyId(), StandardCharsets.UTF_8) + "\"";
+            credsStr += ",\"secretAccessKey\":\"" + new String(credentials.getSecretAccessKey(), StandardCharsets.UTF_8) + "\"";
+            credsStr += ",\"sessionToken\":\"" + new String(credentials.getSessionToken(), StandardCharsets.UTF_8) + "\"}}";
+            LinkedHashMap<String, Object> fields = new LinkedHashMap<String, Object>();
+            fields.put("thingName", thingName);
+            fields.put("accessKeyId", new String(credentials.getAccessKeyId(), StandardCharsets.UTF_8));
+            fields.put("secretAccessKey", new String(credentials.getSecretAccessKey(), StandardCharsets.UTF_8));
+            fields.put("sessionToken", new String(credentials.getSessionToken(), StandardCharsets.UTF_8));
+            emitRecord(AwsIotConstants.RECORD_IAM_CREDENTIALS, roleAlias, credsStr, fields);
+            discoveredCreds.add(credentials);
         }
 
         return discoveredCreds;
     }
 
 
+    // Requests IAM credentials from the credentials provider's REST API:
+    //
+    //   GET /role-aliases/<roleAlias>/credentials HTTP/1.1
+    //   Host: <random_id>.credentials.iot.<region>.amazonaws.com
+    //   x-amzn-iot-thingname: <thingName>
+    public static Credentials requestIamCredentials(String endpoint, String roleAlias, String thingName) throws IOException {
+        HashMap<String, String> headers = new HashMap<String, String>();
+        headers.put("x-amzn-iot-thingname", thingName);
+        MtlsHttpClient.Response resp = getHttpClient(cmd.hasOption("U")).get("https://" + endpoint + ":" + getRestApiPort(443) + "/role-aliases/" + roleAlias + "/credentials", headers);
+        Map<String, List<String>> values = resp.status == 200 ? iamCredentialsExtractor.extractAll(resp.body.getBytes(StandardCharsets.UTF_8)) : null;
+        if (values == null || values.size() < iamCredentialsExtractor.getPaths().size()) {
+            throw new IOException("HTTP " + resp.status + ": " + resp.body);
+        }
+        return new Credentials(values.get("credentials.accessKeyId").get(0).getBytes(StandardCharsets.UTF_8),
+                               values.get("credentials.secretAccessKey").get(0).getBytes(StandardCharsets.UTF_8),
+                               values.get("credentials.sessionToken").get(0).getBytes(StandardCharsets.UTF_8));
+    }
+
+
+    // Returns the mTLS HTTP client for REST API and credentials provider requests, loading the key
+    // material on first use. There is one client per insecure setting, so whether the server certificate is
+    // verified never depends on which caller created a client first. All of a run's requests with the same
+    // setting share the client's TLS sessions and kept-alive connections; handshake statistics are printed on exit.
+    public static synchronized MtlsHttpClient getHttpClient(boolean insecure) {
+        MtlsHttpClient client = insecure ? insecureHttpClient : httpClient;
+        if (client != null) {
+            return client;
+        }
+        try {
+            if (cmd.hasOption("c") && cmd.hasOption("k")) {
+                client = new MtlsHttpClient(cmd.getOptionValue("c"), cmd.getOptionValue("k"), cmd.getOptionValue("A"), insecure);
+            } else {
+                // JKS keystores have an alias and certificate password; otherwise, PKCS#12
+                boolean jks = cmd.hasOption("N") || cmd.hasOption("Q");
+                char[] ksPw = cmd.hasOption("q") ? cmd.getOptionValue("q").toCharArray() : new char[0];
+                char[] keyPw = cmd.hasOption("Q") ? cmd.getOptionValue("Q").toCharArray() : ksPw;
+                KeyStore ks = MtlsHttpClient.loadKeyStore(cmd.getOptionValue("K"), jks ? "JKS" : "PKCS12", ksPw, cmd.getOptionValue("N"), keyPw);
+                client = new MtlsHttpClient(ks, keyPw, cmd.getOptionValue("A"), insecure);
+            }
+        } catch (IOException | GeneralSecurityException ex) {
+            System.err.println("[ERROR] Failed to load mTLS key material: " + ex.getMessage());
+            System.exit(1);
+        }
+        if (insecure) {
+            insecureHttpClient = client;
+        } else {
+            httpClient = client;
+        }
+        final MtlsHttpClient statsClient = client;
+        addShutdownStep(SHUTDOWN_PHASE_SUMMARY, () -> {
+            System.err.println("[INFO] mTLS HTTP client" + (insecure ? " (no server certificate verification)" : "") + ": " + statsClient.formatStats());
+        });
+        return client;
+    }
+
+
+    // REST API/credentials provider port: the "--rest-port" port if specified, or the service's standard port
+    public static int getRestApiPort(int defaultPort) {
+        if (!cmd.hasOption("rest-port")) {
+            return defaultPort;
+        }
+        int portNum = -1;
+        try {
+            portNum = ((Number)cmd.getParsedOptionValue("rest-port")).intValue();
+        } catch (org.apache.commons.cli.ParseException ex) {
+            // Handled below
+        }
+        if (portNum < 1 || portNum > 65535) {
+            System.err.println("[ERROR] Port number must be in the range 1-65535 (inclusive)");
+            System.exit(1);
+        }
+        return portNum;
+    }
+
+
+    // Returns the response body (for any status), or null if the request failed
+    public static String restApiGet(String url) {
+        try {
+            // (Server certificates aren't verified for REST API requests)
+            return getHttpClient(true).get(url, null).body;
+        } catch (IOException ex) {
+            System.err.println("[ERROR] HTTP GET " + url + " failed: " + ex.getMessage());
+            return null;
+        }
+    }
+
+
     public static void getDeviceShadow(String thingName, String shadowName) {
         // https://docs.aws.amazon.com/iot/latest/developerguide/device-shadow-rest-api.html#API_GetThingShadow
         // https://sdk.amazonaws.com/java/api/latest/software/amazon/awssdk/services/iotdataplane/IotDataPlaneClient.html
@@ -861,9 +1963,13 @@ public class AwsIotRecon {
         //   Host: <instance>.iot.<region>.amazonaws.com:8443
         //
         // Note: Shadow name is optional (null name = classic device shadow)
-        String url = "https://" + cmd.getOptionValue("H") + ":" + AwsIotConstants.AWS_IOT_REST_API_PORT + "/things/" + thingName + "/shadow" + (shadowName == null ? "" : "?name="+shadowName);
-        String data = MtlsHttpClient.mtlsHttpGet(url, cmd.getOptionValue("c"), cmd.getOptionValue("k"), cmd.getOptionValue("A"), true);
-        System.out.println(data);
+        String url = "https://" + cmd.getOptionValue("H") + ":" + getRestApiPort(AwsIotConstants.AWS_IOT_REST_API_PORT) + "/things/" + thingName + "/shadow" + (shadowName == null ? "" : "?name="+shadowName);
+        String data = restApiGet(url);
+        LinkedHashMap<String, Object> fields = new LinkedHashMap<String, Object>();
+        fields.put("thingName", thingName);
+        fields.put("shadowName", shadowName);
+        fields.put("document", data);
+        emitRecord(AwsIotConstants.RECORD_DEVICE_SHADOW, thingName, data, fields);
     }
 
 
@@ -877,10 +1983,27 @@ public class AwsIotRecon {
         //
         //   GET /api/things/shadow/ListNamedShadowsForThing/<thingName>?maxResults=200&nextToken= HTTP/1.1
         //   Host: <instance>.iot.<region>.amazonaws.com:8443
-        String url = "https://" + cmd.getOptionValue("H") + ":" + AwsIotConstants.AWS_IOT_REST_API_PORT + "/api/things/shadow/ListNamedShadowsForThing/" + thingName + "?maxResults=200"; //+"&nextToken=";
-        String data = MtlsHttpClient.mtlsHttpGet(url, cmd.getOptionValue("c"), cmd.getOptionValue("k"), cmd.getOptionValue("A"), true);
-        // @TODO: Iterate through all pages of named shadows
-        System.out.println(data);
+        String url = "https://" + cmd.getOptionValue("H") + ":" + getRestApiPort(AwsIotConstants.AWS_IOT_REST_API_PORT) + "/api/things/shadow/ListNamedShadowsForThing/" + thingName + "?maxResults=200";
+        restApiGetPages(url, (MtlsHttpClient.Response resp, LinkedHashMap<String, String> page) -> {
+            if (!isStructuredOutput()) {
+                emitRecord(AwsIotConstants.RECORD_NAMED_SHADOW, thingName, resp.body, null);
+                return;
+            }
+            if (page == null) {
+                System.err.println("[ERROR] Failed to list named shadows for " + thingName + ": HTTP " + resp.status + ": " + resp.body);
+                return;
+            }
+            // "results[<i>]" -> shadow name
+            for (Map.Entry<String, String> field : page.entrySet()) {
+                if (!field.getKey().startsWith("results[")) {
+                    continue;
+                }
+                LinkedHashMap<String, Object> fields = new LinkedHashMap<String, Object>();
+                fields.put("thingName", thingName);
+                fields.put("shadowName", field.getValue());
+                emitRecord(AwsIotConstants.RECORD_NAMED_SHADOW, thingName, "[Named shadow] " + thingName + "\t" + field.getValue(), fields);
+            }
+        });
     }
 
 
@@ -897,52 +2020,595 @@ public class AwsIotRecon {
         //
         //   GET /retainedMessage/<topic> HTTP/1.1
         //   Host: <instance>.iot.<region>.amazonaws.com:8443
-        String url = "https://" + cmd.getOptionValue("H") + ":" + AwsIotConstants.AWS_IOT_REST_API_PORT + "/retainedMessage?maxResults=200"; //+"&nextToken=";
-        String data = MtlsHttpClient.mtlsHttpGet(url, cmd.getOptionValue("c"), cmd.getOptionValue("k"), cmd.getOptionValue("A"), true);
-        // @TODO: Iterate through all pages of retained messages
-        // @TODO: Get message bodies for all retained message topics
-        System.out.println(data);
+        String url = "https://" + cmd.getOptionValue("H") + ":" + getRestApiPort(AwsIotConstants.AWS_IOT_REST_API_PORT) + "/retainedMessage?maxResults=200";
+        restApiGetPages(url, (MtlsHttpClient.Response resp, LinkedHashMap<String, String> page) -> {
+            if (!isStructuredOutput()) {
+                emitRecord(AwsIotConstants.RECORD_RETAINED_MESSAGE, null, resp.body, null);
+                return;
+            }
+            if (page == null) {
+                System.err.println("[ERROR] Failed to list retained MQTT messages: HTTP " + resp.status + ": " + resp.body);
+                return;
+            }
+            // "retainedTopics[<i>].<field>" -> one record per retained message
+            LinkedHashMap<String, LinkedHashMap<String, Object>> retained = new LinkedHashMap<String, LinkedHashMap<String, Object>>();
+            for (Map.Entry<String, String> field : page.entrySet()) {
+                String path = field.getKey();
+                int end = path.indexOf("].");
+                if (path.startsWith("retainedTopics[") && end > 0) {
+                    retained.computeIfAbsent(path.substring(0, end), (String k) -> new LinkedHashMap<String, Object>()).put(path.substring(end + 2), field.getValue());
+                }
+            }
+            for (LinkedHashMap<String, Object> fields : retained.values()) {
+                String topic = String.valueOf(fields.get("topic"));
+                emitRecord(AwsIotConstants.RECORD_RETAINED_MESSAGE, topic, "[Retained MQTT message] " + topic + "\t" + fields, fields);
+            }
+        });
+    }
+
+
+    // True if action results are written in a structured format (one record per item) rather than as text
+    public static boolean isStructuredOutput() {
+        return recordWriter != null && !recordWriter.getFormat().equals(RecordWriter.FORMAT_TEXT);
+    }
+
+
+    // Gets every page of a paginated REST API list (the URL must already have a query string) and passes each
+    // response to pageHandler along with its flattened JSON. Stops after the first failed or malformed page,
+    // which is passed with a null page.
+    public static void restApiGetPages(String url, BiConsumer<MtlsHttpClient.Response, LinkedHashMap<String, String>> pageHandler) {
+        String nextToken = null;
+        do {
+            String pageUrl = url + (nextToken == null ? "" : "&nextToken=" + URLEncoder.encode(nextToken, StandardCharsets.UTF_8));
+            try {
+                // (Server certificates aren't verified for REST API requests)
+                MtlsHttpClient.Response resp = getHttpClient(true).get(pageUrl, null);
+                LinkedHashMap<String, String> page = resp.status == 200 ? JsonFlattener.flatten(resp.body.getBytes(StandardCharsets.UTF_8), null) : null;
+                pageHandler.accept(resp, page);
+                nextToken = page == null ? null : page.get("nextToken");
+            } catch (IOException ex) {
+                System.err.println("[ERROR] HTTP GET " + pageUrl + " failed: " + ex.getMessage());
+                break;
+            }
+        } while (nextToken != null);
     }
 
 
     // https://docs.aws.amazon.com/iot/latest/developerguide/jobs-mqtt-api.html
-    public static void getPendingJobs() throws InterruptedException, ExecutionException {
-        final String thingName = cmd.hasOption("t") ? cmd.getOptionValue("t") : clientId;
-        final String topic = "$aws/things/" + thingName + "/jobs/get";
-        final String topicAccepted = topic + "/accepted";
-        final String topicRejected = topic + "/rejected";
-        final String message = "{}";
+    // Gets the pending jobs for each thing, then the details of each job. Requests for many things are
+    // in flight at once, and each one completes as soon as its (clientToken-correlated) response arrives.
+    // Responses (accepted or rejected) are passed to responseHandler.
+    public static void getPendingJobs(final Consumer<MqttMessage> responseHandler) throws IOException, InterruptedException, org.apache.commons.cli.ParseException {
+        final List<String> thingNames = buildThingNameList();
+        final RequestCorrelator correlator = buildRequestCorrelator();
+        final AtomicInteger jobCount = new AtomicInteger(0);
+        final AtomicInteger failureCount = new AtomicInteger(0);
+        long startTime = System.currentTimeMillis();
+
+        forEachThingCorrelated(thingNames, correlator, failureCount, (String thingName) -> {
+            final String topicPrefix = "$aws/things/" + thingName + "/jobs/";
+            // Responses for "get" and "<jobId>/get" requests
+            return new String[]{ topicPrefix + "get/+", topicPrefix + "+/get/+" };
+        }, (String thingName) -> {
+            final String topicPrefix = "$aws/things/" + thingName + "/jobs/";
+            return correlator.request(topicPrefix + "get", "").thenCompose((RequestCorrelator.Response resp) -> {
+                responseHandler.accept(resp.message);
+                if (!resp.accepted) {
+                    return CompletableFuture.completedFuture(null);
+                }
+                Map<String, List<String>> jobIds = pendingJobIdExtractor.extractAll(resp.message.getPayload());
+                ArrayList<CompletableFuture<?>> details = new ArrayList<CompletableFuture<?>>();
+                for (List<String> ids : jobIds == null ? new ArrayList<List<String>>() : jobIds.values()) {
+                    for (String jobId : ids) {
+                        jobCount.incrementAndGet();
+                        details.add(correlator.request(topicPrefix + jobId + "/get", "\"includeJobDocument\":true").handle((RequestCorrelator.Response detail, Throwable err) -> {
+                            if (err != null) {
+                                failureCount.incrementAndGet();
+                                System.err.println("[WARNING] Failed to get details for job " + jobId + " (thing: " + thingName + "): " + err.toString());
+                            } else {
+                                responseHandler.accept(detail.message);
+                            }
+                            return null;
+                        }));
+                    }
+                }
+                return CompletableFuture.allOf(details.toArray(new CompletableFuture<?>[0]));
+            });
+        });
 
+        correlator.close();
+        System.err.println("[INFO] Retrieved pending jobs for " + thingNames.size() + " thing" + (thingNames.size() == 1 ? "" : "s") + " (" + jobCount.get() + " job" + (jobCount.get() == 1 ? "" : "s") + "; " + failureCount.get() + " failed request" + (failureCount.get() == 1 ? "" : "s") + ") in " + (System.currentTimeMillis() - startTime) + "ms");
+    }
 
-        CompletableFuture<Integer> subAccept = clientConnection.subscribe(topicAccepted, QualityOfService.AT_LEAST_ONCE, genericMqttMsgConsumer);
-        subAccept.exceptionally((Throwable throwable) -> {
-            System.err.println("[ERROR] Failed to process message for " + topicAccepted + ": " + throwable.toString());
-            return -1;
+
+    // Gets device shadows over the MQTT connection (instead of the REST API) for each combination of thing
+    // name and shadow name. A null shadow name refers to the classic (unnamed) shadow. Responses (accepted
+    // or rejected) are passed to responseHandler.
+    public static void getDeviceShadowsOverMqtt(final List<String> shadowNames, final Consumer<MqttMessage> responseHandler) throws IOException, InterruptedException {
+        final List<String> thingNames = buildThingNameList();
+        final RequestCorrelator correlator = buildRequestCorrelator();
+        final AtomicInteger shadowCount = new AtomicInteger(0);
+        final AtomicInteger failureCount = new AtomicInteger(0);
+        long startTime = System.currentTimeMillis();
+
+        forEachThingCorrelated(thingNames, correlator, failureCount, (String thingName) -> {
+            final String topicPrefix = "$aws/things/" + thingName + "/shadow/";
+            return new String[]{ topicPrefix + "get/+", topicPrefix + "name/+/get/+" };
+        }, (String thingName) -> {
+            ArrayList<CompletableFuture<?>> requests = new ArrayList<CompletableFuture<?>>();
+            for (final String shadowName : shadowNames) {
+                String topic = "$aws/things/" + thingName + "/shadow/" + (shadowName == null ? "" : "name/" + shadowName + "/") + "get";
+                requests.add(correlator.request(topic, "").handle((RequestCorrelator.Response resp, Throwable err) -> {
+                    if (err != null) {
+                        failureCount.incrementAndGet();
+                        System.err.println("[WARNING] Failed to get " + (shadowName == null ? "classic shadow" : "shadow \"" + shadowName + "\"") + " for " + thingName + ": " + err.toString());
+                    } else {
+                        if (resp.accepted) {
+                            shadowCount.incrementAndGet();
+                        }
+                        responseHandler.accept(resp.message);
+                    }
+                    return null;
+                }));
+            }
+            return CompletableFuture.allOf(requests.toArray(new CompletableFuture<?>[0]));
         });
-        subAccept.get();
-        CompletableFuture<Integer> subReject = clientConnection.subscribe(topicRejected, QualityOfService.AT_LEAST_ONCE, genericMqttMsgConsumer);
-        subReject.exceptionally((Throwable throwable) -> {
-            System.err.println("[ERROR] Failed to process message for " + topicRejected + ": " + throwable.toString());
-            return -1;
+
+        correlator.close();
+        System.err.println("[INFO] Retrieved " + shadowCount.get() + " device shadow" + (shadowCount.get() == 1 ? "" : "s") + " for " + thingNames.size() + " thing" + (thingNames.size() == 1 ? "" : "s") + " (" + failureCount.get() + " failed request" + (failureCount.get() == 1 ? "" : "s") + ") in " + (System.currentTimeMillis() - startTime) + "ms");
+    }
+
+
+    // For each thing, subscribes to its response topics, runs the request task, then unsubscribes. Up to
+    // requestWindow things are processed at once, and fewer if their response subscriptions would exceed
+    // the per-connection quota (e.g., 25 things with 2 topics each); returns once every thing has been processed.
+    public static void forEachThingCorrelated(List<String> thingNames, RequestCorrelator correlator, final AtomicInteger failureCount,
+                                              Function<String, String[]> responseTopics, final Function<String, CompletableFuture<?>> task) throws InterruptedException {
+        final Semaphore thingWindow = new Semaphore(requestWindow);
+        final CountDownLatch remaining = new CountDownLatch(thingNames.size());
+        for (final String thingName : thingNames) {
+            thingWindow.acquire();
+            final String[] topics = responseTopics.apply(thingName);
+            final int permits = Math.min(topics.length, AwsIotConstants.MQTT_MAX_SUBSCRIPTIONS);
+            try {
+                thingSubscriptionPermits.acquire(permits);
+            } catch (InterruptedException ex) {
+                thingWindow.release();
+                throw ex;
+            }
+            CompletableFuture<?>[] subs = new CompletableFuture<?>[topics.length];
+            for (int i = 0; i < topics.length; i++) {
+                subs[i] = mqttSubscribe(topics[i], correlator.getResponseHandler());
+            }
+            CompletableFuture.allOf(subs).thenCompose((Void v) -> task.apply(thingName)).whenComplete((Object v, Throwable err) -> {
+                if (err != null) {
+                    failureCount.incrementAndGet();
+                    System.err.println("[WARNING] Request(s) failed for " + thingName + ": " + err.toString());
+                }
+                CompletableFuture<?>[] unsubs = new CompletableFuture<?>[topics.length];
+                for (int i = 0; i < topics.length; i++) {
+                    unsubs[i] = mqttUnsubscribe(topics[i]);
+                }
+                // The subscriptions count against the quota until the broker acknowledges their removal
+                CompletableFuture.allOf(unsubs).whenComplete((Void u, Throwable unsubErr) -> thingSubscriptionPermits.release(permits));
+                thingWindow.release();
+                remaining.countDown();
+            });
+        }
+        remaining.await();
+    }
+
+
+    // Runs each "--poll" action at its interval until the program is stopped, and emits only the changes
+    // since the action's previous result (so the first result is emitted as added fields). All polls share
+    // the MQTT connection and the mTLS HTTP client's kept-alive connections and TLS sessions.
+    public static void runPollSchedules() throws IOException {
+        final List<String> thingNames = buildThingNameList();
+        final ArrayList<String> shadowNames = new ArrayList<String>();
+        if (cmd.hasOption("s")) {
+            shadowNames.addAll(readNonEmptyLines(cmd.getOptionValue("s")));
+        } else {
+            shadowNames.add(null);
+        }
+
+        // One thread per action, so a slow action doesn't delay the others (runs of the same action never overlap)
+        final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(pollIntervals.size(), (Runnable r) -> {
+            Thread t = new Thread(r, "poll");
+            t.setDaemon(true);
+            return t;
         });
-        subReject.get();
+        // Held while emitting a poll's changes; once stopped is set, polls that are still running emit nothing
+        // (so nothing is emitted after the output writer is closed)
+        final Object emitLock = new Object();
+        final AtomicBoolean stopped = new AtomicBoolean(false);
+        final LinkedHashMap<String, ChangeTracker> trackers = new LinkedHashMap<String, ChangeTracker>();
+        for (Map.Entry<String, Long> entry : pollIntervals.entrySet()) {
+            final String pollAction = entry.getKey();
+            final ChangeTracker tracker = new ChangeTracker();
+            trackers.put(pollAction, tracker);
+            System.err.println("[INFO] Polling " + pollAction + " every " + entry.getValue() + " second" + (entry.getValue() == 1 ? "" : "s"));
+            scheduler.scheduleAtFixedRate(() -> {
+                // Exceptions would cancel the schedule
+                try {
+                    ChangeTracker.Snapshot snapshot = pollOnce(pollAction, thingNames, shadowNames);
+                    synchronized (emitLock) {
+                        if (stopped.get()) {
+                            return;
+                        }
+                        for (ChangeTracker.Change change : tracker.update(snapshot)) {
+                            emitChange(pollAction, change);
+                        }
+                    }
+                    if (snapshot.getUnknownCount() > 0) {
+                        System.err.println("[WARNING] " + snapshot.getUnknownCount() + " " + pollAction + " result" + (snapshot.getUnknownCount() == 1 ? "" : "s") + " couldn't be retrieved; keeping the last known state");
+                    }
+                } catch (Exception ex) {
+                    System.err.println("[ERROR] Failed to poll " + pollAction + ": " + ex.toString());
+                }
+            }, 0, entry.getValue(), TimeUnit.SECONDS);
+        }
 
-        MqttMessage msg = new MqttMessage(topic, message.getBytes(StandardCharsets.UTF_8), QualityOfService.AT_LEAST_ONCE);
-        CompletableFuture<Integer> publication = clientConnection.publish(msg);
-        publication.get();
+        addShutdownStep(SHUTDOWN_PHASE_DRAIN, () -> {
+            scheduler.shutdownNow();
+            try {
+                scheduler.awaitTermination(5000, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (emitLock) {
+                stopped.set(true);
+            }
+        });
+        addShutdownStep(SHUTDOWN_PHASE_SUMMARY, () -> {
+            for (Map.Entry<String, ChangeTracker> entry : trackers.entrySet()) {
+                ChangeTracker tracker = entry.getValue();
+                System.err.println("[INFO] Polled " + entry.getKey() + " " + tracker.getPollCount() + " time" + (tracker.getPollCount() == 1 ? "" : "s") + " (" + tracker.getChangeCount() + " change" + (tracker.getChangeCount() == 1 ? "" : "s") + "; tracking " + tracker.getSubjectCount() + " result" + (tracker.getSubjectCount() == 1 ? "" : "s") + ")");
+            }
+        });
 
-        // Sleep 3 seconds to see if we receive our payload
+        Util.sleepForever();
+    }
+
+
+    // Runs a polled action once, collecting its results instead of printing them. Subjects are named after
+    // the corresponding MQTT topics (e.g., "$aws/things/<thingName>/shadow/name/<shadowName>").
+    public static ChangeTracker.Snapshot pollOnce(String pollAction, List<String> thingNames, List<String> shadowNames) throws IOException, InterruptedException, org.apache.commons.cli.ParseException {
+        final ChangeTracker.Snapshot snapshot = new ChangeTracker.Snapshot();
+        // REST polls use the "--rest-port" port; "-P" is the MQTT port for actions polled over the MQTT connection
+        final String restApiUrl = "https://" + cmd.getOptionValue("H") + ":" + getRestApiPort(AwsIotConstants.AWS_IOT_REST_API_PORT);
+
+        if (pollAction.equals(AwsIotConstants.ACTION_GET_SHADOW) && cmd.hasOption("shadow-over-mqtt")) {
+            for (String thingName : thingNames) {
+                for (String shadowName : shadowNames) {
+                    snapshot.markUnknown(shadowSubject(thingName, shadowName));
+                }
+            }
+            getDeviceShadowsOverMqtt(shadowNames, (MqttMessage message) -> {
+                String topic = message.getTopic();
+                if (topic.endsWith("/get/accepted")) {
+                    putPolledDocument(snapshot, topic.substring(0, topic.length() - "/get/accepted".length()), message.getPayload());
+                } else if (topic.endsWith("/get/rejected") && isNotFoundResponse(message.getPayload())) {
+                    snapshot.markAbsent(topic.substring(0, topic.length() - "/get/rejected".length()));
+                }
+            });
+
+        } else if (pollAction.equals(AwsIotConstants.ACTION_GET_SHADOW)) {
+            for (String thingName : thingNames) {
+                for (String shadowName : shadowNames) {
+                    String subject = shadowSubject(thingName, shadowName);
+                    String url = restApiUrl + "/things/" + thingName + "/shadow" + (shadowName == null ? "" : "?name="+shadowName);
+                    try {
+                        MtlsHttpClient.Response resp = getHttpClient(true).get(url, null);
+                        if (resp.status == 200) {
+                            putPolledDocument(snapshot, subject, resp.body.getBytes(StandardCharsets.UTF_8));
+                        } else if (resp.status != 404) {
+                            System.err.println("[WARNING] HTTP GET " + url + " failed: HTTP " + resp.status + ": " + resp.body);
+                            snapshot.markUnknown(subject);
+                        }
+                    } catch (IOException ex) {
+                        System.err.println("[WARNING] HTTP GET " + url + " failed: " + ex.getMessage());
+                        snapshot.markUnknown(subject);
+                    }
+                }
+            }
+
+        } else if (pollAction.equals(AwsIotConstants.ACTION_GET_JOBS)) {
+            for (String thingName : thingNames) {
+                snapshot.markUnknownPrefix("$aws/things/" + thingName + "/jobs/");
+            }
+            getPendingJobs((MqttMessage message) -> {
+                String topic = message.getTopic();
+                if (topic.endsWith("/jobs/get/accepted")) {
+                    // Pending job list; each job's details are requested next
+                    String prefix = topic.substring(0, topic.length() - "get/accepted".length());
+                    Map<String, List<String>> jobIds = pendingJobIdExtractor.extractAll(message.getPayload());
+                    for (List<String> ids : jobIds == null ? new ArrayList<List<String>>() : jobIds.values()) {
+                        for (String jobId : ids) {
+                            snapshot.markUnknown(prefix + jobId);
+                        }
+                    }
+                    snapshot.clearUnknownPrefix(prefix);
+                } else if (topic.endsWith("/get/accepted")) {
+                    putPolledDocument(snapshot, topic.substring(0, topic.length() - "/get/accepted".length()), message.getPayload());
+                } else if (topic.endsWith("/get/rejected") && isNotFoundResponse(message.getPayload())) {
+                    snapshot.markAbsent(topic.substring(0, topic.length() - "/get/rejected".length()));
+                }
+            });
+
+        } else if (pollAction.equals(AwsIotConstants.ACTION_LIST_RETAINED_MQTT_MESSAGES)) {
+            // All pages are needed to tell which topics were removed, so any failure fails the whole poll
+            String nextToken = null;
+            do {
+                String url = restApiUrl + "/retainedMessage?maxResults=200" + (nextToken == null ? "" : "&nextToken=" + URLEncoder.encode(nextToken, StandardCharsets.UTF_8));
+                MtlsHttpClient.Response resp = getHttpClient(true).get(url, null);
+                LinkedHashMap<String, String> page = resp.status == 200 ? JsonFlattener.flatten(resp.body.getBytes(StandardCharsets.UTF_8), null) : null;
+                if (page == null) {
+                    throw new IOException("HTTP " + resp.status + ": " + resp.body);
+                }
+                nextToken = page.get("nextToken");
+                // "retainedTopics[<i>].<field>" -> one subject (the topic) per retained message
+                LinkedHashMap<String, LinkedHashMap<String, String>> retained = new LinkedHashMap<String, LinkedHashMap<String, String>>();
+                for (Map.Entry<String, String> field : page.entrySet()) {
+                    String path = field.getKey();
+                    int end = path.indexOf("].");
+                    if (path.startsWith("retainedTopics[") && end > 0) {
+                        retained.computeIfAbsent(path.substring(0, end), (String k) -> new LinkedHashMap<String, String>()).put(path.substring(end + 2), field.getValue());
+                    }
+                }
+                for (LinkedHashMap<String, String> fields : retained.values()) {
+                    String topic = fields.remove("topic");
+                    if (topic != null) {
+                        snapshot.put(topic, fields);
+                    }
+                }
+            } while (nextToken != null);
+        }
+
+        return snapshot;
+    }
+
+
+    public static String shadowSubject(String thingName, String shadowName) {
+        return "$aws/things/" + thingName + "/shadow" + (shadowName == null ? "" : "/name/" + shadowName);
+    }
+
+
+    // Adds a polled JSON response to the snapshot (or marks it unknown if it's malformed)
+    public static void putPolledDocument(ChangeTracker.Snapshot snapshot, String subject, byte[] document) {
+        LinkedHashMap<String, String> fields = JsonFlattener.flatten(document, AwsIotConstants.POLL_IGNORED_PATHS);
+        if (fields == null) {
+            System.err.println("[WARNING] Malformed JSON response for " + subject);
+            snapshot.markUnknown(subject);
+        } else {
+            snapshot.put(subject, fields);
+        }
+    }
+
+
+    // True for shadow ("code": 404) and jobs ("code": "ResourceNotFound") error responses for things, shadows,
+    // or jobs that don't exist
+    public static boolean isNotFoundResponse(byte[] payload) {
+        Map<String, List<String>> code = errorCodeExtractor.extractAll(payload);
+        if (code == null || !code.containsKey("code")) {
+            return false;
+        }
+        String value = code.get("code").get(0);
+        return value.equals("404") || value.equals("ResourceNotFound");
+    }
+
+
+    public static void emitChange(String pollAction, ChangeTracker.Change change) {
+        LinkedHashMap<String, Object> fields = new LinkedHashMap<String, Object>();
+        fields.put("action", pollAction);
+        fields.put("change", change.kind);
+        fields.put("path", change.path);
+        fields.put("oldValue", change.oldValue);
+        fields.put("newValue", change.newValue);
+        String value = change.kind.equals(ChangeTracker.CHANGE_MODIFIED) ? change.oldValue + " -> " + change.newValue : (change.newValue != null ? change.newValue : change.oldValue);
+        emitRecord(AwsIotConstants.RECORD_CHANGE, change.subject, "[Change] " + pollAction + "\t" + change.kind + "\t" + change.subject + "\t" + change.path + "\t" + value, fields);
+    }
+
+
+    // Downloads files from an MQTT-based file delivery stream (e.g., OTA update images)
+    public static void downloadMqttStream(String thingName, String streamId) throws IOException, InterruptedException, ExecutionException, org.apache.commons.cli.ParseException {
+        int blockSize = cmd.hasOption("stream-block-size") ? ((Number)cmd.getParsedOptionValue("stream-block-size")).intValue() : 65536;
+        File outDir = new File(cmd.hasOption("stream-output") ? cmd.getOptionValue("stream-output") : ".");
+        // Each block is requested at most 1 + 3 times. Requests bypass the offline queue; a queued request would
+        // count as sent, and its block would time out (using up a retry) before the connection resumes.
+        MqttStreamDownloader downloader = new MqttStreamDownloader((MqttMessage msg) -> clientConnection.publish(msg), thingName, streamId, blockSize, requestWindow, requestTimeoutMs, 3);
+
+        String[] topics = downloader.getResponseTopics();
+        for (String topic : topics) {
+            mqttSubscribe(topic, downloader.getMessageHandler()).get();
+        }
         try {
-            Thread.sleep(3000);
-        } catch (InterruptedException ex) {
-            System.err.println("[WARNING] Get pending jobs sleep operation was interrupted: " + ex.getMessage());
+            MqttStreamDownloader.Description desc = downloader.describe();
+            System.err.println("[INFO] Stream " + streamId + " (version " + desc.version + (desc.description != null ? "; \"" + desc.description + "\"" : "") + ") contains " + desc.files.size() + " file" + (desc.files.size() == 1 ? "" : "s") + ": " + desc.files);
+            List<Integer> fileIds = new ArrayList<Integer>(desc.files.keySet());
+            if (cmd.hasOption("stream-file-id")) {
+                fileIds = Arrays.asList(((Number)cmd.getParsedOptionValue("stream-file-id")).intValue());
+            }
+            for (int fileId : fileIds) {
+                File outFile = new File(outDir, streamId + "_" + fileId + ".bin");
+                System.err.println("[INFO] Downloading stream file " + fileId + " to " + outFile.getPath() + " (block size: " + downloader.getBlockSize() + "; window: " + requestWindow + ")");
+                MqttStreamDownloader.Stats stats = downloader.download(fileId, outFile);
+                LinkedHashMap<String, Object> fields = new LinkedHashMap<String, Object>();
+                fields.put("streamId", streamId);
+                fields.put("fileId", fileId);
+                fields.put("bytes", stats.bytes);
+                fields.put("blocks", stats.blocks);
+                fields.put("retries", stats.retries);
+                fields.put("elapsedMs", stats.elapsedMs);
+                emitRecord(AwsIotConstants.RECORD_STREAM_DOWNLOAD, outFile.getPath(), "[Stream download] " + outFile.getPath() + "\t" + stats.bytes + " bytes\t" + stats.blocks + " blocks\t" + stats.retries + " retries\t" + stats.elapsedMs + "ms\t" + String.format("%.1f", stats.getThroughput() / 1024) + " KiB/s", fields);
+            }
+        } catch (TimeoutException | IOException ex) {
+            System.err.println("[ERROR] Stream download failed: " + ex.getMessage());
+        } finally {
+            for (String topic : topics) {
+                mqttUnsubscribe(topic);
+            }
         }
-        
-        // Unsubscribe from the accept/reject topic(s)
-        CompletableFuture<Integer> unsubAccept = clientConnection.unsubscribe(topicAccepted);
-        unsubAccept.get();
-        CompletableFuture<Integer> unsubReject = clientConnection.unsubscribe(topicRejected);
-        unsubReject.get();
+    }
+
+
+    // Thing names from "-t" and "--thing-names" (or the client ID, if neither was specified)
+    public static List<String> buildThingNameList() throws IOException {
+        LinkedHashSet<String> thingNames = new LinkedHashSet<String>();
+        if (cmd.hasOption("t")) {
+            thingNames.add(cmd.getOptionValue("t"));
+        }
+        if (cmd.hasOption("thing-names")) {
+            thingNames.addAll(readNonEmptyLines(cmd.getOptionValue("thing-names")));
+        }
+        if (thingNames.isEmpty()) {
+            thingNames.add(clientId);
+        }
+        return new ArrayList<String>(thingNames);
+    }
+
+
+    // Correlates requests/responses for AWS IoT services with accepted/rejected response topics
+    public static RequestCorrelator buildRequestCorrelator() {
+        return new RequestCorrelator(AwsIotRecon::mqttPublish, requestWindow, requestTimeoutMs);
+    }
+
+
+    // Reconstructs the messages in a capture file and prints them like the MQTT dump action does
+    public static void decodeCapture(String capturePath) throws IOException {
+        long count = 0;
+        try (CaptureReader reader = new CaptureReader(capturePath)) {
+            CaptureReader.Record r;
+            while ((r = reader.next()) != null) {
+                emitCapturedMessage(r);
+                count++;
+            }
+        } catch (IOException ex) {
+            System.err.println("[ERROR] Failed to read capture file: " + ex.getMessage());
+        }
+        System.err.println("[INFO] Decoded " + count + " captured message" + (count == 1 ? "" : "s"));
+    }
+
+
+    // Prints the captured messages that match the topic filters ("-T") and time range using the capture's
+    // index (which is built first, if it doesn't exist)
+    public static void queryCapture(String capturePath) throws IOException, org.apache.commons.cli.ParseException {
+        long fromMs = cmd.hasOption("capture-from") ? ((Number)cmd.getParsedOptionValue("capture-from")).longValue() : Long.MIN_VALUE;
+        long toMs = cmd.hasOption("capture-to") ? ((Number)cmd.getParsedOptionValue("capture-to")).longValue() : Long.MAX_VALUE;
+        TopicMatcher filter = new TopicMatcher(topicSubcriptions.isEmpty() ? Arrays.asList("#") : topicSubcriptions);
+        CaptureIndex index = new CaptureIndex(capturePath);
+        try {
+            if (!index.exists()) {
+                System.err.println("[INFO] Building index for " + capturePath);
+                long count = CaptureIndexWriter.build(capturePath);
+                System.err.println("[INFO] Indexed " + count + " captured message" + (count == 1 ? "" : "s"));
+            }
+            long startTime = System.currentTimeMillis();
+            long count = index.query(filter, fromMs, toMs, AwsIotRecon::emitCapturedMessage);
+            System.err.println("[INFO] Found " + count + " matching message" + (count == 1 ? "" : "s") + " in " + (System.currentTimeMillis() - startTime) + "ms (" + index.getBlocksRead() + " index block" + (index.getBlocksRead() == 1 ? "" : "s") + " read; " + index.getRecordsDecoded() + " record" + (index.getRecordsDecoded() == 1 ? "" : "s") + " decoded)");
+        } catch (IOException ex) {
+            System.err.println("[ERROR] Failed to query capture file: " + ex.getMessage());
+        }
+    }
+
+
+    // Runs the topic statistics, topic field harvester, and payload harvester over a capture file in parallel,
+    // then prints the merged results for each topic
+    public static void analyzeCapture(String capturePath) throws IOException, org.apache.commons.cli.ParseException {
+        int threads = cmd.hasOption("analyze-threads") ? ((Number)cmd.getParsedOptionValue("analyze-threads")).intValue() : 0;
+        final TopicMatcher filter = topicSubcriptions.isEmpty() ? null : new TopicMatcher(topicSubcriptions);
+        final PayloadHarvester harvester = new PayloadHarvester(payloadHarvestKeys, payloadHarvestKeywords);
+        CaptureAnalyzer analyzer = new CaptureAnalyzer(capturePath, threads);
+        if (!new CaptureIndex(capturePath).exists()) {
+            System.err.println("[INFO] Building index for " + capturePath);
+        }
+
+        long startTime = System.currentTimeMillis();
+        HashMap<String, TopicSummary> summaries;
+        try {
+            summaries = analyzer.analyze(new CaptureAnalyzer.Analysis<HashMap<String, TopicSummary>>() {
+                @Override
+                public HashMap<String, TopicSummary> newResult() {
+                    return new HashMap<String, TopicSummary>();
+                }
+
+                @Override
+                public void accept(HashMap<String, TopicSummary> result, CaptureReader.Record r) {
+                    TopicSummary summary = result.get(r.topic);
+                    if (summary == null) {
+                        if (filter != null && !filter.matches(r.topic)) {
+                            return;
+                        }
+                        summary = new TopicSummary(r.topic);
+                        result.put(r.topic, summary);
+                    }
+                    summary.add(r);
+                    summary.addHarvested(harvester.harvest(r.payload));
+                }
+
+                @Override
+                public HashMap<String, TopicSummary> merge(HashMap<String, TopicSummary> a, HashMap<String, TopicSummary> b) {
+                    for (TopicSummary summary : b.values()) {
+                        TopicSummary existing = a.get(summary.topic);
+                        if (existing == null) {
+                            a.put(summary.topic, summary);
+                        } else {
+                            existing.merge(summary);
+                        }
+                    }
+                    return a;
+                }
+            });
+        } catch (IOException ex) {
+            System.err.println("[ERROR] Failed to analyze capture file: " + ex.getMessage());
+            return;
+        }
+        long elapsed = System.currentTimeMillis() - startTime;
+
+        ArrayList<String> topics = new ArrayList<String>(summaries.keySet());
+        Collections.sort(topics);
+        long matched = 0;
+        for (String topic : topics) {
+            TopicSummary summary = summaries.get(topic);
+            matched += summary.messageCount;
+            LinkedHashMap<String, Object> stats = new LinkedHashMap<String, Object>();
+            stats.put("messages", summary.messageCount);
+            stats.put("payloadBytes", summary.payloadBytes);
+            stats.put("minPayloadSize", summary.minPayloadSize);
+            stats.put("maxPayloadSize", summary.maxPayloadSize);
+            stats.put("retained", summary.retainedCount);
+            stats.put("firstCapturedAt", summary.firstTimestamp);
+            stats.put("lastCapturedAt", summary.lastTimestamp);
+            emitRecord(AwsIotConstants.RECORD_TOPIC_STATS, topic, "[Capture Topic Stats] " + topic + "\t" + stats, stats);
+
+            Map<String, String> topicFields = extractFieldsFromTopic(topic);
+            if (topicFields != null) {
+                emitRecord(AwsIotConstants.RECORD_TOPIC_FIELDS, topic, "[MQTT Topic Field Harvester] " + topic + "\t" + topicFields, topicFields);
+            }
+            if (!summary.harvested.isEmpty()) {
+                LinkedHashMap<String, List<String>> payloadFields = new LinkedHashMap<String, List<String>>();
+                for (Map.Entry<String, LinkedHashSet<String>> e : summary.harvested.entrySet()) {
+                    payloadFields.put(e.getKey(), new ArrayList<String>(e.getValue()));
+                }
+                emitRecord(AwsIotConstants.RECORD_PAYLOAD_FIELDS, topic, "[MQTT Payload Harvester] " + topic + "\t" + payloadFields, payloadFields);
+            }
+        }
+        System.err.println("[INFO] Analyzed " + analyzer.getMessageCount() + " captured message" + (analyzer.getMessageCount() == 1 ? "" : "s") + " in " + elapsed + "ms (" + analyzer.getChunkCount() + " chunk" + (analyzer.getChunkCount() == 1 ? "" : "s") + " on " + analyzer.getParallelism() + " thread" + (analyzer.getParallelism() == 1 ? "" : "s") + "; " + analyzer.getPrefixCount() + " record" + (analyzer.getPrefixCount() == 1 ? "" : "s") + " re-decoded at chunk boundaries)");
+        System.err.println("[INFO] Summarized " + matched + " message" + (matched == 1 ? "" : "s") + " on " + topics.size() + " topic" + (topics.size() == 1 ? "" : "s"));
+    }
+
+
+    public static void emitCapturedMessage(CaptureReader.Record r) {
+        String payload = new String(r.payload, StandardCharsets.UTF_8);
+        String msg = "\n[MQTT Message] " + r.topic + "\t" + payload;
+        LinkedHashMap<String, Object> fields = null;
+        if (recordWriter != null) {
+            fields = new LinkedHashMap<String, Object>();
+            fields.put("capturedAt", r.timestamp);
+            fields.put("qos", r.qos);
+            fields.put("retain", r.retain);
+            fields.put("payload", payload);
+        }
+        emitRecord(AwsIotConstants.RECORD_MQTT_MESSAGE, r.topic, msg, fields);
     }
 
 
@@ -962,22 +2628,18 @@ public class AwsIotRecon {
                 }
                 System.err.println(tag + logMsg);
                 MqttMessage msg = new MqttMessage(instr.getTopic(), instr.getPayload(), QualityOfService.AT_LEAST_ONCE);
-                CompletableFuture<Integer> publication = clientConnection.publish(msg);
+                CompletableFuture<Integer> publication = mqttPublish(msg);
                 publication.get();
 
             } else if (instr.getOp().equals(MqttScript.Instruction.OP_SUBSCRIBE)) {
                 System.err.println(tag + instr.toString());
                 final String topic = instr.getTopic();
-                CompletableFuture<Integer> subscription = clientConnection.subscribe(topic, QualityOfService.AT_LEAST_ONCE, genericMqttMsgConsumer);
-                subscription.exceptionally((Throwable throwable) -> {
-                    System.err.println("[ERROR] Failed to process message for " + topic + ": " + throwable.toString());
-                    return -1;
-                });
+                CompletableFuture<Integer> subscription = mqttSubscribe(topic, genericMqttMsgConsumer);
                 subscription.get();
 
             } else if (instr.getOp().equals(MqttScript.Instruction.OP_UNSUBSCRIBE)) {
                 System.err.println(tag + instr.toString());
-                CompletableFuture<Integer> unsub = clientConnection.unsubscribe(instr.getTopic());
+                CompletableFuture<Integer> unsub = mqttUnsubscribe(instr.getTopic());
                 unsub.get();
 
             } else if (instr.getOp().equals(MqttScript.Instruction.OP_SLEEP)) {
@@ -0,0 +1,333 @@
+// Author: Sean Pesce
+//
+// Non-static API for embedding this tool in other JVM applications. A session wraps one MQTT
+// connection; subscriptions are exposed as reactive streams (Flow.Publisher) with demand-based
+// delivery and bounded per-subscriber buffers, and the AWS IoT request/response services (device
+// shadows, jobs, and the credentials provider) return CompletableFutures, so nothing here blocks the
+// caller.
+//
+// Example:
+//   AwsIotSession session = new AwsIotSession(connection, tlsContext);
+//   session.connect().thenRun(() -> session.subscribe("#").subscribe(mySubscriber));
+//   session.getShadow("thing", null).thenAccept(resp -> System.out.println(resp.getPayloadString()));
+//
+// The session doesn't take ownership of the connection or TLS context; close() removes the session's
+// subscriptions but leaves the connection open. Publishers for the same topic filter share one MQTT
+// subscription (with the QoS of the first one), which is removed when the last of them is closed.
+// Request/response services subscribe to their response topics only while requests that need them
+// are outstanding, and requests wait (without blocking the caller) when their response subscriptions
+// would exceed the per-connection subscription quota.
+
+package com.seanpesce.aws.iot;
+
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import javax.validation.constraints.NotNull;
+
+import com.seanpesce.mqtt.MqttTopicPublisher;
+import com.seanpesce.mqtt.RequestCorrelator;
+
+import software.amazon.awssdk.crt.auth.credentials.Credentials;
+import software.amazon.awssdk.crt.auth.credentials.X509CredentialsProvider;
+import software.amazon.awssdk.crt.io.ClientTlsContext;
+import software.amazon.awssdk.crt.mqtt.MqttClientConnection;
+import software.amazon.awssdk.crt.mqtt.MqttMessage;
+import software.amazon.awssdk.crt.mqtt.QualityOfService;
+
+
+public class AwsIotSession implements AutoCloseable {
+
+    public static final int DEFAULT_BUFFER_CAPACITY = Flow.defaultBufferSize();
+    public static final int DEFAULT_MAX_IN_FLIGHT = 32;
+    public static final long DEFAULT_TIMEOUT_MS = 5000;
+
+    protected final MqttClientConnection connection;
+    protected final ClientTlsContext tlsContext;
+    protected final Executor executor;
+    protected final RequestCorrelator correlator;
+
+    // One MQTT subscription per topic filter, shared by all of the filter's publishers
+    protected static class TopicSubscription {
+        protected final CopyOnWriteArrayList<MqttTopicPublisher> publishers = new CopyOnWriteArrayList<MqttTopicPublisher>();
+        protected final CompletableFuture<Integer> suback = new CompletableFuture<Integer>();
+
+        protected void dispatch(MqttMessage message) {
+            for (MqttTopicPublisher pub : this.publishers) {
+                pub.getMessageHandler().accept(message);
+            }
+        }
+    }
+
+    // Response topic subscription for request/response services, shared by the outstanding requests that need it
+    protected static class ResponseSubscription {
+        protected CompletableFuture<Integer> suback = null;
+        protected int refs = 0;
+    }
+
+    // A request waiting for its response topic subscription to fit within the subscription quota
+    protected static class PendingRequest {
+        protected final String responseTopicFilter;
+        protected final String requestTopic;
+        protected final String jsonFields;
+        protected final CompletableFuture<RequestCorrelator.Response> result = new CompletableFuture<RequestCorrelator.Response>();
+
+        protected PendingRequest(String responseTopicFilter, String requestTopic, String jsonFields) {
+            this.responseTopicFilter = responseTopicFilter;
+            this.requestTopic = requestTopic;
+            this.jsonFields = jsonFields;
+        }
+    }
+
+    // Guarded by this
+    protected final HashMap<String, TopicSubscription> topicSubscriptions = new HashMap<String, TopicSubscription>();
+    protected final HashMap<String, ResponseSubscription> responseSubscriptions = new HashMap<String, ResponseSubscription>();
+    protected final ArrayDeque<PendingRequest> pendingRequests = new ArrayDeque<PendingRequest>();
+    // Response subscriptions that were removed but not yet acknowledged (they still count against the quota)
+    protected int responseUnsubscribesInFlight = 0;
+    protected boolean closed = false;
+
+
+    public AwsIotSession(@NotNull MqttClientConnection connection, ClientTlsContext tlsContext) {
+        this(connection, tlsContext, ForkJoinPool.commonPool(), DEFAULT_MAX_IN_FLIGHT, DEFAULT_TIMEOUT_MS);
+    }
+
+    // tlsContext is only needed for getIamCredentials(). Flow subscribers are signalled on executor.
+    // maxInFlight and timeoutMs apply to request/response services.
+    public AwsIotSession(@NotNull MqttClientConnection connection, ClientTlsContext tlsContext, @NotNull Executor executor, int maxInFlight, long timeoutMs) {
+        this.connection = connection;
+        this.tlsContext = tlsContext;
+        this.executor = executor;
+        this.correlator = new RequestCorrelator((MqttMessage msg) -> this.connection.publish(msg), maxInFlight, timeoutMs);
+    }
+
+
+    public MqttClientConnection getConnection() {
+        return this.connection;
+    }
+
+
+    // Completes with true if an existing session was resumed
+    public CompletableFuture<Boolean> connect() {
+        return this.connection.connect();
+    }
+
+
+    public CompletableFuture<Integer> publish(@NotNull MqttMessage message) {
+        return this.connection.publish(message);
+    }
+
+
+    public MqttTopicPublisher subscribe(@NotNull String topicFilter) {
+        return this.subscribe(topicFilter, QualityOfService.AT_LEAST_ONCE, DEFAULT_BUFFER_CAPACITY);
+    }
+
+
+    // Subscribes to the topic filter and returns a stream of the received messages. Closing the returned
+    // publisher completes its subscribers, and unsubscribes from the topic filter if no other publisher
+    // for it is open; if the subscription is rejected, the subscribers are failed with the error.
+    public MqttTopicPublisher subscribe(@NotNull final String topicFilter, @NotNull QualityOfService qos, int bufferCapacity) {
+        final MqttTopicPublisher publisher = new MqttTopicPublisher(topicFilter, this.executor, bufferCapacity);
+        TopicSubscription sub = null;
+        boolean first = false;
+        synchronized (this) {
+            if (this.closed) {
+                throw new IllegalStateException("Session is closed");
+            }
+            sub = this.topicSubscriptions.get(topicFilter);
+            if (sub == null) {
+                sub = new TopicSubscription();
+                this.topicSubscriptions.put(topicFilter, sub);
+                first = true;
+            }
+            sub.publishers.add(publisher);
+        }
+        final TopicSubscription topicSub = sub;
+        publisher.setOnClose(() -> {
+            boolean last = false;
+            synchronized (this) {
+                topicSub.publishers.remove(publisher);
+                if (topicSub.publishers.isEmpty() && this.topicSubscriptions.get(topicFilter) == topicSub) {
+                    this.topicSubscriptions.remove(topicFilter);
+                    last = true;
+                }
+            }
+            if (last) {
+                // Frees up quota for queued requests once the broker acknowledges the removal
+                this.connection.unsubscribe(topicFilter).whenComplete((Integer packetId, Throwable err) -> this.startPendingRequests());
+            }
+        });
+        if (first) {
+            this.connection.subscribe(topicFilter, qos, topicSub::dispatch).whenComplete((Integer packetId, Throwable err) -> {
+                if (err != null) {
+                    topicSub.suback.completeExceptionally(err);
+                } else {
+                    topicSub.suback.complete(packetId);
+                }
+            });
+        }
+        topicSub.suback.whenComplete((Integer packetId, Throwable err) -> {
+            if (err != null) {
+                publisher.closeExceptionally(err);
+            }
+        });
+        return publisher;
+    }
+
+
+    // Gets a device shadow (shadowName == null for the classic shadow). The response may be accepted or
+    // rejected; requests that time out fail with a TimeoutException.
+    public CompletableFuture<RequestCorrelator.Response> getShadow(@NotNull String thingName, String shadowName) {
+        String topicPrefix = "$aws/things/" + thingName + "/shadow/" + (shadowName == null ? "" : "name/" + shadowName + "/");
+        return this.request(topicPrefix + "get/+", topicPrefix + "get", "");
+    }
+
+
+    // Gets the in-progress and queued jobs for the thing
+    public CompletableFuture<RequestCorrelator.Response> getPendingJobs(@NotNull String thingName) {
+        String topicPrefix = "$aws/things/" + thingName + "/jobs/";
+        return this.request(topicPrefix + "get/+", topicPrefix + "get", "");
+    }
+
+
+    // Gets the details (including the job document) for one job
+    public CompletableFuture<RequestCorrelator.Response> getJob(@NotNull String thingName, @NotNull String jobId) {
+        String topicPrefix = "$aws/things/" + thingName + "/jobs/";
+        return this.request(topicPrefix + "+/get/+", topicPrefix + jobId + "/get", "\"includeJobDocument\":true");
+    }
+
+
+    // Requests temporary IAM credentials for the role alias from the AWS IoT credentials provider
+    // endpoint (e.g., "<id>.credentials.iot.<region>.amazonaws.com") using the session's X.509 client
+    // certificate
+    public CompletableFuture<Credentials> getIamCredentials(@NotNull String endpoint, @NotNull String roleAlias, @NotNull String thingName) {
+        if (this.tlsContext == null) {
+            CompletableFuture<Credentials> failed = new CompletableFuture<Credentials>();
+            failed.completeExceptionally(new IllegalStateException("Session has no TLS context for the credentials provider"));
+            return failed;
+        }
+        final X509CredentialsProvider credsProvider = new X509CredentialsProvider.X509CredentialsProviderBuilder()
+            .withTlsContext(this.tlsContext)
+            .withEndpoint(endpoint)
+            .withRoleAlias(roleAlias)
+            .withThingName(thingName)
+            .build();
+        return credsProvider.getCredentials().whenComplete((Credentials creds, Throwable err) -> credsProvider.close());
+    }
+
+
+    // Unsubscribes from all of this session's topics, completes its publishers, and fails any
+    // outstanding requests. The MQTT connection is left open.
+    @Override
+    public void close() {
+        ArrayList<MqttTopicPublisher> pubs = null;
+        ArrayList<String> responseTopics = null;
+        ArrayList<PendingRequest> pending = null;
+        synchronized (this) {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            pubs = new ArrayList<MqttTopicPublisher>();
+            for (TopicSubscription sub : this.topicSubscriptions.values()) {
+                pubs.addAll(sub.publishers);
+            }
+            responseTopics = new ArrayList<String>(this.responseSubscriptions.keySet());
+            this.responseSubscriptions.clear();
+            pending = new ArrayList<PendingRequest>(this.pendingRequests);
+            this.pendingRequests.clear();
+        }
+        for (MqttTopicPublisher pub : pubs) {
+            pub.close();
+        }
+        for (PendingRequest req : pending) {
+            req.result.completeExceptionally(new IllegalStateException("Session is closed"));
+        }
+        for (String topic : responseTopics) {
+            this.connection.unsubscribe(topic);
+        }
+        this.correlator.close();
+    }
+
+
+    // Queues the request; it's sent once its response topic subscription is in place
+    protected CompletableFuture<RequestCorrelator.Response> request(String responseTopicFilter, String requestTopic, String jsonFields) {
+        PendingRequest req = new PendingRequest(responseTopicFilter, requestTopic, jsonFields);
+        synchronized (this) {
+            if (this.closed) {
+                req.result.completeExceptionally(new IllegalStateException("Session is closed"));
+                return req.result;
+            }
+            this.pendingRequests.addLast(req);
+        }
+        this.startPendingRequests();
+        return req.result;
+    }
+
+
+    // Sends queued requests in order, subscribing to their response topics as long as the session's
+    // subscriptions stay within the per-connection quota
+    protected void startPendingRequests() {
+        ArrayList<PendingRequest> starting = new ArrayList<PendingRequest>();
+        ArrayList<ResponseSubscription> subs = new ArrayList<ResponseSubscription>();
+        synchronized (this) {
+            int maxResponseSubscriptions = Math.max(1, AwsIotConstants.MQTT_MAX_SUBSCRIPTIONS - this.topicSubscriptions.size());
+            while (!this.closed && !this.pendingRequests.isEmpty()) {
+                PendingRequest req = this.pendingRequests.peekFirst();
+                ResponseSubscription sub = this.responseSubscriptions.get(req.responseTopicFilter);
+                if (sub == null || sub.suback.isCompletedExceptionally()) {
+                    if (this.responseSubscriptions.size() + this.responseUnsubscribesInFlight >= maxResponseSubscriptions) {
+                        // Resumed when an outstanding request's response subscription is removed
+                        break;
+                    }
+                    sub = new ResponseSubscription();
+                    sub.suback = this.connection.subscribe(req.responseTopicFilter, QualityOfService.AT_LEAST_ONCE, this.correlator.getResponseHandler());
+                    this.responseSubscriptions.put(req.responseTopicFilter, sub);
+                }
+                sub.refs++;
+                this.pendingRequests.pollFirst();
+                starting.add(req);
+                subs.add(sub);
+            }
+        }
+        for (int i = 0; i < starting.size(); i++) {
+            final PendingRequest req = starting.get(i);
+            final ResponseSubscription sub = subs.get(i);
+            sub.suback.thenCompose((Integer packetId) -> this.correlator.request(req.requestTopic, req.jsonFields))
+                .whenComplete((RequestCorrelator.Response resp, Throwable err) -> {
+                    this.releaseResponseSubscription(req.responseTopicFilter, sub);
+                    if (err != null) {
+                        req.result.completeExceptionally(err);
+                    } else {
+                        req.result.complete(resp);
+                    }
+                });
+        }
+    }
+
+
+    // Unsubscribes from the response topic once no outstanding request needs it
+    protected void releaseResponseSubscription(final String responseTopicFilter, ResponseSubscription sub) {
+        synchronized (this) {
+            sub.refs--;
+            if (sub.refs > 0 || this.responseSubscriptions.get(responseTopicFilter) != sub) {
+                return;
+            }
+            this.responseSubscriptions.remove(responseTopicFilter);
+            this.responseUnsubscribesInFlight++;
+        }
+        // The subscription counts against the quota until the broker acknowledges its removal
+        this.connection.unsubscribe(responseTopicFilter).whenComplete((Integer packetId, Throwable err) -> {
+            synchronized (this) {
+                this.responseUnsubscribesInFlight--;
+            }
+            this.startPendingRequests();
+        });
+    }
+}
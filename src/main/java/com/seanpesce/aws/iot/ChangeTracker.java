@@ -0,0 +1,158 @@
+// Author: Sean Pesce
+//
+// Keeps the last result of a repeatedly-polled action (see the poll action) and reports only what
+// changed since the previous poll. A result is a set of subjects (e.g., a device shadow, a job
+// execution, or a retained topic), each with a flat map of field paths to values (see JsonFlattener);
+// changes are reported per field as added, removed, or modified.
+//
+// Subjects that couldn't be fetched in a poll (e.g., due to a timeout) are marked unknown, so their
+// last known fields are kept rather than reported as removed.
+
+package com.seanpesce.aws.iot;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.validation.constraints.NotNull;
+
+
+public class ChangeTracker {
+
+    public static final String CHANGE_ADDED = "added";
+    public static final String CHANGE_REMOVED = "removed";
+    public static final String CHANGE_MODIFIED = "modified";
+
+
+    public static class Change {
+        public final String kind;
+        public final String subject;
+        public final String path;
+        public final String oldValue;  // null if added
+        public final String newValue;  // null if removed
+
+        protected Change(String kind, String subject, String path, String oldValue, String newValue) {
+            this.kind = kind;
+            this.subject = subject;
+            this.path = path;
+            this.oldValue = oldValue;
+            this.newValue = newValue;
+        }
+    }
+
+
+    // The result of one poll. Thread-safe, so it can be filled in by asynchronous response handlers.
+    public static class Snapshot {
+        protected final LinkedHashMap<String, Map<String, String>> subjects = new LinkedHashMap<String, Map<String, String>>();
+        protected final HashSet<String> unknownSubjects = new HashSet<String>();
+        protected final ArrayList<String> unknownPrefixes = new ArrayList<String>();
+
+        public synchronized void put(@NotNull String subject, @NotNull Map<String, String> fields) {
+            this.subjects.put(subject, fields);
+            this.unknownSubjects.remove(subject);
+        }
+
+        // The subject's current state couldn't be determined (yet)
+        public synchronized void markUnknown(@NotNull String subject) {
+            this.unknownSubjects.add(subject);
+        }
+
+        // The subject exists no more (or never did)
+        public synchronized void markAbsent(@NotNull String subject) {
+            this.unknownSubjects.remove(subject);
+        }
+
+        // None of the subjects starting with prefix could be determined (yet)
+        public synchronized void markUnknownPrefix(@NotNull String prefix) {
+            this.unknownPrefixes.add(prefix);
+        }
+
+        public synchronized void clearUnknownPrefix(@NotNull String prefix) {
+            this.unknownPrefixes.remove(prefix);
+        }
+
+        public synchronized int getUnknownCount() {
+            return this.unknownSubjects.size() + this.unknownPrefixes.size();
+        }
+
+        protected synchronized boolean isUnknown(String subject) {
+            if (this.unknownSubjects.contains(subject)) {
+                return true;
+            }
+            for (String prefix : this.unknownPrefixes) {
+                if (subject.startsWith(prefix)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+
+    protected final HashMap<String, Map<String, String>> last = new HashMap<String, Map<String, String>>();
+    protected long pollCount = 0;
+    protected long changeCount = 0;
+
+
+    // Replaces the last result with the snapshot, and returns the differences
+    public synchronized List<Change> update(@NotNull Snapshot snapshot) {
+        ArrayList<Change> changes = new ArrayList<Change>();
+        synchronized (snapshot) {
+            for (Map.Entry<String, Map<String, String>> entry : snapshot.subjects.entrySet()) {
+                String subject = entry.getKey();
+                Map<String, String> fields = entry.getValue();
+                Map<String, String> previous = this.last.get(subject);
+                if (previous == null) {
+                    previous = new HashMap<String, String>();
+                }
+                for (Map.Entry<String, String> field : fields.entrySet()) {
+                    String oldValue = previous.get(field.getKey());
+                    if (oldValue == null && !previous.containsKey(field.getKey())) {
+                        changes.add(new Change(CHANGE_ADDED, subject, field.getKey(), null, field.getValue()));
+                    } else if (oldValue == null ? field.getValue() != null : !oldValue.equals(field.getValue())) {
+                        changes.add(new Change(CHANGE_MODIFIED, subject, field.getKey(), oldValue, field.getValue()));
+                    }
+                }
+                for (Map.Entry<String, String> field : previous.entrySet()) {
+                    if (!fields.containsKey(field.getKey())) {
+                        changes.add(new Change(CHANGE_REMOVED, subject, field.getKey(), field.getValue(), null));
+                    }
+                }
+                this.last.put(subject, fields);
+            }
+
+            Iterator<Map.Entry<String, Map<String, String>>> it = this.last.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Map<String, String>> entry = it.next();
+                String subject = entry.getKey();
+                if (snapshot.subjects.containsKey(subject) || snapshot.isUnknown(subject)) {
+                    continue;
+                }
+                for (Map.Entry<String, String> field : entry.getValue().entrySet()) {
+                    changes.add(new Change(CHANGE_REMOVED, subject, field.getKey(), field.getValue(), null));
+                }
+                it.remove();
+            }
+        }
+        this.pollCount++;
+        this.changeCount += changes.size();
+        return changes;
+    }
+
+
+    public synchronized int getSubjectCount() {
+        return this.last.size();
+    }
+
+    public synchronized long getPollCount() {
+        return this.pollCount;
+    }
+
+    public synchronized long getChangeCount() {
+        return this.changeCount;
+    }
+}
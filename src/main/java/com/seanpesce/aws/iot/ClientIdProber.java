@@ -0,0 +1,130 @@
+// Author: Sean Pesce
+//
+// Tests which MQTT client IDs the current credentials are allowed to connect with (i.e., the
+// iot:Connect resources in the attached policy). Up to a fixed number of CONNECT attempts run in
+// parallel. Connections are created by a caller-provided factory; with AwsIotMqttConnectionBuilder,
+// every connection built from the same builder shares one TLS context (and one copy of the parsed
+// key material), so only the client ID changes between attempts.
+//
+// Note that AWS IoT Core disconnects any existing client that is using the same client ID, so
+// probing the client ID of a live device will interrupt that device's connection.
+
+package com.seanpesce.aws.iot;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import javax.validation.constraints.NotNull;
+
+import software.amazon.awssdk.crt.mqtt.MqttClientConnection;
+
+
+public class ClientIdProber {
+
+    public static final String ACCEPTED = "accepted";
+    public static final String REJECTED = "rejected";
+    public static final String TIMEOUT = "timeout";
+
+    public static class Result {
+        public final String clientId;
+        public String status = null;
+        public long latencyMs = -1;
+        public String error = null;
+
+        public Result(String clientId) {
+            this.clientId = clientId;
+        }
+
+        @Override
+        public String toString() {
+            return this.status + "\t" + this.latencyMs + "ms\t" + this.clientId + (this.error != null ? "\t" + this.error : "");
+        }
+    }
+
+
+    protected final Function<String, MqttClientConnection> connectionFactory;
+    protected final int concurrency;
+    protected final long timeoutMs;
+
+
+    // connectionFactory must return a new (unconnected) connection for the given client ID
+    public ClientIdProber(@NotNull Function<String, MqttClientConnection> connectionFactory, int concurrency, long timeoutMs) {
+        this.connectionFactory = connectionFactory;
+        this.concurrency = Math.max(1, concurrency);
+        this.timeoutMs = Math.max(1, timeoutMs);
+    }
+
+
+    // Attempts to connect with each client ID and returns one result per ID (in the same order)
+    public List<Result> probe(@NotNull List<String> clientIds) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(this.concurrency, Math.max(1, clientIds.size())), r -> {
+            Thread t = new Thread(r, "client-id-probe");
+            t.setDaemon(true);
+            return t;
+        });
+        List<Result> results = new ArrayList<Result>(clientIds.size());
+        List<Future<?>> tasks = new ArrayList<Future<?>>(clientIds.size());
+        try {
+            for (final String id : clientIds) {
+                final Result r = new Result(id);
+                results.add(r);
+                tasks.add(pool.submit(() -> this.probe(r)));
+            }
+            for (Future<?> task : tasks) {
+                try {
+                    task.get();
+                } catch (ExecutionException ex) {
+                    // Recorded in the result
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return results;
+    }
+
+
+    protected void probe(Result r) {
+        MqttClientConnection conn = null;
+        long start = System.nanoTime();
+        try {
+            conn = this.connectionFactory.apply(r.clientId);
+            start = System.nanoTime();
+            CompletableFuture<Boolean> connected = conn.connect();
+            connected.get(this.timeoutMs, TimeUnit.MILLISECONDS);
+            r.latencyMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            r.status = ACCEPTED;
+        } catch (TimeoutException ex) {
+            r.latencyMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            r.status = TIMEOUT;
+        } catch (ExecutionException ex) {
+            r.latencyMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            r.status = REJECTED;
+            r.error = ex.getCause() != null ? ex.getCause().getMessage() : ex.getMessage();
+        } catch (InterruptedException ex) {
+            r.status = TIMEOUT;
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException ex) {
+            r.status = REJECTED;
+            r.error = ex.toString();
+        } finally {
+            if (conn != null) {
+                // Also stops any automatic reconnect attempts
+                try {
+                    conn.disconnect().get(this.timeoutMs, TimeUnit.MILLISECONDS);
+                } catch (Exception ex) {
+                    // Already disconnected
+                }
+                conn.close();
+            }
+        }
+    }
+}
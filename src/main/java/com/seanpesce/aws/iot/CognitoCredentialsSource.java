@@ -0,0 +1,218 @@
+// Author: Sean Pesce
+//
+// Obtains temporary AWS credentials from a Cognito identity pool, for use with
+// RefreshingCredentialsProvider. If a user pool is specified, the user is first authenticated against
+// it (USER_PASSWORD_AUTH, or REFRESH_TOKEN_AUTH with a refresh token from a previous login) and the
+// resulting ID token is used as the identity's login; otherwise, unauthenticated (guest) credentials
+// are requested. ID tokens are renewed with the user pool's refresh token when they expire, falling
+// back to a full login if that fails.
+//
+// https://docs.aws.amazon.com/cognito/latest/developerguide/authentication-flow.html
+
+package com.seanpesce.aws.iot;
+
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.validation.constraints.NotNull;
+
+import software.amazon.awssdk.auth.credentials.AnonymousCredentialsProvider;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.cognitoidentity.CognitoIdentityClient;
+import software.amazon.awssdk.services.cognitoidentity.CognitoIdentityClientBuilder;
+import software.amazon.awssdk.services.cognitoidentity.model.GetCredentialsForIdentityRequest;
+import software.amazon.awssdk.services.cognitoidentity.model.GetCredentialsForIdentityResponse;
+import software.amazon.awssdk.services.cognitoidentity.model.GetIdRequest;
+import software.amazon.awssdk.services.cognitoidentityprovider.CognitoIdentityProviderClient;
+import software.amazon.awssdk.services.cognitoidentityprovider.CognitoIdentityProviderClientBuilder;
+import software.amazon.awssdk.services.cognitoidentityprovider.model.AuthenticationResultType;
+import software.amazon.awssdk.services.cognitoidentityprovider.model.AuthFlowType;
+import software.amazon.awssdk.services.cognitoidentityprovider.model.InitiateAuthRequest;
+import software.amazon.awssdk.services.cognitoidentityprovider.model.InitiateAuthResponse;
+
+
+public class CognitoCredentialsSource implements RefreshingCredentialsProvider.Source, AutoCloseable {
+
+    public static final String[] AUTH_FLOWS = { AuthFlowType.USER_PASSWORD_AUTH.name(), AuthFlowType.REFRESH_TOKEN_AUTH.name() };
+    // Renew ID tokens this long before they expire
+    public static final long TOKEN_REFRESH_MARGIN_MS = 60 * 1000;
+
+
+    protected final Region region;
+    protected final String identityPoolId;
+    protected final String userPoolId;
+    protected final String clientId;
+    protected final String clientSecret;
+    protected final AuthFlowType authFlow;
+    protected final String username;
+    protected final String password;
+    protected final CognitoIdentityClient identityClient;
+    protected final CognitoIdentityProviderClient userPoolClient;
+
+    protected String identityId = null;
+    protected String idToken = null;
+    protected String refreshToken = null;
+    protected long idTokenExpiration = 0;
+
+
+    // For unauthenticated (guest) identities
+    public CognitoCredentialsSource(@NotNull String region, @NotNull String identityPoolId, URI endpoint) {
+        this(region, identityPoolId, null, null, null, null, null, null, endpoint);
+    }
+
+
+    // For user pool logins. For REFRESH_TOKEN_AUTH, username is the refresh token (and password is
+    // unused). clientSecret is only needed if the app client has a secret. endpoint overrides the
+    // Cognito service endpoints (e.g., a local test server); null for the default endpoints.
+    public CognitoCredentialsSource(@NotNull String region, @NotNull String identityPoolId, String userPoolId, String clientId, String clientSecret, String authFlow, String username, String password, URI endpoint) {
+        this.region = Region.of(region);
+        this.identityPoolId = identityPoolId;
+        this.userPoolId = userPoolId;
+        this.clientId = clientId;
+        this.clientSecret = clientSecret;
+        this.authFlow = authFlow == null ? AuthFlowType.USER_PASSWORD_AUTH : AuthFlowType.fromValue(authFlow);
+        this.username = username;
+        this.password = password;
+        if (userPoolId != null) {
+            if (clientId == null || username == null) {
+                throw new IllegalArgumentException("Cognito user pool login requires a client ID and username (or refresh token)");
+            }
+            if (this.authFlow == AuthFlowType.USER_PASSWORD_AUTH && password == null) {
+                throw new IllegalArgumentException(AuthFlowType.USER_PASSWORD_AUTH + " requires a password");
+            }
+            if (this.authFlow != AuthFlowType.USER_PASSWORD_AUTH && this.authFlow != AuthFlowType.REFRESH_TOKEN_AUTH) {
+                throw new IllegalArgumentException("Unsupported Cognito auth flow: " + authFlow + " (supported: " + String.join(", ", AUTH_FLOWS) + ")");
+            }
+            if (this.authFlow == AuthFlowType.REFRESH_TOKEN_AUTH) {
+                this.refreshToken = username;
+            }
+        }
+
+        // These operations are unsigned, so no AWS credentials are needed to call them
+        CognitoIdentityClientBuilder identityBuilder = CognitoIdentityClient.builder().region(this.region).credentialsProvider(AnonymousCredentialsProvider.create());
+        if (endpoint != null) {
+            identityBuilder = identityBuilder.endpointOverride(endpoint);
+        }
+        this.identityClient = identityBuilder.build();
+        if (userPoolId != null) {
+            CognitoIdentityProviderClientBuilder userPoolBuilder = CognitoIdentityProviderClient.builder().region(this.region).credentialsProvider(AnonymousCredentialsProvider.create());
+            if (endpoint != null) {
+                userPoolBuilder = userPoolBuilder.endpointOverride(endpoint);
+            }
+            this.userPoolClient = userPoolBuilder.build();
+        } else {
+            this.userPoolClient = null;
+        }
+    }
+
+
+    @Override
+    public synchronized RefreshingCredentialsProvider.ExpiringCredentials fetch() throws Exception {
+        Map<String, String> logins = null;
+        if (this.userPoolClient != null) {
+            if (this.idToken == null || System.currentTimeMillis() >= this.idTokenExpiration - TOKEN_REFRESH_MARGIN_MS) {
+                this.login();
+            }
+            logins = new HashMap<String, String>();
+            logins.put("cognito-idp." + this.region.id() + ".amazonaws.com/" + this.userPoolId, this.idToken);
+        }
+
+        if (this.identityId == null) {
+            GetIdRequest.Builder getId = GetIdRequest.builder().identityPoolId(this.identityPoolId);
+            if (logins != null) {
+                getId = getId.logins(logins);
+            }
+            this.identityId = this.identityClient.getId(getId.build()).identityId();
+            System.err.println("[INFO] Cognito identity ID: " + this.identityId);
+        }
+
+        GetCredentialsForIdentityRequest.Builder getCreds = GetCredentialsForIdentityRequest.builder().identityId(this.identityId);
+        if (logins != null) {
+            getCreds = getCreds.logins(logins);
+        }
+        GetCredentialsForIdentityResponse resp = this.identityClient.getCredentialsForIdentity(getCreds.build());
+        if (resp.credentials() == null) {
+            throw new IOException("Cognito returned no credentials for identity " + this.identityId);
+        }
+        return new RefreshingCredentialsProvider.ExpiringCredentials(resp.credentials().accessKeyId(),
+                                                                     resp.credentials().secretKey(),
+                                                                     resp.credentials().sessionToken(),
+                                                                     resp.credentials().expiration().toEpochMilli());
+    }
+
+
+    @Override
+    public void close() {
+        this.identityClient.close();
+        if (this.userPoolClient != null) {
+            this.userPoolClient.close();
+        }
+    }
+
+
+    // Obtains a new ID token, with the refresh token if there is one
+    protected void login() throws Exception {
+        if (this.refreshToken != null) {
+            try {
+                this.initiateAuth(AuthFlowType.REFRESH_TOKEN_AUTH);
+                return;
+            } catch (Exception ex) {
+                if (this.authFlow == AuthFlowType.REFRESH_TOKEN_AUTH) {
+                    throw ex;
+                }
+                System.err.println("[WARNING] Failed to renew Cognito tokens with refresh token (" + ex.getMessage() + "); logging in again");
+            }
+        }
+        this.initiateAuth(AuthFlowType.USER_PASSWORD_AUTH);
+    }
+
+
+    protected void initiateAuth(AuthFlowType flow) throws Exception {
+        Map<String, String> params = new HashMap<String, String>();
+        String secretHashUser = this.username;
+        if (flow == AuthFlowType.REFRESH_TOKEN_AUTH) {
+            params.put("REFRESH_TOKEN", this.refreshToken);
+            // If only a refresh token was provided, the username (needed for the secret hash) isn't known
+            secretHashUser = this.authFlow == AuthFlowType.REFRESH_TOKEN_AUTH ? null : this.username;
+        } else {
+            params.put("USERNAME", this.username);
+            params.put("PASSWORD", this.password);
+        }
+        if (this.clientSecret != null && secretHashUser != null) {
+            params.put("SECRET_HASH", secretHash(secretHashUser, this.clientId, this.clientSecret));
+        }
+
+        InitiateAuthRequest req = InitiateAuthRequest.builder()
+                                    .authFlow(flow)
+                                    .clientId(this.clientId)
+                                    .authParameters(params)
+                                    .build();
+        InitiateAuthResponse resp = this.userPoolClient.initiateAuth(req);
+        AuthenticationResultType result = resp.authenticationResult();
+        if (result == null) {
+            throw new IOException("Cognito login requires an unsupported challenge: " + resp.challengeNameAsString());
+        }
+        this.idToken = result.idToken();
+        this.idTokenExpiration = System.currentTimeMillis() + (result.expiresIn() == null ? 3600 : result.expiresIn()) * 1000L;
+        if (result.refreshToken() != null) {
+            // Not returned by REFRESH_TOKEN_AUTH
+            this.refreshToken = result.refreshToken();
+        }
+    }
+
+
+    // https://docs.aws.amazon.com/cognito/latest/developerguide/signing-up-users-in-your-app.html#cognito-user-pools-computing-secret-hash
+    public static String secretHash(@NotNull String username, @NotNull String clientId, @NotNull String clientSecret) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(clientSecret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+        mac.update(username.getBytes(StandardCharsets.UTF_8));
+        return Base64.getEncoder().encodeToString(mac.doFinal(clientId.getBytes(StandardCharsets.UTF_8)));
+    }
+}
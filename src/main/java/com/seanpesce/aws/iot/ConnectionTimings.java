@@ -0,0 +1,308 @@
+// Author: Sean Pesce
+//
+// Latency breakdown for establishing an MQTT connection: local setup (credentials, key material,
+// connection builder), DNS resolution, TCP connect, TLS handshake, MQTT connect (through CONNACK),
+// and each SUBACK.
+//
+// The SDK performs DNS, TCP, TLS, (WebSocket upgrade,) and CONNECT/CONNACK inside a single connect()
+// call without exposing per-phase timing, so the network phases are measured by a separate probe of
+// the same endpoint just before connecting (probeNetwork()). The CONNACK time is then estimated as
+// the SDK connect time minus the probed TCP and TLS times (the SDK's DNS lookup is normally answered
+// from cache after the probe). For MQTT-over-WebSocket, the upgrade is included in the CONNACK estimate.
+//
+// Runs can be appended to a log file (one JSON object per line) and aggregated per endpoint, e.g.,
+// when the same command is run against many endpoints or devices.
+
+package com.seanpesce.aws.iot;
+
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import javax.validation.constraints.NotNull;
+
+import com.seanpesce.json.JsonEncoder;
+import com.seanpesce.json.JsonPathExtractor;
+
+
+public class ConnectionTimings {
+
+    public static final String PHASE_SETUP = "setup";
+    public static final String PHASE_DNS = "dns";
+    public static final String PHASE_TCP = "tcp";
+    public static final String PHASE_TLS = "tls";
+    public static final String PHASE_CONNECT = "connect";
+    public static final String PHASE_CONNACK = "connack";
+    public static final String PHASE_SUBACK = "suback";
+    public static final List<String> PHASES = Collections.unmodifiableList(Arrays.asList(new String[]{
+        PHASE_SETUP,
+        PHASE_DNS,
+        PHASE_TCP,
+        PHASE_TLS,
+        PHASE_CONNECT,
+        PHASE_CONNACK,
+        PHASE_SUBACK
+    }));
+
+    // The probe only measures the handshake, so the server certificate isn't verified
+    protected static final TrustManager[] PROBE_TRUST_MANAGER = {
+        new X509TrustManager() {
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+
+            @Override
+            public void checkClientTrusted(X509Certificate[] certificates, String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] certificates, String authType) {
+            }
+        }
+    };
+
+
+    protected final String endpoint;
+    // Phase -> duration (ms)
+    protected final LinkedHashMap<String, Double> phases = new LinkedHashMap<String, Double>();
+    protected final ArrayList<Double> subacks = new ArrayList<Double>();
+    protected String tlsProtocol = null;
+
+
+    public ConnectionTimings(@NotNull String endpoint) {
+        this.endpoint = endpoint;
+    }
+
+
+    public String getEndpoint() {
+        return this.endpoint;
+    }
+
+
+    // Records the time since startNanos (from System.nanoTime())
+    public synchronized void record(@NotNull String phase, long startNanos) {
+        this.phases.put(phase, (System.nanoTime() - startNanos) / 1e6);
+    }
+
+
+    public synchronized void recordSuback(long startNanos) {
+        this.subacks.add((System.nanoTime() - startNanos) / 1e6);
+    }
+
+
+    public synchronized Double get(@NotNull String phase) {
+        return this.phases.get(phase);
+    }
+
+
+    // Measures DNS resolution, TCP connect, and TLS handshake (without a client certificate) times for
+    // the endpoint. Returns false if any phase failed (phases before the failure are still recorded).
+    public boolean probeNetwork(@NotNull String host, int port, int timeoutMs) {
+        long start = System.nanoTime();
+        InetAddress addr;
+        try {
+            addr = InetAddress.getByName(host);
+        } catch (IOException ex) {
+            System.err.println("[WARNING] Connection timing probe failed to resolve " + host + ": " + ex.getMessage());
+            return false;
+        }
+        this.record(PHASE_DNS, start);
+
+        try (Socket sock = new Socket()) {
+            start = System.nanoTime();
+            sock.connect(new InetSocketAddress(addr, port), timeoutMs);
+            this.record(PHASE_TCP, start);
+
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(null, PROBE_TRUST_MANAGER, null);
+            try (SSLSocket ssl = (SSLSocket)sslContext.getSocketFactory().createSocket(sock, host, port, true)) {
+                ssl.setSoTimeout(timeoutMs);
+                start = System.nanoTime();
+                try {
+                    ssl.startHandshake();
+                    synchronized (this) {
+                        this.tlsProtocol = ssl.getSession().getProtocol();
+                    }
+                } finally {
+                    // A server that requires a client certificate may reject the handshake (TLS 1.2), but
+                    // only after the round trips being measured
+                    this.record(PHASE_TLS, start);
+                }
+            }
+        } catch (IOException | GeneralSecurityException ex) {
+            System.err.println("[WARNING] Connection timing probe of " + host + ":" + port + " failed: " + ex.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+
+    // Records the SDK connect time (through CONNACK) and estimates the CONNACK phase from the probe
+    public synchronized void recordConnect(long startNanos) {
+        this.record(PHASE_CONNECT, startNanos);
+        Double tcp = this.phases.get(PHASE_TCP);
+        Double tls = this.phases.get(PHASE_TLS);
+        if (tcp != null && tls != null) {
+            this.phases.put(PHASE_CONNACK, Math.max(0.0, this.phases.get(PHASE_CONNECT) - tcp - tls));
+        }
+    }
+
+
+    // e.g., "setup=210.4ms dns=3.1ms tcp=24.9ms tls=61.0ms (TLSv1.3) connect=142.7ms connack~56.8ms suback[3]: min=25.2ms median=26.0ms max=30.9ms"
+    public synchronized String format() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Double> e : this.phases.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append(e.getKey()).append(e.getKey().equals(PHASE_CONNACK) ? "~" : "=").append(formatMs(e.getValue()));
+            if (e.getKey().equals(PHASE_TLS) && this.tlsProtocol != null) {
+                sb.append(" (").append(this.tlsProtocol).append(')');
+            }
+        }
+        if (!this.subacks.isEmpty()) {
+            double[] sorted = toSortedArray(this.subacks);
+            sb.append(sb.length() > 0 ? " " : "").append(PHASE_SUBACK).append('[').append(sorted.length).append("]: min=").append(formatMs(sorted[0]))
+              .append(" median=").append(formatMs(percentile(sorted, 50))).append(" max=").append(formatMs(sorted[sorted.length - 1]));
+        }
+        return sb.toString();
+    }
+
+
+    public synchronized LinkedHashMap<String, Object> toFields() {
+        LinkedHashMap<String, Object> fields = new LinkedHashMap<String, Object>();
+        fields.put("time", System.currentTimeMillis());
+        fields.put("endpoint", this.endpoint);
+        for (Map.Entry<String, Double> e : this.phases.entrySet()) {
+            fields.put(e.getKey(), Math.round(e.getValue() * 1000) / 1000.0);
+        }
+        if (this.tlsProtocol != null) {
+            fields.put("tlsProtocol", this.tlsProtocol);
+        }
+        if (!this.subacks.isEmpty()) {
+            ArrayList<Double> rounded = new ArrayList<Double>();
+            for (double d : this.subacks) {
+                rounded.add(Math.round(d * 1000) / 1000.0);
+            }
+            fields.put(PHASE_SUBACK, rounded);
+        }
+        return fields;
+    }
+
+
+    // Appends this run to a log file (one JSON object per line)
+    public void appendTo(@NotNull String path) throws IOException {
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(path, true), StandardCharsets.UTF_8)) {
+            out.write(JsonEncoder.encode(this.toFields()) + "\n");
+        }
+    }
+
+
+    // Reads a log file written by appendTo() and returns the samples for each endpoint and phase
+    // (endpoint -> phase -> durations in ms, sorted)
+    public static LinkedHashMap<String, LinkedHashMap<String, double[]>> aggregate(@NotNull String path) throws IOException {
+        ArrayList<String> paths = new ArrayList<String>();
+        paths.add("endpoint");
+        paths.addAll(PHASES);
+        JsonPathExtractor extractor = new JsonPathExtractor(paths);
+        LinkedHashMap<String, LinkedHashMap<String, List<Double>>> samples = new LinkedHashMap<String, LinkedHashMap<String, List<Double>>>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(path), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                Map<String, List<String>> values = extractor.extractAll(line.getBytes(StandardCharsets.UTF_8));
+                if (values == null || !values.containsKey("endpoint")) {
+                    continue;
+                }
+                String endpoint = values.get("endpoint").get(0);
+                LinkedHashMap<String, List<Double>> byPhase = samples.get(endpoint);
+                if (byPhase == null) {
+                    byPhase = new LinkedHashMap<String, List<Double>>();
+                    samples.put(endpoint, byPhase);
+                }
+                for (String phase : PHASES) {
+                    List<String> phaseValues = values.get(phase);
+                    if (phaseValues == null) {
+                        continue;
+                    }
+                    List<Double> list = byPhase.get(phase);
+                    if (list == null) {
+                        list = new ArrayList<Double>();
+                        byPhase.put(phase, list);
+                    }
+                    for (String v : phaseValues) {
+                        try {
+                            list.add(Double.parseDouble(v));
+                        } catch (NumberFormatException ex) {
+                            // Ignore malformed values
+                        }
+                    }
+                }
+            }
+        } catch (FileNotFoundException ex) {
+            // No runs logged yet
+        }
+
+        LinkedHashMap<String, LinkedHashMap<String, double[]>> result = new LinkedHashMap<String, LinkedHashMap<String, double[]>>();
+        for (Map.Entry<String, LinkedHashMap<String, List<Double>>> e : samples.entrySet()) {
+            LinkedHashMap<String, double[]> byPhase = new LinkedHashMap<String, double[]>();
+            for (String phase : PHASES) {
+                List<Double> list = e.getValue().get(phase);
+                if (list != null && !list.isEmpty()) {
+                    byPhase.put(phase, toSortedArray(list));
+                }
+            }
+            result.put(e.getKey(), byPhase);
+        }
+        return result;
+    }
+
+
+    // e.g., "tcp p50=24.9ms p90=31.0ms max=40.2ms (n=12)"
+    public static String formatAggregate(@NotNull String phase, @NotNull double[] sorted) {
+        return phase + " p50=" + formatMs(percentile(sorted, 50)) + " p90=" + formatMs(percentile(sorted, 90)) + " max=" + formatMs(sorted[sorted.length - 1]) + " (n=" + sorted.length + ")";
+    }
+
+
+    // Nearest-rank percentile of a sorted, non-empty array
+    public static double percentile(@NotNull double[] sorted, int p) {
+        int rank = (int)Math.ceil(p / 100.0 * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+    }
+
+
+    protected static String formatMs(double ms) {
+        return String.format("%.1fms", ms);
+    }
+
+
+    protected static double[] toSortedArray(List<Double> values) {
+        double[] arr = new double[values.size()];
+        for (int i = 0; i < arr.length; i++) {
+            arr[i] = values.get(i);
+        }
+        Arrays.sort(arr);
+        return arr;
+    }
+}
@@ -0,0 +1,160 @@
+// Author: Sean Pesce
+//
+// Keeps temporary AWS credentials (e.g., from Cognito) fresh for long-running MQTT-over-WebSocket
+// sessions. Credentials are renewed on a background thread ahead of their expiration, so the CRT
+// credentials provider (which is consulted whenever a WebSocket handshake is signed, including on
+// automatic reconnects) always returns current credentials without blocking on the network.
+//
+// Failed refreshes are retried with exponential backoff; the previous credentials are used until a
+// refresh succeeds.
+
+package com.seanpesce.aws.iot;
+
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.validation.constraints.NotNull;
+
+import software.amazon.awssdk.crt.auth.credentials.Credentials;
+import software.amazon.awssdk.crt.auth.credentials.CredentialsProvider;
+import software.amazon.awssdk.crt.auth.credentials.DelegateCredentialsProvider;
+
+
+public class RefreshingCredentialsProvider implements AutoCloseable {
+
+    public static final long DEFAULT_REFRESH_MARGIN_MS = 5 * 60 * 1000;
+    public static final long MIN_RETRY_DELAY_MS = 5000;
+    public static final long MAX_RETRY_DELAY_MS = 60 * 1000;
+
+
+    public static class ExpiringCredentials {
+        public final String accessKeyId;
+        public final String secretAccessKey;
+        public final String sessionToken;
+        public final long expiration;  // Epoch ms
+
+        public ExpiringCredentials(@NotNull String accessKeyId, @NotNull String secretAccessKey, String sessionToken, long expiration) {
+            this.accessKeyId = accessKeyId;
+            this.secretAccessKey = secretAccessKey;
+            this.sessionToken = sessionToken;
+            this.expiration = expiration;
+        }
+
+        public Credentials toCrtCredentials() {
+            return new Credentials(this.accessKeyId.getBytes(StandardCharsets.UTF_8),
+                                   this.secretAccessKey.getBytes(StandardCharsets.UTF_8),
+                                   this.sessionToken == null ? null : this.sessionToken.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+
+    // Obtains new credentials (called on the refresh thread)
+    public static interface Source {
+        public ExpiringCredentials fetch() throws Exception;
+    }
+
+
+    protected final String name;
+    protected final Source source;
+    protected final long refreshMarginMs;
+    protected final ScheduledExecutorService scheduler;
+    protected volatile ExpiringCredentials current = null;
+    protected volatile Credentials currentCrt = null;
+    protected long retryDelayMs = MIN_RETRY_DELAY_MS;
+    protected long refreshCount = 0;
+    protected DelegateCredentialsProvider crtProvider = null;
+
+
+    // name is used in log messages. Credentials are refreshed refreshMarginMs before they expire (or
+    // after 80% of their lifetime, if that's sooner).
+    public RefreshingCredentialsProvider(@NotNull String name, @NotNull Source source, long refreshMarginMs) {
+        this.name = name;
+        this.source = source;
+        this.refreshMarginMs = Math.max(0, refreshMarginMs);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+            Thread t = new Thread(r, "credential-refresh");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+
+    // Fetches the initial credentials (on the calling thread) and schedules the first refresh
+    public void start() throws Exception {
+        this.update(this.source.fetch());
+        System.err.println("[INFO] Obtained " + this.name + " credentials (expire in " + (this.current.expiration - System.currentTimeMillis()) / 1000 + "s)");
+        this.scheduleRefresh();
+    }
+
+
+    // Returns a CRT credentials provider backed by the current credentials (for
+    // AwsIotMqttConnectionBuilder.withWebsocketCredentialsProvider())
+    public synchronized CredentialsProvider getCredentialsProvider() {
+        if (this.crtProvider == null) {
+            this.crtProvider = new DelegateCredentialsProvider.DelegateCredentialsProviderBuilder()
+                .withHandler(() -> this.currentCrt)
+                .build();
+        }
+        return this.crtProvider;
+    }
+
+
+    public ExpiringCredentials getCurrent() {
+        return this.current;
+    }
+
+    public synchronized long getRefreshCount() {
+        return this.refreshCount;
+    }
+
+
+    @Override
+    public synchronized void close() {
+        this.scheduler.shutdownNow();
+        if (this.crtProvider != null) {
+            this.crtProvider.close();
+            this.crtProvider = null;
+        }
+    }
+
+
+    protected void update(ExpiringCredentials creds) {
+        this.currentCrt = creds.toCrtCredentials();
+        this.current = creds;
+    }
+
+
+    protected void scheduleRefresh() {
+        long lifetime = this.current.expiration - System.currentTimeMillis();
+        long delay = Math.max(MIN_RETRY_DELAY_MS, lifetime - Math.max(this.refreshMarginMs, lifetime / 5));
+        this.scheduler.schedule(this::refresh, delay, TimeUnit.MILLISECONDS);
+    }
+
+
+    protected void refresh() {
+        try {
+            this.update(this.source.fetch());
+            synchronized (this) {
+                this.refreshCount++;
+                this.retryDelayMs = MIN_RETRY_DELAY_MS;
+            }
+            System.err.println("[INFO] Refreshed " + this.name + " credentials (expire in " + (this.current.expiration - System.currentTimeMillis()) / 1000 + "s)");
+            this.scheduleRefresh();
+        } catch (Exception ex) {
+            long delay;
+            synchronized (this) {
+                delay = this.retryDelayMs;
+                this.retryDelayMs = Math.min(MAX_RETRY_DELAY_MS, this.retryDelayMs * 2);
+            }
+            long remaining = this.current.expiration - System.currentTimeMillis();
+            System.err.println("[WARNING] Failed to refresh " + this.name + " credentials (" + ex.getMessage() + "); "
+                               + (remaining > 0 ? "current credentials expire in " + remaining / 1000 + "s" : "current credentials have expired")
+                               + "; retrying in " + delay / 1000 + "s");
+            if (!this.scheduler.isShutdown()) {
+                this.scheduler.schedule(this::refresh, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+// Author: Sean Pesce
+//
+// Runs an analysis over every message in a capture file in parallel. The capture is split into
+// record-aligned chunks using its index (see CaptureIndex.split()), and the chunks are decoded and
+// analyzed with fork/join. Each chunk first decodes the records its topics' deltas depend on, so every
+// chunk reconstructs exactly the same messages as a sequential read. Per-chunk results are merged in
+// capture order.
+
+package com.seanpesce.capture;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.validation.constraints.NotNull;
+
+
+public class CaptureAnalyzer {
+
+    // Number of chunks per worker thread (more chunks than threads evens out the load)
+    public static final int CHUNKS_PER_THREAD = 4;
+    // Smallest chunk worth splitting off; each chunk re-decodes up to a keyframe interval of records per
+    // topic before its start
+    public static final long MIN_CHUNK_BYTES = 8L << 20;
+
+
+    public static interface Analysis<T> {
+        // Returns an empty result for a chunk
+        public T newResult();
+
+        // Called for each message in a chunk, in capture order
+        public void accept(T result, CaptureReader.Record record);
+
+        // Merges two results; b is from the chunks that follow a's
+        public T merge(T a, T b);
+    }
+
+
+    protected final String capturePath;
+    protected final int parallelism;
+
+    // Statistics for the last analysis
+    protected int chunkCount = 0;
+    protected final AtomicLong messageCount = new AtomicLong();
+    protected final AtomicLong prefixCount = new AtomicLong();
+
+
+    // A parallelism of 0 uses one thread per CPU core
+    public CaptureAnalyzer(@NotNull String capturePath, int parallelism) {
+        this.capturePath = capturePath;
+        this.parallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+    }
+
+
+    // Builds the capture's index first if it doesn't exist
+    public <T> T analyze(@NotNull Analysis<T> analysis) throws IOException {
+        CaptureIndex index = new CaptureIndex(this.capturePath);
+        if (!index.exists()) {
+            CaptureIndexWriter.build(this.capturePath);
+        }
+        long maxChunks = Math.max(1, new File(this.capturePath).length() / MIN_CHUNK_BYTES);
+        int targetChunks = this.parallelism == 1 ? 1 : (int)Math.min(this.parallelism * CHUNKS_PER_THREAD, maxChunks);
+        List<CaptureIndex.Chunk> chunks = index.split(targetChunks);
+        this.chunkCount = chunks.size();
+        this.messageCount.set(0);
+        this.prefixCount.set(0);
+
+        ForkJoinPool pool = new ForkJoinPool(this.parallelism);
+        try {
+            return pool.invoke(new ChunkTask<T>(analysis, chunks, 0, chunks.size()));
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+
+    public int getParallelism() {
+        return this.parallelism;
+    }
+
+    public int getChunkCount() {
+        return this.chunkCount;
+    }
+
+    public long getMessageCount() {
+        return this.messageCount.get();
+    }
+
+    // Records decoded only to reconstruct the first deltas of chunks
+    public long getPrefixCount() {
+        return this.prefixCount.get();
+    }
+
+
+    protected class ChunkTask<T> extends RecursiveTask<T> {
+        private static final long serialVersionUID = 1L;
+
+        protected final Analysis<T> analysis;
+        protected final List<CaptureIndex.Chunk> chunks;
+        protected final int from;
+        protected final int to;
+
+        protected ChunkTask(Analysis<T> analysis, List<CaptureIndex.Chunk> chunks, int from, int to) {
+            this.analysis = analysis;
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected T compute() {
+            if (this.to - this.from > 1) {
+                int mid = (this.from + this.to) >>> 1;
+                ChunkTask<T> left = new ChunkTask<T>(this.analysis, this.chunks, this.from, mid);
+                left.fork();
+                T right = new ChunkTask<T>(this.analysis, this.chunks, mid, this.to).compute();
+                return this.analysis.merge(left.join(), right);
+            }
+            T result = this.analysis.newResult();
+            if (this.to == this.from) {
+                return result;
+            }
+            CaptureIndex.Chunk chunk = this.chunks.get(this.from);
+            long messages = 0;
+            try (CaptureReader reader = new CaptureReader(capturePath)) {
+                long[] prefix = chunk.getPrefix();
+                for (long offset : prefix) {
+                    reader.readAt(offset);
+                }
+                reader.jump(chunk.start);
+                CaptureReader.Record r;
+                while ((r = reader.next()) != null && r.offset < chunk.end) {
+                    this.analysis.accept(result, r);
+                    messages++;
+                }
+                prefixCount.addAndGet(prefix.length);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            messageCount.addAndGet(messages);
+            return result;
+        }
+    }
+}
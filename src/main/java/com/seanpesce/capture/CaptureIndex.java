@@ -0,0 +1,425 @@
+// Author: Sean Pesce
+//
+// Queries a capture file by topic filter and time range using its index sidecar (see
+// CaptureIndexWriter), without scanning the whole capture. Both files are read through memory-mapped
+// windows. Blocks that end before the time range are only used to find each matching topic's last
+// keyframe before the range; blocks that start after the range end the query.
+//
+// Only the records of matching topics are decoded: for each topic, decoding starts at its last
+// keyframe before the first record in the range, and every record of that topic from there on is
+// reconstructed (but only the ones in the range are returned). Records are returned in capture order.
+
+package com.seanpesce.capture;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.Consumer;
+import javax.validation.constraints.NotNull;
+
+import com.seanpesce.mqtt.TopicMatcher;
+
+
+public class CaptureIndex {
+
+    // Read-only memory-mapped view of a file, remapped as needed to cover the requested range
+    protected static class MappedWindow implements AutoCloseable {
+        public static final int WINDOW_SIZE = 64 << 20;
+
+        protected final RandomAccessFile file;
+        protected final FileChannel channel;
+        protected final long size;
+        protected MappedByteBuffer buf = null;
+        protected long start = 0;
+
+        protected MappedWindow(File f) throws IOException {
+            this.file = new RandomAccessFile(f, "r");
+            this.channel = this.file.getChannel();
+            this.size = this.channel.size();
+        }
+
+        // Returns a buffer positioned at offset, with at least minLength bytes remaining (or as many as
+        // the file has left)
+        protected ByteBuffer at(long offset, int minLength) throws IOException {
+            long end = Math.min(this.size, offset + minLength);
+            if (this.buf == null || offset < this.start || end > this.start + this.buf.capacity()) {
+                this.start = offset;
+                long length = Math.min(this.size - offset, Math.max((long)minLength, WINDOW_SIZE));
+                this.buf = this.channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+            }
+            ByteBuffer view = this.buf.duplicate();
+            view.position((int)(offset - this.start));
+            return view;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.buf = null;
+            this.file.close();
+        }
+    }
+
+    // Index posting for a record of a matching topic
+    protected static class Entry {
+        protected final TopicState topic;
+        protected final long offset;
+        protected final long timestamp;
+        protected final boolean keyframe;
+        protected final boolean selected;
+
+        protected Entry(TopicState topic, long offset, long timestamp, boolean keyframe, boolean selected) {
+            this.topic = topic;
+            this.offset = offset;
+            this.timestamp = timestamp;
+            this.keyframe = keyframe;
+            this.selected = selected;
+        }
+    }
+
+    protected static class TopicState {
+        protected final String topic;
+        // Postings since the last keyframe before the time range
+        protected final ArrayList<Entry> chain = new ArrayList<Entry>();
+        protected boolean active = false;
+        protected byte[] prevPayload = null;
+
+        protected TopicState(String topic) {
+            this.topic = topic;
+        }
+    }
+
+    // A record-aligned range of the capture, [start, end). The prefix holds the offsets (in capture
+    // order) of the records before the chunk that must be decoded first: for each topic whose first record
+    // in the chunk is a delta, its last keyframe before the chunk and the deltas since.
+    public static class Chunk {
+        public final long start;
+        public long end;
+        protected long[] prefix = new long[0];
+        protected int prefixLength = 0;
+
+        protected Chunk(long start) {
+            this.start = start;
+        }
+
+        public long[] getPrefix() {
+            return Arrays.copyOf(this.prefix, this.prefixLength);
+        }
+
+        protected void addPrefix(long[] offsets, int count) {
+            if (this.prefixLength + count > this.prefix.length) {
+                this.prefix = Arrays.copyOf(this.prefix, Math.max(this.prefixLength + count, this.prefix.length * 2));
+            }
+            System.arraycopy(offsets, 0, this.prefix, this.prefixLength, count);
+            this.prefixLength += count;
+        }
+    }
+
+    // Record offsets of a topic since its last keyframe (used when splitting a capture into chunks)
+    protected static class ChainState {
+        protected long[] chain = new long[8];
+        protected int chainLength = 0;
+        protected Chunk chunk = null;
+
+        protected void add(long offset) {
+            if (this.chainLength == this.chain.length) {
+                this.chain = Arrays.copyOf(this.chain, this.chain.length * 2);
+            }
+            this.chain[this.chainLength++] = offset;
+        }
+    }
+
+    // Largest capture record header (type, topic ID, flags, and lengths/timestamp) before the variable-length data
+    protected static final int MAX_RECORD_HEADER = 48;
+
+
+    protected final String capturePath;
+    protected final String indexPath;
+
+    // Statistics for the last query
+    protected long blocksRead = 0;
+    protected long recordsDecoded = 0;
+
+
+    public CaptureIndex(@NotNull String capturePath) {
+        this.capturePath = capturePath;
+        this.indexPath = CaptureIndexWriter.indexPathFor(capturePath);
+    }
+
+
+    public boolean exists() {
+        return new File(this.indexPath).isFile();
+    }
+
+    public long getBlocksRead() {
+        return this.blocksRead;
+    }
+
+    public long getRecordsDecoded() {
+        return this.recordsDecoded;
+    }
+
+
+    // Passes every record whose topic matches the filter and whose timestamp is in [fromMs, toMs] to the
+    // consumer; returns the number of records passed
+    public long query(@NotNull TopicMatcher filter, long fromMs, long toMs, @NotNull Consumer<CaptureReader.Record> consumer) throws IOException {
+        this.blocksRead = 0;
+        this.recordsDecoded = 0;
+        long matched = 0;
+        HashMap<String, TopicState> topics = new HashMap<String, TopicState>();
+        HashMap<String, Boolean> filterCache = new HashMap<String, Boolean>();
+
+        try (MappedWindow index = new MappedWindow(new File(this.indexPath)); MappedWindow capture = new MappedWindow(new File(this.capturePath))) {
+            long pos = this.checkHeader(index);
+            while (pos + 4 + 32 <= index.size) {
+                int length = index.at(pos, 4).getInt();
+                if (length < 32 || pos + 4 + length > index.size) {
+                    // Truncated final block
+                    break;
+                }
+                ByteBuffer block = index.at(pos + 4, length);
+                block.limit(block.position() + length);
+                pos += 4 + length;
+
+                long minTs = block.getLong();
+                long maxTs = block.getLong();
+                long firstOffset = block.getLong();
+                block.getLong();  // endOffset
+                if (minTs > toMs) {
+                    break;
+                }
+                boolean beforeRange = maxTs < fromMs;
+                this.blocksRead++;
+
+                ArrayList<Entry> entries = new ArrayList<Entry>();
+                long topicCount = readVarint(block);
+                for (long t = 0; t < topicCount; t++) {
+                    byte[] topicBytes = new byte[(int)readVarint(block)];
+                    block.get(topicBytes);
+                    String topic = new String(topicBytes, StandardCharsets.UTF_8);
+                    long postingCount = readVarint(block);
+                    int postingsLength = (int)readVarint(block);
+                    Boolean matches = filterCache.get(topic);
+                    if (matches == null) {
+                        matches = filter.matches(topic);
+                        filterCache.put(topic, matches);
+                    }
+                    if (!matches) {
+                        block.position(block.position() + postingsLength);
+                        continue;
+                    }
+                    TopicState state = topics.get(topic);
+                    if (state == null) {
+                        state = new TopicState(topic);
+                        topics.put(topic, state);
+                    }
+                    long offset = firstOffset;
+                    long ts = minTs;
+                    for (long i = 0; i < postingCount; i++) {
+                        long v = readVarint(block);
+                        long zz = readVarint(block);
+                        offset += v >>> 1;
+                        ts += (zz >>> 1) ^ -(zz & 1);
+                        boolean keyframe = (v & 1) != 0;
+                        boolean inRange = ts >= fromMs && ts <= toMs;
+                        if (state.active) {
+                            entries.add(new Entry(state, offset, ts, keyframe, inRange));
+                        } else if (inRange) {
+                            // First record in the range; decode from the topic's last keyframe
+                            entries.addAll(state.chain);
+                            state.chain.clear();
+                            state.active = true;
+                            entries.add(new Entry(state, offset, ts, keyframe, true));
+                        } else {
+                            if (keyframe) {
+                                state.chain.clear();
+                            }
+                            state.chain.add(new Entry(state, offset, ts, keyframe, false));
+                        }
+                    }
+                }
+                if (beforeRange || entries.isEmpty()) {
+                    continue;
+                }
+
+                entries.sort((Entry a, Entry b) -> Long.compare(a.offset, b.offset));
+                for (Entry e : entries) {
+                    CaptureReader.Record r = this.decode(capture, e);
+                    if (r != null && e.selected) {
+                        consumer.accept(r);
+                        matched++;
+                    }
+                }
+            }
+        } catch (BufferUnderflowException ex) {
+            throw new IOException("Corrupt capture index: " + this.indexPath);
+        }
+        return matched;
+    }
+
+
+    // Splits the capture into about chunkCount record-aligned chunks (along index block boundaries) that
+    // can be decoded independently. Together, the chunks cover the whole capture.
+    public List<Chunk> split(int chunkCount) throws IOException {
+        ArrayList<Chunk> chunks = new ArrayList<Chunk>();
+        HashMap<String, ChainState> topics = new HashMap<String, ChainState>();
+        long captureSize = new File(this.capturePath).length();
+        long chunkBytes = Math.max(1, captureSize / Math.max(1, chunkCount));
+        Chunk chunk = new Chunk(CaptureWriter.MAGIC.length + 1);
+        chunks.add(chunk);
+        boolean chunkHasBlocks = false;
+
+        try (MappedWindow index = new MappedWindow(new File(this.indexPath))) {
+            long pos = this.checkHeader(index);
+            while (pos + 4 + 32 <= index.size) {
+                int length = index.at(pos, 4).getInt();
+                if (length < 32 || pos + 4 + length > index.size) {
+                    break;
+                }
+                ByteBuffer block = index.at(pos + 4, length);
+                block.limit(block.position() + length);
+                pos += 4 + length;
+
+                long minTs = block.getLong();
+                block.getLong();  // maxTs
+                long firstOffset = block.getLong();
+                block.getLong();  // endOffset
+                if (chunkHasBlocks && firstOffset >= chunk.start + chunkBytes && firstOffset < captureSize) {
+                    chunk.end = firstOffset;
+                    chunk = new Chunk(firstOffset);
+                    chunks.add(chunk);
+                }
+                chunkHasBlocks = true;
+
+                long topicCount = readVarint(block);
+                for (long t = 0; t < topicCount; t++) {
+                    byte[] topicBytes = new byte[(int)readVarint(block)];
+                    block.get(topicBytes);
+                    String topic = new String(topicBytes, StandardCharsets.UTF_8);
+                    long postingCount = readVarint(block);
+                    readVarint(block);  // postingsLength
+                    ChainState state = topics.get(topic);
+                    if (state == null) {
+                        state = new ChainState();
+                        topics.put(topic, state);
+                    }
+                    long offset = firstOffset;
+                    for (long i = 0; i < postingCount; i++) {
+                        long v = readVarint(block);
+                        readVarint(block);  // Timestamp delta
+                        offset += v >>> 1;
+                        boolean keyframe = (v & 1) != 0;
+                        if (state.chunk != chunk) {
+                            // First record of the topic in this chunk; a delta needs the topic's chain
+                            state.chunk = chunk;
+                            if (!keyframe) {
+                                chunk.addPrefix(state.chain, state.chainLength);
+                            }
+                        }
+                        if (keyframe) {
+                            state.chainLength = 0;
+                        }
+                        state.add(offset);
+                    }
+                }
+            }
+        } catch (BufferUnderflowException ex) {
+            throw new IOException("Corrupt capture index: " + this.indexPath);
+        }
+        chunk.end = Math.max(chunk.start, captureSize);
+        for (Chunk c : chunks) {
+            Arrays.sort(c.prefix, 0, c.prefixLength);
+        }
+        return chunks;
+    }
+
+
+    // Checks the index file header and returns the offset of the first block
+    protected long checkHeader(MappedWindow index) throws IOException {
+        ByteBuffer header = index.at(0, CaptureIndexWriter.MAGIC.length + 1);
+        byte[] magic = new byte[CaptureIndexWriter.MAGIC.length];
+        if (header.remaining() < magic.length + 1) {
+            throw new IOException("Not a capture index: " + this.indexPath);
+        }
+        header.get(magic);
+        if (!Arrays.equals(magic, CaptureIndexWriter.MAGIC) || header.get() != CaptureIndexWriter.VERSION) {
+            throw new IOException("Not a capture index (or unsupported version): " + this.indexPath);
+        }
+        return magic.length + 1;
+    }
+
+
+    // Reads and reconstructs the record for the entry (or returns null if its topic's keyframe is missing)
+    protected CaptureReader.Record decode(MappedWindow capture, Entry e) throws IOException {
+        if (e.offset + 1 > capture.size) {
+            // Indexed but not written (e.g., the capture was interrupted before it was flushed)
+            return null;
+        }
+        ByteBuffer buf = capture.at(e.offset, MAX_RECORD_HEADER);
+        int type = buf.get() & 0xff;
+        readVarint(buf);  // Topic ID
+        byte[] payload;
+        int flags;
+        if (type == CaptureWriter.RECORD_KEYFRAME) {
+            int topicLength = (int)readVarint(buf);
+            long dataOffset = capture.start + buf.position();
+            buf = capture.at(dataOffset, topicLength + MAX_RECORD_HEADER);
+            buf.position(buf.position() + topicLength);
+            flags = buf.get() & 0xff;
+            buf.getLong();
+            payload = this.readData(capture, buf);
+        } else if (type == CaptureWriter.RECORD_DELTA) {
+            flags = buf.get() & 0xff;
+            readVarint(buf);  // Elapsed time
+            byte[] delta = this.readData(capture, buf);
+            if (e.topic.prevPayload == null || delta == null) {
+                return null;
+            }
+            payload = PayloadDelta.apply(e.topic.prevPayload, delta);
+        } else {
+            throw new IOException("Invalid capture record type " + type + " at offset " + e.offset);
+        }
+        if (payload == null) {
+            return null;
+        }
+        e.topic.prevPayload = payload;
+        this.recordsDecoded++;
+        return new CaptureReader.Record(e.offset, e.topic.topic, e.timestamp, flags & CaptureWriter.FLAG_QOS_MASK, (flags & CaptureWriter.FLAG_RETAIN) != 0, payload, type == CaptureWriter.RECORD_KEYFRAME);
+    }
+
+
+    // Reads a varint length followed by that many bytes (null if the data extends past the end of the file)
+    protected byte[] readData(MappedWindow capture, ByteBuffer buf) throws IOException {
+        int length = (int)readVarint(buf);
+        long dataOffset = capture.start + buf.position();
+        if (length < 0 || dataOffset + length > capture.size) {
+            return null;
+        }
+        ByteBuffer data = capture.at(dataOffset, length);
+        byte[] bytes = new byte[length];
+        data.get(bytes);
+        return bytes;
+    }
+
+
+    protected static long readVarint(ByteBuffer buf) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buf.get();
+            value |= (long)(b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Invalid varint");
+    }
+}
@@ -0,0 +1,213 @@
+// Author: Sean Pesce
+//
+// Writes the index sidecar for a capture file (<capture>.idx). The index is a sequence of blocks, each
+// covering a contiguous range of capture records; the block headers form a sparse time-to-offset
+// index, and each block holds a posting list of record offsets (and timestamps) for every topic that
+// appears in it. Queries (see CaptureIndex) only read the posting lists of matching topics and only
+// decode the records they point to.
+//
+// File format (multi-byte integers are big-endian; varints are unsigned LEB128):
+//   Header:  "AIRIDX" | byte version
+//   Block:   int length (of the rest of the block) | long minTimestamp | long maxTimestamp
+//            | long firstOffset | long endOffset | varint topicCount | topic entries
+//   Topic:   varint topicLength | topic (UTF-8) | varint postingCount | varint postingsLength | postings
+//   Posting: varint (offsetDelta << 1 | keyframe) | varint zigzag(timestampDelta)
+//
+// The first posting of each topic is relative to the block's firstOffset/minTimestamp, and the rest
+// are relative to the previous posting. Each block is written with a single write, so an interrupted
+// capture leaves at most one truncated block at the end (which readers ignore). Blocks are only written
+// by flush(), which the owner calls once the capture records they refer to are on disk (at the latest,
+// when isBlockFull() returns true).
+
+package com.seanpesce.capture;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.validation.constraints.NotNull;
+
+
+public class CaptureIndexWriter implements Closeable {
+
+    public static final byte[] MAGIC = "AIRIDX".getBytes(StandardCharsets.US_ASCII);
+    public static final int VERSION = 1;
+    public static final String FILE_SUFFIX = ".idx";
+    // Maximum number of records per block
+    public static final int BLOCK_RECORDS = 4096;
+
+
+    protected static class Postings {
+        protected final ByteArrayOutputStream data = new ByteArrayOutputStream(64);
+        protected int count = 0;
+        protected long lastOffset;
+        protected long lastTimestamp;
+    }
+
+
+    protected final FileOutputStream out;
+    protected final LinkedHashMap<String, Postings> pending = new LinkedHashMap<String, Postings>();
+    protected int pendingCount = 0;
+    protected long minTimestamp = Long.MAX_VALUE;
+    protected long maxTimestamp = Long.MIN_VALUE;
+    protected long firstOffset = -1;
+    protected long endOffset = -1;
+    protected long blockCount = 0;
+
+
+    public static String indexPathFor(@NotNull String capturePath) {
+        return capturePath + FILE_SUFFIX;
+    }
+
+
+    // Appends to the index file (creating it if necessary)
+    public CaptureIndexWriter(@NotNull String path) throws IOException {
+        File file = new File(path);
+        boolean isNew = !file.exists() || file.length() == 0;
+        this.out = new FileOutputStream(file, true);
+        if (isNew) {
+            byte[] header = new byte[MAGIC.length + 1];
+            System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+            header[MAGIC.length] = VERSION;
+            this.out.write(header);
+        }
+    }
+
+
+    // Adds the capture record at [offset, endOffset). The record is indexed on disk by the next flush().
+    public synchronized void add(@NotNull String topic, long offset, long endOffset, long timestamp, boolean keyframe) throws IOException {
+        if (this.firstOffset < 0) {
+            this.firstOffset = offset;
+        }
+        this.endOffset = endOffset;
+        this.minTimestamp = Math.min(this.minTimestamp, timestamp);
+        this.maxTimestamp = Math.max(this.maxTimestamp, timestamp);
+
+        Postings p = this.pending.get(topic);
+        if (p == null) {
+            p = new Postings();
+            p.lastOffset = this.firstOffset;
+            p.lastTimestamp = -1;
+            this.pending.put(topic, p);
+        }
+        // Timestamps of a topic's first posting are stored relative to the block's minimum, which isn't
+        // known until the block is written, so they're kept absolute here (and fixed up in writeBlock)
+        long tsDelta = p.lastTimestamp < 0 ? timestamp : timestamp - p.lastTimestamp;
+        PayloadDelta.writeVarint(p.data, ((offset - p.lastOffset) << 1) | (keyframe ? 1 : 0));
+        PayloadDelta.writeVarint(p.data, (tsDelta << 1) ^ (tsDelta >> 63));
+        p.lastOffset = offset;
+        p.lastTimestamp = timestamp;
+        p.count++;
+
+        this.pendingCount++;
+    }
+
+
+    // True if the pending postings fill a block, so it's time to flush
+    public synchronized boolean isBlockFull() {
+        return this.pendingCount >= BLOCK_RECORDS;
+    }
+
+
+    // Writes any pending postings as a block
+    public synchronized void flush() throws IOException {
+        if (this.pendingCount > 0) {
+            this.writeBlock();
+        }
+    }
+
+
+    @Override
+    public synchronized void close() throws IOException {
+        this.flush();
+        this.out.close();
+    }
+
+
+    public synchronized long getBlockCount() {
+        return this.blockCount;
+    }
+
+
+    protected void writeBlock() throws IOException {
+        ByteArrayOutputStream block = new ByteArrayOutputStream(1024 + this.pendingCount * 4);
+        writeLong(block, this.minTimestamp);
+        writeLong(block, this.maxTimestamp);
+        writeLong(block, this.firstOffset);
+        writeLong(block, this.endOffset);
+        PayloadDelta.writeVarint(block, this.pending.size());
+        for (Map.Entry<String, Postings> entry : this.pending.entrySet()) {
+            byte[] topic = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            byte[] postings = this.rebaseFirstTimestamp(entry.getValue().data.toByteArray());
+            PayloadDelta.writeVarint(block, topic.length);
+            block.write(topic, 0, topic.length);
+            PayloadDelta.writeVarint(block, entry.getValue().count);
+            PayloadDelta.writeVarint(block, postings.length);
+            block.write(postings, 0, postings.length);
+        }
+        byte[] body = block.toByteArray();
+        byte[] data = new byte[4 + body.length];
+        data[0] = (byte)(body.length >>> 24);
+        data[1] = (byte)(body.length >>> 16);
+        data[2] = (byte)(body.length >>> 8);
+        data[3] = (byte)body.length;
+        System.arraycopy(body, 0, data, 4, body.length);
+        this.out.write(data);
+
+        this.pending.clear();
+        this.pendingCount = 0;
+        this.minTimestamp = Long.MAX_VALUE;
+        this.maxTimestamp = Long.MIN_VALUE;
+        this.firstOffset = -1;
+        this.blockCount++;
+    }
+
+
+    // Re-encodes the first posting's (absolute) timestamp relative to the block's minimum timestamp
+    protected byte[] rebaseFirstTimestamp(byte[] postings) throws IOException {
+        int[] pos = { 0 };
+        PayloadDelta.readVarint(postings, pos);
+        int tsStart = pos[0];
+        long zz = PayloadDelta.readVarint(postings, pos);
+        long first = (zz >>> 1) ^ -(zz & 1);
+        long rel = first - this.minTimestamp;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(postings.length + 8);
+        out.write(postings, 0, tsStart);
+        PayloadDelta.writeVarint(out, (rel << 1) ^ (rel >> 63));
+        out.write(postings, pos[0], postings.length - pos[0]);
+        return out.toByteArray();
+    }
+
+
+    protected static void writeLong(ByteArrayOutputStream out, long v) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out.write((int)(v >>> shift));
+        }
+    }
+
+
+    // Builds (or rebuilds) the index for an existing capture file
+    public static long build(@NotNull String capturePath) throws IOException {
+        File indexFile = new File(indexPathFor(capturePath));
+        if (indexFile.exists() && !indexFile.delete()) {
+            throw new IOException("Failed to replace " + indexFile.getPath());
+        }
+        long count = 0;
+        try (CaptureReader reader = new CaptureReader(capturePath); CaptureIndexWriter index = new CaptureIndexWriter(indexFile.getPath())) {
+            CaptureReader.Record r;
+            while ((r = reader.next()) != null) {
+                index.add(r.topic, r.offset, reader.getPosition(), r.timestamp, r.keyframe);
+                if (index.isBlockFull()) {
+                    index.flush();
+                }
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,247 @@
+// Author: Sean Pesce
+//
+// Reads a capture file written by CaptureWriter and reconstructs the original messages (in capture
+// order). Deltas for topics whose keyframe hasn't been read yet (e.g., after seeking into the middle
+// of a file) are skipped. A truncated final record (e.g., from a capture that is still being written
+// or was interrupted) is treated as the end of the file.
+
+package com.seanpesce.capture;
+
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import javax.validation.constraints.NotNull;
+
+import software.amazon.awssdk.crt.mqtt.MqttMessage;
+import software.amazon.awssdk.crt.mqtt.QualityOfService;
+
+
+public class CaptureReader implements Closeable {
+
+    public static class Record {
+        public final long offset;  // Position of the record in the file
+        public final String topic;
+        public final long timestamp;
+        public final int qos;
+        public final boolean retain;
+        public final byte[] payload;
+        public final boolean keyframe;
+
+        public Record(long offset, String topic, long timestamp, int qos, boolean retain, byte[] payload, boolean keyframe) {
+            this.offset = offset;
+            this.topic = topic;
+            this.timestamp = timestamp;
+            this.qos = qos;
+            this.retain = retain;
+            this.payload = payload;
+            this.keyframe = keyframe;
+        }
+
+        public MqttMessage toMqttMessage() {
+            return new MqttMessage(this.topic, this.payload, QualityOfService.getEnumValueFromInteger(this.qos), this.retain);
+        }
+    }
+
+    protected static class TopicState {
+        protected final String topic;
+        protected byte[] prevPayload;
+        protected long prevTimestamp;
+
+        protected TopicState(String topic, byte[] payload, long timestamp) {
+            this.topic = topic;
+            this.prevPayload = payload;
+            this.prevTimestamp = timestamp;
+        }
+    }
+
+
+    protected static final int IO_BUFFER_SIZE = 1 << 16;
+
+    protected final File file;
+    protected final FileInputStream fileIn;
+    protected DataInputStream in;
+    protected long position;
+    protected final HashMap<Integer, TopicState> topics = new HashMap<Integer, TopicState>();
+    protected long skippedCount = 0;
+
+
+    public CaptureReader(@NotNull String path) throws IOException {
+        this.file = new File(path);
+        this.fileIn = new FileInputStream(this.file);
+        this.in = new DataInputStream(new BufferedInputStream(this.fileIn, IO_BUFFER_SIZE));
+        byte[] magic = new byte[CaptureWriter.MAGIC.length];
+        try {
+            this.in.readFully(magic);
+            int version = this.in.readUnsignedByte();
+            if (!Arrays.equals(magic, CaptureWriter.MAGIC)) {
+                throw new IOException("Not a capture file: " + path);
+            }
+            if (version != CaptureWriter.VERSION) {
+                throw new IOException("Unsupported capture file version: " + version);
+            }
+        } catch (EOFException ex) {
+            throw new IOException("Not a capture file: " + path);
+        }
+        this.position = magic.length + 1;
+    }
+
+
+    // Continues reading at the given record offset. Topic state is discarded, so deltas are skipped until
+    // their topic's next keyframe.
+    public void seek(long offset) throws IOException {
+        this.jump(offset);
+        this.topics.clear();
+    }
+
+
+    // Reads the single record at the given offset, keeping the topic state (so a topic's records can be
+    // read out of order with other topics, e.g., its chain of deltas since a keyframe). Returns null if
+    // the record is a delta for an unknown topic, or is truncated.
+    public Record readAt(long offset) throws IOException {
+        this.jump(offset);
+        try {
+            int type = this.in.read();
+            if (type < 0) {
+                return null;
+            }
+            this.position++;
+            return type == CaptureWriter.RECORD_KEYFRAME ? this.readKeyframe(offset) : this.readDelta(offset, type);
+        } catch (EOFException ex) {
+            // The position no longer matches the stream
+            this.position = -1;
+            return null;
+        }
+    }
+
+
+    public long getPosition() {
+        return this.position;
+    }
+
+    // Deltas skipped because their topic's keyframe hadn't been read
+    public long getSkippedCount() {
+        return this.skippedCount;
+    }
+
+
+    // Returns the next message, or null at the end of the file
+    public Record next() throws IOException {
+        while (true) {
+            long offset = this.position;
+            int type;
+            try {
+                type = this.in.read();
+                if (type < 0) {
+                    return null;
+                }
+                this.position++;
+                Record r = type == CaptureWriter.RECORD_KEYFRAME ? this.readKeyframe(offset) : this.readDelta(offset, type);
+                if (r != null) {
+                    return r;
+                }
+            } catch (EOFException ex) {
+                // Truncated record
+                return null;
+            }
+        }
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        this.in.close();
+    }
+
+
+    // Continues reading at the given record offset, keeping the topic state. Short forward jumps skip
+    // through the buffer instead of discarding it.
+    public void jump(long offset) throws IOException {
+        long distance = offset - this.position;
+        if (this.position >= 0 && distance >= 0 && distance <= IO_BUFFER_SIZE) {
+            while (distance > 0) {
+                int skipped = this.in.skipBytes((int)distance);
+                if (skipped <= 0) {
+                    break;
+                }
+                distance -= skipped;
+            }
+            if (distance == 0) {
+                this.position = offset;
+                return;
+            }
+        }
+        this.fileIn.getChannel().position(offset);
+        this.in = new DataInputStream(new BufferedInputStream(this.fileIn, IO_BUFFER_SIZE));
+        this.position = offset;
+    }
+
+
+    protected Record readKeyframe(long offset) throws IOException {
+        int id = (int)this.readVarint();
+        String topic = new String(this.readBytes(this.readVarint()), StandardCharsets.UTF_8);
+        int flags = this.readByte();
+        long timestamp = this.in.readLong();
+        this.position += 8;
+        byte[] payload = this.readBytes(this.readVarint());
+        this.topics.put(id, new TopicState(topic, payload, timestamp));
+        return new Record(offset, topic, timestamp, flags & CaptureWriter.FLAG_QOS_MASK, (flags & CaptureWriter.FLAG_RETAIN) != 0, payload, true);
+    }
+
+
+    protected Record readDelta(long offset, int type) throws IOException {
+        if (type != CaptureWriter.RECORD_DELTA) {
+            throw new IOException("Invalid capture record type " + type + " at offset " + offset);
+        }
+        int id = (int)this.readVarint();
+        int flags = this.readByte();
+        long elapsed = this.readVarint();
+        byte[] delta = this.readBytes(this.readVarint());
+        TopicState state = this.topics.get(id);
+        if (state == null) {
+            this.skippedCount++;
+            return null;
+        }
+        state.prevPayload = PayloadDelta.apply(state.prevPayload, delta);
+        state.prevTimestamp += elapsed;
+        return new Record(offset, state.topic, state.prevTimestamp, flags & CaptureWriter.FLAG_QOS_MASK, (flags & CaptureWriter.FLAG_RETAIN) != 0, state.prevPayload, false);
+    }
+
+
+    protected int readByte() throws IOException {
+        int b = this.in.readUnsignedByte();
+        this.position++;
+        return b;
+    }
+
+
+    protected byte[] readBytes(long length) throws IOException {
+        if (length < 0 || length > Integer.MAX_VALUE - 8) {
+            throw new IOException("Invalid capture record length: " + length);
+        }
+        byte[] buf = new byte[(int)length];
+        this.in.readFully(buf);
+        this.position += length;
+        return buf;
+    }
+
+
+    protected long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = this.readByte();
+            value |= (long)(b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Invalid varint in capture file");
+    }
+}
@@ -0,0 +1,222 @@
+// Author: Sean Pesce
+//
+// Writes received MQTT messages to a compact binary capture file for long-term storage. Each payload
+// is stored as a delta (see PayloadDelta) against the previous payload on the same topic, with a full
+// keyframe every N messages per topic (and whenever a delta wouldn't be smaller than the payload), so
+// a reader only needs to go back to the topic's last keyframe to reconstruct any message.
+//
+// File format (multi-byte integers are big-endian; varints are unsigned LEB128):
+//   Header:    "AIRCAP" | byte version
+//   Keyframe:  byte 1 | varint topicId | varint topicLength | topic (UTF-8) | byte flags | long timestamp (ms)
+//              | varint payloadLength | payload
+//   Delta:     byte 2 | varint topicId | byte flags | varint ms since the topic's previous message
+//              | varint deltaLength | delta
+//   flags:     bits 0-1 QoS, bit 2 retain
+//
+// Topic IDs are bound to topic names by keyframes (so they can be resolved from any keyframe onward),
+// and deltas apply to the previous message with the same topic ID. Appending to an existing capture
+// starts every topic with a new keyframe.
+//
+// Optionally, an index sidecar is written alongside the capture (see CaptureIndexWriter).
+
+package com.seanpesce.capture;
+
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import javax.validation.constraints.NotNull;
+
+import software.amazon.awssdk.crt.mqtt.MqttMessage;
+
+
+public class CaptureWriter implements Closeable {
+
+    public static final byte[] MAGIC = "AIRCAP".getBytes(StandardCharsets.US_ASCII);
+    public static final int VERSION = 1;
+    public static final int RECORD_KEYFRAME = 1;
+    public static final int RECORD_DELTA = 2;
+    public static final int FLAG_QOS_MASK = 0x03;
+    public static final int FLAG_RETAIN = 0x04;
+
+    public static final int DEFAULT_KEYFRAME_INTERVAL = 100;
+    protected static final int IO_BUFFER_SIZE = 1 << 16;
+
+
+    protected static class TopicState {
+        protected final int id;
+        protected byte[] prevPayload = null;
+        protected long prevTimestamp = 0;
+        protected int sinceKeyframe = 0;
+
+        protected TopicState(int id) {
+            this.id = id;
+        }
+    }
+
+
+    // Counts bytes written (including buffered data), so record offsets are known without flushing
+    protected static class CountingOutputStream extends FilterOutputStream {
+        protected long count;
+
+        protected CountingOutputStream(OutputStream out, long initialCount) {
+            super(out);
+            this.count = initialCount;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.out.write(b);
+            this.count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            this.out.write(b, off, len);
+            this.count += len;
+        }
+    }
+
+
+    protected final File file;
+    protected final int keyframeInterval;
+    protected final HashMap<String, TopicState> topics = new HashMap<String, TopicState>();
+    protected final ByteArrayOutputStream recordBuf = new ByteArrayOutputStream(1024);
+    protected final CountingOutputStream out;
+    protected final CaptureIndexWriter index;
+
+    // Statistics
+    protected long messageCount = 0;
+    protected long keyframeCount = 0;
+    protected long payloadBytes = 0;
+
+
+    public CaptureWriter(@NotNull String path, int keyframeInterval) throws IOException {
+        this(path, keyframeInterval, false);
+    }
+
+    // Appends to the capture file (creating it if necessary). keyframeInterval is the maximum number of
+    // messages per topic between keyframes.
+    public CaptureWriter(@NotNull String path, int keyframeInterval, boolean writeIndex) throws IOException {
+        this.file = new File(path);
+        this.keyframeInterval = Math.max(1, keyframeInterval);
+        boolean isNew = !this.file.exists() || this.file.length() == 0;
+        if (writeIndex && !isNew && !new File(CaptureIndexWriter.indexPathFor(path)).exists()) {
+            // Index the existing records before appending new ones
+            CaptureIndexWriter.build(path);
+        }
+        this.out = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(this.file, true), IO_BUFFER_SIZE), isNew ? 0 : this.file.length());
+        if (isNew) {
+            this.out.write(MAGIC);
+            this.out.write(VERSION);
+        }
+        this.index = writeIndex ? new CaptureIndexWriter(CaptureIndexWriter.indexPathFor(path)) : null;
+    }
+
+
+    public synchronized void write(@NotNull MqttMessage message, long timestamp) throws IOException {
+        String topic = message.getTopic();
+        byte[] payload = message.getPayload();
+        TopicState state = this.topics.get(topic);
+        if (state == null) {
+            state = new TopicState(this.topics.size());
+            this.topics.put(topic, state);
+        }
+        int flags = (message.getQos().getValue() & FLAG_QOS_MASK) | (message.getRetain() ? FLAG_RETAIN : 0);
+
+        byte[] delta = null;
+        long elapsed = timestamp - state.prevTimestamp;
+        if (state.prevPayload != null && state.sinceKeyframe < this.keyframeInterval && elapsed >= 0) {
+            delta = PayloadDelta.encode(state.prevPayload, payload);
+            if (delta.length >= payload.length) {
+                delta = null;
+            }
+        }
+
+        long offset = this.out.count;
+        this.recordBuf.reset();
+        if (delta == null) {
+            byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+            this.recordBuf.write(RECORD_KEYFRAME);
+            PayloadDelta.writeVarint(this.recordBuf, state.id);
+            PayloadDelta.writeVarint(this.recordBuf, topicBytes.length);
+            this.recordBuf.write(topicBytes, 0, topicBytes.length);
+            this.recordBuf.write(flags);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                this.recordBuf.write((int)(timestamp >>> shift));
+            }
+            PayloadDelta.writeVarint(this.recordBuf, payload.length);
+            this.recordBuf.write(payload, 0, payload.length);
+            state.sinceKeyframe = 0;
+            this.keyframeCount++;
+        } else {
+            this.recordBuf.write(RECORD_DELTA);
+            PayloadDelta.writeVarint(this.recordBuf, state.id);
+            this.recordBuf.write(flags);
+            PayloadDelta.writeVarint(this.recordBuf, elapsed);
+            PayloadDelta.writeVarint(this.recordBuf, delta.length);
+            this.recordBuf.write(delta, 0, delta.length);
+            state.sinceKeyframe++;
+        }
+        this.recordBuf.writeTo(this.out);
+        if (this.index != null) {
+            this.index.add(topic, offset, this.out.count, timestamp, delta == null);
+            if (this.index.isBlockFull()) {
+                this.flush();
+            }
+        }
+
+        state.prevPayload = payload;
+        state.prevTimestamp = timestamp;
+        this.messageCount++;
+        this.payloadBytes += payload.length;
+    }
+
+
+    // Flushes the capture data before the index, so the index never refers to unwritten records
+    public synchronized void flush() throws IOException {
+        this.out.flush();
+        if (this.index != null) {
+            this.index.flush();
+        }
+    }
+
+
+    @Override
+    public synchronized void close() throws IOException {
+        this.out.close();
+        if (this.index != null) {
+            this.index.close();
+        }
+    }
+
+
+    public File getFile() {
+        return this.file;
+    }
+
+    public synchronized long getMessageCount() {
+        return this.messageCount;
+    }
+
+    public synchronized long getKeyframeCount() {
+        return this.keyframeCount;
+    }
+
+    // Total size of the captured payloads (before encoding)
+    public synchronized long getPayloadBytes() {
+        return this.payloadBytes;
+    }
+
+    // Current size of the capture file (including buffered data), i.e., the offset of the next record
+    public synchronized long getFileBytes() {
+        return this.out.count;
+    }
+}
@@ -0,0 +1,164 @@
+// Author: Sean Pesce
+//
+// Binary delta encoding of one payload against another (e.g., consecutive JSON messages on the same
+// topic, which usually differ in only a few fields). A delta is a sequence of operations applied to
+// the previous payload with a read cursor that starts at offset 0:
+//
+//   varint (length << 2 | op)
+//     op 0 (COPY)    Copy the next length bytes of the previous payload (cursor += length)
+//     op 1 (SKIP)    Skip the next length bytes of the previous payload (cursor += length)
+//     op 2 (INSERT)  Followed by length literal bytes
+//
+// The encoder walks both payloads in order; when they diverge, it looks a short distance ahead in
+// both for the nearest point where they match again, so changed, inserted, and removed field values
+// each cost a few bytes plus the new data.
+
+package com.seanpesce.capture;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import javax.validation.constraints.NotNull;
+
+
+public class PayloadDelta {
+
+    public static final int OP_COPY = 0;
+    public static final int OP_SKIP = 1;
+    public static final int OP_INSERT = 2;
+
+    // Shortest run of equal bytes that ends a changed region
+    public static final int MIN_MATCH = 4;
+    // How far ahead (in each payload) to look for the end of a changed region
+    public static final int MAX_SEARCH = 64;
+
+
+    // Returns the delta that transforms prev into cur
+    public static byte[] encode(@NotNull byte[] prev, @NotNull byte[] cur) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.min(cur.length, 64) + 16);
+        int i = 0;  // Position in cur
+        int j = 0;  // Position in prev
+        while (i < cur.length) {
+            int match = matchLength(prev, j, cur, i);
+            if (match >= MIN_MATCH || (match > 0 && i + match == cur.length)) {
+                writeOp(out, OP_COPY, match);
+                i += match;
+                j += match;
+                continue;
+            }
+
+            // Find the nearest resynchronization point (smallest combined distance)
+            int insertLen = -1;
+            int skipLen = -1;
+            for (int d = 1; d <= 2 * MAX_SEARCH && insertLen < 0; d++) {
+                for (int a = Math.max(0, d - MAX_SEARCH); a <= Math.min(d, MAX_SEARCH); a++) {
+                    int b = d - a;
+                    if (i + a + MIN_MATCH <= cur.length && j + b + MIN_MATCH <= prev.length
+                            && matchLength(prev, j + b, cur, i + a) >= MIN_MATCH) {
+                        insertLen = a;
+                        skipLen = b;
+                        break;
+                    }
+                }
+            }
+            if (insertLen < 0) {
+                // No match nearby; the rest of the payload is new data
+                insertLen = cur.length - i;
+                skipLen = 0;
+            }
+            if (insertLen > 0) {
+                writeOp(out, OP_INSERT, insertLen);
+                out.write(cur, i, insertLen);
+                i += insertLen;
+            }
+            if (skipLen > 0) {
+                writeOp(out, OP_SKIP, skipLen);
+                j += skipLen;
+            }
+        }
+        return out.toByteArray();
+    }
+
+
+    // Applies the delta to prev and returns the reconstructed payload
+    public static byte[] apply(@NotNull byte[] prev, @NotNull byte[] delta) throws IOException {
+        byte[] out = new byte[Math.max(16, prev.length + 16)];
+        int outLen = 0;
+        int cursor = 0;
+        int[] pos = { 0 };
+        while (pos[0] < delta.length) {
+            long header = readVarint(delta, pos);
+            int op = (int)(header & 3);
+            long len = header >>> 2;
+            if (len > Integer.MAX_VALUE - outLen) {
+                throw new IOException("Invalid payload delta (length overflow)");
+            }
+            int n = (int)len;
+            if (op == OP_SKIP) {
+                cursor += n;
+                continue;
+            }
+            if (outLen + n > out.length) {
+                out = Arrays.copyOf(out, Math.max(outLen + n, out.length * 2));
+            }
+            if (op == OP_COPY) {
+                if (cursor < 0 || cursor + n > prev.length) {
+                    throw new IOException("Invalid payload delta (copy past end of previous payload)");
+                }
+                System.arraycopy(prev, cursor, out, outLen, n);
+                cursor += n;
+            } else if (op == OP_INSERT) {
+                if (pos[0] + n > delta.length) {
+                    throw new IOException("Invalid payload delta (truncated literal)");
+                }
+                System.arraycopy(delta, pos[0], out, outLen, n);
+                pos[0] += n;
+            } else {
+                throw new IOException("Invalid payload delta (unknown operation " + op + ")");
+            }
+            outLen += n;
+        }
+        return Arrays.copyOf(out, outLen);
+    }
+
+
+    protected static int matchLength(byte[] prev, int j, byte[] cur, int i) {
+        int n = 0;
+        while (i + n < cur.length && j + n < prev.length && cur[i + n] == prev[j + n]) {
+            n++;
+        }
+        return n;
+    }
+
+
+    protected static void writeOp(ByteArrayOutputStream out, int op, int length) {
+        writeVarint(out, ((long)length << 2) | op);
+    }
+
+
+    // Unsigned LEB128
+    public static void writeVarint(@NotNull ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int)((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int)value);
+    }
+
+
+    public static long readVarint(@NotNull byte[] buf, @NotNull int[] pos) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (pos[0] >= buf.length) {
+                throw new IOException("Truncated varint");
+            }
+            byte b = buf[pos[0]++];
+            value |= (long)(b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Invalid varint");
+    }
+}
@@ -0,0 +1,94 @@
+// Author: Sean Pesce
+//
+// Per-topic statistics and harvested payload data accumulated over captured messages (see
+// CaptureAnalyzer). Summaries of consecutive parts of a capture can be merged.
+
+package com.seanpesce.capture;
+
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import javax.validation.constraints.NotNull;
+
+
+public class TopicSummary {
+
+    // Maximum number of distinct values kept per harvested key
+    public static final int MAX_VALUES_PER_KEY = 32;
+
+    public final String topic;
+    public long messageCount = 0;
+    public long payloadBytes = 0;
+    public int minPayloadSize = Integer.MAX_VALUE;
+    public int maxPayloadSize = 0;
+    public long retainedCount = 0;
+    public long firstTimestamp = Long.MAX_VALUE;
+    public long lastTimestamp = Long.MIN_VALUE;
+    // Messages that had harvested data
+    public long harvestedCount = 0;
+    // Distinct harvested values (in order of first appearance) for each harvested key
+    public final LinkedHashMap<String, LinkedHashSet<String>> harvested = new LinkedHashMap<String, LinkedHashSet<String>>();
+
+
+    public TopicSummary(@NotNull String topic) {
+        this.topic = topic;
+    }
+
+
+    public void add(@NotNull CaptureReader.Record r) {
+        this.messageCount++;
+        this.payloadBytes += r.payload.length;
+        this.minPayloadSize = Math.min(this.minPayloadSize, r.payload.length);
+        this.maxPayloadSize = Math.max(this.maxPayloadSize, r.payload.length);
+        if (r.retain) {
+            this.retainedCount++;
+        }
+        this.firstTimestamp = Math.min(this.firstTimestamp, r.timestamp);
+        this.lastTimestamp = Math.max(this.lastTimestamp, r.timestamp);
+    }
+
+
+    // Adds the data harvested from one message (may be null)
+    public void addHarvested(Map<String, List<String>> fields) {
+        if (fields == null) {
+            return;
+        }
+        this.harvestedCount++;
+        for (Map.Entry<String, List<String>> e : fields.entrySet()) {
+            this.addValues(e.getKey(), e.getValue());
+        }
+    }
+
+
+    // Adds the other summary (of later messages on the same topic) to this one
+    public void merge(@NotNull TopicSummary other) {
+        this.messageCount += other.messageCount;
+        this.payloadBytes += other.payloadBytes;
+        this.minPayloadSize = Math.min(this.minPayloadSize, other.minPayloadSize);
+        this.maxPayloadSize = Math.max(this.maxPayloadSize, other.maxPayloadSize);
+        this.retainedCount += other.retainedCount;
+        this.firstTimestamp = Math.min(this.firstTimestamp, other.firstTimestamp);
+        this.lastTimestamp = Math.max(this.lastTimestamp, other.lastTimestamp);
+        this.harvestedCount += other.harvestedCount;
+        for (Map.Entry<String, LinkedHashSet<String>> e : other.harvested.entrySet()) {
+            this.addValues(e.getKey(), e.getValue());
+        }
+    }
+
+
+    protected void addValues(String key, Iterable<String> values) {
+        LinkedHashSet<String> set = this.harvested.get(key);
+        if (set == null) {
+            set = new LinkedHashSet<String>();
+            this.harvested.put(key, set);
+        }
+        for (String v : values) {
+            if (set.size() >= MAX_VALUES_PER_KEY) {
+                break;
+            }
+            set.add(v);
+        }
+    }
+}
@@ -1,86 +1,398 @@
 // Author: Sean Pesce
 //
+// HTTPS client with mutual TLS (client certificate) authentication, e.g., for the AWS IoT REST APIs
+// and the IoT credentials provider.
+//
+// Key material (a PEM certificate and private key, or a PKCS#12/JKS keystore) is parsed once per
+// client, and all of a client's requests share one SSLContext. Consecutive requests to the same host
+// reuse the kept-alive connection, and when a new connection is needed, the TLS session is resumed from
+// the SSLContext's session cache if the server allows it (TLS 1.2 session IDs/tickets or TLS 1.3
+// pre-shared keys), which skips the certificate exchange and signatures of a full handshake. Full and
+// resumed handshakes are counted per client.
+//
 // References:
 //   https://dzone.com/articles/execute-mtls-calls-using-java
 
 package com.seanpesce.http;
 
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.InputStream;
 import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
+import java.security.spec.PKCS8EncodedKeySpec;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
 import javax.net.ssl.X509TrustManager;
+import javax.validation.constraints.NotNull;
+
+import com.seanpesce.Util;
 
 
 public class MtlsHttpClient {
 
-    // public static final HostnameVerifier insecureHostnameVerifier = new HostnameVerifier() {
-    //     public boolean verify(String hostname, SSLSession sslSession) {
-    //         return true;
-    //     }
-    // };
+    public static final int TIMEOUT_MS = 30 * 1000;
 
+    public static final HostnameVerifier insecureHostnameVerifier = new HostnameVerifier() {
+        public boolean verify(String hostname, SSLSession sslSession) {
+            return true;
+        }
+    };
 
-    // public static final TrustManager[] insecureTrustManager = {
-    //     new X509TrustManager() {
-    //         public X509Certificate[] getAcceptedIssuers() {
-    //             return new X509Certificate[0];
-    //         }
 
-    //         public void checkClientTrusted(
-    //                 X509Certificate[] certificates, String authType) {
-    //         }
+    public static final TrustManager[] insecureTrustManager = {
+        new X509TrustManager() {
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
 
-    //         public void checkServerTrusted(
-    //                 X509Certificate[] certificates, String authType) {
-    //         }
-    //     }
-    // };
+            public void checkClientTrusted(
+                    X509Certificate[] certificates, String authType) {
+            }
 
+            public void checkServerTrusted(
+                    X509Certificate[] certificates, String authType) {
+            }
+        }
+    };
+
+    protected static final Pattern PEM_PRIVATE_KEY = Pattern.compile("-----BEGIN ((?:RSA |EC |ENCRYPTED )?PRIVATE KEY)-----([A-Za-z0-9+/=\\s]+)-----END \\1-----");
+    // DER-encoded AlgorithmIdentifier OIDs
+    protected static final byte[] OID_RSA_ENCRYPTION = { 0x06, 0x09, 0x2A, (byte)0x86, 0x48, (byte)0x86, (byte)0xF7, 0x0D, 0x01, 0x01, 0x01 };
+    protected static final byte[] OID_EC_PUBLIC_KEY = { 0x06, 0x07, 0x2A, (byte)0x86, 0x48, (byte)0xCE, 0x3D, 0x02, 0x01 };
+    protected static final byte[] DER_NULL = { 0x05, 0x00 };
+
+    public static class Response {
+        public final int status;
+        public final String body;
+
+        public Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
 
 
-    // @TODO: Actually implement mTLS client in Java instead of using this work-around
-    public static String mtlsHttpGet(String url, String clientCertPath, String clientPrivkeyPath, String caCertPath, boolean insecure) {
-        final String[] curlCmdBase = new String[]{ "curl", "-s", "--cert", clientCertPath, "--key", clientPrivkeyPath, "--cacert", caCertPath };
-        String[] curlCmd = null;
+    protected final SSLContext sslContext;
+    protected final SSLSocketFactory socketFactory;
+    protected final HostnameVerifier hostnameVerifier;
+    protected final AtomicLong requestCount = new AtomicLong();
+    protected final AtomicLong fullHandshakeCount = new AtomicLong();
+    protected final AtomicLong resumedHandshakeCount = new AtomicLong();
+
+
+    // clientCert and clientPrivkey are PEM data or paths to PEM files (the private key can be PKCS#8,
+    // PKCS#1 RSA, or SEC1 EC). caCert (PEM data or path) is trusted instead of the default CAs, unless
+    // it's null. If insecure is true, the server certificate isn't verified.
+    public MtlsHttpClient(@NotNull String clientCert, @NotNull String clientPrivkey, String caCert, boolean insecure) throws IOException, GeneralSecurityException {
+        this(loadPemKeyStore(Util.getTextFileDataFromOptionalPath(clientCert), Util.getTextFileDataFromOptionalPath(clientPrivkey)), new char[0], caCert, insecure);
+    }
+
+
+    // Uses the private key(s) in keyStore (protected by keyPassword)
+    public MtlsHttpClient(@NotNull KeyStore keyStore, @NotNull char[] keyPassword, String caCert, boolean insecure) throws IOException, GeneralSecurityException {
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, keyPassword);
+        TrustManager[] trustManagers = null;
         if (insecure) {
-            curlCmd = Arrays.copyOf(curlCmdBase, curlCmdBase.length + 2);
-            curlCmd[curlCmd.length-2] = "-k";
-            curlCmd[curlCmd.length-1] = url;
-        } else {
-            curlCmd = Arrays.copyOf(curlCmdBase, curlCmdBase.length + 1);
-            curlCmd[curlCmd.length-1] = url;
+            trustManagers = insecureTrustManager;
+        } else if (caCert != null) {
+            KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+            trustStore.load(null, null);
+            int i = 0;
+            for (Certificate c : parseCertificates(Util.getTextFileDataFromOptionalPath(caCert))) {
+                trustStore.setCertificateEntry("ca" + i++, c);
+            }
+            TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            tmf.init(trustStore);
+            trustManagers = tmf.getTrustManagers();
         }
+        this.sslContext = SSLContext.getInstance("TLS");
+        this.sslContext.init(kmf.getKeyManagers(), trustManagers, null);
+        this.socketFactory = new CountingSocketFactory(this.sslContext.getSocketFactory());
+        this.hostnameVerifier = insecure ? insecureHostnameVerifier : HttpsURLConnection.getDefaultHostnameVerifier();
+    }
 
-        System.err.println("[INFO] HTTP GET " + url);
 
-        Process subproc = null;
-        BufferedReader stdout = null;
-        BufferedReader stderr = null;
-        String output = "";
+    // Loads a PKCS#12 or JKS keystore file. If alias is non-null, only that entry's key is used.
+    public static KeyStore loadKeyStore(@NotNull String path, @NotNull String type, @NotNull char[] storePassword, String alias, char[] keyPassword) throws IOException, GeneralSecurityException {
+        KeyStore ks = KeyStore.getInstance(type);
+        try (InputStream in = new FileInputStream(path)) {
+            ks.load(in, storePassword);
+        }
+        if (alias == null) {
+            return ks;
+        }
+        KeyStore.PasswordProtection protection = new KeyStore.PasswordProtection(keyPassword == null ? storePassword : keyPassword);
+        KeyStore.Entry entry = ks.getEntry(alias, protection);
+        if (!(entry instanceof KeyStore.PrivateKeyEntry)) {
+            throw new GeneralSecurityException("Keystore has no private key with alias \"" + alias + "\"");
+        }
+        KeyStore single = KeyStore.getInstance(type);
+        single.load(null, null);
+        single.setEntry(alias, entry, protection);
+        return single;
+    }
+
+
+    public Response get(@NotNull String url, Map<String, String> headers) throws IOException {
+        System.err.println("[INFO] HTTP GET " + url);
+        HttpURLConnection conn = (HttpURLConnection)new URL(url).openConnection();
+        if (!(conn instanceof HttpsURLConnection)) {
+            throw new IOException("Not an HTTPS URL: " + url);
+        }
+        ((HttpsURLConnection)conn).setSSLSocketFactory(this.socketFactory);
+        ((HttpsURLConnection)conn).setHostnameVerifier(this.hostnameVerifier);
+        conn.setConnectTimeout(TIMEOUT_MS);
+        conn.setReadTimeout(TIMEOUT_MS);
+        if (headers != null) {
+            for (Map.Entry<String, String> h : headers.entrySet()) {
+                conn.setRequestProperty(h.getKey(), h.getValue());
+            }
+        }
+        this.requestCount.incrementAndGet();
+        int status = conn.getResponseCode();
+        // The body must be read to the end (and the stream closed) for the connection to be reused
+        InputStream in = status >= 400 ? conn.getErrorStream() : conn.getInputStream();
+        if (in == null) {
+            return new Response(status, "");
+        }
         try {
-            subproc = Runtime.getRuntime().exec(curlCmd);
-            stdout = new BufferedReader(new InputStreamReader(subproc.getInputStream()));
-            stderr = new BufferedReader(new InputStreamReader(subproc.getErrorStream()));
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                body.write(buf, 0, n);
+            }
+            return new Response(status, new String(body.toByteArray(), StandardCharsets.UTF_8));
+        } finally {
+            in.close();
+        }
+    }
+
+
+    public long getRequestCount() {
+        return this.requestCount.get();
+    }
+
+    public long getFullHandshakeCount() {
+        return this.fullHandshakeCount.get();
+    }
+
+    public long getResumedHandshakeCount() {
+        return this.resumedHandshakeCount.get();
+    }
+
+
+    // e.g., "5 requests over 2 connections; TLS handshakes: 1 full, 1 resumed (50% resumed)"
+    public String formatStats() {
+        long requests = this.getRequestCount();
+        long full = this.getFullHandshakeCount();
+        long resumed = this.getResumedHandshakeCount();
+        long handshakes = full + resumed;
+        return requests + " request" + (requests == 1 ? "" : "s") + " over " + handshakes + " connection" + (handshakes == 1 ? "" : "s")
+               + "; TLS handshakes: " + full + " full, " + resumed + " resumed"
+               + (handshakes > 0 ? " (" + Math.round(100.0 * resumed / handshakes) + "% resumed)" : "");
+    }
+
+
+    // Counts the handshakes of the sockets it creates. A resumed session was created before the
+    // socket was (TLS 1.3 resumption issues a new session ID, but the session keeps its creation time).
+    protected class CountingSocketFactory extends SSLSocketFactory {
+        protected final SSLSocketFactory factory;
+
+        protected CountingSocketFactory(SSLSocketFactory factory) {
+            this.factory = factory;
+        }
 
-            String line = null;
-            while ((line = stdout.readLine()) != null) {
-                output += line;
+        protected Socket track(Socket s) {
+            if (s instanceof SSLSocket) {
+                final long createdAt = System.currentTimeMillis();
+                ((SSLSocket)s).addHandshakeCompletedListener(event -> {
+                    if (event.getSession().getCreationTime() < createdAt) {
+                        resumedHandshakeCount.incrementAndGet();
+                    } else {
+                        fullHandshakeCount.incrementAndGet();
+                    }
+                });
             }
-            line = null;
-            while ((line = stderr.readLine()) != null) {
-                output += line;
+            return s;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return this.factory.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return this.factory.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return this.track(this.factory.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+            return this.track(this.factory.createSocket(s, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return this.track(this.factory.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return this.track(this.factory.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return this.track(this.factory.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return this.track(this.factory.createSocket(address, port, localAddress, localPort));
+        }
+    }
+
+
+    // Builds an in-memory keystore from a PEM certificate (chain) and private key
+    public static KeyStore loadPemKeyStore(@NotNull String certPem, @NotNull String keyPem) throws IOException, GeneralSecurityException {
+        Collection<? extends Certificate> chain = parseCertificates(certPem);
+        if (chain.isEmpty()) {
+            throw new GeneralSecurityException("No certificate found in client certificate data");
+        }
+        Certificate[] certs = chain.toArray(new Certificate[0]);
+        PrivateKey privKey = parsePrivateKey(keyPem, certs[0].getPublicKey().getAlgorithm());
+        KeyStore ks = KeyStore.getInstance(KeyStore.getDefaultType());
+        ks.load(null, null);
+        ks.setKeyEntry("client", privKey, new char[0], certs);
+        return ks;
+    }
+
+
+    protected static Collection<? extends Certificate> parseCertificates(String pem) throws GeneralSecurityException {
+        if (!pem.contains("-----BEGIN")) {
+            return Collections.emptyList();
+        }
+        CertificateFactory cf = CertificateFactory.getInstance("X.509");
+        return cf.generateCertificates(new ByteArrayInputStream(pem.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+
+    // algorithm is the key algorithm of the matching certificate ("RSA" or "EC")
+    protected static PrivateKey parsePrivateKey(String pem, String algorithm) throws GeneralSecurityException {
+        Matcher m = PEM_PRIVATE_KEY.matcher(pem);
+        if (!m.find()) {
+            throw new GeneralSecurityException("No PEM private key found in client private key data");
+        }
+        byte[] der = Base64.getMimeDecoder().decode(m.group(2));
+        if (m.group(1).equals("ENCRYPTED PRIVATE KEY")) {
+            throw new GeneralSecurityException("Encrypted private keys are not supported");
+        } else if (m.group(1).equals("RSA PRIVATE KEY")) {
+            // PKCS#1 RSAPrivateKey -> PKCS#8 PrivateKeyInfo
+            der = derSequence(new byte[]{ 0x02, 0x01, 0x00 }, derSequence(OID_RSA_ENCRYPTION, DER_NULL), derElement(0x04, der));
+        } else if (m.group(1).equals("EC PRIVATE KEY")) {
+            // SEC1 ECPrivateKey -> PKCS#8 PrivateKeyInfo (the curve OID moves to the AlgorithmIdentifier)
+            der = derSequence(new byte[]{ 0x02, 0x01, 0x00 }, derSequence(OID_EC_PUBLIC_KEY, ecCurveOid(der)), derElement(0x04, der));
+        }
+        return KeyFactory.getInstance(algorithm).generatePrivate(new PKCS8EncodedKeySpec(der));
+    }
+
+
+    // Returns the (DER-encoded) named curve OID from the parameters field ([0]) of a SEC1 ECPrivateKey
+    protected static byte[] ecCurveOid(byte[] sec1) throws GeneralSecurityException {
+        try {
+            int pos = derContentStart(sec1, 0);
+            while (pos < sec1.length) {
+                int start = derContentStart(sec1, pos);
+                int end = start + derContentLength(sec1, pos);
+                if ((sec1[pos] & 0xFF) == 0xA0) {
+                    return Arrays.copyOfRange(sec1, start, end);
+                }
+                pos = end;
             }
-        } catch (IOException ex) {
-            return null;
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            // Fall through
         }
+        throw new GeneralSecurityException("EC private key doesn't specify a named curve");
+    }
 
-        return output;
+
+    protected static int derContentLength(byte[] der, int pos) {
+        int len = der[pos + 1] & 0xFF;
+        if (len < 0x80) {
+            return len;
+        }
+        int result = 0;
+        for (int i = 0; i < (len & 0x7F); i++) {
+            result = (result << 8) | (der[pos + 2 + i] & 0xFF);
+        }
+        return result;
     }
 
+
+    protected static int derContentStart(byte[] der, int pos) {
+        int len = der[pos + 1] & 0xFF;
+        return pos + 2 + (len < 0x80 ? 0 : (len & 0x7F));
+    }
+
+
+    protected static byte[] derSequence(byte[]... elements) {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        for (byte[] e : elements) {
+            content.write(e, 0, e.length);
+        }
+        return derElement(0x30, content.toByteArray());
+    }
+
+
+    protected static byte[] derElement(int tag, byte[] content) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(tag);
+        if (content.length < 0x80) {
+            out.write(content.length);
+        } else {
+            int lenBytes = content.length > 0xFFFF ? 3 : (content.length > 0xFF ? 2 : 1);
+            out.write(0x80 | lenBytes);
+            for (int i = lenBytes - 1; i >= 0; i--) {
+                out.write(content.length >>> (8 * i));
+            }
+        }
+        out.write(content, 0, content.length);
+        return out.toByteArray();
+    }
 }
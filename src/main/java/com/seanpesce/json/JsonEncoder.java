@@ -0,0 +1,111 @@
+// Author: Sean Pesce
+//
+// Minimal JSON serializer for output records. Supports strings, numbers, booleans, null, maps (with
+// string keys), collections, and arrays; any other object is serialized as its toString() value.
+// Non-finite floating-point numbers have no JSON representation, so they're serialized as strings
+// ("NaN", "Infinity", or "-Infinity").
+//
+// References:
+//   https://www.rfc-editor.org/rfc/rfc8259
+
+package com.seanpesce.json;
+
+
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.Map;
+import javax.validation.constraints.NotNull;
+
+
+public class JsonEncoder {
+
+    protected static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+
+    public static String encode(Object value) {
+        StringBuilder sb = new StringBuilder();
+        appendValue(sb, value);
+        return sb.toString();
+    }
+
+
+    public static void appendValue(@NotNull StringBuilder sb, Object value) {
+        if (value == null) {
+            sb.append("null");
+        } else if (value instanceof String) {
+            appendString(sb, (String)value);
+        } else if ((value instanceof Double && !Double.isFinite((Double)value)) || (value instanceof Float && !Float.isFinite((Float)value))) {
+            appendString(sb, value.toString());
+        } else if (value instanceof Number || value instanceof Boolean) {
+            sb.append(value.toString());
+        } else if (value instanceof Map) {
+            sb.append('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>)value).entrySet()) {
+                if (!first) {
+                    sb.append(',');
+                }
+                first = false;
+                appendString(sb, String.valueOf(entry.getKey()));
+                sb.append(':');
+                appendValue(sb, entry.getValue());
+            }
+            sb.append('}');
+        } else if (value instanceof Collection) {
+            sb.append('[');
+            boolean first = true;
+            for (Object item : (Collection<?>)value) {
+                if (!first) {
+                    sb.append(',');
+                }
+                first = false;
+                appendValue(sb, item);
+            }
+            sb.append(']');
+        } else if (value.getClass().isArray()) {
+            sb.append('[');
+            for (int i = 0; i < Array.getLength(value); i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                appendValue(sb, Array.get(value, i));
+            }
+            sb.append(']');
+        } else {
+            appendString(sb, value.toString());
+        }
+    }
+
+
+    public static void appendString(@NotNull StringBuilder sb, @NotNull String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append("\\u00").append(HEX_DIGITS[c >> 4]).append(HEX_DIGITS[c & 0xf]);
+                    } else {
+                        sb.append(c);
+                    }
+                    break;
+            }
+        }
+        sb.append('"');
+    }
+}
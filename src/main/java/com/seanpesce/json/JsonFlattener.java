@@ -0,0 +1,92 @@
+// Author: Sean Pesce
+//
+// Flattens a JSON document into its scalar values, keyed by path (e.g., "state.reported.temp" or
+// "retainedTopics[3].topic"), so two versions of a document can be compared field by field. Built on
+// JsonStreamScanner; empty objects and arrays have no scalar values and don't appear in the result.
+
+package com.seanpesce.json;
+
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import javax.validation.constraints.NotNull;
+
+
+public class JsonFlattener {
+
+    // Returns the flattened document, or null if it's not well-formed JSON. Values under any of the
+    // ignored paths (e.g., "timestamp" or "metadata") are left out.
+    public static LinkedHashMap<String, String> flatten(@NotNull byte[] data, Collection<String> ignoredPaths) {
+        final Collection<String> ignored = ignoredPaths == null ? Collections.<String>emptyList() : ignoredPaths;
+        final LinkedHashMap<String, String> values = new LinkedHashMap<String, String>();
+        // Path of each open container, and the next element index of each open array (-1 for objects)
+        final ArrayList<String> paths = new ArrayList<String>();
+        final ArrayList<Integer> indexes = new ArrayList<Integer>();
+
+        boolean ok = JsonStreamScanner.scan(data, new JsonStreamScanner.Visitor() {
+            protected String key = null;
+
+            // Path of the value that's about to start
+            protected String nextPath() {
+                if (paths.isEmpty()) {
+                    return "";
+                }
+                int last = paths.size() - 1;
+                String parent = paths.get(last);
+                int index = indexes.get(last);
+                if (index >= 0) {
+                    indexes.set(last, index + 1);
+                    return parent + "[" + index + "]";
+                }
+                return parent.isEmpty() ? this.key : parent + JsonPathExtractor.SEGMENT_SEP + this.key;
+            }
+
+            public void startObject() {
+                paths.add(this.nextPath());
+                indexes.add(-1);
+            }
+
+            public void endObject() {
+                paths.remove(paths.size() - 1);
+                indexes.remove(indexes.size() - 1);
+            }
+
+            public void startArray() {
+                paths.add(this.nextPath());
+                indexes.add(0);
+            }
+
+            public void endArray() {
+                this.endObject();
+            }
+
+            public void key(byte[] buf, int start, int end) {
+                this.key = JsonStreamScanner.decodeString(buf, start, end);
+            }
+
+            public void value(byte type, byte[] buf, int start, int end) {
+                String path = this.nextPath();
+                if (!isIgnored(path, ignored)) {
+                    values.put(path, JsonStreamScanner.decodeValue(type, buf, start, end));
+                }
+            }
+        });
+        if (!ok) {
+            return null;
+        }
+        return values;
+    }
+
+
+    // True if path is one of the ignored paths, or inside one of them
+    public static boolean isIgnored(@NotNull String path, @NotNull Collection<String> ignoredPaths) {
+        for (String p : ignoredPaths) {
+            if (path.startsWith(p) && (path.length() == p.length() || path.charAt(p.length()) == '.' || path.charAt(p.length()) == '[')) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,237 @@
+// Author: Sean Pesce
+//
+// Extracts values for a fixed set of key paths from JSON documents using JsonStreamScanner. Paths
+// are compiled into a small automaton that is advanced as keys are encountered, so subtrees that
+// can't contain a match are skipped without decoding and without allocating (a state list is only
+// allocated for keys that advance the automaton).
+//
+// Path syntax (segments separated by "."):
+//   a.b.c       Exact key path from the document root
+//   a.*.c       "*" matches any single key
+//   **.token    "**" matches zero or more keys (i.e., "token" at any depth)
+//
+// Arrays are transparent: "jobs.jobId" matches the jobId field of every object in the "jobs" array.
+
+package com.seanpesce.json;
+
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.validation.constraints.NotNull;
+
+
+public class JsonPathExtractor {
+
+    public static final String WILDCARD_SEGMENT = "*";
+    public static final String DEEP_WILDCARD_SEGMENT = "**";
+    public static final String SEGMENT_SEP = ".";
+
+
+    // Receives extracted values. pathIndex is the index of the matching path in getPaths().
+    public static interface MatchHandler {
+        void match(int pathIndex, byte type, byte[] buf, int start, int end);
+    }
+
+
+    protected static class Node {
+        protected byte[][] keys = new byte[0][];
+        protected Node[] children = new Node[0];
+        protected Node wildcard = null;
+        protected Node deep = null;
+        protected boolean loop = false;
+        protected int[] pathIndexes = new int[0];
+
+        protected Node child(byte[] key) {
+            for (int i = 0; i < this.keys.length; i++) {
+                if (Arrays.equals(this.keys[i], key)) {
+                    return this.children[i];
+                }
+            }
+            Node n = new Node();
+            this.keys = Arrays.copyOf(this.keys, this.keys.length + 1);
+            this.children = Arrays.copyOf(this.children, this.children.length + 1);
+            this.keys[this.keys.length - 1] = key;
+            this.children[this.children.length - 1] = n;
+            return n;
+        }
+    }
+
+
+    // Shared state list for keys, values and containers that can't lead to a match (never modified)
+    protected static final ArrayList<Node> NO_STATES = new ArrayList<Node>(0);
+
+    protected final List<String> paths;
+    protected final Node root = new Node();
+
+
+    public JsonPathExtractor(@NotNull List<String> paths) {
+        this.paths = Collections.unmodifiableList(new ArrayList<String>(paths));
+        for (int p = 0; p < this.paths.size(); p++) {
+            Node n = this.root;
+            for (String seg : this.paths.get(p).split("\\" + SEGMENT_SEP)) {
+                if (seg.isEmpty()) {
+                    continue;
+                }
+                if (seg.equals(WILDCARD_SEGMENT)) {
+                    if (n.wildcard == null) {
+                        n.wildcard = new Node();
+                    }
+                    n = n.wildcard;
+                } else if (seg.equals(DEEP_WILDCARD_SEGMENT)) {
+                    if (n.deep == null) {
+                        n.deep = new Node();
+                        n.deep.loop = true;
+                    }
+                    n = n.deep;
+                } else {
+                    n = n.child(seg.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            n.pathIndexes = Arrays.copyOf(n.pathIndexes, n.pathIndexes.length + 1);
+            n.pathIndexes[n.pathIndexes.length - 1] = p;
+        }
+    }
+
+
+    public List<String> getPaths() {
+        return this.paths;
+    }
+
+
+    // Scans the document and reports every scalar value whose key path matches one of the compiled
+    // paths. Returns false if the data is not well-formed JSON.
+    public boolean extract(@NotNull byte[] data, @NotNull MatchHandler handler) {
+        if (!JsonStreamScanner.looksLikeJson(data)) {
+            return false;
+        }
+        return JsonStreamScanner.scan(data, new MatchVisitor(handler));
+    }
+
+
+    // Convenience wrapper that returns decoded values grouped by path (in path order). Returns null
+    // if the data is not well-formed JSON.
+    public Map<String, List<String>> extractAll(@NotNull byte[] data) {
+        final Map<String, List<String>> result = new LinkedHashMap<String, List<String>>();
+        boolean ok = this.extract(data, new MatchHandler() {
+            @Override
+            public void match(int pathIndex, byte type, byte[] buf, int start, int end) {
+                String path = paths.get(pathIndex);
+                List<String> values = result.get(path);
+                if (values == null) {
+                    values = new ArrayList<String>();
+                    result.put(path, values);
+                }
+                values.add(JsonStreamScanner.decodeValue(type, buf, start, end));
+            }
+        });
+        return ok ? result : null;
+    }
+
+
+    // Adds a node and everything reachable from it via "**" (zero keys) to the set
+    protected static void addWithClosure(ArrayList<Node> set, Node n) {
+        while (n != null && !set.contains(n)) {
+            set.add(n);
+            n = n.deep;
+        }
+    }
+
+
+    protected class MatchVisitor implements JsonStreamScanner.Visitor {
+        protected final MatchHandler handler;
+        // Active automaton states for each open container
+        protected final ArrayList<ArrayList<Node>> containerStates = new ArrayList<ArrayList<Node>>();
+        protected final ArrayList<Boolean> containerIsObject = new ArrayList<Boolean>();
+        // States that apply to the next value (set by key(), or inherited inside arrays)
+        protected ArrayList<Node> valueStates = new ArrayList<Node>();
+
+        protected MatchVisitor(MatchHandler handler) {
+            this.handler = handler;
+            addWithClosure(this.valueStates, root);
+        }
+
+        protected void push(boolean isObject) {
+            this.containerStates.add(this.valueStates);
+            this.containerIsObject.add(isObject);
+            if (isObject) {
+                this.valueStates = NO_STATES;
+            }
+        }
+
+        protected void pop() {
+            int top = this.containerStates.size() - 1;
+            this.containerStates.remove(top);
+            this.containerIsObject.remove(top);
+            this.resetValueStates();
+        }
+
+        // Inside arrays, each element inherits the array's states
+        protected void resetValueStates() {
+            int top = this.containerStates.size() - 1;
+            if (top >= 0 && !this.containerIsObject.get(top)) {
+                this.valueStates = this.containerStates.get(top);
+            } else {
+                this.valueStates = NO_STATES;
+            }
+        }
+
+        @Override
+        public void startObject() {
+            this.push(true);
+        }
+
+        @Override
+        public void endObject() {
+            this.pop();
+        }
+
+        @Override
+        public void startArray() {
+            this.push(false);
+        }
+
+        @Override
+        public void endArray() {
+            this.pop();
+        }
+
+        @Override
+        public void key(byte[] buf, int start, int end) {
+            ArrayList<Node> current = this.containerStates.get(this.containerStates.size() - 1);
+            ArrayList<Node> next = NO_STATES;
+            for (int s = 0; s < current.size(); s++) {
+                Node n = current.get(s);
+                for (int k = 0; k < n.keys.length; k++) {
+                    if (JsonStreamScanner.rangeEquals(buf, start, end, n.keys[k])) {
+                        next = next == NO_STATES ? new ArrayList<Node>(2) : next;
+                        addWithClosure(next, n.children[k]);
+                    }
+                }
+                if (n.wildcard != null) {
+                    next = next == NO_STATES ? new ArrayList<Node>(2) : next;
+                    addWithClosure(next, n.wildcard);
+                }
+                if (n.loop) {
+                    next = next == NO_STATES ? new ArrayList<Node>(2) : next;
+                    addWithClosure(next, n);
+                }
+            }
+            this.valueStates = next;
+        }
+
+        @Override
+        public void value(byte type, byte[] buf, int start, int end) {
+            for (int s = 0; s < this.valueStates.size(); s++) {
+                for (int p : this.valueStates.get(s).pathIndexes) {
+                    this.handler.match(p, type, buf, start, end);
+                }
+            }
+            this.resetValueStates();
+        }
+    }
+}
@@ -0,0 +1,313 @@
+// Author: Sean Pesce
+//
+// Minimal streaming JSON tokenizer that operates directly on raw UTF-8 bytes. No tree is built and
+// no strings are allocated unless a visitor asks for them; visitors receive the byte range of each
+// key and value in the original buffer. Intended for inspecting large volumes of MQTT payloads
+// where only a handful of fields are of interest.
+//
+// References:
+//   https://www.rfc-editor.org/rfc/rfc8259
+
+package com.seanpesce.json;
+
+
+import java.nio.charset.StandardCharsets;
+import javax.validation.constraints.NotNull;
+
+
+public class JsonStreamScanner {
+
+    // Value types reported to visitors
+    public static final byte TYPE_STRING = 's';
+    public static final byte TYPE_NUMBER = 'n';
+    public static final byte TYPE_BOOLEAN = 'b';
+    public static final byte TYPE_NULL = 'z';
+
+    // Maximum nesting depth before a document is rejected
+    public static final int MAX_DEPTH = 256;
+
+
+    // Receives tokenizer events. Byte ranges are [start, end) offsets into the scanned buffer; string
+    // keys and values exclude their surrounding quotes and are NOT unescaped (see decodeString()).
+    public static interface Visitor {
+        void startObject();
+        void endObject();
+        void startArray();
+        void endArray();
+        void key(byte[] buf, int start, int end);
+        void value(byte type, byte[] buf, int start, int end);
+    }
+
+
+    // Convenience base class for visitors that only care about some events
+    public static class VisitorAdapter implements Visitor {
+        public void startObject() {}
+        public void endObject() {}
+        public void startArray() {}
+        public void endArray() {}
+        public void key(byte[] buf, int start, int end) {}
+        public void value(byte type, byte[] buf, int start, int end) {}
+    }
+
+
+    // Quick check for whether a payload could be a JSON object or array
+    public static boolean looksLikeJson(byte[] data) {
+        if (data == null) {
+            return false;
+        }
+        int i = skipWhitespace(data, 0, data.length);
+        return i < data.length && (data[i] == '{' || data[i] == '[');
+    }
+
+
+    // Tokenizes the entire buffer. Returns false if the data is not well-formed JSON (events may have
+    // been delivered for the well-formed prefix).
+    public static boolean scan(@NotNull byte[] data, @NotNull Visitor visitor) {
+        return scan(data, 0, data.length, visitor);
+    }
+
+
+    public static boolean scan(@NotNull byte[] buf, int offset, int end, @NotNull Visitor visitor) {
+        // Container stack: true = object, false = array
+        boolean[] stack = new boolean[MAX_DEPTH];
+        int depth = 0;
+        // Whether the next token in an object is a key (as opposed to a value)
+        boolean expectKey = false;
+        int i = skipWhitespace(buf, offset, end);
+        if (i >= end) {
+            return false;
+        }
+
+        while (i < end) {
+            byte b = buf[i];
+            switch (b) {
+                case '{':
+                    if (depth >= MAX_DEPTH) {
+                        return false;
+                    }
+                    stack[depth++] = true;
+                    expectKey = true;
+                    visitor.startObject();
+                    i++;
+                    break;
+
+                case '[':
+                    if (depth >= MAX_DEPTH) {
+                        return false;
+                    }
+                    stack[depth++] = false;
+                    expectKey = false;
+                    visitor.startArray();
+                    i++;
+                    break;
+
+                case '}':
+                    if (depth == 0 || !stack[depth - 1]) {
+                        return false;
+                    }
+                    depth--;
+                    visitor.endObject();
+                    i++;
+                    break;
+
+                case ']':
+                    if (depth == 0 || stack[depth - 1]) {
+                        return false;
+                    }
+                    depth--;
+                    visitor.endArray();
+                    i++;
+                    break;
+
+                case ',':
+                    if (depth == 0) {
+                        return false;
+                    }
+                    expectKey = stack[depth - 1];
+                    i++;
+                    break;
+
+                case ':':
+                    if (depth == 0) {
+                        return false;
+                    }
+                    i++;
+                    break;
+
+                case '"': {
+                    int strEnd = findStringEnd(buf, i + 1, end);
+                    if (strEnd < 0) {
+                        return false;
+                    }
+                    if (expectKey) {
+                        visitor.key(buf, i + 1, strEnd);
+                        expectKey = false;
+                    } else {
+                        visitor.value(TYPE_STRING, buf, i + 1, strEnd);
+                    }
+                    i = strEnd + 1;
+                    break;
+                }
+
+                case 't':
+                case 'f':
+                case 'n': {
+                    int litEnd = i;
+                    while (litEnd < end && buf[litEnd] >= 'a' && buf[litEnd] <= 'z') {
+                        litEnd++;
+                    }
+                    int len = litEnd - i;
+                    if (b == 'n' && len == 4 && buf[i + 1] == 'u') {
+                        visitor.value(TYPE_NULL, buf, i, litEnd);
+                    } else if ((b == 't' && len == 4) || (b == 'f' && len == 5)) {
+                        visitor.value(TYPE_BOOLEAN, buf, i, litEnd);
+                    } else {
+                        return false;
+                    }
+                    i = litEnd;
+                    break;
+                }
+
+                default:
+                    if (b == '-' || (b >= '0' && b <= '9')) {
+                        int numEnd = i + 1;
+                        while (numEnd < end && isNumberChar(buf[numEnd])) {
+                            numEnd++;
+                        }
+                        visitor.value(TYPE_NUMBER, buf, i, numEnd);
+                        i = numEnd;
+                    } else if (isWhitespace(b)) {
+                        i++;
+                    } else {
+                        return false;
+                    }
+                    break;
+            }
+            if (depth == 0) {
+                // Top-level value is complete; only trailing whitespace is allowed
+                return skipWhitespace(buf, i, end) == end;
+            }
+        }
+        return depth == 0;
+    }
+
+
+    // Returns the index of the closing quote of a string that begins at the given offset, or -1
+    protected static int findStringEnd(byte[] buf, int i, int end) {
+        while (i < end) {
+            byte b = buf[i];
+            if (b == '"') {
+                return i;
+            } else if (b == '\\') {
+                i += 2;
+            } else {
+                i++;
+            }
+        }
+        return -1;
+    }
+
+
+    // Returns true if the byte range [start, end) equals the given (unescaped, ASCII-safe) bytes
+    public static boolean rangeEquals(byte[] buf, int start, int end, byte[] expected) {
+        if (end - start != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (buf[start + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    // Decodes a string key or value (without quotes), resolving escape sequences
+    public static String decodeString(byte[] buf, int start, int end) {
+        // Fast path: no escape sequences
+        int i = start;
+        while (i < end && buf[i] != '\\') {
+            i++;
+        }
+        if (i == end) {
+            return new String(buf, start, end - start, StandardCharsets.UTF_8);
+        }
+
+        // Unescaped runs are decoded as UTF-8; unicode escapes are appended as UTF-16 code units, so
+        // surrogate pairs recombine naturally
+        StringBuilder sb = new StringBuilder(end - start);
+        sb.append(new String(buf, start, i - start, StandardCharsets.UTF_8));
+        while (i < end) {
+            int runStart = i;
+            while (i < end && buf[i] != '\\') {
+                i++;
+            }
+            if (i > runStart) {
+                sb.append(new String(buf, runStart, i - runStart, StandardCharsets.UTF_8));
+            }
+            if (i + 1 >= end) {
+                if (i < end) {
+                    sb.append('\\');
+                    i++;
+                }
+                break;
+            }
+            byte esc = buf[i + 1];
+            i += 2;
+            switch (esc) {
+                case 'n':  sb.append('\n'); break;
+                case 't':  sb.append('\t'); break;
+                case 'r':  sb.append('\r'); break;
+                case 'b':  sb.append('\b'); break;
+                case 'f':  sb.append('\f'); break;
+                case 'u':
+                    int cp = -1;
+                    if (i + 4 <= end) {
+                        try {
+                            cp = Integer.parseInt(new String(buf, i, 4, StandardCharsets.US_ASCII), 16);
+                        } catch (NumberFormatException ex) {
+                            cp = -1;
+                        }
+                    }
+                    if (cp < 0) {
+                        // Leave malformed escapes as-is
+                        sb.append("\\u");
+                    } else {
+                        sb.append((char)cp);
+                        i += 4;
+                    }
+                    break;
+                default:
+                    // Includes \" \\ \/
+                    sb.append((char)esc);
+                    break;
+            }
+        }
+        return sb.toString();
+    }
+
+
+    // Decodes any scalar value to its string representation
+    public static String decodeValue(byte type, byte[] buf, int start, int end) {
+        if (type == TYPE_STRING) {
+            return decodeString(buf, start, end);
+        }
+        return new String(buf, start, end - start, StandardCharsets.US_ASCII);
+    }
+
+
+    protected static int skipWhitespace(byte[] buf, int i, int end) {
+        while (i < end && isWhitespace(buf[i])) {
+            i++;
+        }
+        return i;
+    }
+
+    protected static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    protected static boolean isNumberChar(byte b) {
+        return (b >= '0' && b <= '9') || b == '.' || b == 'e' || b == 'E' || b == '+' || b == '-';
+    }
+}
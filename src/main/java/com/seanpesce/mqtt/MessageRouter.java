@@ -0,0 +1,41 @@
+// Author: Sean Pesce
+//
+// MQTT message handler that fans each received message out to every registered handler whose
+// topic filter matches the message topic. This allows several analyses (each with their own topic
+// filters) to share a single broad subscription such as "#". Each handler receives a given message
+// at most once, even if several of its filters match.
+
+package com.seanpesce.mqtt;
+
+
+import java.util.List;
+import java.util.function.Consumer;
+import javax.validation.constraints.NotNull;
+
+import software.amazon.awssdk.crt.mqtt.MqttMessage;
+
+
+public class MessageRouter implements Consumer<MqttMessage> {
+
+    protected final TopicRouter<Consumer<MqttMessage>> router = new TopicRouter<Consumer<MqttMessage>>();
+
+    // Register all routes before the router starts receiving messages
+    public MessageRouter addRoute(@NotNull String topicFilter, @NotNull Consumer<MqttMessage> handler) {
+        this.router.add(topicFilter, handler);
+        return this;
+    }
+
+
+    public int getRouteCount() {
+        return this.router.size();
+    }
+
+
+    @Override
+    public void accept(MqttMessage message) {
+        List<Consumer<MqttMessage>> handlers = this.router.match(message.getTopic());
+        for (int i = 0; i < handlers.size(); i++) {
+            handlers.get(i).accept(message);
+        }
+    }
+}
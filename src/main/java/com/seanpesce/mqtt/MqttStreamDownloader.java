@@ -0,0 +1,416 @@
+// Author: Sean Pesce
+//
+// Downloads files from an AWS IoT MQTT-based file delivery stream (the mechanism used for OTA updates).
+// The stream is described first, then each file is fetched with a sliding window of outstanding
+// single-block "get" requests. Blocks are written directly to their offset in a preallocated,
+// memory-mapped output file, so out-of-order and duplicate blocks need no reassembly buffer. Blocks
+// that aren't received within the timeout are requested again (up to a retry limit).
+//
+// Topics (JSON payload format):
+//   $aws/things/<thing>/streams/<streamId>/describe/json      {"c":<token>}
+//   $aws/things/<thing>/streams/<streamId>/description/json   {"c":<token>,"s":<version>,"r":[{"f":<fileId>,"z":<size>},...]}
+//   $aws/things/<thing>/streams/<streamId>/get/json           {"c":<token>,"s":<version>,"f":<fileId>,"l":<blockSize>,"o":<blockOffset>,"n":<blockCount>}
+//   $aws/things/<thing>/streams/<streamId>/data/json          {"c":<token>,"f":<fileId>,"l":<length>,"i":<blockId>,"p":<base64 data>}
+//   $aws/things/<thing>/streams/<streamId>/rejected/json      {"c":<token>,"o":<error code>,"m":<error message>}
+//
+// References:
+//   https://docs.aws.amazon.com/iot/latest/developerguide/mqtt-based-file-delivery-in-devices.html
+
+package com.seanpesce.mqtt;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import javax.validation.constraints.NotNull;
+
+import com.seanpesce.json.JsonPathExtractor;
+import com.seanpesce.json.JsonStreamScanner;
+
+import software.amazon.awssdk.crt.mqtt.MqttMessage;
+import software.amazon.awssdk.crt.mqtt.QualityOfService;
+
+
+public class MqttStreamDownloader {
+
+    // Block size limits enforced by AWS IoT
+    public static final int MIN_BLOCK_SIZE = 256;
+    public static final int MAX_BLOCK_SIZE = 131072;
+
+    // Stream description
+    public static class Description {
+        public final int version;
+        public final String description;
+        // File ID -> file size
+        public final LinkedHashMap<Integer, Long> files = new LinkedHashMap<Integer, Long>();
+
+        public Description(int version, String description) {
+            this.version = version;
+            this.description = description;
+        }
+    }
+
+    public static class Stats {
+        public final int fileId;
+        public final long bytes;
+        public final int blocks;
+        public final int retries;
+        public final long elapsedMs;
+
+        public Stats(int fileId, long bytes, int blocks, int retries, long elapsedMs) {
+            this.fileId = fileId;
+            this.bytes = bytes;
+            this.blocks = blocks;
+            this.retries = retries;
+            this.elapsedMs = elapsedMs;
+        }
+
+        // Effective throughput in bytes per second
+        public double getThroughput() {
+            return this.elapsedMs > 0 ? this.bytes * 1000.0 / this.elapsedMs : 0;
+        }
+    }
+
+
+    protected static final JsonPathExtractor descriptionExtractor = new JsonPathExtractor(Arrays.asList("c", "s", "d", "r.f", "r.z"));
+    protected static final JsonPathExtractor rejectedExtractor = new JsonPathExtractor(Arrays.asList("c", "o", "m"));
+
+    protected final Function<MqttMessage, CompletableFuture<Integer>> publisher;
+    protected final String topicPrefix;
+    protected final int blockSize;
+    protected final int window;
+    protected final long timeoutMs;
+    protected final int maxRetries;
+    protected final String token = "stream-" + Long.toHexString(System.currentTimeMillis());
+    protected final Consumer<MqttMessage> messageHandler = (MqttMessage message) -> this.onMessage(message);
+
+    // State for the current operation (guarded by this)
+    protected Description description = null;
+    protected String error = null;
+    protected int currentFileId = -1;
+    protected long currentFileSize = 0;
+    protected MappedByteBuffer output = null;
+    protected BitSet received = null;
+    protected int receivedCount = 0;
+
+
+    public MqttStreamDownloader(@NotNull Function<MqttMessage, CompletableFuture<Integer>> publisher, @NotNull String thingName, @NotNull String streamId,
+                                int blockSize, int window, long timeoutMs, int maxRetries) {
+        this.publisher = publisher;
+        this.topicPrefix = "$aws/things/" + thingName + "/streams/" + streamId + "/";
+        this.blockSize = Math.min(MAX_BLOCK_SIZE, Math.max(MIN_BLOCK_SIZE, blockSize));
+        this.window = Math.max(1, window);
+        this.timeoutMs = Math.max(1, timeoutMs);
+        this.maxRetries = Math.max(0, maxRetries);
+    }
+
+
+    // Topics that must be subscribed to (with getMessageHandler()) before describing/downloading
+    public String[] getResponseTopics() {
+        return new String[]{ this.topicPrefix + "description/json", this.topicPrefix + "data/json", this.topicPrefix + "rejected/json" };
+    }
+
+
+    public Consumer<MqttMessage> getMessageHandler() {
+        return this.messageHandler;
+    }
+
+
+    public int getBlockSize() {
+        return this.blockSize;
+    }
+
+
+    // Requests the stream description (retrying on timeout)
+    public synchronized Description describe() throws IOException, InterruptedException, TimeoutException {
+        this.description = null;
+        this.error = null;
+        byte[] payload = ("{\"c\":\"" + this.token + "\"}").getBytes(StandardCharsets.UTF_8);
+        for (int attempt = 0; attempt <= this.maxRetries; attempt++) {
+            this.publish("describe/json", payload);
+            long deadline = System.currentTimeMillis() + this.timeoutMs;
+            long remaining = this.timeoutMs;
+            while (this.description == null && this.error == null && remaining > 0) {
+                this.wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+            if (this.error != null) {
+                throw new IOException(this.error);
+            }
+            if (this.description != null) {
+                return this.description;
+            }
+        }
+        throw new TimeoutException("No stream description received from " + this.topicPrefix);
+    }
+
+
+    // Downloads a file from the stream to the output path (describe() must be called first)
+    public Stats download(int fileId, @NotNull File outputFile) throws IOException, InterruptedException, TimeoutException {
+        Long size = null;
+        synchronized (this) {
+            if (this.description == null) {
+                throw new IllegalStateException("Stream must be described before downloading");
+            }
+            size = this.description.files.get(fileId);
+        }
+        if (size == null) {
+            throw new IOException("File ID " + fileId + " is not in the stream");
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("File ID " + fileId + " is too large to map into memory (" + size + " bytes)");
+        }
+        long startTime = System.currentTimeMillis();
+        int blockCount = (int)((size + this.blockSize - 1) / this.blockSize);
+        int retries = 0;
+        boolean complete = false;
+        try (RandomAccessFile raf = new RandomAccessFile(outputFile, "rw"); FileChannel channel = raf.getChannel()) {
+            raf.setLength(size);
+            synchronized (this) {
+                this.error = null;
+                this.currentFileId = fileId;
+                this.currentFileSize = size;
+                this.output = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                this.received = new BitSet(blockCount);
+                this.receivedCount = 0;
+
+                // Outstanding block ID -> deadline
+                HashMap<Integer, Long> outstanding = new HashMap<Integer, Long>();
+                int[] attempts = new int[blockCount];
+                int nextBlock = 0;
+                while (this.receivedCount < blockCount) {
+                    if (this.error != null) {
+                        throw new IOException(this.error);
+                    }
+                    long now = System.currentTimeMillis();
+
+                    // Retire received blocks and re-request timed-out blocks
+                    long nextDeadline = Long.MAX_VALUE;
+                    Iterator<Map.Entry<Integer, Long>> iter = outstanding.entrySet().iterator();
+                    while (iter.hasNext()) {
+                        Map.Entry<Integer, Long> entry = iter.next();
+                        int block = entry.getKey();
+                        if (this.received.get(block)) {
+                            iter.remove();
+                        } else if (entry.getValue() <= now) {
+                            if (attempts[block] > this.maxRetries) {
+                                throw new TimeoutException("Block " + block + " of file " + fileId + " was not received after " + attempts[block] + " attempts");
+                            }
+                            attempts[block]++;
+                            retries++;
+                            this.requestBlock(fileId, block);
+                            entry.setValue(now + this.timeoutMs);
+                            nextDeadline = Math.min(nextDeadline, now + this.timeoutMs);
+                        } else {
+                            nextDeadline = Math.min(nextDeadline, entry.getValue());
+                        }
+                    }
+
+                    // Fill the window
+                    while (outstanding.size() < this.window && nextBlock < blockCount) {
+                        if (!this.received.get(nextBlock)) {
+                            attempts[nextBlock]++;
+                            this.requestBlock(fileId, nextBlock);
+                            outstanding.put(nextBlock, now + this.timeoutMs);
+                            nextDeadline = Math.min(nextDeadline, now + this.timeoutMs);
+                        }
+                        nextBlock++;
+                    }
+
+                    if (this.receivedCount < blockCount && this.error == null) {
+                        this.wait(Math.max(1, nextDeadline - System.currentTimeMillis()));
+                    }
+                }
+                this.output.force();
+                complete = true;
+            }
+        } finally {
+            synchronized (this) {
+                this.currentFileId = -1;
+                this.output = null;
+                this.received = null;
+            }
+            if (!complete && outputFile.exists() && !outputFile.delete()) {
+                System.err.println("[WARNING] Failed to delete partial download " + outputFile.getPath());
+            }
+        }
+        return new Stats(fileId, size, blockCount, retries, System.currentTimeMillis() - startTime);
+    }
+
+
+    protected void requestBlock(int fileId, int block) {
+        String req = "{\"c\":\"" + this.token + "\",\"s\":" + this.description.version + ",\"f\":" + fileId + ",\"l\":" + this.blockSize + ",\"o\":" + block + ",\"n\":1}";
+        this.publish("get/json", req.getBytes(StandardCharsets.UTF_8));
+    }
+
+
+    protected void publish(String topicSuffix, byte[] payload) {
+        this.publisher.apply(new MqttMessage(this.topicPrefix + topicSuffix, payload, QualityOfService.AT_LEAST_ONCE));
+    }
+
+
+    protected void onMessage(MqttMessage message) {
+        String topic = message.getTopic();
+        if (topic.endsWith("/data/json")) {
+            this.onData(message.getPayload());
+        } else if (topic.endsWith("/description/json")) {
+            Map<String, List<String>> fields = descriptionExtractor.extractAll(message.getPayload());
+            if (fields == null || !fields.containsKey("s") || !this.token.equals(first(fields, "c"))) {
+                return;
+            }
+            Description desc = null;
+            try {
+                desc = new Description(Integer.parseInt(first(fields, "s")), first(fields, "d"));
+                List<String> ids = fields.get("r.f");
+                List<String> sizes = fields.get("r.z");
+                for (int i = 0; ids != null && sizes != null && i < Math.min(ids.size(), sizes.size()); i++) {
+                    desc.files.put(Integer.parseInt(ids.get(i)), Long.parseLong(sizes.get(i)));
+                }
+            } catch (NumberFormatException ex) {
+                this.fail("Malformed stream description: " + ex.getMessage());
+                return;
+            }
+            synchronized (this) {
+                this.description = desc;
+                this.notifyAll();
+            }
+        } else if (topic.endsWith("/rejected/json")) {
+            Map<String, List<String>> fields = rejectedExtractor.extractAll(message.getPayload());
+            if (fields == null || !this.token.equals(first(fields, "c"))) {
+                return;
+            }
+            synchronized (this) {
+                this.error = "Stream request rejected: " + first(fields, "o") + ": " + first(fields, "m");
+                this.notifyAll();
+            }
+        }
+    }
+
+
+    protected void onData(byte[] payload) {
+        try {
+            this.writeBlock(payload);
+        } catch (IllegalArgumentException ex) {
+            // Malformed block ID/file ID (NumberFormatException) or block data (invalid base64)
+            synchronized (this) {
+                if (this.output != null) {
+                    this.fail("Malformed stream data: " + ex.getMessage());
+                }
+            }
+        }
+    }
+
+
+    protected void writeBlock(byte[] payload) {
+        // Locate the fields without decoding the (large) block payload into a string
+        final int[] fields = { -1, -1, -1, -1 };  // fileId, blockId, payload start, payload end
+        final boolean[] escaped = { false };
+        boolean ok = JsonStreamScanner.scan(payload, new JsonStreamScanner.VisitorAdapter() {
+            protected int depth = 0;
+            protected char key = 0;
+
+            @Override
+            public void startObject() {
+                this.depth++;
+            }
+
+            @Override
+            public void endObject() {
+                this.depth--;
+            }
+
+            @Override
+            public void key(byte[] buf, int start, int end) {
+                this.key = (this.depth == 1 && end - start == 1) ? (char)buf[start] : 0;
+            }
+
+            @Override
+            public void value(byte type, byte[] buf, int start, int end) {
+                if (this.key == 'f' && type == JsonStreamScanner.TYPE_NUMBER) {
+                    fields[0] = Integer.parseInt(new String(buf, start, end - start, StandardCharsets.US_ASCII));
+                } else if (this.key == 'i' && type == JsonStreamScanner.TYPE_NUMBER) {
+                    fields[1] = Integer.parseInt(new String(buf, start, end - start, StandardCharsets.US_ASCII));
+                } else if (this.key == 'p' && type == JsonStreamScanner.TYPE_STRING) {
+                    fields[2] = start;
+                    fields[3] = end;
+                    for (int i = start; i < end; i++) {
+                        if (buf[i] == '\\') {
+                            // e.g., "\/"
+                            escaped[0] = true;
+                            break;
+                        }
+                    }
+                }
+                this.key = 0;
+            }
+        });
+        if (!ok || fields[1] < 0 || fields[2] < 0) {
+            return;
+        }
+        if (!this.isWanted(fields[0], fields[1])) {
+            // Not for the current download, or a duplicate (e.g., the response to a retried request); skip decoding it
+            return;
+        }
+
+        ByteBuffer data = null;
+        if (escaped[0]) {
+            data = ByteBuffer.wrap(Base64.getDecoder().decode(JsonStreamScanner.decodeString(payload, fields[2], fields[3])));
+        } else {
+            data = Base64.getDecoder().decode(ByteBuffer.wrap(payload, fields[2], fields[3] - fields[2]));
+        }
+
+        synchronized (this) {
+            int block = fields[1];
+            if (this.output == null || fields[0] != this.currentFileId || this.received.get(block)) {
+                // Not for the current download, or a duplicate
+                return;
+            }
+            long offset = (long)block * this.blockSize;
+            if (offset + data.remaining() > this.currentFileSize) {
+                this.error = "Block " + block + " of file " + fields[0] + " exceeds the file size";
+                this.notifyAll();
+                return;
+            }
+            ByteBuffer dst = this.output.duplicate();
+            dst.position((int)offset);
+            dst.put(data);
+            this.received.set(block);
+            this.receivedCount++;
+            this.notifyAll();
+        }
+    }
+
+
+    // Aborts the current describe/download operation
+    protected synchronized void fail(@NotNull String error) {
+        this.error = error;
+        this.notifyAll();
+    }
+
+
+    protected synchronized boolean isWanted(int fileId, int block) {
+        return this.output != null && fileId == this.currentFileId && !this.received.get(block);
+    }
+
+
+    protected static String first(Map<String, List<String>> fields, String path) {
+        List<String> values = fields.get(path);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+}
@@ -0,0 +1,117 @@
+// Author: Sean Pesce
+//
+// Reactive stream of the MQTT messages received for one subscription. Each Flow subscriber has its
+// own bounded buffer and receives messages only as it signals demand (Subscription.request()), on
+// the publisher's executor rather than the SDK event loop.
+//
+// MQTT itself has no flow control, so incoming messages are never blocked: a message that doesn't fit
+// in a slow subscriber's buffer is dropped for that subscriber (and counted) instead of stalling the
+// connection or the other subscribers.
+//
+// References:
+//   https://docs.oracle.com/en/java/javase/11/docs/api/java.base/java/util/concurrent/Flow.html
+
+package com.seanpesce.mqtt;
+
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import javax.validation.constraints.NotNull;
+
+import software.amazon.awssdk.crt.mqtt.MqttMessage;
+
+
+public class MqttTopicPublisher implements Flow.Publisher<MqttMessage>, AutoCloseable {
+
+    protected final String topicFilter;
+    protected final SubmissionPublisher<MqttMessage> publisher;
+    protected final AtomicLong receivedCount = new AtomicLong(0);
+    protected final AtomicLong droppedCount = new AtomicLong(0);
+    protected final Consumer<MqttMessage> messageHandler;
+    protected Runnable onClose = null;
+
+
+    // bufferCapacity is the maximum number of undelivered messages held per subscriber (rounded up to
+    // a power of two)
+    public MqttTopicPublisher(@NotNull String topicFilter, @NotNull Executor executor, int bufferCapacity) {
+        this.topicFilter = topicFilter;
+        this.publisher = new SubmissionPublisher<MqttMessage>(executor, Math.max(1, bufferCapacity));
+        // Non-blocking; safe to call from the SDK event loop
+        this.messageHandler = (MqttMessage message) -> {
+            this.receivedCount.incrementAndGet();
+            this.publisher.offer(message, (Flow.Subscriber<? super MqttMessage> subscriber, MqttMessage dropped) -> {
+                this.droppedCount.incrementAndGet();
+                return false;
+            });
+        };
+    }
+
+
+    public String getTopicFilter() {
+        return this.topicFilter;
+    }
+
+    // Handler for the MQTT subscription that feeds this publisher
+    public Consumer<MqttMessage> getMessageHandler() {
+        return this.messageHandler;
+    }
+
+    public long getReceivedCount() {
+        return this.receivedCount.get();
+    }
+
+    // Messages dropped because a subscriber's buffer was full (counted once per subscriber)
+    public long getDroppedCount() {
+        return this.droppedCount.get();
+    }
+
+    public int getSubscriberCount() {
+        return this.publisher.getNumberOfSubscribers();
+    }
+
+    public boolean isClosed() {
+        return this.publisher.isClosed();
+    }
+
+
+    // Action to run when the publisher is closed (e.g., unsubscribing from the topic)
+    public synchronized void setOnClose(Runnable onClose) {
+        this.onClose = onClose;
+    }
+
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super MqttMessage> subscriber) {
+        this.publisher.subscribe(subscriber);
+    }
+
+
+    // Completes all subscribers (after they receive any buffered messages)
+    @Override
+    public void close() {
+        this.runOnClose();
+        this.publisher.close();
+    }
+
+
+    // Fails all subscribers (e.g., if the MQTT subscription was rejected)
+    public void closeExceptionally(@NotNull Throwable error) {
+        this.runOnClose();
+        this.publisher.closeExceptionally(error);
+    }
+
+
+    protected void runOnClose() {
+        Runnable r = null;
+        synchronized (this) {
+            r = this.onClose;
+            this.onClose = null;
+        }
+        if (r != null) {
+            r.run();
+        }
+    }
+}
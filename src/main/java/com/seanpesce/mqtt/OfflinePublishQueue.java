@@ -0,0 +1,261 @@
+// Author: Sean Pesce
+//
+// Bounded FIFO queue for outbound MQTT messages that are published while the connection
+// is interrupted. Messages are held in memory up to a fixed capacity; if a spool file is
+// configured, any overflow is appended to that file instead of being dropped. Once a
+// message has been spooled to disk, all subsequent messages are also spooled until the
+// queue is drained, so flushing always preserves the original publish order. A message whose
+// flush fails is put back at the head of the queue, so a connection that drops again mid-flush
+// doesn't lose it.
+//
+// Spool record format (big-endian):
+//   int topicLength | byte[] topic (UTF-8) | byte qos | byte retain | int payloadLength | byte[] payload
+
+package com.seanpesce.mqtt;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import javax.validation.constraints.NotNull;
+
+import software.amazon.awssdk.crt.mqtt.MqttMessage;
+import software.amazon.awssdk.crt.mqtt.QualityOfService;
+
+
+public class OfflinePublishQueue {
+
+    // Default limit for the spool file size
+    public static final long DEFAULT_MAX_SPOOL_BYTES = 64L * 1024 * 1024;
+    // Number of times the message at the head of the queue is published before it's dropped (so a message
+    // that's always rejected can't block the rest of the queue)
+    public static final int MAX_FLUSH_ATTEMPTS = 3;
+
+    protected final int maxMessages;
+    protected final long maxSpoolBytes;
+    protected final ArrayDeque<MqttMessage> memQueue = new ArrayDeque<MqttMessage>();
+
+    protected RandomAccessFile spool = null;
+    protected File spoolFile = null;
+    protected long spoolReadPos = 0;
+    protected long spoolWritePos = 0;
+    protected long spooledCount = 0;
+    // Failed flush attempts for the message at the head of the queue
+    protected int headFailures = 0;
+
+    // Statistics
+    protected long totalQueued = 0;
+    protected long totalFlushed = 0;
+    protected long totalDropped = 0;
+
+
+    public OfflinePublishQueue(int maxMessages) throws IOException {
+        this(maxMessages, null, 0);
+    }
+
+    // If spoolFilePath is non-null, messages that don't fit in memory are written to that file
+    // (up to maxSpoolBytes, or unlimited if maxSpoolBytes <= 0).
+    public OfflinePublishQueue(int maxMessages, String spoolFilePath, long maxSpoolBytes) throws IOException {
+        this.maxMessages = Math.max(0, maxMessages);
+        this.maxSpoolBytes = maxSpoolBytes;
+        if (spoolFilePath != null) {
+            this.spoolFile = new File(spoolFilePath);
+            this.spool = new RandomAccessFile(this.spoolFile, "rw");
+            this.spool.setLength(0);
+        }
+    }
+
+
+    // Adds a message to the end of the queue. Returns false if the message was dropped because the queue is full.
+    public synchronized boolean offer(@NotNull MqttMessage message) {
+        if (this.spooledCount == 0 && this.memQueue.size() < this.maxMessages) {
+            this.memQueue.addLast(message);
+            this.totalQueued++;
+            return true;
+        }
+        if (this.spool != null) {
+            try {
+                if (this.appendToSpool(message)) {
+                    this.totalQueued++;
+                    return true;
+                }
+            } catch (IOException ex) {
+                System.err.println("[ERROR] Failed to write queued MQTT message to spool file " + this.spoolFile + ": " + ex.getMessage());
+            }
+        }
+        this.totalDropped++;
+        return false;
+    }
+
+
+    // Removes and returns the oldest queued message, or null if the queue is empty
+    public synchronized MqttMessage poll() {
+        MqttMessage message = this.memQueue.pollFirst();
+        if (message == null && this.spooledCount > 0 && this.spool != null) {
+            try {
+                message = this.readFromSpool();
+            } catch (IOException ex) {
+                System.err.println("[ERROR] Failed to read queued MQTT message from spool file " + this.spoolFile + ": " + ex.getMessage());
+                this.totalDropped += this.spooledCount;
+                this.resetSpool();
+            }
+        }
+        return message;
+    }
+
+
+    // Puts a message back at the head of the queue (e.g., after a failed publish). The message goes ahead of
+    // any spooled messages, and may exceed the in-memory capacity by one.
+    protected synchronized void requeueFirst(@NotNull MqttMessage message) {
+        this.memQueue.addFirst(message);
+    }
+
+
+    // Publishes all queued messages in order, waiting for each publication to complete before sending the next.
+    // Each message is taken from the queue while holding lock, and once the queue is found empty, onEmpty is run
+    // without releasing it; callers that check and enqueue under the same lock therefore can't publish ahead of
+    // (or strand a message behind) the flush. Stops early, leaving the rest of the queue in place, if cancelled
+    // returns true. A message that fails to publish is put back at the head of the queue; the flush stops there
+    // if it was cancelled (to resume on the next call), and otherwise retries the message up to
+    // MAX_FLUSH_ATTEMPTS times before dropping it. Returns the number of messages that were published successfully.
+    public long drain(@NotNull Function<MqttMessage, CompletableFuture<Integer>> publisher, @NotNull Object lock,
+                      @NotNull BooleanSupplier cancelled, @NotNull Runnable onEmpty) {
+        long flushed = 0;
+        while (!cancelled.getAsBoolean()) {
+            MqttMessage message = null;
+            synchronized (lock) {
+                message = this.poll();
+                if (message == null) {
+                    onEmpty.run();
+                    break;
+                }
+            }
+            try {
+                publisher.apply(message).get();
+                flushed++;
+                synchronized (this) {
+                    this.headFailures = 0;
+                }
+            } catch (InterruptedException ex) {
+                this.requeueFirst(message);
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception ex) {
+                synchronized (this) {
+                    this.headFailures++;
+                    if (this.headFailures >= MAX_FLUSH_ATTEMPTS) {
+                        System.err.println("[ERROR] Dropping queued MQTT message after " + this.headFailures + " failed flush attempts (topic: " + message.getTopic() + "): " + ex.toString());
+                        this.headFailures = 0;
+                        this.totalDropped++;
+                        continue;
+                    }
+                    this.requeueFirst(message);
+                }
+                if (cancelled.getAsBoolean()) {
+                    System.err.println("[WARNING] Connection interrupted while flushing queued MQTT messages; the rest of the queue will be flushed when it resumes");
+                    break;
+                }
+                System.err.println("[WARNING] Failed to flush queued MQTT message (topic: " + message.getTopic() + "); retrying: " + ex.toString());
+            }
+        }
+        synchronized (this) {
+            this.totalFlushed += flushed;
+        }
+        return flushed;
+    }
+
+
+    public synchronized int size() {
+        return this.memQueue.size() + (int)Math.min(Integer.MAX_VALUE, this.spooledCount);
+    }
+
+    public synchronized boolean isEmpty() {
+        return this.size() == 0;
+    }
+
+    public synchronized long getTotalQueued() {
+        return this.totalQueued;
+    }
+
+    public synchronized long getTotalFlushed() {
+        return this.totalFlushed;
+    }
+
+    public synchronized long getTotalDropped() {
+        return this.totalDropped;
+    }
+
+
+    // Closes and deletes the spool file (any messages that are still queued are discarded)
+    public synchronized void close() {
+        if (this.spool != null) {
+            try {
+                this.spool.close();
+            } catch (IOException ex) {
+                // Do nothing
+            }
+            this.spool = null;
+            if (!this.spoolFile.delete() && this.spoolFile.exists()) {
+                System.err.println("[WARNING] Failed to delete spool file " + this.spoolFile);
+            }
+        }
+    }
+
+
+    protected boolean appendToSpool(MqttMessage message) throws IOException {
+        byte[] topic = message.getTopic().getBytes(StandardCharsets.UTF_8);
+        byte[] payload = message.getPayload();
+        if (payload == null) {
+            payload = new byte[0];
+        }
+        long recordSize = 4 + topic.length + 2 + 4 + payload.length;
+        if (this.maxSpoolBytes > 0 && (this.spoolWritePos - this.spoolReadPos + recordSize) > this.maxSpoolBytes) {
+            return false;
+        }
+        this.spool.seek(this.spoolWritePos);
+        this.spool.writeInt(topic.length);
+        this.spool.write(topic);
+        this.spool.writeByte(message.getQos().getValue());
+        this.spool.writeByte(message.getRetain() ? 1 : 0);
+        this.spool.writeInt(payload.length);
+        this.spool.write(payload);
+        this.spoolWritePos = this.spool.getFilePointer();
+        this.spooledCount++;
+        return true;
+    }
+
+
+    protected MqttMessage readFromSpool() throws IOException {
+        this.spool.seek(this.spoolReadPos);
+        byte[] topic = new byte[this.spool.readInt()];
+        this.spool.readFully(topic);
+        QualityOfService qos = QualityOfService.getEnumValueFromInteger(this.spool.readByte());
+        boolean retain = this.spool.readByte() != 0;
+        byte[] payload = new byte[this.spool.readInt()];
+        this.spool.readFully(payload);
+        this.spoolReadPos = this.spool.getFilePointer();
+        this.spooledCount--;
+        if (this.spooledCount == 0) {
+            this.resetSpool();
+        }
+        return new MqttMessage(new String(topic, StandardCharsets.UTF_8), payload, qos, retain);
+    }
+
+
+    // Truncates the spool file once all spooled messages have been consumed
+    protected void resetSpool() {
+        this.spooledCount = 0;
+        this.spoolReadPos = 0;
+        this.spoolWritePos = 0;
+        try {
+            this.spool.setLength(0);
+        } catch (IOException ex) {
+            System.err.println("[WARNING] Failed to truncate spool file " + this.spoolFile + ": " + ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,216 @@
+// Author: Sean Pesce
+//
+// Suppresses received MQTT messages whose payload is identical to the previous payload on the same
+// topic (e.g., devices that republish unchanged state every few seconds). Only a 64-bit hash of each
+// topic's last payload is kept, so memory use doesn't depend on payload sizes.
+//
+// The last-seen hashes are stored in a fixed-size, 4-way set-associative cache of primitive arrays
+// (keyed by a 64-bit hash of the topic), with least-recently-used replacement within each set. When a
+// topic is evicted, it is simply treated as new the next time it's seen. Counts of suppressed
+// messages are kept per topic and reported by drainUnchanged().
+//
+// Hashes are 64-bit MurmurHash2 (MurmurHash64A); the payload hash is seeded with the topic hash.
+//
+// References:
+//   https://github.com/aappleby/smhasher/blob/master/src/MurmurHash2.cpp
+
+package com.seanpesce.mqtt;
+
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import javax.validation.constraints.NotNull;
+
+import software.amazon.awssdk.crt.mqtt.MqttMessage;
+
+
+public class PayloadDeduplicator {
+
+    public static final int WAYS = 4;
+
+    protected static final long M = 0xc6a4a7935bd1e995L;
+    protected static final int R = 47;
+
+
+    protected final int setMask;
+    // Parallel arrays; entry i belongs to set (i / WAYS). A topic hash of 0 marks an empty entry.
+    protected final long[] topicHashes;
+    protected final long[] payloadHashes;
+    protected final long[] lastUsed;
+    protected final int[] unchangedCounts;
+    protected final String[] topics;
+    protected long clock = 0;
+
+    // Unchanged counts of evicted topics (reported by the next drainUnchanged() call)
+    protected final LinkedHashMap<String, Long> evictedCounts = new LinkedHashMap<String, Long>();
+
+    // Statistics
+    protected long passedCount = 0;
+    protected long suppressedCount = 0;
+
+
+    // Tracks up to maxTopics topics (rounded up to a power of two, with a minimum of WAYS)
+    public PayloadDeduplicator(int maxTopics) {
+        int sets = Integer.highestOneBit(Math.max(1, (Math.max(WAYS, maxTopics) + WAYS - 1) / WAYS));
+        if (sets * WAYS < maxTopics) {
+            sets <<= 1;
+        }
+        this.setMask = sets - 1;
+        int entries = sets * WAYS;
+        this.topicHashes = new long[entries];
+        this.payloadHashes = new long[entries];
+        this.lastUsed = new long[entries];
+        this.unchangedCounts = new int[entries];
+        this.topics = new String[entries];
+    }
+
+
+    public int getCapacity() {
+        return this.topicHashes.length;
+    }
+
+
+    // Returns true if the payload differs from the previous payload on the topic (or the topic is new)
+    public boolean isChanged(@NotNull String topic, @NotNull byte[] payload) {
+        long topicHash = hash64(topic);
+        if (topicHash == 0) {
+            topicHash = 1;
+        }
+        long payloadHash = hash64(payload, 0, payload.length, topicHash);
+        int base = ((int)(topicHash ^ (topicHash >>> 32)) & this.setMask) * WAYS;
+
+        synchronized (this) {
+            long now = ++this.clock;
+            int victim = base;
+            for (int i = base; i < base + WAYS; i++) {
+                if (this.topicHashes[i] == topicHash) {
+                    this.lastUsed[i] = now;
+                    if (this.payloadHashes[i] == payloadHash) {
+                        this.unchangedCounts[i]++;
+                        this.suppressedCount++;
+                        return false;
+                    }
+                    this.payloadHashes[i] = payloadHash;
+                    this.passedCount++;
+                    return true;
+                }
+                if (this.lastUsed[i] < this.lastUsed[victim]) {
+                    victim = i;
+                }
+            }
+            // New topic; replace the least recently used entry in the set
+            if (this.topicHashes[victim] != 0 && this.unchangedCounts[victim] > 0) {
+                this.evictedCounts.merge(this.topics[victim], (long)this.unchangedCounts[victim], Long::sum);
+            }
+            this.topicHashes[victim] = topicHash;
+            this.payloadHashes[victim] = payloadHash;
+            this.lastUsed[victim] = now;
+            this.unchangedCounts[victim] = 0;
+            this.topics[victim] = topic;
+            this.passedCount++;
+            return true;
+        }
+    }
+
+
+    // Returns a handler that passes only changed messages on to the given handler
+    public Consumer<MqttMessage> wrap(@NotNull final Consumer<MqttMessage> handler) {
+        return (MqttMessage message) -> {
+            if (this.isChanged(message.getTopic(), message.getPayload())) {
+                handler.accept(message);
+            }
+        };
+    }
+
+
+    // Returns (and resets) the number of unchanged messages suppressed per topic since the last call
+    public synchronized Map<String, Long> drainUnchanged() {
+        LinkedHashMap<String, Long> counts = new LinkedHashMap<String, Long>(this.evictedCounts);
+        this.evictedCounts.clear();
+        for (int i = 0; i < this.topicHashes.length; i++) {
+            if (this.unchangedCounts[i] > 0) {
+                counts.merge(this.topics[i], (long)this.unchangedCounts[i], Long::sum);
+                this.unchangedCounts[i] = 0;
+            }
+        }
+        return counts;
+    }
+
+
+    public synchronized long getPassedCount() {
+        return this.passedCount;
+    }
+
+    public synchronized long getSuppressedCount() {
+        return this.suppressedCount;
+    }
+
+
+    // MurmurHash64A over a byte range
+    public static long hash64(@NotNull byte[] data, int offset, int length, long seed) {
+        long h = seed ^ (length * M);
+        int end = offset + (length & ~7);
+        for (int i = offset; i < end; i += 8) {
+            long k = (data[i] & 0xffL)
+                   | (data[i + 1] & 0xffL) << 8
+                   | (data[i + 2] & 0xffL) << 16
+                   | (data[i + 3] & 0xffL) << 24
+                   | (data[i + 4] & 0xffL) << 32
+                   | (data[i + 5] & 0xffL) << 40
+                   | (data[i + 6] & 0xffL) << 48
+                   | (data[i + 7] & 0xffL) << 56;
+            k *= M;
+            k ^= k >>> R;
+            k *= M;
+            h ^= k;
+            h *= M;
+        }
+        int rem = length & 7;
+        if (rem > 0) {
+            long k = 0;
+            for (int i = rem - 1; i >= 0; i--) {
+                k = (k << 8) | (data[end + i] & 0xffL);
+            }
+            h ^= k;
+            h *= M;
+        }
+        return fmix(h);
+    }
+
+
+    // MurmurHash64A over the string's UTF-16 code units (4 per block), without encoding it to bytes
+    public static long hash64(@NotNull String s) {
+        int length = s.length();
+        long h = length * M;
+        int end = length & ~3;
+        for (int i = 0; i < end; i += 4) {
+            long k = (long)s.charAt(i)
+                   | (long)s.charAt(i + 1) << 16
+                   | (long)s.charAt(i + 2) << 32
+                   | (long)s.charAt(i + 3) << 48;
+            k *= M;
+            k ^= k >>> R;
+            k *= M;
+            h ^= k;
+            h *= M;
+        }
+        if (end < length) {
+            long k = 0;
+            for (int i = length - 1; i >= end; i--) {
+                k = (k << 16) | s.charAt(i);
+            }
+            h ^= k;
+            h *= M;
+        }
+        return fmix(h);
+    }
+
+
+    protected static long fmix(long h) {
+        h ^= h >>> R;
+        h *= M;
+        h ^= h >>> R;
+        return h;
+    }
+}
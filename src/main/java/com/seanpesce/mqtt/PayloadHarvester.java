@@ -0,0 +1,98 @@
+// Author: Sean Pesce
+//
+// Extracts potentially-interesting data (serial numbers, tokens, hostnames, etc.) from MQTT message
+// payloads. JSON payloads are scanned for configured key paths (see JsonPathExtractor), and all
+// payloads are scanned for configured keywords (see AhoCorasick). Both passes operate on the raw
+// payload bytes; only matched values and keyword context are decoded.
+
+package com.seanpesce.mqtt;
+
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.validation.constraints.NotNull;
+
+import com.seanpesce.json.JsonPathExtractor;
+import com.seanpesce.json.JsonStreamScanner;
+import com.seanpesce.regex.AhoCorasick;
+
+
+public class PayloadHarvester {
+
+    // Number of bytes of context to include on each side of a keyword hit
+    public static final int KEYWORD_CONTEXT_BYTES = 24;
+    // Maximum number of hits reported per keyword per payload
+    public static final int MAX_HITS_PER_KEYWORD = 4;
+
+    protected final JsonPathExtractor pathExtractor;
+    protected final AhoCorasick keywordMatcher;
+
+
+    // Either list may be null or empty to disable that pass
+    public PayloadHarvester(List<String> keyPaths, List<String> keywords) {
+        this.pathExtractor = (keyPaths == null || keyPaths.isEmpty()) ? null : new JsonPathExtractor(keyPaths);
+        this.keywordMatcher = (keywords == null || keywords.isEmpty()) ? null : new AhoCorasick(keywords, true);
+    }
+
+
+    // Returns harvested data for the payload, or null if nothing was found. JSON key paths map to their
+    // values; keyword hits are keyed as "keyword:<keyword>" and map to the surrounding payload text.
+    public Map<String, List<String>> harvest(@NotNull final byte[] payload) {
+        final Map<String, List<String>> results = new LinkedHashMap<String, List<String>>();
+
+        if (this.pathExtractor != null) {
+            final List<String> paths = this.pathExtractor.getPaths();
+            this.pathExtractor.extract(payload, new JsonPathExtractor.MatchHandler() {
+                @Override
+                public void match(int pathIndex, byte type, byte[] buf, int start, int end) {
+                    addResult(results, paths.get(pathIndex), JsonStreamScanner.decodeValue(type, buf, start, end));
+                }
+            });
+        }
+
+        if (this.keywordMatcher != null) {
+            final List<String> keywords = this.keywordMatcher.getKeywords();
+            final int[] hitCounts = new int[keywords.size()];
+            this.keywordMatcher.scan(payload, new AhoCorasick.MatchHandler() {
+                @Override
+                public void match(int keywordIndex, int start, int end) {
+                    if (hitCounts[keywordIndex]++ >= MAX_HITS_PER_KEYWORD) {
+                        return;
+                    }
+                    int ctxStart = Math.max(0, start - KEYWORD_CONTEXT_BYTES);
+                    int ctxEnd = Math.min(payload.length, end + KEYWORD_CONTEXT_BYTES);
+                    String context = new String(payload, ctxStart, ctxEnd - ctxStart, StandardCharsets.UTF_8);
+                    addResult(results, "keyword:" + keywords.get(keywordIndex), sanitize(context));
+                }
+            });
+        }
+
+        return results.isEmpty() ? null : results;
+    }
+
+
+    protected static void addResult(Map<String, List<String>> results, String key, String value) {
+        List<String> values = results.get(key);
+        if (values == null) {
+            values = new ArrayList<String>();
+            results.put(key, values);
+        }
+        if (!values.contains(value)) {
+            values.add(value);
+        }
+    }
+
+
+    // Replaces control characters so context snippets stay on a single output line
+    protected static String sanitize(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            sb.append(Character.isISOControl(c) ? '.' : c);
+        }
+        return sb.toString();
+    }
+}
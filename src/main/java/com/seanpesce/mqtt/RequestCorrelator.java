@@ -0,0 +1,216 @@
+// Author: Sean Pesce
+//
+// Request/response helper for AWS IoT services that use MQTT "accepted"/"rejected" response topics
+// (e.g., jobs and device shadows). Each request payload is tagged with a unique "clientToken", which
+// the service echoes back in its response; responses are matched to requests by that token, so many
+// requests can be outstanding on one connection and each one completes as soon as its response
+// arrives (or fails with a TimeoutException).
+//
+// The response handler must be attached to subscriptions that cover the response topics. Requests
+// beyond the in-flight limit are held and sent as earlier requests complete; this class never blocks
+// the caller (or the SDK event loop).
+//
+// References:
+//   https://docs.aws.amazon.com/iot/latest/developerguide/jobs-mqtt-api.html
+//   https://docs.aws.amazon.com/iot/latest/developerguide/device-shadow-mqtt.html
+
+package com.seanpesce.mqtt;
+
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import javax.validation.constraints.NotNull;
+
+import com.seanpesce.json.JsonPathExtractor;
+import com.seanpesce.json.JsonStreamScanner;
+
+import software.amazon.awssdk.crt.mqtt.MqttMessage;
+import software.amazon.awssdk.crt.mqtt.QualityOfService;
+
+
+public class RequestCorrelator {
+
+    public static final String CLIENT_TOKEN_KEY = "clientToken";
+    public static final String ACCEPTED_SUFFIX = "/accepted";
+    public static final String REJECTED_SUFFIX = "/rejected";
+    // AWS IoT limits client tokens to 64 bytes
+    public static final int MAX_CLIENT_TOKEN_LENGTH = 64;
+
+    public static class Response {
+        public final String requestTopic;
+        public final MqttMessage message;
+        public final boolean accepted;
+        public final long latencyMs;
+
+        public Response(String requestTopic, MqttMessage message, long latencyMs) {
+            this.requestTopic = requestTopic;
+            this.message = message;
+            this.accepted = message.getTopic().endsWith(ACCEPTED_SUFFIX);
+            this.latencyMs = latencyMs;
+        }
+
+        public String getPayloadString() {
+            return new String(this.message.getPayload(), StandardCharsets.UTF_8);
+        }
+    }
+
+    protected static class Request {
+        protected final String token;
+        protected final String topic;
+        protected final byte[] payload;
+        protected final CompletableFuture<Response> future = new CompletableFuture<Response>();
+        protected long sentNanos = 0;
+        protected ScheduledFuture<?> timeout = null;
+
+        protected Request(String token, String topic, byte[] payload) {
+            this.token = token;
+            this.topic = topic;
+            this.payload = payload;
+        }
+    }
+
+
+    protected static final JsonPathExtractor tokenExtractor = new JsonPathExtractor(Collections.singletonList(CLIENT_TOKEN_KEY));
+
+    protected final Function<MqttMessage, CompletableFuture<Integer>> publisher;
+    protected final int maxInFlight;
+    protected final long timeoutMs;
+    protected final String tokenPrefix = Long.toHexString(System.currentTimeMillis()) + "-";
+    protected final AtomicLong tokenCounter = new AtomicLong(0);
+    protected final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "mqtt-request-timeout");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Guarded by this
+    protected final HashMap<String, Request> inFlight = new HashMap<String, Request>();
+    protected final ArrayDeque<Request> waiting = new ArrayDeque<Request>();
+
+    protected final Consumer<MqttMessage> responseHandler = (MqttMessage message) -> this.onResponse(message);
+
+
+    public RequestCorrelator(@NotNull Function<MqttMessage, CompletableFuture<Integer>> publisher, int maxInFlight, long timeoutMs) {
+        this.publisher = publisher;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.timeoutMs = Math.max(1, timeoutMs);
+    }
+
+
+    // Message handler for the response topic subscription(s)
+    public Consumer<MqttMessage> getResponseHandler() {
+        return this.responseHandler;
+    }
+
+
+    public synchronized int getInFlightCount() {
+        return this.inFlight.size();
+    }
+
+
+    // Publishes a request to the topic. jsonFields are additional members of the request object (e.g.,
+    // "\"includeJobDocument\":true"), or an empty string.
+    public CompletableFuture<Response> request(@NotNull String topic, @NotNull String jsonFields) {
+        String token = this.tokenPrefix + this.tokenCounter.incrementAndGet();
+        String payload = "{\"" + CLIENT_TOKEN_KEY + "\":\"" + token + "\"" + (jsonFields.isEmpty() ? "" : "," + jsonFields) + "}";
+        Request req = new Request(token, topic, payload.getBytes(StandardCharsets.UTF_8));
+        boolean send = false;
+        synchronized (this) {
+            if (this.inFlight.size() < this.maxInFlight) {
+                this.inFlight.put(token, req);
+                send = true;
+            } else {
+                this.waiting.add(req);
+            }
+        }
+        if (send) {
+            this.send(req);
+        }
+        return req.future;
+    }
+
+
+    // Stops the timeout thread. Outstanding requests are failed with a TimeoutException.
+    public void close() {
+        this.timer.shutdownNow();
+        synchronized (this) {
+            for (Request req : this.inFlight.values()) {
+                req.future.completeExceptionally(new TimeoutException("Request correlator closed"));
+            }
+            for (Request req : this.waiting) {
+                req.future.completeExceptionally(new TimeoutException("Request correlator closed"));
+            }
+            this.inFlight.clear();
+            this.waiting.clear();
+        }
+    }
+
+
+    protected void send(final Request req) {
+        req.sentNanos = System.nanoTime();
+        req.timeout = this.timer.schedule(() -> {
+            if (this.finish(req.token) != null) {
+                req.future.completeExceptionally(new TimeoutException("No response to " + req.topic + " after " + this.timeoutMs + "ms"));
+            }
+        }, this.timeoutMs, TimeUnit.MILLISECONDS);
+        this.publisher.apply(new MqttMessage(req.topic, req.payload, QualityOfService.AT_LEAST_ONCE)).whenComplete((Integer packetId, Throwable err) -> {
+            if (err != null && this.finish(req.token) != null) {
+                req.future.completeExceptionally(err);
+            }
+        });
+    }
+
+
+    protected void onResponse(MqttMessage message) {
+        final String[] token = { null };
+        tokenExtractor.extract(message.getPayload(), (int pathIndex, byte type, byte[] buf, int start, int end) -> {
+            if (type == JsonStreamScanner.TYPE_STRING && end - start <= MAX_CLIENT_TOKEN_LENGTH) {
+                token[0] = JsonStreamScanner.decodeString(buf, start, end);
+            }
+        });
+        if (token[0] == null || !token[0].startsWith(this.tokenPrefix)) {
+            // Not a response to one of our requests
+            return;
+        }
+        Request req = this.finish(token[0]);
+        if (req != null) {
+            req.future.complete(new Response(req.topic, message, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - req.sentNanos)));
+        }
+    }
+
+
+    // Removes the request from the in-flight set (returns null if it already completed) and sends the
+    // next waiting request, if any
+    protected Request finish(String token) {
+        Request req = null;
+        Request next = null;
+        synchronized (this) {
+            req = this.inFlight.remove(token);
+            if (req == null) {
+                return null;
+            }
+            next = this.waiting.poll();
+            if (next != null) {
+                this.inFlight.put(next.token, next);
+            }
+        }
+        if (req.timeout != null) {
+            req.timeout.cancel(false);
+        }
+        if (next != null) {
+            this.send(next);
+        }
+        return req;
+    }
+}
@@ -0,0 +1,303 @@
+// Author: Sean Pesce
+//
+// Moves MQTT message handling off of the SDK's event-loop thread. Each message is assigned to
+// one of N single-threaded "lanes" based on a hash of its topic, so messages on the same topic
+// are always handled in the order they were received while different topics are processed in
+// parallel. Lane workers run on virtual threads when the JDK supports them (Java 21+), and on
+// daemon platform threads otherwise.
+//
+// Lanes are unbounded by default. With a lane capacity, an overload policy decides what happens when
+// messages arrive faster than a lane can handle them:
+//   block        The SDK thread waits for space (stalls the whole connection, but never loses messages)
+//   drop-oldest  The oldest queued message is discarded to make room
+//   drop-newest  The incoming message is discarded
+//   sample       Once a lane passes its high watermark, only every Nth incoming message is queued
+//                (until the lane drains below its low watermark); messages that still don't fit are
+//                discarded
+// Each lane counts its dropped messages and logs to stderr when its depth crosses the high watermark
+// and when it drains back below the low watermark. Lane workers don't keep the JVM alive, so drain()
+// should be called on shutdown to finish handling messages that are still queued.
+
+package com.seanpesce.mqtt;
+
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import javax.validation.constraints.NotNull;
+
+import software.amazon.awssdk.crt.mqtt.MqttMessage;
+
+
+public class StripedDispatcher {
+
+    public static final String POLICY_BLOCK = "block";
+    public static final String POLICY_DROP_OLDEST = "drop-oldest";
+    public static final String POLICY_DROP_NEWEST = "drop-newest";
+    public static final String POLICY_SAMPLE = "sample";
+    public static final List<String> POLICIES = Collections.unmodifiableList(Arrays.asList(new String[]{
+        POLICY_BLOCK,
+        POLICY_DROP_OLDEST,
+        POLICY_DROP_NEWEST,
+        POLICY_SAMPLE
+    }));
+
+    // Watermarks (as percentages of lane capacity)
+    public static final int HIGH_WATERMARK_PERCENT = 80;
+    public static final int LOW_WATERMARK_PERCENT = 50;
+    // Default time to wait for queued messages to be handled on shutdown
+    public static final long DEFAULT_DRAIN_TIMEOUT_MS = 5000;
+
+
+    protected class Lane implements Runnable {
+        protected final int index;
+        protected final BlockingQueue<Runnable> queue;
+        protected volatile long processed = 0;
+        // Messages passed to submit() (each one is eventually processed or dropped)
+        protected final AtomicLong submitted = new AtomicLong(0);
+        protected final AtomicLong dropped = new AtomicLong(0);
+        protected final AtomicLong sampleCounter = new AtomicLong(0);
+        protected final AtomicBoolean overloaded = new AtomicBoolean(false);
+        protected volatile long droppedAtOverload = 0;
+
+        protected Lane(int index) {
+            this.index = index;
+            this.queue = capacity > 0 ? new LinkedBlockingQueue<Runnable>(capacity) : new LinkedBlockingQueue<Runnable>();
+        }
+
+        protected void submit(Runnable task) {
+            this.submitted.incrementAndGet();
+            if (capacity <= 0) {
+                this.queue.add(task);
+                return;
+            }
+            if (policy.equals(POLICY_BLOCK)) {
+                try {
+                    this.queue.put(task);
+                } catch (InterruptedException ex) {
+                    this.dropped.incrementAndGet();
+                    Thread.currentThread().interrupt();
+                }
+            } else if (policy.equals(POLICY_DROP_OLDEST)) {
+                while (!this.queue.offer(task)) {
+                    if (this.queue.poll() != null) {
+                        this.dropped.incrementAndGet();
+                    }
+                }
+            } else if (policy.equals(POLICY_SAMPLE) && this.overloaded.get() && this.sampleCounter.getAndIncrement() % sampleRate != 0) {
+                this.dropped.incrementAndGet();
+            } else if (!this.queue.offer(task)) {
+                // drop-newest (or sample, when the lane is full)
+                this.dropped.incrementAndGet();
+            }
+
+            int depth = this.queue.size();
+            if (depth >= highWatermark && this.overloaded.compareAndSet(false, true)) {
+                this.droppedAtOverload = this.dropped.get();
+                this.sampleCounter.set(0);
+                System.err.println("[WARNING] Message dispatch lane " + this.index + " reached its high watermark (" + depth + "/" + capacity + " queued; policy: " + policy + ")");
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task = null;
+                try {
+                    task = this.queue.take();
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    System.err.println("[ERROR] Unhandled exception in message dispatch lane: " + t.toString());
+                }
+                this.processed++;
+
+                if (this.overloaded.get() && this.queue.size() <= lowWatermark && this.overloaded.compareAndSet(true, false)) {
+                    long droppedNow = this.dropped.get();
+                    System.err.println("[INFO] Message dispatch lane " + this.index + " drained below its low watermark (" + (droppedNow - this.droppedAtOverload) + " message" + (droppedNow - this.droppedAtOverload == 1 ? "" : "s") + " dropped while overloaded; " + droppedNow + " total)");
+                }
+            }
+        }
+    }
+
+
+    protected final Lane[] lanes;
+    protected final boolean virtualThreads;
+    protected final int capacity;
+    protected final String policy;
+    protected final int sampleRate;
+    protected final int highWatermark;
+    protected final int lowWatermark;
+
+
+    // Creates unbounded lanes
+    public StripedDispatcher(int laneCount) {
+        this(laneCount, 0, POLICY_BLOCK, 1);
+    }
+
+    // If laneCount <= 0, one lane is created per available processor. If laneCapacity <= 0, lanes are
+    // unbounded (and the policy is unused). With the sample policy, 1 of every sampleRate messages is kept
+    // while a lane is overloaded.
+    public StripedDispatcher(int laneCount, int laneCapacity, @NotNull String policy, int sampleRate) {
+        if (!POLICIES.contains(policy)) {
+            throw new IllegalArgumentException("Unsupported overload policy: " + policy + " (supported policies: " + POLICIES + ")");
+        }
+        this.capacity = Math.max(0, laneCapacity);
+        this.policy = policy;
+        this.sampleRate = Math.max(1, sampleRate);
+        this.highWatermark = Math.max(1, (int)((long)this.capacity * HIGH_WATERMARK_PERCENT / 100));
+        this.lowWatermark = (int)((long)this.capacity * LOW_WATERMARK_PERCENT / 100);
+        if (laneCount <= 0) {
+            laneCount = Runtime.getRuntime().availableProcessors();
+        }
+        this.lanes = new Lane[laneCount];
+        boolean usedVirtual = false;
+        for (int i = 0; i < laneCount; i++) {
+            this.lanes[i] = new Lane(i);
+            Thread worker = newVirtualThread(this.lanes[i]);
+            if (worker != null) {
+                usedVirtual = true;
+            } else {
+                worker = new Thread(this.lanes[i]);
+                worker.setDaemon(true);
+            }
+            worker.setName("mqtt-dispatch-" + i);
+            worker.start();
+        }
+        this.virtualThreads = usedVirtual;
+    }
+
+
+    // Returns a handler that runs the given handler on the lane assigned to each message's topic
+    public Consumer<MqttMessage> wrap(@NotNull final Consumer<MqttMessage> handler) {
+        return new Consumer<MqttMessage>() {
+            @Override
+            public void accept(final MqttMessage message) {
+                dispatch(message.getTopic(), () -> handler.accept(message));
+            }
+        };
+    }
+
+
+    public void dispatch(@NotNull String topic, @NotNull Runnable task) {
+        this.lanes[laneIndex(topic)].submit(task);
+    }
+
+
+    // Waits until every message dispatched before this call has been handled (or dropped), or until the
+    // timeout elapses. Messages dispatched while waiting are still handled but aren't waited on. Returns
+    // false if messages were still queued when the timeout elapsed.
+    public boolean drain(long timeoutMs) throws InterruptedException {
+        long[] targets = new long[this.lanes.length];
+        for (int i = 0; i < this.lanes.length; i++) {
+            targets[i] = this.lanes[i].submitted.get();
+        }
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        for (int i = 0; i < this.lanes.length; i++) {
+            Lane lane = this.lanes[i];
+            while (lane.processed + lane.dropped.get() < targets[i]) {
+                if (System.currentTimeMillis() >= deadline) {
+                    return false;
+                }
+                Thread.sleep(10);
+            }
+        }
+        return true;
+    }
+
+
+    public int laneIndex(@NotNull String topic) {
+        // Spread the hash bits so topics that differ only in their final characters don't cluster
+        int h = topic.hashCode();
+        h ^= (h >>> 16);
+        return Math.floorMod(h, this.lanes.length);
+    }
+
+
+    public int getLaneCount() {
+        return this.lanes.length;
+    }
+
+    public boolean usesVirtualThreads() {
+        return this.virtualThreads;
+    }
+
+    // Per-lane capacity (0 if unbounded)
+    public int getLaneCapacity() {
+        return this.capacity;
+    }
+
+    public String getPolicy() {
+        return this.policy;
+    }
+
+    // Number of messages currently waiting in each lane
+    public int[] getQueueDepths() {
+        int[] depths = new int[this.lanes.length];
+        for (int i = 0; i < this.lanes.length; i++) {
+            depths[i] = this.lanes[i].queue.size();
+        }
+        return depths;
+    }
+
+    public long getProcessedCount() {
+        long total = 0;
+        for (Lane lane : this.lanes) {
+            total += lane.processed;
+        }
+        return total;
+    }
+
+    public long getDroppedCount() {
+        long total = 0;
+        for (Lane lane : this.lanes) {
+            total += lane.dropped.get();
+        }
+        return total;
+    }
+
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("lanes=").append(this.lanes.length);
+        sb.append(" processed=").append(this.getProcessedCount());
+        if (this.capacity > 0) {
+            sb.append(" dropped=").append(this.getDroppedCount());
+            sb.append(" capacity=").append(this.capacity);
+            sb.append(" policy=").append(this.policy);
+        }
+        sb.append(" depths=[");
+        int[] depths = this.getQueueDepths();
+        for (int i = 0; i < depths.length; i++) {
+            if (i > 0) {
+                sb.append(",");
+            }
+            sb.append(depths[i]);
+        }
+        sb.append("]");
+        return sb.toString();
+    }
+
+
+    // Creates an unstarted virtual thread via reflection (Thread.ofVirtual().unstarted(task)), or returns
+    // null if virtual threads are not supported by the current JDK.
+    protected static Thread newVirtualThread(Runnable task) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+            return (Thread)unstarted.invoke(builder, task);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            return null;
+        }
+    }
+}
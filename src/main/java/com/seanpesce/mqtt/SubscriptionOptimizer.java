@@ -0,0 +1,171 @@
+// Author: Sean Pesce
+//
+// Reduces a list of MQTT topic filters to a smaller set of wildcard filters that covers every
+// original filter. Generalization is applied greedily, least-speculative first, and stops as soon
+// as the result fits within the subscription budget:
+//
+//   1. Duplicate filters and filters already covered by another filter are removed (no cost)
+//   2. Filters that differ in exactly one level are merged with "+" at that level
+//      (e.g., "a/1/c" + "a/2/c" -> "a/+/c"), largest groups first
+//   3. Filters sharing a common prefix are merged with "#" (e.g., "a/b/c" + "a/d" -> "a/#"),
+//      largest groups and deepest prefixes first
+//
+// The resulting subscriptions may match topics that were not requested; pair them with a
+// TopicMatcher built from the original filters to discard those messages client-side. How far
+// generalization may go is bounded by the minimum number of literal leading levels that generated
+// wildcards must keep (e.g., with 2, "a/b/+" and "a/b/#" can be generated, but "a/+/c" and "a/#"
+// can't); if the subscription budget can't be met within that bound, the smallest set found is
+// returned instead.
+
+package com.seanpesce.mqtt;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import javax.validation.constraints.NotNull;
+
+
+public class SubscriptionOptimizer {
+
+    // Returns a covering set of at most maxFilters filters (if possible; otherwise, the smallest set found)
+    public static List<String> optimize(@NotNull List<String> filters, int maxFilters) {
+        return optimize(filters, maxFilters, 0);
+    }
+
+
+    // Same as above, but generated wildcards never replace any of the first minLiteralLevels topic levels
+    public static List<String> optimize(@NotNull List<String> filters, int maxFilters, int minLiteralLevels) {
+        ArrayList<String[]> current = new ArrayList<String[]>();
+        for (String f : new LinkedHashSet<String>(filters)) {
+            current.add(f.split(TopicMatcher.LEVEL_SEP, -1));
+        }
+        removeCovered(current);
+
+        while (current.size() > maxFilters) {
+            if (!mergeSingleLevel(current, minLiteralLevels) && !mergePrefix(current, minLiteralLevels)) {
+                break;
+            }
+            removeCovered(current);
+        }
+
+        ArrayList<String> result = new ArrayList<String>();
+        for (String[] levels : current) {
+            result.add(String.join(TopicMatcher.LEVEL_SEP, levels));
+        }
+        return result;
+    }
+
+
+    // Returns true if filter a matches every topic that filter b matches
+    public static boolean covers(String[] a, String[] b) {
+        for (int i = 0; i < a.length; i++) {
+            if (a[i].equals(TopicMatcher.MULTI_LEVEL_WILDCARD) && i == a.length - 1) {
+                // "#" can't match "$" topics from the first level
+                return !(i == 0 && b.length > 0 && b[0].startsWith("$"));
+            }
+            if (i >= b.length) {
+                return false;
+            }
+            if (a[i].equals(TopicMatcher.SINGLE_LEVEL_WILDCARD)) {
+                if (b[i].equals(TopicMatcher.MULTI_LEVEL_WILDCARD) || (i == 0 && b[i].startsWith("$"))) {
+                    return false;
+                }
+            } else if (!a[i].equals(b[i])) {
+                return false;
+            }
+        }
+        return a.length == b.length;
+    }
+
+
+    // Removes filters that are covered by another filter in the list
+    protected static void removeCovered(ArrayList<String[]> filters) {
+        for (int i = filters.size() - 1; i >= 0; i--) {
+            for (int j = 0; j < filters.size(); j++) {
+                if (i != j && covers(filters.get(j), filters.get(i))) {
+                    filters.remove(i);
+                    break;
+                }
+            }
+        }
+    }
+
+
+    // Applies the "+" merge that replaces the most filters. Returns false if no merge is possible.
+    protected static boolean mergeSingleLevel(ArrayList<String[]> filters, int minLiteralLevels) {
+        Map<String, List<Integer>> groups = new HashMap<String, List<Integer>>();
+        List<Integer> best = null;
+        int bestPos = -1;
+        for (int i = 0; i < filters.size(); i++) {
+            String[] levels = filters.get(i);
+            for (int pos = Math.max(0, minLiteralLevels); pos < levels.length; pos++) {
+                if (isWildcard(levels[pos]) || (pos == 0 && levels[0].startsWith("$"))) {
+                    continue;
+                }
+                String[] key = Arrays.copyOf(levels, levels.length);
+                key[pos] = TopicMatcher.SINGLE_LEVEL_WILDCARD;
+                String k = pos + ":" + String.join(TopicMatcher.LEVEL_SEP, key);
+                List<Integer> group = groups.get(k);
+                if (group == null) {
+                    group = new ArrayList<Integer>();
+                    groups.put(k, group);
+                }
+                group.add(i);
+                if (group.size() >= 2 && (best == null || group.size() > best.size())) {
+                    best = group;
+                    bestPos = pos;
+                }
+            }
+        }
+        if (best == null) {
+            return false;
+        }
+        String[] merged = Arrays.copyOf(filters.get(best.get(0)), filters.get(best.get(0)).length);
+        merged[bestPos] = TopicMatcher.SINGLE_LEVEL_WILDCARD;
+        for (int i = best.size() - 1; i >= 0; i--) {
+            filters.remove((int)best.get(i));
+        }
+        filters.add(merged);
+        return true;
+    }
+
+
+    // Applies the "#" merge that replaces the most filters (preferring deeper prefixes). Returns false if
+    // no merge is possible.
+    protected static boolean mergePrefix(ArrayList<String[]> filters, int minLiteralLevels) {
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        String bestPrefix = null;
+        int bestCount = 1;
+        int bestDepth = 0;
+        for (String[] levels : filters) {
+            int maxDepth = levels.length;
+            if (levels[levels.length - 1].equals(TopicMatcher.MULTI_LEVEL_WILDCARD)) {
+                maxDepth--;
+            }
+            for (int depth = Math.max(1, minLiteralLevels); depth <= maxDepth; depth++) {
+                String prefix = String.join(TopicMatcher.LEVEL_SEP, Arrays.copyOf(levels, depth));
+                int count = counts.containsKey(prefix) ? counts.get(prefix) + 1 : 1;
+                counts.put(prefix, count);
+                if (count > bestCount || (count == bestCount && count > 1 && depth > bestDepth)) {
+                    bestPrefix = prefix;
+                    bestCount = count;
+                    bestDepth = depth;
+                }
+            }
+        }
+        if (bestPrefix == null) {
+            return false;
+        }
+        filters.add((bestPrefix + TopicMatcher.LEVEL_SEP + TopicMatcher.MULTI_LEVEL_WILDCARD).split(TopicMatcher.LEVEL_SEP, -1));
+        return true;
+    }
+
+
+    protected static boolean isWildcard(String level) {
+        return level.equals(TopicMatcher.SINGLE_LEVEL_WILDCARD) || level.equals(TopicMatcher.MULTI_LEVEL_WILDCARD);
+    }
+}
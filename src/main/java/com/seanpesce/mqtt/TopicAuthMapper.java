@@ -0,0 +1,339 @@
+// Author: Sean Pesce
+//
+// Maps the subscribe/publish permissions of the current connection over a list of candidate topics.
+// Operations are pipelined (up to a fixed number in flight) instead of being tested one topic at a
+// time, and publish results are confirmed by correlating echoed payloads rather than sleeping for a
+// fixed interval. Topics are processed in batches that fit within the per-connection subscription
+// quota, and each batch goes through these steps:
+//
+//   1. Subscribe to every topic in the batch (SUBACK success/failure)
+//   2. Publish a unique token to every non-wildcard topic in the batch (PUBACK success/failure)
+//   3. Wait until every publish that should be echoed back through an accepted subscription has
+//      been received, or until the timeout elapses
+//   4. Unsubscribe from every topic in the batch
+//
+// AWS IoT Core drops the connection when a client publishes to a topic it isn't authorized to use,
+// which fails every other operation in flight at the same time. Operations that fail or time out
+// after the connection was interrupted are therefore re-tested one at a time once the connection
+// resumes, and are only reported as X if they still drop the connection.
+//
+// Result codes:
+//   Y  Allowed
+//   N  Denied
+//   X  Connection dropped during the operation (usually means denied)
+//   ?  No response (or for echoes, no echoed message) before the timeout
+//   -  Not tested/not applicable
+
+package com.seanpesce.mqtt;
+
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiFunction;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import javax.validation.constraints.NotNull;
+
+import software.amazon.awssdk.crt.mqtt.MqttMessage;
+import software.amazon.awssdk.crt.mqtt.QualityOfService;
+
+
+public class TopicAuthMapper {
+
+    public static final char ALLOWED = 'Y';
+    public static final char DENIED = 'N';
+    public static final char DISCONNECTED = 'X';
+    public static final char TIMEOUT = '?';
+    public static final char NOT_TESTED = '-';
+
+    public static class Result {
+        public final String topic;
+        protected final int index;
+        public volatile char subscribe = NOT_TESTED;
+        public volatile char publish = NOT_TESTED;
+        public volatile char echo = NOT_TESTED;
+
+        public Result(String topic, int index) {
+            this.topic = topic;
+            this.index = index;
+        }
+
+        @Override
+        public String toString() {
+            return "sub=" + this.subscribe + " pub=" + this.publish + " echo=" + this.echo + "\t" + this.topic;
+        }
+    }
+
+
+    protected final BiFunction<String, Consumer<MqttMessage>, CompletableFuture<Integer>> subscriber;
+    protected final Function<String, CompletableFuture<Integer>> unsubscriber;
+    protected final Function<MqttMessage, CompletableFuture<Integer>> publisher;
+    // Changes whenever the connection is interrupted or re-established
+    protected final LongSupplier connectionEpoch;
+    // True while the connection is interrupted
+    protected final BooleanSupplier connectionInterrupted;
+    protected final int window;
+    // Maximum number of candidate topics subscribed at once
+    protected final int batchSize;
+    protected final long timeoutMs;
+    // Unique per run, so echoes from other runs (or other clients) aren't miscounted
+    protected final String tokenPrefix = "authmap:" + Long.toHexString(System.nanoTime()) + ":";
+
+    // How long to wait for the connection to resume before re-testing an operation that dropped it
+    public static final long RECONNECT_TIMEOUT_MS = 60000;
+
+    protected List<Result> results = null;
+    protected int expectedEchoes = 0;
+    // Index range of the batch whose echoes are being waited on
+    protected int echoBatchStart = 0;
+    protected int echoBatchEnd = 0;
+
+
+    // window is the maximum number of operations in flight; batchSize is the maximum number of topics
+    // subscribed at once (e.g., the broker's per-connection subscription limit); timeoutMs applies to
+    // each operation and to the wait for each batch's echoes
+    public TopicAuthMapper(@NotNull BiFunction<String, Consumer<MqttMessage>, CompletableFuture<Integer>> subscriber,
+                           @NotNull Function<String, CompletableFuture<Integer>> unsubscriber,
+                           @NotNull Function<MqttMessage, CompletableFuture<Integer>> publisher,
+                           @NotNull LongSupplier connectionEpoch, @NotNull BooleanSupplier connectionInterrupted,
+                           int window, int batchSize, long timeoutMs) {
+        this.subscriber = subscriber;
+        this.unsubscriber = unsubscriber;
+        this.publisher = publisher;
+        this.connectionEpoch = connectionEpoch;
+        this.connectionInterrupted = connectionInterrupted;
+        this.window = Math.max(1, window);
+        this.batchSize = Math.max(1, batchSize);
+        this.timeoutMs = Math.max(1, timeoutMs);
+    }
+
+
+    // Probes every topic and returns one result per topic (in the same order)
+    public List<Result> map(@NotNull List<String> topics) throws InterruptedException {
+        final List<Result> res = new ArrayList<Result>(topics.size());
+        for (String t : topics) {
+            res.add(new Result(t, res.size()));
+        }
+        this.results = res;
+        this.expectedEchoes = 0;
+
+        final Consumer<MqttMessage> echoHandler = (MqttMessage message) -> this.onMessage(message);
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "topic-auth-map-timeout");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            int publishable = 0;
+            for (Result r : res) {
+                publishable += isWildcardFilter(r.topic) ? 0 : 1;
+            }
+            System.err.println("[INFO] Testing subscribe permissions for " + res.size() + " topic" + (res.size() == 1 ? "" : "s") + " and publish permissions for " + publishable + " topic" + (publishable == 1 ? "" : "s"));
+            for (int start = 0; start < res.size(); start += this.batchSize) {
+                this.mapBatch(res.subList(start, Math.min(start + this.batchSize, res.size())), timer, echoHandler);
+            }
+        } finally {
+            timer.shutdownNow();
+        }
+        return res;
+    }
+
+
+    // Subscribes to, publishes to, and unsubscribes from one batch of topics
+    protected void mapBatch(List<Result> batch, ScheduledExecutorService timer, final Consumer<MqttMessage> echoHandler) throws InterruptedException {
+        // Subscribe
+        final Function<Result, CompletableFuture<Integer>> subscribe = (Result r) -> this.subscriber.apply(r.topic, echoHandler);
+        final BiFunction<Result, Character, Character> recordSubscribe = (Result r, Character c) -> r.subscribe = c;
+        this.runPipelined(batch, timer, subscribe, recordSubscribe);
+        this.retestDisconnected(batch, timer, subscribe, recordSubscribe, (Result r) -> r.subscribe);
+
+        // Publish (wildcard filters can't be published to)
+        ArrayList<Result> publishable = new ArrayList<Result>();
+        for (Result r : batch) {
+            if (!isWildcardFilter(r.topic)) {
+                publishable.add(r);
+            }
+        }
+        final Function<Result, CompletableFuture<Integer>> publish = (Result r) -> {
+            byte[] token = (this.tokenPrefix + r.index).getBytes(StandardCharsets.UTF_8);
+            return this.publisher.apply(new MqttMessage(r.topic, token, QualityOfService.AT_LEAST_ONCE));
+        };
+        final BiFunction<Result, Character, Character> recordPublish = (Result r, Character c) -> r.publish = c;
+        this.runPipelined(publishable, timer, publish, recordPublish);
+        this.retestDisconnected(publishable, timer, publish, recordPublish, (Result r) -> r.publish);
+
+        // Wait for echoes on topics that were published to and are covered by an accepted subscription
+        this.awaitEchoes(batch, publishable);
+
+        // Unsubscribe
+        ArrayList<CompletableFuture<Integer>> unsubs = new ArrayList<CompletableFuture<Integer>>();
+        for (Result r : batch) {
+            unsubs.add(this.unsubscriber.apply(r.topic));
+        }
+        for (CompletableFuture<Integer> u : unsubs) {
+            try {
+                u.get(this.timeoutMs, TimeUnit.MILLISECONDS);
+            } catch (Exception ex) {
+                // Doesn't affect the results
+            }
+        }
+    }
+
+
+    // Repeats each operation that was interrupted by a dropped connection on its own, once the connection
+    // has resumed, so that only the operation that actually caused the drop is reported as X
+    protected void retestDisconnected(List<Result> targets, ScheduledExecutorService timer,
+                                      final Function<Result, CompletableFuture<Integer>> operation,
+                                      final BiFunction<Result, Character, Character> recorder,
+                                      final Function<Result, Character> status) throws InterruptedException {
+        for (Result r : targets) {
+            if (status.apply(r) != DISCONNECTED) {
+                continue;
+            }
+            if (!this.awaitConnected(RECONNECT_TIMEOUT_MS)) {
+                System.err.println("[WARNING] Connection did not resume within " + RECONNECT_TIMEOUT_MS + "ms; not re-testing interrupted operations");
+                return;
+            }
+            this.runPipelined(Collections.singletonList(r), timer, operation, recorder);
+        }
+    }
+
+
+    // Waits until the connection is up; returns false if it's still interrupted after the timeout
+    protected boolean awaitConnected(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (this.connectionInterrupted.getAsBoolean()) {
+            if (System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+            Thread.sleep(100);
+        }
+        return true;
+    }
+
+    protected void onMessage(MqttMessage message) {
+        String payload = new String(message.getPayload(), StandardCharsets.UTF_8);
+        if (!payload.startsWith(this.tokenPrefix)) {
+            return;
+        }
+        int index = -1;
+        try {
+            index = Integer.parseInt(payload.substring(this.tokenPrefix.length()));
+        } catch (NumberFormatException ex) {
+            return;
+        }
+        if (index < 0 || index >= this.results.size()) {
+            return;
+        }
+        synchronized (this) {
+            Result r = this.results.get(index);
+            if (r.echo != ALLOWED) {
+                if (r.echo == TIMEOUT && index >= this.echoBatchStart && index < this.echoBatchEnd) {
+                    // This echo was being waited on
+                    this.expectedEchoes--;
+                }
+                r.echo = ALLOWED;
+                this.notifyAll();
+            }
+        }
+    }
+
+
+    protected void awaitEchoes(List<Result> res, List<Result> published) throws InterruptedException {
+        TopicMatcher accepted = new TopicMatcher();
+        for (Result r : res) {
+            if (r.subscribe == ALLOWED) {
+                accepted.add(r.topic);
+            }
+        }
+        final long epoch = this.connectionEpoch.getAsLong();
+        synchronized (this) {
+            // Late echoes from earlier batches don't count towards this one
+            this.expectedEchoes = 0;
+            this.echoBatchStart = res.isEmpty() ? 0 : res.get(0).index;
+            this.echoBatchEnd = res.isEmpty() ? 0 : res.get(res.size() - 1).index + 1;
+            for (Result r : published) {
+                // Echoes that have not arrived yet are marked as timed out until they do
+                if (r.publish == ALLOWED && r.echo != ALLOWED && accepted.matches(r.topic)) {
+                    r.echo = TIMEOUT;
+                    this.expectedEchoes++;
+                }
+            }
+            long deadline = System.currentTimeMillis() + this.timeoutMs;
+            long remaining = this.timeoutMs;
+            while (this.expectedEchoes > 0 && remaining > 0) {
+                this.wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+            if (this.expectedEchoes > 0 && this.wasDisconnected(epoch)) {
+                for (Result r : published) {
+                    if (r.echo == TIMEOUT) {
+                        r.echo = DISCONNECTED;
+                    }
+                }
+            }
+        }
+    }
+
+
+    // Starts an operation for each result, keeping at most "window" operations in flight, and waits for
+    // all of them to complete or time out
+    protected void runPipelined(List<Result> targets, ScheduledExecutorService timer,
+                                final Function<Result, CompletableFuture<Integer>> operation,
+                                final BiFunction<Result, Character, Character> recorder) throws InterruptedException {
+        final Semaphore inFlight = new Semaphore(this.window);
+        for (final Result r : targets) {
+            inFlight.acquire();
+            final long epoch = this.connectionEpoch.getAsLong();
+            final AtomicBoolean settled = new AtomicBoolean(false);
+            final CompletableFuture<Integer> future;
+            try {
+                future = operation.apply(r);
+            } catch (RuntimeException ex) {
+                recorder.apply(r, DENIED);
+                inFlight.release();
+                continue;
+            }
+            future.whenComplete((Integer packetId, Throwable err) -> {
+                if (settled.compareAndSet(false, true)) {
+                    if (err == null) {
+                        recorder.apply(r, ALLOWED);
+                    } else {
+                        recorder.apply(r, this.wasDisconnected(epoch) ? DISCONNECTED : DENIED);
+                    }
+                    inFlight.release();
+                }
+            });
+            timer.schedule(() -> {
+                if (settled.compareAndSet(false, true)) {
+                    recorder.apply(r, this.wasDisconnected(epoch) ? DISCONNECTED : TIMEOUT);
+                    inFlight.release();
+                }
+            }, this.timeoutMs, TimeUnit.MILLISECONDS);
+        }
+        // Wait for the remaining operations
+        inFlight.acquire(this.window);
+        inFlight.release(this.window);
+    }
+
+
+    // True if the connection dropped at some point since the epoch was read, or is down now
+    protected boolean wasDisconnected(long epoch) {
+        return this.connectionEpoch.getAsLong() != epoch || this.connectionInterrupted.getAsBoolean();
+    }
+
+
+    public static boolean isWildcardFilter(@NotNull String filter) {
+        return filter.contains(TopicMatcher.SINGLE_LEVEL_WILDCARD) || filter.contains(TopicMatcher.MULTI_LEVEL_WILDCARD);
+    }
+}
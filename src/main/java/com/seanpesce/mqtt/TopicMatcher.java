@@ -0,0 +1,54 @@
+// Author: Sean Pesce
+//
+// Matches MQTT topic names against a set of topic filters. This is a TopicRouter without values;
+// see TopicRouter for wildcard semantics.
+
+package com.seanpesce.mqtt;
+
+
+import java.util.Collection;
+import javax.validation.constraints.NotNull;
+
+
+public class TopicMatcher {
+
+    public static final String LEVEL_SEP = TopicRouter.LEVEL_SEP;
+    public static final String SINGLE_LEVEL_WILDCARD = TopicRouter.SINGLE_LEVEL_WILDCARD;
+    public static final String MULTI_LEVEL_WILDCARD = TopicRouter.MULTI_LEVEL_WILDCARD;
+
+    protected final TopicRouter<Boolean> router = new TopicRouter<Boolean>();
+
+
+    public TopicMatcher() {
+    }
+
+    public TopicMatcher(@NotNull Collection<String> filters) {
+        for (String f : filters) {
+            this.add(f);
+        }
+    }
+
+
+    public void add(@NotNull String filter) {
+        this.router.add(filter, Boolean.TRUE);
+    }
+
+
+    public int size() {
+        return this.router.size();
+    }
+
+
+    // Returns true if the topic name matches any of the compiled filters
+    public boolean matches(@NotNull String topic) {
+        return this.router.hasMatch(topic);
+    }
+
+
+    // Returns true if the topic filter (which may contain wildcards) matches the topic name
+    public static boolean filterMatches(@NotNull String filter, @NotNull String topic) {
+        TopicMatcher m = new TopicMatcher();
+        m.add(filter);
+        return m.matches(topic);
+    }
+}
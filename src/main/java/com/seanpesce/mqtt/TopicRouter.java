@@ -0,0 +1,177 @@
+// Author: Sean Pesce
+//
+// Associates values (e.g., message handlers) with MQTT topic filters and finds every value whose
+// filter matches a topic name in a single pass. Filters are compiled into a level-indexed trie, so
+// the cost of routing a message depends on the topic depth and the number of wildcard branches,
+// not on the total number of filters.
+//
+// Wildcard semantics follow the MQTT specification:
+//   "+" matches exactly one topic level
+//   "#" matches the parent level and any number of child levels (must be the last level)
+//   Wildcards in the first level never match topics beginning with "$" (e.g., "$aws/...")
+//
+// References:
+//   https://docs.oasis-open.org/mqtt/mqtt/v3.1.1/os/mqtt-v3.1.1-os.html#_Toc398718106
+
+package com.seanpesce.mqtt;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.Consumer;
+import javax.validation.constraints.NotNull;
+
+
+public class TopicRouter<V> {
+
+    public static final String LEVEL_SEP = "/";
+    public static final String SINGLE_LEVEL_WILDCARD = "+";
+    public static final String MULTI_LEVEL_WILDCARD = "#";
+
+    protected static class Node<V> {
+        protected HashMap<String, Node<V>> children = null;
+        protected Node<V> plus = null;
+        // Values for filters ending at this node, and for filters ending with "#" at this node
+        protected ArrayList<V> values = null;
+        protected ArrayList<V> hashValues = null;
+    }
+
+    protected final Node<V> root = new Node<V>();
+    protected int filterCount = 0;
+
+
+    // Associates a value with a topic filter. The same value may be added under multiple filters.
+    public synchronized void add(@NotNull String filter, V value) {
+        Node<V> n = this.root;
+        String[] levels = filter.split(LEVEL_SEP, -1);
+        for (int i = 0; i < levels.length; i++) {
+            String level = levels[i];
+            if (level.equals(MULTI_LEVEL_WILDCARD) && i == levels.length - 1) {
+                if (n.hashValues == null) {
+                    n.hashValues = new ArrayList<V>(1);
+                }
+                n.hashValues.add(value);
+                this.filterCount++;
+                return;
+            } else if (level.equals(SINGLE_LEVEL_WILDCARD)) {
+                if (n.plus == null) {
+                    n.plus = new Node<V>();
+                }
+                n = n.plus;
+            } else {
+                if (n.children == null) {
+                    n.children = new HashMap<String, Node<V>>();
+                }
+                Node<V> c = n.children.get(level);
+                if (c == null) {
+                    c = new Node<V>();
+                    n.children.put(level, c);
+                }
+                n = c;
+            }
+        }
+        if (n.values == null) {
+            n.values = new ArrayList<V>(1);
+        }
+        n.values.add(value);
+        this.filterCount++;
+    }
+
+
+    public int size() {
+        return this.filterCount;
+    }
+
+
+    // Passes each value whose filter matches the topic to the visitor. A value registered under several
+    // matching filters is visited once per matching filter (see match() for de-duplicated results).
+    public void route(@NotNull String topic, @NotNull Consumer<V> visitor) {
+        route(this.root, topic, 0, topic.startsWith("$"), visitor);
+    }
+
+
+    // Returns the distinct values whose filters match the topic (in no particular order)
+    public List<V> match(@NotNull String topic) {
+        final ArrayList<V> result = new ArrayList<V>(2);
+        this.route(topic, (V v) -> {
+            for (int i = 0; i < result.size(); i++) {
+                if (result.get(i) == v) {
+                    return;
+                }
+            }
+            result.add(v);
+        });
+        return result;
+    }
+
+
+    // Returns true if any filter matches the topic (stops at the first match)
+    public boolean hasMatch(@NotNull String topic) {
+        return hasMatch(this.root, topic, 0, topic.startsWith("$"));
+    }
+
+
+    protected static <V> void route(Node<V> n, String topic, int start, boolean firstLevelDollar, Consumer<V> visitor) {
+        // "#" also matches the parent level itself
+        if (n.hashValues != null && !firstLevelDollar) {
+            visitAll(n.hashValues, visitor);
+        }
+        int end = topic.indexOf(LEVEL_SEP, start);
+        boolean last = end < 0;
+        if (last) {
+            end = topic.length();
+        }
+        if (n.children != null) {
+            Node<V> c = n.children.get(topic.substring(start, end));
+            if (c != null) {
+                if (last) {
+                    visitAll(c.values, visitor);
+                    visitAll(c.hashValues, visitor);
+                } else {
+                    route(c, topic, end + 1, false, visitor);
+                }
+            }
+        }
+        if (n.plus != null && !firstLevelDollar) {
+            if (last) {
+                visitAll(n.plus.values, visitor);
+                visitAll(n.plus.hashValues, visitor);
+            } else {
+                route(n.plus, topic, end + 1, false, visitor);
+            }
+        }
+    }
+
+
+    protected static <V> boolean hasMatch(Node<V> n, String topic, int start, boolean firstLevelDollar) {
+        if (n.hashValues != null && !firstLevelDollar) {
+            return true;
+        }
+        int end = topic.indexOf(LEVEL_SEP, start);
+        boolean last = end < 0;
+        if (last) {
+            end = topic.length();
+        }
+        if (n.children != null) {
+            Node<V> c = n.children.get(topic.substring(start, end));
+            if (c != null && (last ? (c.values != null || c.hashValues != null) : hasMatch(c, topic, end + 1, false))) {
+                return true;
+            }
+        }
+        if (n.plus != null && !firstLevelDollar) {
+            return last ? (n.plus.values != null || n.plus.hashValues != null) : hasMatch(n.plus, topic, end + 1, false);
+        }
+        return false;
+    }
+
+
+    protected static <V> void visitAll(List<V> values, Consumer<V> visitor) {
+        if (values == null) {
+            return;
+        }
+        for (int i = 0; i < values.size(); i++) {
+            visitor.accept(values.get(i));
+        }
+    }
+}
@@ -0,0 +1,208 @@
+// Author: Sean Pesce
+//
+// Per-topic rate limiter for received MQTT messages. Each topic gets a token bucket that allows up to
+// K messages per interval (including a burst of up to K); messages beyond that are suppressed and
+// counted. A topic that hasn't been seen before starts with a full bucket, so rare topics always get
+// through.
+//
+// Buckets use the generic cell rate algorithm (GCRA), which represents a token bucket as a single
+// "theoretical arrival time", so checking a message is one map lookup plus one compare-and-set with
+// no locks. Buckets live in a ConcurrentHashMap keyed by topic; when the map grows past its limit,
+// the least recently seen topics are evicted (their suppressed counts are kept in the totals).
+//
+// References:
+//   https://en.wikipedia.org/wiki/Generic_cell_rate_algorithm
+
+package com.seanpesce.mqtt;
+
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import javax.validation.constraints.NotNull;
+
+import software.amazon.awssdk.crt.mqtt.MqttMessage;
+
+
+public class TopicSampler {
+
+    protected static class Bucket {
+        // Theoretical arrival time (nanoseconds) of the next conforming message
+        protected final AtomicLong tat;
+        protected final AtomicLong suppressed = new AtomicLong(0);
+        protected volatile long lastSeen;
+
+        protected Bucket(long now) {
+            this.tat = new AtomicLong(now);
+            this.lastSeen = now;
+        }
+    }
+
+
+    protected final int messagesPerInterval;
+    protected final long emissionIntervalNanos;
+    protected final long burstToleranceNanos;
+    protected final int maxTopics;
+    protected final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+    protected final AtomicBoolean evicting = new AtomicBoolean(false);
+
+    // Statistics
+    protected final AtomicLong passedCount = new AtomicLong(0);
+    protected final AtomicLong suppressedCount = new AtomicLong(0);
+    protected final AtomicLong evictedCount = new AtomicLong(0);
+    protected final AtomicLong evictedSuppressedCount = new AtomicLong(0);
+
+
+    // Allows up to messagesPerInterval messages per topic per intervalMs. At most maxTopics buckets are
+    // kept.
+    public TopicSampler(int messagesPerInterval, long intervalMs, int maxTopics) {
+        this.messagesPerInterval = Math.max(1, messagesPerInterval);
+        long intervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, intervalMs));
+        this.emissionIntervalNanos = Math.max(1, intervalNanos / this.messagesPerInterval);
+        this.burstToleranceNanos = intervalNanos - this.emissionIntervalNanos;
+        this.maxTopics = Math.max(1, maxTopics);
+    }
+
+
+    // Returns true if a message on the topic should be passed through
+    public boolean tryAcquire(@NotNull String topic) {
+        long now = System.nanoTime();
+        Bucket bucket = this.buckets.get(topic);
+        if (bucket == null) {
+            bucket = this.buckets.computeIfAbsent(topic, (String t) -> new Bucket(now));
+            if (this.buckets.size() > this.maxTopics) {
+                this.evictIdle();
+            }
+        }
+        bucket.lastSeen = now;
+        while (true) {
+            long tat = bucket.tat.get();
+            long next = Math.max(tat, now);
+            if (next - now > this.burstToleranceNanos) {
+                bucket.suppressed.incrementAndGet();
+                this.suppressedCount.incrementAndGet();
+                return false;
+            }
+            if (bucket.tat.compareAndSet(tat, next + this.emissionIntervalNanos)) {
+                this.passedCount.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+
+    // Returns a handler that passes rate-limited messages on to the given handler
+    public Consumer<MqttMessage> wrap(@NotNull final Consumer<MqttMessage> handler) {
+        return (MqttMessage message) -> {
+            if (this.tryAcquire(message.getTopic())) {
+                handler.accept(message);
+            }
+        };
+    }
+
+
+    public long getPassedCount() {
+        return this.passedCount.get();
+    }
+
+    public long getSuppressedCount() {
+        return this.suppressedCount.get();
+    }
+
+    public int getTopicCount() {
+        return this.buckets.size();
+    }
+
+    public long getEvictedCount() {
+        return this.evictedCount.get();
+    }
+
+
+    // Returns (and resets) the suppressed-message counts for the topics with the most suppressed
+    // messages since the last call, in descending order
+    public Map<String, Long> drainTopSuppressed(int limit) {
+        ArrayList<Map.Entry<String, Long>> counts = new ArrayList<Map.Entry<String, Long>>();
+        for (Map.Entry<String, Bucket> entry : this.buckets.entrySet()) {
+            long n = entry.getValue().suppressed.getAndSet(0);
+            if (n > 0) {
+                counts.add(new AbstractMap.SimpleEntry<String, Long>(entry.getKey(), n));
+            }
+        }
+        counts.sort(Collections.reverseOrder(Map.Entry.comparingByValue()));
+        LinkedHashMap<String, Long> top = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < counts.size() && i < limit; i++) {
+            top.put(counts.get(i).getKey(), counts.get(i).getValue());
+        }
+        return top;
+    }
+
+
+    // One-line summary of the messages suppressed since the last call (or null if there were none)
+    public String drainSummary(int topicLimit) {
+        long evictedSuppressed = this.evictedSuppressedCount.getAndSet(0);
+        Map<String, Long> top = this.drainTopSuppressed(Integer.MAX_VALUE);
+        long total = evictedSuppressed;
+        for (long n : top.values()) {
+            total += n;
+        }
+        if (total == 0) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("Sampling suppressed ").append(total).append(" message").append(total == 1 ? "" : "s");
+        sb.append(" on ").append(top.size()).append(" topic").append(top.size() == 1 ? "" : "s");
+        if (evictedSuppressed > 0) {
+            sb.append(" (plus ").append(evictedSuppressed).append(" on evicted topics)");
+        }
+        int i = 0;
+        for (Map.Entry<String, Long> entry : top.entrySet()) {
+            if (i >= topicLimit) {
+                sb.append(", ...");
+                break;
+            }
+            sb.append(i == 0 ? ": " : ", ").append(entry.getKey()).append(" (").append(entry.getValue()).append(")");
+            i++;
+        }
+        return sb.toString();
+    }
+
+
+    // Evicts the least recently seen topics until the map is back down to 3/4 of its limit. Only one
+    // thread evicts at a time; others continue without waiting.
+    protected void evictIdle() {
+        if (!this.evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            int target = this.maxTopics - this.maxTopics / 4;
+            int excess = this.buckets.size() - target;
+            if (excess <= 0) {
+                return;
+            }
+            // Snapshot the last-seen times first, since they keep changing while the list is sorted
+            List<Map.Entry<Long, Map.Entry<String, Bucket>>> entries = new ArrayList<Map.Entry<Long, Map.Entry<String, Bucket>>>(this.buckets.size());
+            for (Map.Entry<String, Bucket> entry : this.buckets.entrySet()) {
+                entries.add(new AbstractMap.SimpleEntry<Long, Map.Entry<String, Bucket>>(entry.getValue().lastSeen, entry));
+            }
+            entries.sort(Comparator.comparingLong((Map.Entry<Long, Map.Entry<String, Bucket>> e) -> e.getKey()));
+            for (int i = 0; i < excess && i < entries.size(); i++) {
+                Map.Entry<String, Bucket> entry = entries.get(i).getValue();
+                if (this.buckets.remove(entry.getKey(), entry.getValue())) {
+                    this.evictedCount.incrementAndGet();
+                    this.evictedSuppressedCount.addAndGet(entry.getValue().suppressed.get());
+                }
+            }
+        } finally {
+            this.evicting.set(false);
+        }
+    }
+}
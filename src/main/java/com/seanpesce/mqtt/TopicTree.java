@@ -0,0 +1,322 @@
+// Author: Sean Pesce
+//
+// In-memory index of observed MQTT topic levels. Each node tracks the number of messages and
+// payload bytes seen in its subtree, plus the time of the most recent message. To bound memory
+// usage on high-cardinality namespaces (e.g., one level per device ID), a level whose child count
+// exceeds a threshold is collapsed into a single "+" child. When the total node cap is reached, the
+// levels with the most children are collapsed the same way until the tree is back under a low
+// watermark (90% of the cap), so the search for collapsible levels runs once per batch of new nodes
+// rather than once per new topic; if nothing is left to collapse, messages are counted at the
+// deepest existing node instead.
+//
+// Snapshots are written as indented text, one node per line:
+//   <level>  msgs=<count> bytes=<count> last=<ISO-8601 timestamp>
+
+package com.seanpesce.mqtt;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import javax.validation.constraints.NotNull;
+
+
+public class TopicTree {
+
+    public static final String LEVEL_SEP = "/";
+    public static final String COLLAPSED_LEVEL = "+";
+
+    protected static class Node {
+        protected final String level;
+        protected long messageCount = 0;
+        protected long byteCount = 0;
+        protected long lastSeen = 0;
+        protected HashMap<String, Node> children = null;
+
+        protected Node(String level) {
+            this.level = level;
+        }
+
+        protected int childCount() {
+            return this.children == null ? 0 : this.children.size();
+        }
+
+        // Returns the number of nodes in this subtree (including this node)
+        protected int size() {
+            int n = 1;
+            if (this.children != null) {
+                for (Node c : this.children.values()) {
+                    n += c.size();
+                }
+            }
+            return n;
+        }
+
+        // Merges the counters and subtree of another node into this one
+        protected void merge(Node other) {
+            this.messageCount += other.messageCount;
+            this.byteCount += other.byteCount;
+            this.lastSeen = Math.max(this.lastSeen, other.lastSeen);
+            if (other.children != null) {
+                if (this.children == null) {
+                    this.children = new HashMap<String, Node>();
+                }
+                for (Node oc : other.children.values()) {
+                    Node c = this.children.get(oc.level);
+                    if (c == null) {
+                        this.children.put(oc.level, oc);
+                    } else {
+                        c.merge(oc);
+                    }
+                }
+            }
+        }
+    }
+
+
+    protected final Node root = new Node("");
+    protected final int maxNodes;
+    // Node count that collapsing brings the tree back down to once the cap is reached
+    protected final int lowWatermark;
+    protected final int maxChildrenPerLevel;
+    protected int nodeCount = 1;
+    // Parents whose children were merged into "+"; new levels under these nodes keep collapsing
+    protected final Set<Node> collapsedParents = Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>());
+    // Set once the node cap is reached and no level has more than one child left to collapse
+    protected boolean saturated = false;
+
+
+    public TopicTree(int maxNodes, int maxChildrenPerLevel) {
+        this.maxNodes = Math.max(1, maxNodes);
+        this.lowWatermark = Math.max(1, this.maxNodes - this.maxNodes / 10);
+        this.maxChildrenPerLevel = Math.max(1, maxChildrenPerLevel);
+    }
+
+
+    // Records a message received on the given topic
+    public synchronized void record(@NotNull String topic, int payloadSize, long timestamp) {
+        if (this.nodeCount >= this.maxNodes && !this.saturated) {
+            this.collapseToWatermark();
+        }
+        Node node = this.root;
+        this.touch(node, payloadSize, timestamp);
+        int start = 0;
+        while (start <= topic.length()) {
+            int end = topic.indexOf(LEVEL_SEP, start);
+            if (end < 0) {
+                end = topic.length();
+            }
+            Node next = this.child(node, topic.substring(start, end));
+            if (next == null) {
+                // Node budget exhausted
+                break;
+            }
+            node = next;
+            this.touch(node, payloadSize, timestamp);
+            start = end + 1;
+        }
+    }
+
+
+    public synchronized int getNodeCount() {
+        return this.nodeCount;
+    }
+
+    public synchronized long getMessageCount() {
+        return this.root.messageCount;
+    }
+
+
+    protected void touch(Node node, int payloadSize, long timestamp) {
+        node.messageCount++;
+        node.byteCount += payloadSize;
+        if (timestamp > node.lastSeen) {
+            node.lastSeen = timestamp;
+        }
+    }
+
+
+    // Returns the child node for the given level, creating or collapsing nodes as necessary. Returns
+    // null if the node cap has been reached and no wildcard child exists.
+    protected Node child(Node parent, String level) {
+        if (parent.children == null) {
+            parent.children = new HashMap<String, Node>();
+        }
+        Node c = parent.children.get(level);
+        if (c != null) {
+            return c;
+        }
+        Node collapsed = parent.children.get(COLLAPSED_LEVEL);
+        if (collapsed != null && this.collapsedParents.contains(parent)) {
+            return collapsed;
+        }
+        if (parent.childCount() >= this.maxChildrenPerLevel) {
+            return this.collapse(parent);
+        }
+        if (this.nodeCount >= this.maxNodes) {
+            return collapsed;
+        }
+        c = new Node(level);
+        parent.children.put(level, c);
+        this.nodeCount++;
+        return c;
+    }
+
+
+    // Collapses the levels with the most children until the node count is at or below the low watermark
+    // (used when the node cap is reached)
+    protected void collapseToWatermark() {
+        while (this.nodeCount > this.lowWatermark) {
+            ArrayList<Node> candidates = new ArrayList<Node>();
+            ArrayList<Node> stack = new ArrayList<Node>();
+            stack.add(this.root);
+            while (!stack.isEmpty()) {
+                Node n = stack.remove(stack.size() - 1);
+                if (n.children == null) {
+                    continue;
+                }
+                if (n.childCount() > 1) {
+                    candidates.add(n);
+                }
+                stack.addAll(n.children.values());
+            }
+            if (candidates.isEmpty()) {
+                this.saturated = true;
+                return;
+            }
+            Collections.sort(candidates, new Comparator<Node>() {
+                @Override
+                public int compare(Node a, Node b) {
+                    return Integer.compare(b.childCount(), a.childCount());
+                }
+            });
+            // Nodes below a collapsed level may have been merged away, so they're skipped until the next search
+            Set<Node> stale = Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>());
+            for (Node n : candidates) {
+                if (this.nodeCount <= this.lowWatermark) {
+                    return;
+                }
+                if (stale.contains(n)) {
+                    continue;
+                }
+                markDescendants(n, stale);
+                this.collapse(n);
+            }
+        }
+    }
+
+
+    protected static void markDescendants(Node node, Set<Node> marked) {
+        if (node.children != null) {
+            for (Node c : node.children.values()) {
+                marked.add(c);
+                markDescendants(c, marked);
+            }
+        }
+    }
+
+
+    // Merges all children of the node into a single "+" child and returns it
+    protected Node collapse(Node parent) {
+        Node plus = new Node(COLLAPSED_LEVEL);
+        int before = 0;
+        for (Node c : parent.children.values()) {
+            before += c.size();
+            plus.merge(c);
+        }
+        parent.children = new HashMap<String, Node>();
+        parent.children.put(COLLAPSED_LEVEL, plus);
+        this.collapsedParents.add(parent);
+        this.nodeCount += plus.size() - before;
+        return plus;
+    }
+
+
+    // Writes the tree to the given writer (children sorted by message count, descending)
+    public synchronized void write(@NotNull Writer out) {
+        PrintWriter pw = new PrintWriter(out);
+        pw.println("# topic-tree nodes=" + this.nodeCount + " msgs=" + this.root.messageCount + " bytes=" + this.root.byteCount + " time=" + Instant.now());
+        if (this.root.children != null) {
+            for (Node c : sortedChildren(this.root)) {
+                writeNode(pw, c, 0);
+            }
+        }
+        pw.flush();
+    }
+
+
+    // Writes a snapshot to the given file path (written to a temporary file first, then moved into place)
+    public void snapshot(@NotNull String path) throws IOException {
+        File target = new File(path).getAbsoluteFile();
+        File tmp = new File(target.getPath() + ".tmp");
+        try (Writer w = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+            this.write(w);
+        }
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+
+    // Starts a daemon thread that writes a snapshot to the given file at a fixed interval
+    public Thread startSnapshotTimer(@NotNull final String path, final long intervalMs) {
+        Thread t = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(intervalMs);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                try {
+                    this.snapshot(path);
+                } catch (IOException ex) {
+                    System.err.println("[ERROR] Failed to write topic tree snapshot to " + path + ": " + ex.getMessage());
+                }
+            }
+        }, "topic-tree-snapshot");
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+
+    protected static void writeNode(PrintWriter pw, Node node, int depth) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            sb.append("  ");
+        }
+        sb.append(node.level.isEmpty() ? "\"\"" : node.level);
+        sb.append("  msgs=").append(node.messageCount);
+        sb.append(" bytes=").append(node.byteCount);
+        sb.append(" last=").append(Instant.ofEpochMilli(node.lastSeen));
+        pw.println(sb);
+        if (node.children != null) {
+            for (Node c : sortedChildren(node)) {
+                writeNode(pw, c, depth + 1);
+            }
+        }
+    }
+
+
+    protected static List<Node> sortedChildren(Node node) {
+        List<Node> children = new ArrayList<Node>(node.children.values());
+        Collections.sort(children, new Comparator<Node>() {
+            @Override
+            public int compare(Node a, Node b) {
+                int cmp = Long.compare(b.messageCount, a.messageCount);
+                return cmp != 0 ? cmp : a.level.compareTo(b.level);
+            }
+        });
+        return children;
+    }
+}
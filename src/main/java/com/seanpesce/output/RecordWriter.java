@@ -0,0 +1,335 @@
+// Author: Sean Pesce
+//
+// Writes action results as records in a machine-readable format. Records are appended to an
+// in-memory buffer and written out by a background flusher thread, so many records are committed
+// with a single write (and a single compressed block) instead of one write per record. Output
+// files can optionally be gzip-compressed and rotated by size and/or age.
+//
+// Formats:
+//   text    The same lines that are printed to stdout without this writer
+//   ndjson  One JSON object per line: {"time":<epoch ms>,"type":<type>,"subject":<subject>,<fields>...}
+//   csv     One row per record field: time,type,subject,field,value (non-string values are JSON-encoded)
+//
+// Rotated files are named <path>.<yyyyMMdd-HHmmss>[-<n>] (plus ".gz" if compressed).
+
+package com.seanpesce.output;
+
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+import javax.validation.constraints.NotNull;
+
+import com.seanpesce.json.JsonEncoder;
+
+
+public class RecordWriter implements Closeable {
+
+    public static final String FORMAT_TEXT = "text";
+    public static final String FORMAT_NDJSON = "ndjson";
+    public static final String FORMAT_CSV = "csv";
+    public static final List<String> FORMATS = Collections.unmodifiableList(Arrays.asList(new String[]{
+        FORMAT_TEXT,
+        FORMAT_NDJSON,
+        FORMAT_CSV
+    }));
+
+    public static final String CSV_HEADER = "time,type,subject,field,value";
+    // Buffered data size that triggers an early flush, and the size at which writers flush inline
+    public static final int FLUSH_THRESHOLD = 1 << 20;
+    public static final int MAX_PENDING = 8 << 20;
+    protected static final int IO_BUFFER_SIZE = 1 << 16;
+
+
+    // Counts bytes written to the underlying file (i.e., after compression)
+    protected static class CountingOutputStream extends FilterOutputStream {
+        protected long count = 0;
+
+        protected CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.out.write(b);
+            this.count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            this.out.write(b, off, len);
+            this.count += len;
+        }
+    }
+
+
+    protected final String format;
+    protected final String path;  // null for stdout
+    protected final boolean compress;
+    protected final long rotateBytes;
+    protected final long rotateIntervalMs;
+    protected final long flushIntervalMs;
+
+    // Guarded by this
+    protected StringBuilder pending = new StringBuilder();
+    protected long recordCount = 0;
+    protected boolean closed = false;
+
+    // Guarded by ioLock
+    protected final Object ioLock = new Object();
+    protected OutputStream out = null;
+    protected CountingOutputStream fileCounter = null;
+    protected long segmentOpenTime = 0;
+    protected long bytesWritten = 0;
+    protected int segmentCount = 0;
+
+    protected final Thread flusher;
+
+
+    // path may be null to write to stdout (in which case compression and rotation are not used).
+    // rotateBytes/rotateIntervalMs <= 0 disable rotation by size/age.
+    public RecordWriter(@NotNull String format, String path, boolean compress, long rotateBytes, long rotateIntervalMs, long flushIntervalMs) throws IOException {
+        if (!FORMATS.contains(format)) {
+            throw new IllegalArgumentException("Unsupported output format: " + format + " (supported formats: " + FORMATS + ")");
+        }
+        this.format = format;
+        this.path = path;
+        this.compress = compress && path != null;
+        this.rotateBytes = path != null ? rotateBytes : 0;
+        this.rotateIntervalMs = path != null ? rotateIntervalMs : 0;
+        this.flushIntervalMs = Math.max(1, flushIntervalMs);
+        synchronized (this.ioLock) {
+            this.openSegment();
+        }
+
+        this.flusher = new Thread(() -> {
+            while (true) {
+                synchronized (this) {
+                    if (this.closed) {
+                        return;
+                    }
+                    if (this.pending.length() < FLUSH_THRESHOLD) {
+                        try {
+                            this.wait(this.flushIntervalMs);
+                        } catch (InterruptedException ex) {
+                            return;
+                        }
+                    }
+                }
+                try {
+                    this.flush();
+                } catch (IOException ex) {
+                    System.err.println("[ERROR] Failed to write output records" + (this.path != null ? " to " + this.path : "") + ": " + ex.getMessage());
+                }
+            }
+        }, "record-writer-flush");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+
+    public String getFormat() {
+        return this.format;
+    }
+
+    public synchronized long getRecordCount() {
+        return this.recordCount;
+    }
+
+    // Uncompressed bytes written (across all segments)
+    public long getBytesWritten() {
+        synchronized (this.ioLock) {
+            return this.bytesWritten;
+        }
+    }
+
+
+    // Adds a record. text is the human-readable form (used by the text format); fields are the
+    // structured data (used by the other formats).
+    public void write(@NotNull String type, String subject, @NotNull String text, Map<String, ?> fields) {
+        long time = System.currentTimeMillis();
+        boolean flushNow = false;
+        synchronized (this) {
+            if (this.closed) {
+                return;
+            }
+            StringBuilder sb = this.pending;
+            if (this.format.equals(FORMAT_TEXT)) {
+                sb.append(text).append('\n');
+            } else if (this.format.equals(FORMAT_NDJSON)) {
+                sb.append("{\"time\":").append(time).append(",\"type\":");
+                JsonEncoder.appendString(sb, type);
+                sb.append(",\"subject\":");
+                JsonEncoder.appendValue(sb, subject);
+                if (fields != null) {
+                    for (Map.Entry<String, ?> field : fields.entrySet()) {
+                        sb.append(',');
+                        JsonEncoder.appendString(sb, field.getKey());
+                        sb.append(':');
+                        JsonEncoder.appendValue(sb, field.getValue());
+                    }
+                }
+                sb.append("}\n");
+            } else {
+                String prefix = time + "," + csvEscape(type) + "," + csvEscape(subject == null ? "" : subject) + ",";
+                if (fields == null || fields.isEmpty()) {
+                    sb.append(prefix).append(",\n");
+                } else {
+                    for (Map.Entry<String, ?> field : fields.entrySet()) {
+                        Object v = field.getValue();
+                        sb.append(prefix).append(csvEscape(field.getKey())).append(',');
+                        sb.append(csvEscape(v == null ? "" : (v instanceof String ? (String)v : JsonEncoder.encode(v)))).append('\n');
+                    }
+                }
+            }
+            this.recordCount++;
+            if (sb.length() >= MAX_PENDING) {
+                flushNow = true;
+            } else if (sb.length() >= FLUSH_THRESHOLD) {
+                this.notifyAll();
+            }
+        }
+        if (flushNow) {
+            // Writers outpacing the flusher commit their own data
+            try {
+                this.flush();
+            } catch (IOException ex) {
+                System.err.println("[ERROR] Failed to write output records" + (this.path != null ? " to " + this.path : "") + ": " + ex.getMessage());
+            }
+        }
+    }
+
+
+    // Writes all buffered records, rotating the output file first if necessary
+    public void flush() throws IOException {
+        synchronized (this.ioLock) {
+            String data = null;
+            synchronized (this) {
+                if (this.pending.length() > 0) {
+                    data = this.pending.toString();
+                    this.pending = new StringBuilder(Math.min(data.length() + 1024, MAX_PENDING));
+                }
+            }
+            if (this.out == null) {
+                return;
+            }
+            if (this.shouldRotate()) {
+                this.closeSegment();
+                this.openSegment();
+            }
+            if (data != null) {
+                byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+                this.out.write(bytes);
+                this.bytesWritten += bytes.length;
+                this.out.flush();
+            }
+        }
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (this.closed) {
+                return;
+            }
+            // No records are accepted after this point, so the final flush writes all of them
+            this.closed = true;
+            this.notifyAll();
+        }
+        this.flush();
+        synchronized (this.ioLock) {
+            this.closeSegment();
+        }
+    }
+
+
+    protected boolean shouldRotate() {
+        if (this.path == null) {
+            return false;
+        }
+        if (this.rotateBytes > 0 && this.fileCounter.count >= this.rotateBytes) {
+            return true;
+        }
+        return this.rotateIntervalMs > 0 && System.currentTimeMillis() - this.segmentOpenTime >= this.rotateIntervalMs;
+    }
+
+
+    protected void openSegment() throws IOException {
+        this.segmentOpenTime = System.currentTimeMillis();
+        this.segmentCount++;
+        if (this.path == null) {
+            this.fileCounter = new CountingOutputStream(System.out);
+            this.out = this.fileCounter;
+        } else {
+            File f = this.nextSegmentFile();
+            // Without rotation, existing output is appended to (concatenated gzip members are still valid gzip data)
+            boolean append = this.rotateBytes <= 0 && this.rotateIntervalMs <= 0;
+            boolean isNew = !append || !f.exists() || f.length() == 0;
+            this.fileCounter = new CountingOutputStream(new FileOutputStream(f, append));
+            OutputStream o = new BufferedOutputStream(this.fileCounter, IO_BUFFER_SIZE);
+            if (this.compress) {
+                // Sync flushing keeps every committed batch readable while the file is still open
+                o = new GZIPOutputStream(o, IO_BUFFER_SIZE, true);
+            }
+            this.out = o;
+            if (isNew && this.segmentCount > 1) {
+                System.err.println("[INFO] Rotated output to " + f.getPath());
+            }
+            if (isNew && this.format.equals(FORMAT_CSV)) {
+                byte[] header = (CSV_HEADER + "\n").getBytes(StandardCharsets.UTF_8);
+                this.out.write(header);
+                this.bytesWritten += header.length;
+            }
+        }
+    }
+
+
+    protected void closeSegment() throws IOException {
+        if (this.out == null) {
+            return;
+        }
+        if (this.path == null) {
+            this.out.flush();
+        } else {
+            this.out.close();
+        }
+        this.out = null;
+    }
+
+
+    protected File nextSegmentFile() {
+        String suffix = this.compress && !this.path.endsWith(".gz") ? ".gz" : "";
+        if (this.rotateBytes <= 0 && this.rotateIntervalMs <= 0) {
+            return new File(this.path + suffix);
+        }
+        String base = this.path + "." + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date(this.segmentOpenTime));
+        File f = new File(base + suffix);
+        for (int n = 1; f.exists(); n++) {
+            f = new File(base + "-" + n + suffix);
+        }
+        return f;
+    }
+
+
+    public static String csvEscape(@NotNull String value) {
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        return quote ? "\"" + value.replace("\"", "\"\"") + "\"" : value;
+    }
+}
@@ -0,0 +1,169 @@
+// Author: Sean Pesce
+//
+// Aho-Corasick multi-keyword matcher over raw bytes. All keywords are found in a single pass over
+// the input regardless of how many keywords are configured, without decoding the input to a String.
+// Keywords are matched as UTF-8 byte sequences; case-insensitive matching folds ASCII letters only.
+//
+// References:
+//   https://doi.org/10.1145/360825.360855
+
+package com.seanpesce.regex;
+
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import javax.validation.constraints.NotNull;
+
+
+public class AhoCorasick {
+
+    // Receives keyword matches. end is the exclusive end offset of the match in the scanned buffer.
+    public static interface MatchHandler {
+        void match(int keywordIndex, int start, int end);
+    }
+
+
+    protected final List<String> keywords;
+    protected final int[] keywordLengths;
+    protected final boolean ignoreCase;
+    // Dense transition table: delta[state * 256 + byte] -> next state
+    protected int[] delta;
+    // Keywords that end at each state (including those inherited through failure links)
+    protected int[][] outputs;
+
+
+    public AhoCorasick(@NotNull List<String> keywords, boolean ignoreCase) {
+        this.keywords = Collections.unmodifiableList(new ArrayList<String>(keywords));
+        this.ignoreCase = ignoreCase;
+        this.keywordLengths = new int[this.keywords.size()];
+
+        // Build the keyword trie
+        int maxStates = 1;
+        byte[][] encoded = new byte[this.keywords.size()][];
+        for (int k = 0; k < encoded.length; k++) {
+            encoded[k] = this.keywords.get(k).getBytes(StandardCharsets.UTF_8);
+            if (ignoreCase) {
+                for (int i = 0; i < encoded[k].length; i++) {
+                    encoded[k][i] = fold(encoded[k][i]);
+                }
+            }
+            this.keywordLengths[k] = encoded[k].length;
+            maxStates += encoded[k].length;
+        }
+        int[] gotoTable = new int[maxStates * 256];
+        Arrays.fill(gotoTable, -1);
+        int[][] out = new int[maxStates][];
+        int stateCount = 1;
+        for (int k = 0; k < encoded.length; k++) {
+            if (encoded[k].length == 0) {
+                continue;
+            }
+            int state = 0;
+            for (byte b : encoded[k]) {
+                int idx = state * 256 + (b & 0xFF);
+                if (gotoTable[idx] < 0) {
+                    gotoTable[idx] = stateCount++;
+                }
+                state = gotoTable[idx];
+            }
+            out[state] = append(out[state], k);
+        }
+
+        // Compute failure links breadth-first and collapse them into a full transition table
+        this.delta = Arrays.copyOf(gotoTable, stateCount * 256);
+        this.outputs = new int[stateCount][];
+        int[] fail = new int[stateCount];
+        ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+        for (int c = 0; c < 256; c++) {
+            int s = this.delta[c];
+            if (s < 0) {
+                this.delta[c] = 0;
+            } else {
+                fail[s] = 0;
+                queue.add(s);
+            }
+        }
+        this.outputs[0] = out[0] == null ? new int[0] : out[0];
+        while (!queue.isEmpty()) {
+            int r = queue.poll();
+            int[] inherited = this.outputs[fail[r]];
+            int[] own = out[r] == null ? new int[0] : out[r];
+            int[] merged = Arrays.copyOf(own, own.length + inherited.length);
+            System.arraycopy(inherited, 0, merged, own.length, inherited.length);
+            this.outputs[r] = merged;
+            for (int c = 0; c < 256; c++) {
+                int s = this.delta[r * 256 + c];
+                if (s < 0) {
+                    this.delta[r * 256 + c] = this.delta[fail[r] * 256 + c];
+                } else {
+                    fail[s] = this.delta[fail[r] * 256 + c];
+                    queue.add(s);
+                }
+            }
+        }
+    }
+
+
+    public List<String> getKeywords() {
+        return this.keywords;
+    }
+
+
+    // Reports every (possibly overlapping) keyword occurrence in data[offset, end)
+    public void scan(@NotNull byte[] data, int offset, int end, @NotNull MatchHandler handler) {
+        int state = 0;
+        final int[] d = this.delta;
+        for (int i = offset; i < end; i++) {
+            byte b = data[i];
+            if (this.ignoreCase) {
+                b = fold(b);
+            }
+            state = d[(state << 8) | (b & 0xFF)];
+            int[] matches = this.outputs[state];
+            for (int m = 0; m < matches.length; m++) {
+                int k = matches[m];
+                handler.match(k, i + 1 - this.keywordLengths[k], i + 1);
+            }
+        }
+    }
+
+
+    public void scan(@NotNull byte[] data, @NotNull MatchHandler handler) {
+        this.scan(data, 0, data.length, handler);
+    }
+
+
+    // Returns true if any keyword occurs in the data
+    public boolean containsAny(@NotNull byte[] data) {
+        int state = 0;
+        for (int i = 0; i < data.length; i++) {
+            byte b = this.ignoreCase ? fold(data[i]) : data[i];
+            state = this.delta[(state << 8) | (b & 0xFF)];
+            if (this.outputs[state].length > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    protected static byte fold(byte b) {
+        if (b >= 'A' && b <= 'Z') {
+            return (byte)(b + ('a' - 'A'));
+        }
+        return b;
+    }
+
+    protected static int[] append(int[] arr, int val) {
+        if (arr == null) {
+            return new int[]{ val };
+        }
+        int[] result = Arrays.copyOf(arr, arr.length + 1);
+        result[arr.length] = val;
+        return result;
+    }
+}